@@ -0,0 +1,402 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *    getHost(startup_listener) API added by Wayne Westerman in 2002.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package usb.linux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import usb.core.Bus;
+import usb.core.Device;
+import usb.core.Endpoint;
+import usb.core.Host;
+import usb.core.Interface;
+import usb.core.PendingTransfer;
+import usb.core.USBListenerAdapter;
+
+
+/**
+ * Times enumeration, hotplug, and bulk transfers against a {@link
+ * ScriptedKernel}, so changes to this package can be measured without
+ * any USB hardware.  Run it with "make benchmark", or:
+ *
+ * <pre>
+ *	java -cp jusb.jar:jusb-bench.jar usb.linux.Bench [options]
+ * </pre>
+ *
+ * <p> The options, with their defaults, are:
+ * <dl>
+ * <dt>-busses 2</dt> <dd>how many busses to simulate</dd>
+ * <dt>-hubs 4</dt> <dd>external hubs on each bus</dd>
+ * <dt>-devices 7</dt> <dd>devices on each external hub</dd>
+ * <dt>-sysfs</dt> <dd>enumerate through sysfs, not usbfs</dd>
+ * <dt>-hotplug 20</dt> <dd>devices to connect and disconnect</dd>
+ * <dt>-rounds 200</dt> <dd>bulk writes (and reads) to time</dd>
+ * <dt>-size 65536</dt> <dd>bytes per bulk transfer</dd>
+ * <dt>-queue 4</dt> <dd>reads kept queued while streaming</dd>
+ * <dt>-latency 50</dt> <dd>microseconds each request takes</dd>
+ * <dt>-bandwidth 40000000</dt> <dd>bytes per second, per bus;
+ *	zero means data moves instantly</dd>
+ * </dl>
+ *
+ * <p> Each external hub has one more port than it has devices; the
+ * spare one on the first bus's first hub is used for hotplug.
+ *
+ * @version $Id$
+ */
+public final class Bench
+{
+    private int		busses = 2;
+    private int		hubs = 4;
+    private int		devices = 7;
+    private boolean	sysfs;
+    private int		hotplug = 20;
+    private int		rounds = 200;
+    private int		size = 64 * 1024;
+    private int		queue = 4;
+    private int		latency = 50;
+    private long	bandwidth = 40 * 1000 * 1000;
+
+    private ScriptedKernel	kernel;
+    private Device		added;
+    private Device		removed;
+
+    private Bench () { }
+
+
+    public static void main (String argv [])
+    {
+	Bench	bench = new Bench ();
+
+	try {
+	    bench.parse (argv);
+	} catch (IllegalArgumentException e) {
+	    System.err.println ("usage:  usb.linux.Bench "
+		+ "[-busses N] [-hubs N] [-devices N] [-sysfs]\n"
+		+ "\t[-hotplug N] [-rounds N] [-size N] [-queue N]\n"
+		+ "\t[-latency usec] [-bandwidth bytes/sec]");
+	    System.exit (1);
+	}
+	try {
+	    bench.run ();
+	} catch (Exception e) {
+	    e.printStackTrace ();
+	    System.exit (1);
+	}
+	// the reaper and hotplug watcher don't exit by themselves
+	System.exit (0);
+    }
+
+    private void parse (String argv [])
+    {
+	for (int i = 0; i < argv.length; i++) {
+	    String	opt = argv [i];
+
+	    if ("-sysfs".equals (opt)) {
+		sysfs = true;
+		continue;
+	    }
+	    if (i + 1 == argv.length)
+		throw new IllegalArgumentException (opt);
+
+	    long	value;
+
+	    try {
+		value = Long.parseLong (argv [++i]);
+	    } catch (NumberFormatException e) {
+		throw new IllegalArgumentException (argv [i]);
+	    }
+	    if (value < 0)
+		throw new IllegalArgumentException (argv [i]);
+
+	    if ("-busses".equals (opt))
+		busses = (int) value;
+	    else if ("-hubs".equals (opt))
+		hubs = (int) value;
+	    else if ("-devices".equals (opt))
+		devices = (int) value;
+	    else if ("-hotplug".equals (opt))
+		hotplug = (int) value;
+	    else if ("-rounds".equals (opt))
+		rounds = (int) value;
+	    else if ("-size".equals (opt))
+		size = (int) value;
+	    else if ("-queue".equals (opt))
+		queue = (int) value;
+	    else if ("-latency".equals (opt))
+		latency = (int) value;
+	    else if ("-bandwidth".equals (opt))
+		bandwidth = value;
+	    else
+		throw new IllegalArgumentException (opt);
+	}
+
+	// addresses 2..127 hold the hubs and everything on them,
+	// leaving room for the hotplugged device
+	if (busses < 1 || size < 1 || queue < 1
+		|| hubs * (devices + 1) > 125)
+	    throw new IllegalArgumentException ();
+    }
+
+
+    /******************************************************************/
+
+    private void run ()
+    throws IOException, InterruptedException
+    {
+	int	expected = 0;
+	int	hub = 0;
+	Host	host;
+	long	start;
+
+	kernel = new ScriptedKernel (sysfs);
+	kernel.setLatency (latency);
+	kernel.setBandwidth (bandwidth);
+	for (int b = 0; b < busses; b++) {
+	    int	bus = kernel.addBus (ScriptedKernel.SPEED_HIGH,
+			    Math.max (1, hubs));
+
+	    expected++;
+	    for (int h = 0; h < hubs; h++) {
+		int	addr = kernel.plugHub (bus, 1, h + 1,
+				ScriptedKernel.SPEED_HIGH, devices + 1);
+
+		if (b == 0 && h == 0)
+		    hub = addr;
+		expected++;
+		for (int d = 0; d < devices; d++) {
+		    kernel.plug (bus, addr, d + 1,
+			    ScriptedKernel.SPEED_HIGH,
+			    descriptors (d), strings (b, addr, d));
+		    expected++;
+		}
+	    }
+	}
+	kernel.install ();
+
+	System.out.println ("busses " + busses
+	    + ", hubs " + hubs + ", devices " + devices
+	    + (sysfs ? ", sysfs" : ", usbfs")
+	    + "; latency " + latency + " usec, bandwidth "
+	    + ((bandwidth == 0) ? "unlimited" : (bandwidth + " bytes/sec")));
+
+	// enumeration:  everything's there when getHost returns
+	start = System.nanoTime ();
+	host = Linux.getHost ();
+	if (host == null)
+	    throw new IOException ("no host");
+	report ("enumerate " + count (host) + "/" + expected + " devices",
+	    start, 1, 0);
+	System.out.print (Linux.getEnumerationTimes ());
+	System.out.println (kernel.getControlCount () + " control requests");
+
+	host.addUSBListener (new Watcher ());
+	if (hotplug > 0 && hub != 0)
+	    hotplug (hub, devices + 1);
+
+	// transfers:  loop back through the first device
+	Bus	bus = host.getBusses () [0];
+	Device	dev = null;
+
+	for (int addr = 2; addr < 128 && dev == null; addr++) {
+	    Device	d = bus.getDevice (addr);
+
+	    if (d != null && d.getDeviceDescriptor ().getDeviceClass () != 9)
+		dev = d;
+	}
+	if (dev == null) {
+	    System.out.println ("no device for transfers");
+	    return;
+	}
+	if (rounds > 0)
+	    transfer (dev);
+    }
+
+    private static int count (Host host)
+    throws IOException
+    {
+	Bus	busses [] = host.getBusses ();
+	int	n = 0;
+
+	for (int i = 0; i < busses.length; i++) {
+	    for (int addr = 1; addr < 128; addr++) {
+		if (busses [i].getDevice (addr) != null)
+		    n++;
+	    }
+	}
+	return n;
+    }
+
+
+    /******************************************************************/
+
+    private final class Watcher extends USBListenerAdapter
+    {
+	Watcher () throws IOException { }
+
+	public void deviceAdded (Device dev)
+	{
+	    synchronized (Bench.this) {
+		added = dev;
+		Bench.this.notifyAll ();
+	    }
+	}
+
+	public void deviceRemoved (Device dev)
+	{
+	    synchronized (Bench.this) {
+		removed = dev;
+		Bench.this.notifyAll ();
+	    }
+	}
+    }
+
+    // times from the kernel's hotplug event to the listener call
+    private void hotplug (int hub, int port)
+    throws InterruptedException
+    {
+	long	plugTime = 0;
+	long	unplugTime = 0;
+
+	for (int i = 0; i < hotplug; i++) {
+	    long	start;
+	    int		addr;
+
+	    synchronized (this) {
+		added = null;
+		removed = null;
+	    }
+
+	    start = System.nanoTime ();
+	    addr = kernel.plug (1, hub, port, ScriptedKernel.SPEED_HIGH,
+		    descriptors (i), strings (1, hub, port));
+	    synchronized (this) {
+		while (added == null)
+		    wait ();
+	    }
+	    plugTime += System.nanoTime () - start;
+
+	    start = System.nanoTime ();
+	    kernel.unplug (1, addr);
+	    synchronized (this) {
+		while (removed == null)
+		    wait ();
+	    }
+	    unplugTime += System.nanoTime () - start;
+	}
+	System.out.println ("hotplug:  connect "
+	    + (plugTime / hotplug / 1000) + " usec, disconnect "
+	    + (unplugTime / hotplug / 1000) + " usec (average of "
+	    + hotplug + ")");
+    }
+
+
+    /******************************************************************/
+
+    private void transfer (Device dev)
+    throws IOException
+    {
+	Interface	intf;
+	Endpoint	in, out;
+	ByteBuffer	buf = ByteBuffer.allocateDirect (size);
+	ByteBuffer	bufs [];
+	PendingTransfer	pending [];
+	long		start;
+	long		urbs;
+
+	intf = dev.getConfiguration ().getInterface (0, 0);
+	in = intf.getEndpoint (0);
+	out = intf.getEndpoint (1);
+	intf.claim ();
+
+	// blocking:  one request in flight at a time
+	urbs = kernel.getURBCount ();
+	start = System.nanoTime ();
+	for (int i = 0; i < rounds; i++) {
+	    buf.clear ();
+	    out.write (buf);
+	    buf.clear ();
+	    in.read (buf);
+	}
+	report ("blocking write+read", start, rounds, 2 * size);
+	System.out.println ("  " + (kernel.getURBCount () - urbs)
+	    + " URBs");
+
+	// queued:  keep several reads in flight
+	bufs = new ByteBuffer [queue];
+	pending = new PendingTransfer [queue];
+	for (int i = 0; i < queue; i++) {
+	    bufs [i] = ByteBuffer.allocateDirect (size);
+	    pending [i] = in.submitRead (bufs [i]);
+	}
+	start = System.nanoTime ();
+	for (int i = 0; i < rounds; i++) {
+	    int	slot = i % queue;
+
+	    pending [slot].await ();
+	    if (i + queue < rounds) {
+		bufs [slot].clear ();
+		pending [slot] = in.submitRead (bufs [slot]);
+	    }
+	}
+	report ("queued read, depth " + queue, start, rounds, size);
+
+	intf.release ();
+    }
+
+    // "bytes" is how much data each of the "count" operations moved
+    private static void report (String what, long start, int count,
+	    long bytes)
+    {
+	long	nsec = System.nanoTime () - start;
+	String	line = what + ":  " + (nsec / 1000000) + " msec";
+
+	if (count > 1)
+	    line += ", " + (nsec / count / 1000) + " usec each";
+	if (bytes > 0 && nsec > 0)
+	    line += ", " + (bytes * count * 1000 / nsec) + " MB/sec";
+	System.out.println (line);
+    }
+
+
+    /******************************************************************/
+
+    // a vendor-specific device with one bulk endpoint each way
+    private static byte [] descriptors (int serial)
+    {
+	return new byte [] {
+	    18, 1, 0, 2, 0, 0, 0, 64,
+		0x34, 0x12, 0x78, 0x56,
+		(byte) serial, (byte) (serial >> 8),
+		1, 2, 3, 1,
+	    9, 2, 32, 0, 1, 1, 0, (byte) 0x80, 50,
+	    9, 4, 0, 0, 2, (byte) 0xff, 0, 0, 0,
+	    7, 5, (byte) 0x81, 2, 0, 2, 0,
+	    7, 5, 0x02, 2, 0, 2, 0
+	    };
+    }
+
+    private static String [] strings (int bus, int hub, int port)
+    {
+	return new String [] {
+	    "jUSB", "Bench Device",
+	    "bench-" + bus + "." + hub + "." + port
+	    };
+    }
+}
@@ -0,0 +1,1630 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * Stands in for the Linux kernel, so this package's Java code can be
+ * exercised, profiled, and benchmarked on machines without any USB
+ * hardware (or permission to use it).  Busses and devices are created
+ * by script calls; enumeration, hotplug events, control requests, and
+ * URBs all behave roughly as usbfs would, without any system calls.
+ * Call {@link #install} before the host is created.  This class is
+ * built into the bench jar, not the library; see {@link Bench}.
+ *
+ * <p> Time is simulated coarsely.  Each bus carries one request at a
+ * time at the configured bandwidth, and each request completes after
+ * the configured latency; interrupt and isochronous transfers also
+ * take at least one frame (per packet).  Synchronous requests block
+ * the caller for that long; URBs complete then, for the reaper.
+ *
+ * <p> Devices answer the standard requests from the descriptors and
+ * strings they were given, and hubs answer hub class requests.  Other
+ * requests succeed:  IN transfers return all the zeroes they asked
+ * for, and OUT transfers are accepted and discarded.  Hotplug events
+ * arrive through (simulated) netlink.
+ *
+ * @see Bench
+ * @version $Id$
+ */
+public final class ScriptedKernel extends Kernel
+{
+    /** USB_SPEED_* codes */
+    public static final int	SPEED_LOW = 1;
+    public static final int	SPEED_FULL = 2;
+    public static final int	SPEED_HIGH = 3;
+    public static final int	SPEED_SUPER = 5;
+
+    private static final String	USBFS = "/dev/bus/usb";
+    private static final String	SYSFS = "/sys/bus/usb/devices";
+
+    private static final int	ENOSYS = 38;
+    private static final int	EEXIST = 17;
+    private static final int	ESHUTDOWN = 108;
+
+    private static final int	EPOLLOUT = 0x004;
+    private static final int	EPOLLERR = 0x008;
+    private static final int	EPOLLHUP = 0x010;
+
+    // for waits that don't time out; nanoTime differences must not
+    // overflow, so this isn't Long.MAX_VALUE
+    private static final long	NEVER = Long.MAX_VALUE >> 2;
+
+    private final boolean	sysfs;
+
+    private long		latency;	// nsec
+    private long		bandwidth;	// bytes per second; 0 = no limit
+
+    // Integer busnum --> Bus
+    private final Hashtable	busses = new Hashtable (7);
+
+    // Integer fd --> OpenFile
+    private final Hashtable	files = new Hashtable (31);
+    private int			lastFd = 2;
+
+    // Long handle --> Request
+    private final Hashtable	requests = new Hashtable (31);
+    private long		lastHandle;
+
+    private long		controlCount;
+    private long		urbCount;
+
+
+    private static final class Bus
+    {
+	final int		number;
+	final Dev		devices [] = new Dev [127];
+	long			idle;		// when the wire's free
+
+	Bus (int n)
+	    { number = n; }
+    }
+
+    private static final class Dev
+    {
+	final Bus		bus;
+	final int		address;
+	final int		speed;
+	final int		ports [];	// from the root hub down
+	final byte		descriptors [];	// device, configurations
+	final String		strings [];	// index one, two, ...
+	final Dev		children [];	// hubs only; else null
+	Dev			parent;
+	int			config;		// bConfigurationValue
+	boolean			gone;
+
+	// Integer ifno --> OpenFile
+	final Hashtable		claims = new Hashtable (3);
+
+	Dev (Bus b, int a, int s, int p [], byte d [], String str [], int n)
+	{
+	    bus = b;
+	    address = a;
+	    speed = s;
+	    ports = p;
+	    descriptors = d;
+	    strings = (str == null) ? new String [0] : str;
+	    children = (n > 0) ? new Dev [n] : null;
+
+	    // the kernel picks the first configuration
+	    if (d.length >= 18 + 9)
+		config = 0xff & d [18 + 5];
+	}
+
+	// sysfs name
+	String name ()
+	{
+	    StringBuffer	buf;
+
+	    if (ports.length == 0)
+		return "usb" + bus.number;
+	    buf = new StringBuffer ();
+	    buf.append (bus.number);
+	    for (int i = 0; i < ports.length; i++) {
+		buf.append ((i == 0) ? '-' : '.');
+		buf.append (ports [i]);
+	    }
+	    return buf.toString ();
+	}
+
+	// how long a (micro)frame lasts, in nsec
+	long frame ()
+	    { return (speed >= SPEED_HIGH) ? 125 * 1000 : 1000 * 1000; }
+    }
+
+    private static final class OpenFile
+    {
+	boolean			closed;
+
+	// device files:  requests submitted but not yet reaped
+	Dev			dev;
+	final Vector		queued = new Vector ();
+	OpenFile		epoll;
+	int			slot;
+
+	// epoll sets:  Integer fd --> OpenFile
+	Hashtable		members;
+
+	// netlink sockets:  Integer busnum
+	Vector			events;
+    }
+
+    private static final class Request
+    {
+	final int		capacity;
+	final byte		data [];
+	final int		lengths [];	// iso packets ...
+	final int		actuals [];
+	final int		statuses [];
+
+	int			skip;
+	int			stream;
+	int			id;
+	int			status;
+	int			actual;
+	int			startFrame;
+	int			packets;
+
+	OpenFile		owner;
+	long			due;
+
+	Request (int p, int c)
+	{
+	    capacity = c;
+	    data = new byte [c];
+	    lengths = new int [p];
+	    actuals = new int [p];
+	    statuses = new int [p];
+	}
+    }
+
+
+    /**
+     * Creates a kernel with no busses.
+     *
+     * @param sysfs true if devices should be enumerated through
+     *	sysfs, without opening them; else through usbfs, reading
+     *	descriptors with control requests
+     */
+    public ScriptedKernel (boolean sysfs)
+	{ this.sysfs = sysfs; }
+
+    /**
+     * Makes the host use this kernel, instead of the real one.
+     *
+     * @exception IllegalStateException if the host already exists
+     */
+    public void install ()
+	{ Linux.setKernel (this); }
+
+    /** Sets how long each request takes, after its data is sent. */
+    public synchronized void setLatency (int usec)
+	{ latency = usec * 1000L; }
+
+    /**
+     * Sets how fast each bus moves data, in bytes per second; zero
+     * (the default) means data moves instantly.
+     */
+    public synchronized void setBandwidth (long bytesPerSecond)
+	{ bandwidth = Math.max (0, bytesPerSecond); }
+
+    /** Returns how many control requests have been made. */
+    public synchronized long getControlCount ()
+	{ return controlCount; }
+
+    /** Returns how many URBs have been submitted. */
+    public synchronized long getURBCount ()
+	{ return urbCount; }
+
+    /**
+     * Adds a bus, with its root hub at address one; returns the new
+     * bus number.
+     *
+     * @param speed the root hub's SPEED_* code
+     * @param ports how many ports the root hub has
+     */
+    public synchronized int addBus (int speed, int ports)
+    {
+	Bus	bus = new Bus (busses.size () + 1);
+	Dev	root;
+
+	root = new Dev (bus, 1, speed, new int [0],
+		hubDescriptors (speed, (speed >= SPEED_SUPER) ? 3 : 2),
+		new String [] {
+		    "Linux " + getRelease (),
+		    "Scripted Host Controller",
+		    "scripted." + bus.number
+		    },
+		ports);
+	bus.devices [0] = root;
+	busses.put (new Integer (bus.number), bus);
+	changed (bus.number);
+	return bus.number;
+    }
+
+    /**
+     * Connects a hub; returns its address.
+     *
+     * @param bus the bus number
+     * @param hub the address of the hub it's connected to
+     * @param port the port it's connected to, starting at one
+     * @param speed its SPEED_* code
+     * @param ports how many ports it has
+     */
+    public synchronized int plugHub (int bus, int hub, int port,
+	    int speed, int ports)
+    {
+	return attach (bus, hub, port, speed,
+		hubDescriptors (speed, 0x0100),
+		new String [] { "jUSB", "Scripted Hub", null },
+		ports);
+    }
+
+    /**
+     * Connects a device; returns its address.
+     *
+     * @param bus the bus number
+     * @param hub the address of the hub it's connected to
+     * @param port the port it's connected to, starting at one
+     * @param speed its SPEED_* code
+     * @param descriptors its device descriptor, followed by each
+     *	configuration descriptor (with its interface, endpoint, and
+     *	other descriptors); the same as sysfs reports
+     * @param strings string descriptors one, two, and so on;
+     *	may be null
+     */
+    public synchronized int plug (int bus, int hub, int port, int speed,
+	    byte descriptors [], String strings [])
+    {
+	return attach (bus, hub, port, speed,
+		(byte []) descriptors.clone (), strings, 0);
+    }
+
+    /**
+     * Disconnects a device, and everything connected to it.
+     * Requests it had queued fail.
+     */
+    public synchronized void unplug (int bus, int address)
+    {
+	Dev	dev = lookup (bus, address);
+
+	if (dev == null || dev.parent == null)
+	    throw new IllegalArgumentException ("can't unplug bus "
+		    + bus + " address " + address);
+	detach (dev);
+	changed (bus);
+    }
+
+    private int attach (int busnum, int hub, int port, int speed,
+	    byte descriptors [], String strings [], int ports)
+    {
+	Bus	bus = (Bus) busses.get (new Integer (busnum));
+	Dev	parent = lookup (busnum, hub);
+	Dev	dev;
+	int	path [];
+	int	address;
+
+	if (parent == null || parent.children == null
+		|| port < 1 || port > parent.children.length
+		|| parent.children [port - 1] != null)
+	    throw new IllegalArgumentException ("no free port " + port
+		    + ", bus " + busnum + " address " + hub);
+	if (descriptors.length < 18 || descriptors [1] != 1)
+	    throw new IllegalArgumentException ("no device descriptor");
+
+	for (address = 1; address <= 127; address++) {
+	    if (bus.devices [address - 1] == null)
+		break;
+	}
+	if (address > 127)
+	    throw new IllegalArgumentException ("bus " + busnum + " is full");
+
+	path = new int [parent.ports.length + 1];
+	System.arraycopy (parent.ports, 0, path, 0, parent.ports.length);
+	path [parent.ports.length] = port;
+
+	dev = new Dev (bus, address, speed, path, descriptors, strings, ports);
+	dev.parent = parent;
+	parent.children [port - 1] = dev;
+	bus.devices [address - 1] = dev;
+	changed (busnum);
+	return address;
+    }
+
+    // call with the lock held
+    private void detach (Dev dev)
+    {
+	long	now = System.nanoTime ();
+
+	for (int i = 0; dev.children != null && i < dev.children.length; i++) {
+	    if (dev.children [i] != null)
+		detach (dev.children [i]);
+	}
+	dev.gone = true;
+	dev.bus.devices [dev.address - 1] = null;
+	dev.parent.children [dev.ports [dev.ports.length - 1] - 1] = null;
+
+	// everything queued fails now
+	for (Enumeration e = files.elements (); e.hasMoreElements (); ) {
+	    OpenFile	f = (OpenFile) e.nextElement ();
+
+	    if (f.dev != dev)
+		continue;
+	    for (int i = 0; i < f.queued.size (); i++) {
+		Request	r = (Request) f.queued.elementAt (i);
+
+		if (r.due - now > 0) {
+		    r.status = -ESHUTDOWN;
+		    r.actual = 0;
+		    r.due = now;
+		}
+	    }
+	}
+    }
+
+    // call with the lock held:  report a hotplug event
+    private void changed (int busnum)
+    {
+	for (Enumeration e = files.elements (); e.hasMoreElements (); ) {
+	    OpenFile	f = (OpenFile) e.nextElement ();
+
+	    if (f.events != null)
+		f.events.addElement (new Integer (busnum));
+	}
+	notifyAll ();
+    }
+
+    // a hub's descriptors:  device, then its only configuration
+    private static byte [] hubDescriptors (int speed, int product)
+    {
+	boolean	superSpeed = speed >= SPEED_SUPER;
+
+	return new byte [] {
+	    // device:  hub class, protocol says which TT (or USB 3)
+	    18, 1, 0x00, (byte) (superSpeed ? 3 : 2),
+	    9, 0, (byte) (superSpeed ? 3 : (speed == SPEED_HIGH) ? 1 : 0),
+	    (byte) (superSpeed ? 9 : 64),
+	    0x6b, 0x1d, (byte) product, (byte) (product >> 8), 0x00, 0x06,
+	    1, 2, 3, 1,
+
+	    // configuration, hub interface, status change endpoint
+	    9, 2, 25, 0, 1, 1, 0, (byte) 0xe0, 0,
+	    9, 4, 0, 0, 1, 9, 0, 0, 0,
+	    7, 5, (byte) 0x81, 3, 4, 0, 12
+	    };
+    }
+
+    // call with the lock held
+    private Dev lookup (int busnum, int address)
+    {
+	Bus	bus = (Bus) busses.get (new Integer (busnum));
+
+	if (bus == null || address < 1 || address > 127)
+	    return null;
+	return bus.devices [address - 1];
+    }
+
+    // call with the lock held; sysfs names a device by its ports
+    private Dev lookup (String name)
+    {
+	for (Enumeration e = busses.elements (); e.hasMoreElements (); ) {
+	    Bus	bus = (Bus) e.nextElement ();
+
+	    for (int i = 0; i < 127; i++) {
+		if (bus.devices [i] != null
+			&& bus.devices [i].name ().equals (name))
+		    return bus.devices [i];
+	    }
+	}
+	return null;
+    }
+
+    private static String number (int n)
+    {
+	String	s = "00" + n;
+
+	return s.substring (s.length () - 3);
+    }
+
+    // "NNN/MMM" --> { bus, address }, else null
+    private static int [] parse (String path)
+    {
+	int	slash = path.indexOf ('/');
+
+	try {
+	    if (slash < 0)
+		return new int [] { Integer.parseInt (path), 0 };
+	    return new int [] {
+		Integer.parseInt (path.substring (0, slash)),
+		Integer.parseInt (path.substring (slash + 1))
+		};
+	} catch (NumberFormatException e) {
+	    return null;
+	}
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // simulated time
+
+    // call with the lock held; returns when a request moving "len"
+    // bytes, queued now, completes
+    private long schedule (Bus bus, int len)
+    {
+	long	now = System.nanoTime ();
+	long	start = (bus.idle - now > 0) ? bus.idle : now;
+
+	if (bandwidth > 0)
+	    start += (len * 1000000000L) / bandwidth;
+	bus.idle = start;
+	return start + latency;
+    }
+
+    private static long deadline (int timeout)
+    {
+	return System.nanoTime ()
+	    + ((timeout < 0) ? NEVER : timeout * 1000000L);
+    }
+
+    private static long earlier (long a, long b)
+	{ return (a - b < 0) ? a : b; }
+
+    // sleeps until "due", without the lock
+    private static void pause (long due)
+    {
+	long	delay;
+
+	while ((delay = due - System.nanoTime ()) > 0) {
+	    try {
+		Thread.sleep (delay / 1000000, (int) (delay % 1000000));
+	    } catch (InterruptedException e) {
+		Thread.currentThread ().interrupt ();
+		return;
+	    }
+	}
+    }
+
+    // call with the lock held:  waits to be notified, or until "until"
+    // passes; returns false if interrupted
+    private boolean await (long until)
+    {
+	long	delay = until - System.nanoTime ();
+
+	if (delay <= 0)
+	    return true;
+	try {
+	    wait (delay / 1000000, (int) (delay % 1000000));
+	} catch (InterruptedException e) {
+	    Thread.currentThread ().interrupt ();
+	    return false;
+	}
+	return true;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // usbfs and sysfs
+
+    synchronized String [] list (String dir)
+    {
+	Vector		names = new Vector ();
+	String		retval [];
+
+	if (dir.equals (USBFS)) {
+	    for (Enumeration e = busses.keys (); e.hasMoreElements (); )
+		names.addElement (number (((Integer) e.nextElement ())
+			.intValue ()));
+
+	} else if (dir.startsWith (USBFS + "/")) {
+	    int		bus [] = parse (dir.substring (USBFS.length () + 1));
+	    Bus		b;
+
+	    if (bus == null || bus [1] != 0)
+		return null;
+	    if ((b = (Bus) busses.get (new Integer (bus [0]))) == null)
+		return null;
+	    for (int i = 0; i < 127; i++) {
+		if (b.devices [i] != null)
+		    names.addElement (number (i + 1));
+	    }
+
+	} else if (sysfs && dir.equals (SYSFS)) {
+	    for (Enumeration e = busses.elements (); e.hasMoreElements (); ) {
+		Bus	b = (Bus) e.nextElement ();
+
+		for (int i = 0; i < 127; i++) {
+		    if (b.devices [i] != null)
+			names.addElement (b.devices [i].name ());
+		}
+	    }
+
+	} else
+	    return null;
+
+	retval = new String [names.size ()];
+	names.copyInto (retval);
+	return retval;
+    }
+
+    synchronized boolean exists (String path)
+    {
+	if (isDirectory (path))
+	    return true;
+	if (path.startsWith (USBFS + "/")) {
+	    int		dev [] = parse (path.substring (USBFS.length () + 1));
+
+	    return dev != null && lookup (dev [0], dev [1]) != null;
+	}
+	if (sysfs && path.startsWith (SYSFS + "/")) {
+	    if (path.endsWith ("/driver"))
+		return linkName (path) != null;
+	    return attribute (path) != null;
+	}
+	return false;
+    }
+
+    synchronized boolean isDirectory (String path)
+    {
+	if (path.equals (USBFS) || (sysfs && path.equals (SYSFS)))
+	    return true;
+	if (path.startsWith (USBFS + "/")) {
+	    int		bus [] = parse (path.substring (USBFS.length () + 1));
+
+	    return bus != null && bus [1] == 0
+		&& busses.get (new Integer (bus [0])) != null;
+	}
+	return false;
+    }
+
+    long lastModified (String path)
+	{ return 0; }
+
+    // ".../NAME:CONFIG.IFNO/driver" is "usbfs" when it's claimed
+    synchronized String linkName (String path)
+    {
+	int	colon = path.lastIndexOf (':');
+	int	dot = path.lastIndexOf ('.');
+	Dev	dev;
+
+	if (!sysfs || !path.startsWith (SYSFS + "/")
+		|| !path.endsWith ("/driver") || colon < 0 || dot < colon)
+	    return null;
+	dev = lookup (path.substring (SYSFS.length () + 1, colon));
+	try {
+	    if (dev != null && dev.claims.get (new Integer (path.substring (
+		    dot + 1, path.length () - "/driver".length ()))) != null)
+		return "usbfs";
+	} catch (NumberFormatException e) {
+	}
+	return null;
+    }
+
+    synchronized byte [] read (String path)
+    throws IOException
+    {
+	byte	value [] = null;
+
+	if (sysfs && path.startsWith (SYSFS + "/"))
+	    value = attribute (path);
+	if (value == null)
+	    throw new FileNotFoundException (path);
+	return value;
+    }
+
+    String getRelease ()
+	{ return "6.1.0-scripted"; }
+
+    // call with the lock held; sysfs attributes of devices, or null
+    private byte [] attribute (String path)
+    {
+	int	slash = path.lastIndexOf ('/');
+	String	attr = path.substring (slash + 1);
+	Dev	dev;
+	String	value;
+
+	if (slash <= SYSFS.length ())
+	    return null;
+	if ((dev = lookup (path.substring (SYSFS.length () + 1, slash))) == null)
+	    return null;
+
+	if ("descriptors".equals (attr))
+	    return (byte []) dev.descriptors.clone ();
+	else if ("busnum".equals (attr))
+	    value = Integer.toString (dev.bus.number);
+	else if ("devnum".equals (attr))
+	    value = Integer.toString (dev.address);
+	else if ("maxchild".equals (attr))
+	    value = Integer.toString ((dev.children == null)
+		    ? 0 : dev.children.length);
+	else if ("bConfigurationValue".equals (attr))
+	    value = (dev.config == 0) ? "" : Integer.toString (dev.config);
+	else if ("speed".equals (attr)) {
+	    switch (dev.speed) {
+		case SPEED_LOW:		value = "1.5"; break;
+		case SPEED_FULL:	value = "12"; break;
+		case SPEED_HIGH:	value = "480"; break;
+		case SPEED_SUPER:	value = "5000"; break;
+		default:		value = "10000"; break;
+	    }
+	} else if ("product".equals (attr))
+	    value = string (dev, 0xff & dev.descriptors [15]);
+	else if ("serial".equals (attr))
+	    value = string (dev, 0xff & dev.descriptors [16]);
+	else
+	    return null;
+
+	if (value == null)
+	    return null;
+	try {
+	    return (value + "\n").getBytes ("ISO-8859-1");
+	} catch (java.io.UnsupportedEncodingException e) {
+	    throw new InternalError (e.toString ());
+	}
+    }
+
+    private static String string (Dev dev, int index)
+    {
+	if (index < 1 || index > dev.strings.length)
+	    return null;
+	return dev.strings [index - 1];
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // device files
+
+    // call with the lock held
+    private int add (OpenFile f)
+    {
+	files.put (new Integer (++lastFd), f);
+	return lastFd;
+    }
+
+    // call with the lock held
+    private OpenFile file (int fd)
+	{ return (OpenFile) files.get (new Integer (fd)); }
+
+    // call with the lock held; null unless it's a device file
+    private OpenFile device (int fd)
+    {
+	OpenFile	f = file (fd);
+
+	return (f == null || f.dev == null) ? null : f;
+    }
+
+    synchronized int open (String path)
+    {
+	int		dev [] = null;
+	OpenFile	f;
+
+	if (path.startsWith (USBFS + "/"))
+	    dev = parse (path.substring (USBFS.length () + 1));
+	f = new OpenFile ();
+	if (dev == null || (f.dev = lookup (dev [0], dev [1])) == null)
+	    return -USBException.ENOENT;
+	return add (f);
+    }
+
+    synchronized int close (int fd)
+    {
+	OpenFile	f = (OpenFile) files.remove (new Integer (fd));
+
+	if (f == null)
+	    return -USBException.EBADF;
+	f.closed = true;
+	if (f.epoll != null)
+	    f.epoll.members.remove (new Integer (fd));
+
+	// closing an epoll set drops its registrations
+	if (f.members != null) {
+	    for (Enumeration e = f.members.elements (); e.hasMoreElements (); )
+		((OpenFile) e.nextElement ()).epoll = null;
+	    f.members.clear ();
+	}
+	if (f.dev != null) {
+	    for (Enumeration e = f.dev.claims.keys (); e.hasMoreElements (); ) {
+		Object	ifno = e.nextElement ();
+
+		if (f.dev.claims.get (ifno) == f)
+		    f.dev.claims.remove (ifno);
+	    }
+	    f.queued.removeAllElements ();
+	}
+	notifyAll ();
+	return 0;
+    }
+
+    ByteBuffer mapBuffer (int fd, int size)
+	{ return null; }
+
+    int unmapBuffer (ByteBuffer buf)
+	{ return -USBException.EINVAL; }
+
+    synchronized int getCapabilities (int fd)
+    {
+	if (device (fd) == null)
+	    return -USBException.EBADF;
+	return Capabilities.CAP_ZERO_PACKET
+	    | Capabilities.CAP_BULK_CONTINUATION
+	    | Capabilities.CAP_NO_PACKET_SIZE_LIM
+	    | Capabilities.CAP_REAP_AFTER_DISCONNECT
+	    | Capabilities.CAP_CONNINFO_EX;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // control requests
+
+    /*
+     * Answers a control request; returns the data stage length, else
+     * negative errno (EPIPE for a stall).  IN data goes into "buf".
+     * Call with the lock held.
+     */
+    private int control (Dev dev, int requestType, int request,
+	    int value, int index, byte buf [], int off, int len)
+    {
+	byte	reply [] = null;
+	int	n;
+
+	if ((requestType & 0x80) == 0) {
+	    if (requestType == 0 && request == 9) {
+		if (!hasConfig (dev, value))
+		    return -USBException.EPIPE;
+		dev.config = value;
+	    }
+	    return len;
+	}
+
+	switch (requestType & 0x7f) {
+	  case 0x00:			// standard, device
+	    switch (request) {
+		case 0:  reply = new byte [2]; break;
+		case 6:  reply = descriptor (dev, value >> 8, value & 0xff);
+			 break;
+		case 8:  reply = new byte [] { (byte) dev.config }; break;
+		default: break;
+	    }
+	    break;
+	  case 0x01:			// standard, interface
+	    if (request == 0 || request == 10)
+		reply = new byte [(request == 0) ? 2 : 1];
+	    break;
+	  case 0x02:			// standard, endpoint
+	    if (request == 0)
+		reply = new byte [2];
+	    else if (request == 12)
+		reply = new byte [] {
+			(byte) frameNumber (), (byte) (frameNumber () >> 8) };
+	    break;
+	  case 0x20:			// class, device:  hubs
+	    if (dev.children == null)
+		reply = new byte [len];
+	    else if (request == 0)
+		reply = new byte [4];
+	    else if (request == 6)
+		reply = new byte [] {
+			9, 0x29, (byte) dev.children.length,
+			0x09, 0, 50, 0, 0, (byte) 0xff };
+	    break;
+	  case 0x23:			// class, other:  hub ports
+	    if (dev.children == null)
+		reply = new byte [len];
+	    else if (request == 0 && index >= 1
+		    && index <= dev.children.length)
+		reply = portStatus (dev.children [index - 1]);
+	    break;
+	  default:
+	    if ((requestType & 0x60) != 0)
+		reply = new byte [len];
+	    break;
+	}
+
+	if (reply == null)
+	    return -USBException.EPIPE;
+	n = Math.min (len, reply.length);
+	if (n > 0)
+	    System.arraycopy (reply, 0, buf, off, n);
+	return n;
+    }
+
+    // call with the lock held
+    private byte [] descriptor (Dev dev, int type, int index)
+    {
+	switch (type) {
+	    case 1:
+		return config (dev, -1);
+	    case 2:
+		return config (dev, index);
+	    case 3:
+		String	s;
+		byte	retval [];
+
+		if (index == 0)
+		    return new byte [] { 4, 3, 0x09, 0x04 };
+		if ((s = string (dev, index)) == null)
+		    return null;
+		retval = new byte [2 + 2 * Math.min (s.length (), 126)];
+		retval [0] = (byte) retval.length;
+		retval [1] = 3;
+		for (int i = 2; i < retval.length; i += 2) {
+		    char	c = s.charAt ((i - 2) / 2);
+
+		    retval [i] = (byte) c;
+		    retval [i + 1] = (byte) (c >> 8);
+		}
+		return retval;
+	    default:
+		return null;
+	}
+    }
+
+    // the device descriptor (index -1) or a configuration, else null
+    private static byte [] config (Dev dev, int index)
+    {
+	byte	d [] = dev.descriptors;
+	int	off = 18;
+	byte	retval [];
+
+	if (index < 0) {
+	    retval = new byte [18];
+	    System.arraycopy (d, 0, retval, 0, 18);
+	    return retval;
+	}
+	for (int n = 0; off + 9 <= d.length; n++) {
+	    int	len = (0xff & d [off + 2]) | ((0xff & d [off + 3]) << 8);
+
+	    if (len < 9 || off + len > d.length)
+		break;
+	    if (n == index) {
+		retval = new byte [len];
+		System.arraycopy (d, off, retval, 0, len);
+		return retval;
+	    }
+	    off += len;
+	}
+	return null;
+    }
+
+    private static boolean hasConfig (Dev dev, int value)
+    {
+	byte	d [] = dev.descriptors;
+
+	if (value == 0)
+	    return true;
+	for (int off = 18; off + 9 <= d.length; ) {
+	    int	len = (0xff & d [off + 2]) | ((0xff & d [off + 3]) << 8);
+
+	    if ((0xff & d [off + 5]) == value)
+		return true;
+	    if (len < 9)
+		break;
+	    off += len;
+	}
+	return false;
+    }
+
+    // wPortStatus and wPortChange:  powered, maybe connected
+    private static byte [] portStatus (Dev child)
+    {
+	int	status = 0x0100;
+
+	if (child != null) {
+	    status |= 0x0003;
+	    if (child.speed == SPEED_LOW)
+		status |= 0x0200;
+	    else if (child.speed == SPEED_HIGH)
+		status |= 0x0400;
+	}
+	return new byte [] { (byte) status, (byte) (status >> 8), 0, 0 };
+    }
+
+    private static int frameNumber ()
+	{ return (int) (System.nanoTime () / 1000000) & 0x07ff; }
+
+    // a request that's just a (simulated) round trip
+    private int roundTrip (int fd, int status)
+    {
+	long	due;
+
+	synchronized (this) {
+	    OpenFile	f = device (fd);
+
+	    if (f == null)
+		return -USBException.EBADF;
+	    if (f.dev.gone)
+		return -USBException.ENODEV;
+	    due = schedule (f.dev.bus, 0);
+	    controlCount++;
+	}
+	pause (due);
+	return status;
+    }
+
+    int setConfiguration (int fd, int config)
+    {
+	synchronized (this) {
+	    OpenFile	f = device (fd);
+
+	    if (f != null && !f.dev.gone) {
+		if (!hasConfig (f.dev, config))
+		    return -USBException.EINVAL;
+		f.dev.config = config;
+	    }
+	}
+	return roundTrip (fd, 0);
+    }
+
+    int setInterface (int fd, int ifno, int alt)
+	{ return roundTrip (fd, 0); }
+
+    int clearHalt (int fd, byte ep)
+	{ return roundTrip (fd, 0); }
+
+    synchronized int claimInterface (int fd, int ifno)
+    {
+	OpenFile	f = device (fd);
+	Integer		key = new Integer (ifno);
+	Object		owner;
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if (f.dev.gone)
+	    return -USBException.ENODEV;
+	owner = f.dev.claims.get (key);
+	if (owner != null && owner != f)
+	    return -USBException.EBUSY;
+	f.dev.claims.put (key, f);
+	return 0;
+    }
+
+    synchronized int releaseInterface (int fd, int ifno)
+    {
+	OpenFile	f = device (fd);
+	Integer		key = new Integer (ifno);
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if (f.dev.claims.get (key) != f)
+	    return -USBException.EINVAL;
+	f.dev.claims.remove (key);
+	return 0;
+    }
+
+    synchronized int allocStreams (int fd, int count, byte eps [])
+    {
+	OpenFile	f = device (fd);
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if (f.dev.speed < SPEED_SUPER)
+	    return -USBException.EINVAL;
+	return count;
+    }
+
+    synchronized int freeStreams (int fd, byte eps [])
+	{ return (device (fd) == null) ? -USBException.EBADF : 0; }
+
+    synchronized int getHubPorts (int fd, byte data [])
+    {
+	OpenFile	f = device (fd);
+	Dev		children [];
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if ((children = f.dev.children) == null)
+	    return -ENOSYS;
+	if (data.length < 128)
+	    return -USBException.EINVAL;
+	data [0] = (byte) children.length;
+	for (int i = 0; i < children.length; i++)
+	    data [1 + i] = (byte) ((children [i] == null)
+		    ? 0 : children [i].address);
+	return children.length;
+    }
+
+    synchronized String getClaimer (int fd, int ifno)
+    {
+	OpenFile	f = device (fd);
+
+	if (f == null || f.dev.claims.get (new Integer (ifno)) == null)
+	    return "";
+	return "usbfs";
+    }
+
+    synchronized int getConnInfo (int fd, int info [])
+    {
+	OpenFile	f = device (fd);
+	int		count;
+
+	if (f == null)
+	    return -USBException.EBADF;
+	count = Math.min (info.length, 2 + f.dev.ports.length);
+	for (int i = 0; i < count; i++) {
+	    if (i == 0)
+		info [i] = f.dev.speed;
+	    else if (i == 1)
+		info [i] = f.dev.ports.length;
+	    else
+		info [i] = f.dev.ports [i - 2];
+	}
+	return count;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // asynchronous requests
+
+    // call with the lock held
+    private Request request (long handle)
+	{ return (Request) requests.get (new Long (handle)); }
+
+    synchronized long allocURB (int fd, int packets, int capacity)
+    {
+	if (packets < 0 || capacity < 0)
+	    return 0;
+	requests.put (new Long (++lastHandle),
+		new Request (packets, capacity));
+	return lastHandle;
+    }
+
+    synchronized void freeURB (long handle)
+	{ requests.remove (new Long (handle)); }
+
+    /*
+     * Call with the lock held.  The data has already moved; only the
+     * completion is delayed.  Interrupt and iso transfers take at
+     * least a frame (or microframe) per packet.
+     */
+    private int queue (OpenFile f, Request r, int id, int type,
+	    int len, int status, int actual)
+    {
+	long	frames = 0;
+
+	if (type == URB.TYPE_INTERRUPT)
+	    frames = 1;
+	else if (type == URB.TYPE_ISO)
+	    frames = r.packets;
+
+	r.id = id;
+	r.status = status;
+	r.actual = actual;
+	r.owner = f;
+	r.due = schedule (f.dev.bus, len);
+	if (frames != 0)
+	    r.due = Math.max (r.due - System.nanoTime (),
+		    frames * f.dev.frame ()) + System.nanoTime ();
+	f.queued.addElement (r);
+	urbCount++;
+	notifyAll ();
+	return 0;
+    }
+
+    // call with the lock held; the file, if requests may be queued
+    private int check (OpenFile f, Request r, int len)
+    {
+	if (f == null)
+	    return -USBException.EBADF;
+	if (f.dev.gone)
+	    return -USBException.ENODEV;
+	if (r == null || len < 0 || len > r.capacity
+		|| f.queued.contains (r))
+	    return -USBException.EINVAL;
+	return 0;
+    }
+
+    private static boolean inArray (byte buf [], int off, int len)
+    {
+	return buf != null && off >= 0 && len >= 0
+	    && off + len <= buf.length;
+    }
+
+    private static void put (ByteBuffer buf, int at,
+	    byte data [], int off, int len)
+    {
+	ByteBuffer	dup = buf.duplicate ();
+
+	dup.clear ();
+	dup.position (at);
+	dup.put (data, off, len);
+    }
+
+    private static void get (ByteBuffer buf, int at,
+	    byte data [], int off, int len)
+    {
+	ByteBuffer	dup = buf.duplicate ();
+
+	dup.clear ();
+	dup.position (at);
+	dup.get (data, off, len);
+    }
+
+    synchronized int submit (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    byte buf [], int off, int len)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	int		status = check (f, r, len);
+
+	if (status < 0)
+	    return status;
+	r.skip = 0;
+	if ((ep & 0x80) == 0) {
+	    if (len != 0 && !inArray (buf, off, len))
+		return -USBException.EINVAL;
+	    if (len != 0)
+		System.arraycopy (buf, off, r.data, 0, len);
+	} else
+	    java.util.Arrays.fill (r.data, 0, len, (byte) 0);
+	return queue (f, r, id, type, len, 0, len);
+    }
+
+    synchronized int submitDirect (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    ByteBuffer buf, int off, int len)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	int		status;
+
+	if (buf == null || off < 0 || len < 0 || off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	if (f != null && r != null && len > r.capacity)
+	    len = r.capacity;		// (usbfs has no such limit)
+	if ((status = check (f, r, len)) < 0)
+	    return status;
+	r.skip = 0;
+	if ((ep & 0x80) != 0) {
+	    java.util.Arrays.fill (r.data, 0, len, (byte) 0);
+	    put (buf, off, r.data, 0, len);
+	}
+	return queue (f, r, id, type, len, 0, len);
+    }
+
+    synchronized int submitControl (int fd, long handle, int id,
+	    byte requestType, byte request, short value, short index,
+	    byte buf [], int off, int len)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	int		status = check (f, r, len + 8);
+
+	if (status < 0)
+	    return status;
+	if (len > 0xffff)
+	    return -USBException.EINVAL;
+
+	r.data [0] = requestType;
+	r.data [1] = request;
+	r.data [2] = (byte) value;
+	r.data [3] = (byte) (value >> 8);
+	r.data [4] = (byte) index;
+	r.data [5] = (byte) (index >> 8);
+	r.data [6] = (byte) len;
+	r.data [7] = (byte) (len >> 8);
+	r.skip = 8;
+	if ((requestType & 0x80) == 0 && len != 0) {
+	    if (!inArray (buf, off, len))
+		return -USBException.EINVAL;
+	    System.arraycopy (buf, off, r.data, 8, len);
+	}
+
+	status = control (f.dev, 0xff & requestType, 0xff & request,
+		0xffff & value, 0xffff & index, r.data, 8, len);
+	controlCount++;
+	if (status < 0)
+	    return queue (f, r, id, URB.TYPE_CONTROL, len, status, 0);
+	return queue (f, r, id, URB.TYPE_CONTROL, len, 0, status);
+    }
+
+    synchronized int submitIso (int fd, long handle, int id,
+	    int ep, int flags, int frame, int lengths [], int packets,
+	    byte buf [], int off)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	int		total = 0;
+	int		status;
+
+	if (r == null || packets <= 0 || packets > r.lengths.length
+		|| packets > lengths.length)
+	    return -USBException.EINVAL;
+	for (int i = 0; i < packets; i++) {
+	    if (lengths [i] < 0)
+		return -USBException.EINVAL;
+	    total += lengths [i];
+	}
+	if ((status = check (f, r, total)) < 0)
+	    return status;
+
+	r.skip = 0;
+	if ((ep & 0x80) == 0) {
+	    if (total != 0 && !inArray (buf, off, total))
+		return -USBException.EINVAL;
+	    if (total != 0)
+		System.arraycopy (buf, off, r.data, 0, total);
+	} else
+	    java.util.Arrays.fill (r.data, 0, total, (byte) 0);
+	for (int i = 0; i < packets; i++) {
+	    r.lengths [i] = lengths [i];
+	    r.actuals [i] = lengths [i];
+	    r.statuses [i] = 0;
+	}
+	r.packets = packets;
+	r.startFrame = ((flags & URB.ISO_ASAP) != 0) ? frameNumber () : frame;
+	return queue (f, r, id, URB.TYPE_ISO, total, 0, total);
+    }
+
+    synchronized int submitBuffer (int fd, long handle, int id,
+	    int type, int ep, int flags, int len)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	int		status = check (f, r, len);
+
+	if (status < 0)
+	    return status;
+	r.skip = 0;
+	if ((ep & 0x80) != 0)
+	    java.util.Arrays.fill (r.data, 0, len, (byte) 0);
+	return queue (f, r, id, type, len, 0, len);
+    }
+
+    synchronized int discard (int fd, long handle)
+    {
+	OpenFile	f = device (fd);
+	Request		r = request (handle);
+	long		now = System.nanoTime ();
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if (r == null || !f.queued.contains (r) || r.due - now <= 0)
+	    return -USBException.EINVAL;
+	r.status = -USBException.ENOENT;
+	r.actual = 0;
+	r.due = now;
+	notifyAll ();
+	return 0;
+    }
+
+    synchronized void setStream (long handle, int stream)
+    {
+	Request	r = request (handle);
+
+	if (r != null)
+	    r.stream = stream;
+    }
+
+    // call with the lock held; removes the earliest completed request
+    private static Request take (OpenFile f, long now)
+    {
+	Request	retval = null;
+
+	for (int i = 0; i < f.queued.size (); i++) {
+	    Request	r = (Request) f.queued.elementAt (i);
+
+	    if (r.due - now <= 0
+		    && (retval == null || r.due - retval.due < 0))
+		retval = r;
+	}
+	if (retval != null)
+	    f.queued.removeElement (retval);
+	return retval;
+    }
+
+    // call with the lock held; when the next request completes
+    private static long next (OpenFile f, long now)
+    {
+	long	retval = now + NEVER;
+
+	for (int i = 0; i < f.queued.size (); i++)
+	    retval = earlier (retval, ((Request) f.queued.elementAt (i)).due);
+	return retval;
+    }
+
+    synchronized int reap (int fd, int timeout)
+    {
+	OpenFile	f = device (fd);
+	long		deadline = deadline (timeout);
+
+	if (f == null)
+	    return -USBException.EBADF;
+	for (;;) {
+	    long	now = System.nanoTime ();
+	    Request	r;
+
+	    if (f.closed)
+		return -USBException.EBADF;
+	    if ((r = take (f, now)) != null)
+		return r.id;
+	    if (f.dev.gone)
+		return -USBException.ENODEV;
+	    if (now - deadline >= 0)
+		return -USBException.ETIMEDOUT;
+	    if (!await (earlier (deadline, next (f, now))))
+		return -USBException.EINTR;
+	}
+    }
+
+    synchronized int reapBatch (int fd, ByteBuffer records, int max)
+    {
+	OpenFile	f = device (fd);
+	long		now = System.nanoTime ();
+	int		count = 0;
+	Request		r;
+
+	if (f == null)
+	    return -USBException.EBADF;
+	if (max < 0 || 12L * max > records.capacity ())
+	    return -USBException.EINVAL;
+	while (count < max && (r = take (f, now)) != null) {
+	    records.putInt (12 * count, r.id);
+	    records.putInt (12 * count + 4, r.status);
+	    records.putInt (12 * count + 8, r.actual);
+	    count++;
+	}
+	if (count == 0 && f.dev.gone)
+	    return -USBException.ENODEV;
+	return count;
+    }
+
+    synchronized int getStatus (long handle)
+	{ return request (handle).status; }
+
+    synchronized int getActualLength (long handle)
+	{ return request (handle).actual; }
+
+    synchronized int getStartFrame (long handle)
+	{ return request (handle).startFrame; }
+
+    synchronized int getIsoResults (long handle, int actual [], int status [])
+    {
+	Request	r = request (handle);
+	int	n = Math.min (r.packets, Math.min (actual.length, status.length));
+	int	errors = 0;
+
+	for (int i = 0; i < n; i++) {
+	    actual [i] = r.actuals [i];
+	    status [i] = r.statuses [i];
+	}
+	for (int i = 0; i < r.packets; i++) {
+	    if (r.statuses [i] != 0)
+		errors++;
+	}
+	return errors;
+    }
+
+    synchronized void copyIn (long handle, byte buf [], int off, int len)
+    {
+	Request	r = request (handle);
+
+	if (len > r.capacity - r.skip)
+	    len = r.capacity - r.skip;
+	if (len > 0)
+	    System.arraycopy (r.data, r.skip, buf, off, len);
+    }
+
+    synchronized int copyInAt (long handle, int at,
+	    byte buf [], int off, int len)
+    {
+	Request	r = request (handle);
+
+	if (at < 0 || len < 0 || at + len > r.capacity
+		|| !inArray (buf, off, len))
+	    return -USBException.EINVAL;
+	System.arraycopy (r.data, at, buf, off, len);
+	return len;
+    }
+
+    synchronized int copyInDirect (long handle, int at,
+	    ByteBuffer buf, int off, int len)
+    {
+	Request	r = request (handle);
+
+	if (at < 0 || len < 0 || at + len > r.capacity
+		|| off < 0 || off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	put (buf, off, r.data, at, len);
+	return len;
+    }
+
+    synchronized int copyOut (long handle, int at,
+	    byte buf [], int off, int len)
+    {
+	Request	r = request (handle);
+
+	if (at < 0 || len < 0 || at + len > r.capacity
+		|| !inArray (buf, off, len))
+	    return -USBException.EINVAL;
+	System.arraycopy (buf, off, r.data, at, len);
+	return len;
+    }
+
+    synchronized int copyOutDirect (long handle, int at,
+	    ByteBuffer buf, int off, int len)
+    {
+	Request	r = request (handle);
+
+	if (at < 0 || len < 0 || at + len > r.capacity
+		|| off < 0 || off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	get (buf, off, r.data, at, len);
+	return len;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // the reaper's epoll set
+
+    synchronized int epollCreate ()
+    {
+	OpenFile	f = new OpenFile ();
+
+	f.members = new Hashtable (31);
+	return add (f);
+    }
+
+    synchronized int epollAdd (int epfd, int fd, int slot)
+    {
+	OpenFile	ep = file (epfd);
+	OpenFile	f = device (fd);
+
+	if (ep == null || ep.members == null || f == null)
+	    return -USBException.EBADF;
+	if (f.epoll != null)
+	    return -EEXIST;
+	f.epoll = ep;
+	f.slot = slot;
+	ep.members.put (new Integer (fd), f);
+	notifyAll ();
+	return 0;
+    }
+
+    synchronized int epollRemove (int epfd, int fd)
+    {
+	OpenFile	ep = file (epfd);
+	OpenFile	f;
+
+	if (ep == null || ep.members == null)
+	    return -USBException.EBADF;
+	if ((f = (OpenFile) ep.members.remove (new Integer (fd))) == null)
+	    return -USBException.ENOENT;
+	f.epoll = null;
+	return 0;
+    }
+
+    synchronized int epollWait (int epfd, int slots [], int events [],
+	    int timeout)
+    {
+	OpenFile	ep = file (epfd);
+	long		deadline = deadline (timeout);
+	int		max = Math.min (slots.length, events.length);
+
+	if (ep == null || ep.members == null)
+	    return -USBException.EBADF;
+	for (;;) {
+	    long	now = System.nanoTime ();
+	    long	next = deadline;
+	    int		count = 0;
+
+	    // Linux would keep waiting on a set closed under it, but
+	    // the next wait fails; report that now
+	    if (ep.closed)
+		return -USBException.EBADF;
+
+	    for (Enumeration e = ep.members.elements ();
+		    e.hasMoreElements () && count < max;
+		    ) {
+		OpenFile	f = (OpenFile) e.nextElement ();
+		long		due = next (f, now);
+		int		mask = 0;
+
+		if (f.dev.gone)
+		    mask |= EPOLLERR | EPOLLHUP;
+		if (due - now <= 0)
+		    mask |= EPOLLOUT;
+		if (mask != 0) {
+		    slots [count] = f.slot;
+		    events [count++] = mask;
+		} else
+		    next = earlier (next, due);
+	    }
+	    if (count != 0 || now - deadline >= 0)
+		return count;
+	    if (!await (next))
+		return 0;
+	}
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // hotplug event sources:  netlink, but not inotify
+
+    synchronized int openNetlink (int groups)
+    {
+	OpenFile	f = new OpenFile ();
+
+	f.events = new Vector ();
+	return add (f);
+    }
+
+    int openInotify ()
+	{ return -ENOSYS; }
+
+    int addWatch (int fd, String path, int mask)
+	{ return -ENOSYS; }
+
+    synchronized int readEvents (int fd, boolean netlink,
+	    int busses [], int timeout)
+    {
+	OpenFile	f = file (fd);
+	long		deadline = deadline (timeout);
+	int		count;
+
+	if (f == null || f.events == null || !netlink)
+	    return -USBException.EBADF;
+	if (busses.length == 0)
+	    return -USBException.EINVAL;
+	while (f.events.isEmpty ()) {
+	    if (f.closed)
+		return -USBException.EBADF;
+	    if (System.nanoTime () - deadline >= 0 || !await (deadline))
+		return 0;
+	}
+	count = Math.min (busses.length, f.events.size ());
+	for (int i = 0; i < count; i++) {
+	    busses [i] = ((Integer) f.events.elementAt (0)).intValue ();
+	    f.events.removeElementAt (0);
+	}
+	return count;
+    }
+
+
+    String strError (int errno)
+    {
+	switch (errno) {
+	    case USBException.ENOENT:	return "No such file or directory";
+	    case USBException.EBADF:	return "Bad file descriptor";
+	    case USBException.EBUSY:	return "Device or resource busy";
+	    case USBException.ENODEV:	return "No such device";
+	    case USBException.EINVAL:	return "Invalid argument";
+	    case USBException.EPIPE:	return "Broken pipe";
+	    case ENOSYS:		return "Function not implemented";
+	    case ESHUTDOWN:
+		return "Cannot send after transport endpoint shutdown";
+	    case USBException.ETIMEDOUT: return "Connection timed out";
+	    default:			return "errno " + errno;
+	}
+    }
+}
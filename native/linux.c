@@ -17,22 +17,29 @@
  * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
 
+#include <sys/epoll.h>
+#include <sys/inotify.h>
 #include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <fcntl.h>
 #include <errno.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
 
 #include <asm/types.h>
 
+#include <linux/netlink.h>
 #include <linux/usbdevice_fs.h>
 
 #include <jni.h>
 
-#include "usb_linux_DeviceImpl.h"
-#include "usb_linux_USBException.h"
+#include "usb_linux_JNIKernel.h"
 
 
 // for debugging only
@@ -51,15 +58,13 @@
  * and may interrupt them rudely.  Instead, use "-native" threads.
  */
 
-#define	TIMEOUT	(10 * 1000)		// 10 seconds (in ms.)
-
 
 /*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
 
-// usb.linux.DeviceImpl native methods
+// usb.linux.JNIKernel native methods:  device files, and ioctls
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_openNative (
+Java_usb_linux_JNIKernel_open (
     JNIEnv	*env,
     jobject	ignored,
     jstring	filename
@@ -84,181 +89,148 @@ Java_usb_linux_DeviceImpl_openNative (
     return fd;
 }
 
-JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_closeNative (
+/*
+ * Since 4.6, usbfs can mmap() DMA-able memory; URBs whose buffers
+ * lie in such a mapping skip the kernel's copy_{to,from}_user.
+ */
+JNIEXPORT jobject JNICALL
+Java_usb_linux_JNIKernel_mapBuffer (
     JNIEnv	*env,
-    jclass	ignored,
-    jint	fd
+    jobject	ignored,
+    jint	fd,
+    jint	size
 ) {
-    int		retval = 0;
+    void	*mem;
+    jobject	retval;
 
-    if (fd >= 0) {
-	if (close (fd) < 0)
-	    retval = -errno;
-    }
+    if (size <= 0)
+	return NULL;
+    mem = mmap (NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if (mem == MAP_FAILED)
+	return NULL;
+    retval = (*env)->NewDirectByteBuffer (env, mem, size);
+    if (retval == NULL)
+	munmap (mem, size);
     return retval;
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_setConfiguration (
+Java_usb_linux_JNIKernel_unmapBuffer (
     JNIEnv	*env,
-    jclass	ignored,
-    jint	fd,
-    jint	config
+    jobject	ignored,
+    jobject	buf
 ) {
-    if (ioctl (fd, USBDEVFS_SETCONFIGURATION, config) < 0)
+    void	*mem = (*env)->GetDirectBufferAddress (env, buf);
+    jlong	size = (*env)->GetDirectBufferCapacity (env, buf);
+
+    if (mem == NULL || size <= 0)
+	return -EINVAL;
+    if (munmap (mem, size) < 0)
 	return -errno;
     return 0;
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_readBulk (
+Java_usb_linux_JNIKernel_close (
     JNIEnv	*env,
-    jobject	this,
-    jint	fd,
-    jint	ep,
-    jbyteArray	buf,
-    jint	off,
-    jint	len
+    jobject	ignored,
+    jint	fd
 ) {
-    struct usbdevfs_bulktransfer	bulk;
-    jboolean	isCopy;
-    jbyte	*buffer;
-    int		retval;
-
-    buffer = (*env)->GetByteArrayElements (env, buf, &isCopy);
-    if (buffer == 0)
-	return -EINVAL;
-
-    bulk.ep = ep;
-    bulk.len = len;
-    bulk.data = buffer + off;
-    bulk.timeout = TIMEOUT;
-    if ((retval = ioctl (fd, USBDEVFS_BULK, &bulk)) < 0)
-	retval = -errno;
+    int		retval = 0;
 
-    (*env)->ReleaseByteArrayElements (env, buf, buffer, 0);
+    if (fd >= 0) {
+	if (close (fd) < 0)
+	    retval = -errno;
+    }
     return retval;
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_writeBulk (
+Java_usb_linux_JNIKernel_setConfiguration (
     JNIEnv	*env,
-    jobject	this,
+    jobject	ignored,
     jint	fd,
-    jint	ep,
-    jbyteArray	buf,
-    jint	off,
-    jint	len
+    jint	config
 ) {
-    struct usbdevfs_bulktransfer	bulk;
-    jbyte	*buffer;
-    jboolean	isCopy;
-    int		retval;
-
-    buffer = (*env)->GetByteArrayElements (env, buf, &isCopy);
-    if (buffer == 0)
-	return -EINVAL;
-
-    bulk.ep = ep;
-    bulk.len = len;
-    bulk.data = buffer + off;
-    bulk.timeout = TIMEOUT;
-    if ((retval = ioctl (fd, USBDEVFS_BULK, &bulk)) < 0)
-	retval = -errno;
-
-    (*env)->ReleaseByteArrayElements (env, buf, buffer, JNI_ABORT);
-    return retval;
+    // usbfs reads the value through a pointer
+    if (ioctl (fd, USBDEVFS_SETCONFIGURATION, &config) < 0)
+	return -errno;
+    return 0;
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_readIntr (
+Java_usb_linux_JNIKernel_clearHalt (
     JNIEnv	*env,
-    jobject	this,
+    jobject	ignored,
     jint	fd,
-    jint	ep,
-    jbyteArray	buf,
-    jint	off,
-    jint	len
+    jbyte	ep
 ) {
-    // XXX 
+    unsigned	ep_arg = ep & 0xff;
 
-    return -EINVAL;
+    if (ioctl (fd, USBDEVFS_CLEAR_HALT, &ep_arg) < 0)
+	return -errno;
+    return 0;
 }
 
-JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_writeIntr (
-    JNIEnv	*env,
-    jobject	this,
-    jint	fd,
-    jint	ep,
-    jbyteArray	buf,
-    jint	off,
-    jint	len
-) {
-    // XXX 
+/*
+ * USB 3 bulk streams, on a set of endpoints.  Allocating returns how
+ * many streams were allocated; both return negative errno.
+ */
+#ifdef	USBDEVFS_ALLOC_STREAMS
+static int
+streams (int fd, unsigned long request, int count,
+	JNIEnv *env, jbyteArray eps)
+{
+    struct usbdevfs_streams	*s;
+    jsize			n = (*env)->GetArrayLength (env, eps);
+    int				status;
 
-    return -EINVAL;
+    if ((s = malloc (sizeof *s + n)) == 0)
+	return -ENOMEM;
+    s->num_streams = count;
+    s->num_eps = n;
+    (*env)->GetByteArrayRegion (env, eps, 0, n, (jbyte *) s->eps);
+    status = ioctl (fd, request, s);
+    if (status < 0)
+	status = -errno;
+    free (s);
+    return status;
 }
+#endif
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_controlMsg (
+Java_usb_linux_JNIKernel_allocStreams (
     JNIEnv	*env,
-    jobject	this,
+    jobject	ignored,
     jint	fd,
-    jbyte	requestType,
-    jbyte	request,
-    jshort	value,
-    jshort	index,
-    jbyteArray	buf,
-    jint	off,
-    jshort	len
+    jint	count,
+    jbyteArray	eps
 ) {
-    struct usbdevfs_ctrltransfer	ctrl;
-    jbyte	*buffer;
-    jboolean	isCopy;
-    int		retval;
-
-    if (len != 0) {
-	buffer = (*env)->GetByteArrayElements (env, buf, &isCopy);
-	if (buffer == NULL)
-	    return -EINVAL;
-    } else
-	buffer = NULL;
-
-    ctrl.bRequestType = requestType;
-    ctrl.bRequest = request;
-    ctrl.wValue = value;
-    ctrl.wIndex = index;
-    ctrl.wLength = len & 0xffff;
-    ctrl.timeout = TIMEOUT;	// USB should t/o after 5 seconds.
-    ctrl.data = buffer + off;
-    if ((retval = ioctl (fd, USBDEVFS_CONTROL, &ctrl)) < 0)
-	retval = -errno;
-
-    if (buffer != NULL)
-	(*env)->ReleaseByteArrayElements (env, buf, buffer, 0);
-    return retval;
+#ifdef	USBDEVFS_ALLOC_STREAMS
+    return streams (fd, USBDEVFS_ALLOC_STREAMS, count, env, eps);
+#else
+    return -ENOTTY;
+#endif
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_clearHalt (
+Java_usb_linux_JNIKernel_freeStreams (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
-    jbyte	ep
+    jbyteArray	eps
 ) {
-    unsigned	ep_arg = ep & 0xff;
-
-    if (ioctl (fd, USBDEVFS_CLEAR_HALT, &ep_arg) < 0)
-	return -errno;
-    return 0;
+#ifdef	USBDEVFS_ALLOC_STREAMS
+    return streams (fd, USBDEVFS_FREE_STREAMS, 0, env, eps);
+#else
+    return -ENOTTY;
+#endif
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_claimInterface (
+Java_usb_linux_JNIKernel_claimInterface (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
     jint	ifno
 ) {
@@ -293,9 +265,9 @@ Java_usb_linux_DeviceImpl_claimInterface (
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_releaseInterface (
+Java_usb_linux_JNIKernel_releaseInterface (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
     jint	ifno
 ) {
@@ -305,9 +277,9 @@ Java_usb_linux_DeviceImpl_releaseInterface (
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_setInterface (
+Java_usb_linux_JNIKernel_setInterface (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
     jint	ifno,
     jint	alt
@@ -322,9 +294,9 @@ Java_usb_linux_DeviceImpl_setInterface (
 }
 
 JNIEXPORT jint JNICALL
-Java_usb_linux_DeviceImpl_getHubPorts (
+Java_usb_linux_JNIKernel_getHubPorts (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
     jbyteArray	buf
 ) {
@@ -359,10 +331,63 @@ Java_usb_linux_DeviceImpl_getHubPorts (
     return retval;
 }
 
+/*
+ * Reports how a device is connected, with no bus traffic:  info [0]
+ * is its speed (USB_SPEED_*), info [1] how many port numbers follow,
+ * then the ports from the root hub down.  CONNINFO_EX (in 5.x
+ * kernels) says it all; the older GET_SPEED gives only the speed.
+ * Returns how many entries were stored, else negative errno.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getConnInfo (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jintArray	info
+) {
+    jint	values [2 + 7];
+    int		count = 0;
+    int		status = -ENOTTY;
+
+#ifdef	USBDEVFS_CONNINFO_EX
+    struct usbdevfs_conninfo_ex	ci;
+
+    memset (&ci, 0, sizeof ci);
+    if (ioctl (fd, USBDEVFS_CONNINFO_EX (sizeof ci), &ci) == 0) {
+	int	i;
+
+	values [0] = ci.speed;
+	values [1] = 0;
+	for (i = 0; i < ci.num_ports && i < 7; i++)
+	    values [2 + i] = ci.ports [i];
+	values [1] = i;
+	count = 2 + i;
+    } else
+	status = -errno;
+#endif
+#ifdef	USBDEVFS_GET_SPEED
+    if (count == 0) {
+	int	speed = ioctl (fd, USBDEVFS_GET_SPEED);
+
+	if (speed >= 0) {
+	    values [0] = speed;
+	    count = 1;
+	} else
+	    status = -errno;
+    }
+#endif
+    if (count == 0)
+	return status;
+    if (count > (*env)->GetArrayLength (env, info))
+	count = (*env)->GetArrayLength (env, info);
+    (*env)->SetIntArrayRegion (env, info, 0, count, values);
+    return count;
+}
+
 JNIEXPORT jstring JNICALL
-Java_usb_linux_DeviceImpl_getClaimer (
+Java_usb_linux_JNIKernel_getClaimer (
     JNIEnv	*env,
-    jclass	ignored,
+    jobject	ignored,
     jint	fd,
     jint	ifno
 ) {
@@ -378,10 +403,876 @@ Java_usb_linux_DeviceImpl_getClaimer (
 
 /*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
 
-// usb.linux.USBException native methods
+// usb.linux.JNIKernel native methods:  asynchronous requests (URBs)
+
+/*
+ * Asynchronous I/O uses one malloc'd block per URB, which the Java
+ * URB object owns until it's freed:  the usbdevfs_urb, room for any
+ * iso packet descriptors, then the data buffer.  Java byte arrays
+ * can't be pinned while the kernel owns the request, so data gets
+ * copied into (OUT) or out of (IN) that buffer.
+ *
+ * The usercontext field holds the URB's slot number in the Java
+ * engine, which is what "reap" reports.
+ */
+
+struct jusb_urb {
+    int			capacity;
+    int			packets;
+    int			skip;		// control:  SETUP before data
+    int			stream;		// bulk:  USB 3 stream ID
+    size_t		mapped;		// nonzero:  data is usbfs mmap
+    unsigned char	*data;
+    struct usbdevfs_urb	urb;		// MUST be last
+};
+
+#define	URB_HANDLE(h)	((struct jusb_urb *)(intptr_t)(h))
+
+JNIEXPORT jlong JNICALL
+Java_usb_linux_JNIKernel_allocURB (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jint	packets,
+    jint	capacity
+) {
+    struct jusb_urb	*u;
+    size_t		size;
+    void		*mem = MAP_FAILED;
+
+    if (packets < 0 || capacity < 0)
+	return 0;
+    size = sizeof *u
+	+ packets * sizeof (struct usbdevfs_iso_packet_desc);
+
+    // data in usbfs DMA memory, if we can; else right after the URB
+    if (fd >= 0 && capacity > 0)
+	mem = mmap (NULL, capacity, PROT_READ | PROT_WRITE,
+		MAP_SHARED, fd, 0);
+    if (mem != MAP_FAILED) {
+	if ((u = malloc (size)) == 0) {
+	    munmap (mem, capacity);
+	    return 0;
+	}
+    } else if ((u = malloc (size + capacity)) == 0)
+	return 0;
+    memset (u, 0, size);
+    u->capacity = capacity;
+    u->packets = packets;
+    if (mem != MAP_FAILED) {
+	u->mapped = capacity;
+	u->data = mem;
+    } else
+	u->data = ((unsigned char *) u) + size;
+    return (jlong)(intptr_t) u;
+}
+
+JNIEXPORT void JNICALL
+Java_usb_linux_JNIKernel_freeURB (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (u->mapped)
+	munmap (u->data, u->mapped);
+    free (u);
+}
+
+static int
+submit_urb (
+    int			fd,
+    struct jusb_urb	*u,
+    jint		id,
+    jint		type,
+    jint		ep,
+    jint		flags,
+    void		*data,
+    jint		len
+) {
+    memset (&u->urb, 0, sizeof u->urb);
+    u->urb.type = type;
+    u->urb.endpoint = ep;
+    u->urb.flags = flags;
+    u->urb.buffer = data;
+    u->urb.buffer_length = len;
+    u->urb.usercontext = (void *)(intptr_t) id;
+
+    // stream_id shares number_of_packets' slot (a union since 3.16),
+    // which older headers don't name
+    if (type == USBDEVFS_URB_TYPE_BULK)
+	u->urb.number_of_packets = u->stream;
+
+    if (ioctl (fd, USBDEVFS_SUBMITURB, &u->urb) < 0)
+	return -errno;
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_submit (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle,
+    jint	id,
+    jint	type,
+    jint	ep,
+    jint	flags,
+    jbyteArray	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (len < 0 || len > u->capacity)
+	return -EINVAL;
+
+    // OUT data is copied now; IN data is copied after the reap
+    u->skip = 0;
+    if ((ep & 0x80) == 0 && len != 0) {
+	(*env)->GetByteArrayRegion (env, buf, off, len,
+		(jbyte *) u->data);
+	if ((*env)->ExceptionCheck (env))
+	    return -EINVAL;
+    }
+    return submit_urb (fd, u, id, type, ep, flags, u->data, len);
+}
+
+/*
+ * Control URBs carry the SETUP packet at the front of their buffer,
+ * and aren't limited to one page the way USBDEVFS_CONTROL is.  The
+ * data stage follows it; copyIn skips over it.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_submitControl (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle,
+    jint	id,
+    jbyte	requestType,
+    jbyte	request,
+    jshort	value,
+    jshort	index,
+    jbyteArray	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+    unsigned char	*setup = u->data;
+
+    if (len < 0 || len > 0xffff || len + 8 > u->capacity)
+	return -EINVAL;
+
+    setup [0] = requestType;
+    setup [1] = request;
+    setup [2] = value;
+    setup [3] = value >> 8;
+    setup [4] = index;
+    setup [5] = index >> 8;
+    setup [6] = len;
+    setup [7] = len >> 8;
+    u->skip = 8;
+
+    if ((requestType & 0x80) == 0 && len != 0) {
+	(*env)->GetByteArrayRegion (env, buf, off, len,
+		(jbyte *) (u->data + 8));
+	if ((*env)->ExceptionCheck (env))
+	    return -EINVAL;
+    }
+    return submit_urb (fd, u, id, USBDEVFS_URB_TYPE_CONTROL,
+	    requestType & 0x80, 0, u->data, len + 8);
+}
+
+/*
+ * Direct buffers don't move, so the kernel can use them in place
+ * and nothing gets copied here.  The Java side keeps the buffer
+ * reachable until the URB is reaped.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_submitDirect (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle,
+    jint	id,
+    jint	type,
+    jint	ep,
+    jint	flags,
+    jobject	buf,
+    jint	off,
+    jint	len
+) {
+    unsigned char	*data;
+
+    data = (*env)->GetDirectBufferAddress (env, buf);
+    if (data == NULL || off < 0 || len < 0
+	    || off + len > (*env)->GetDirectBufferCapacity (env, buf))
+	return -EINVAL;
+    URB_HANDLE (handle)->skip = 0;
+    return submit_urb (fd, URB_HANDLE (handle), id, type, ep, flags,
+	    data + off, len);
+}
+
+/*
+ * Iso URBs carry many packets, each with its own length; the data
+ * goes back to back in the URB's buffer.  Unless ISO_ASAP is set,
+ * the kernel schedules the first packet for "frame".
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_submitIso (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle,
+    jint	id,
+    jint	ep,
+    jint	flags,
+    jint	frame,
+    jintArray	lengths,
+    jint	packets,
+    jbyteArray	buf,
+    jint	off
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+    jint		*lens;
+    int			i, total = 0;
+
+    if (packets <= 0 || packets > u->packets)
+	return -EINVAL;
+    if ((lens = (*env)->GetIntArrayElements (env, lengths, NULL)) == NULL)
+	return -ENOMEM;
+    for (i = 0; i < packets; i++) {
+	if (lens [i] < 0)
+	    break;
+	u->urb.iso_frame_desc [i].length = lens [i];
+	u->urb.iso_frame_desc [i].actual_length = 0;
+	u->urb.iso_frame_desc [i].status = 0;
+	total += lens [i];
+    }
+    (*env)->ReleaseIntArrayElements (env, lengths, lens, JNI_ABORT);
+    if (i != packets || total > u->capacity)
+	return -EINVAL;
+
+    u->skip = 0;
+    if ((ep & 0x80) == 0 && total != 0) {
+	(*env)->GetByteArrayRegion (env, buf, off, total,
+		(jbyte *) u->data);
+	if ((*env)->ExceptionCheck (env))
+	    return -EINVAL;
+    }
+
+    memset (&u->urb, 0, sizeof u->urb);
+    u->urb.type = USBDEVFS_URB_TYPE_ISO;
+    u->urb.endpoint = ep;
+    u->urb.flags = flags;
+    u->urb.buffer = u->data;
+    u->urb.buffer_length = total;
+    u->urb.start_frame = frame;
+    u->urb.number_of_packets = packets;
+    u->urb.usercontext = (void *)(intptr_t) id;
+
+    if (ioctl (fd, USBDEVFS_SUBMITURB, &u->urb) < 0)
+	return -errno;
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_discard (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle
+) {
+    if (ioctl (fd, USBDEVFS_DISCARDURB, &URB_HANDLE (handle)->urb) < 0)
+	return -errno;
+    return 0;
+}
+
+JNIEXPORT void JNICALL
+Java_usb_linux_JNIKernel_setStream (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jint	stream
+) {
+    URB_HANDLE (handle)->stream = stream;
+}
+
+/*
+ * Waits up to "timeout" msec (negative means forever) for some URB
+ * on this fd to complete; returns its id, or negative errno.  This
+ * uses poll() rather than a blocking REAPURB so that waiters time out,
+ * and an fd closed from under us just reports an error.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_reap (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jint	timeout
+) {
+    struct usbdevfs_urb	*urb;
+    struct pollfd	pfd;
+    int			status;
+
+    for (;;) {
+	if (ioctl (fd, USBDEVFS_REAPURBNDELAY, &urb) == 0)
+	    return (jint)(intptr_t) urb->usercontext;
+	if (errno != EAGAIN)
+	    return -errno;
+
+	pfd.fd = fd;
+	pfd.events = POLLOUT;
+	pfd.revents = 0;
+	status = poll (&pfd, 1, timeout);
+	if (status < 0) {
+	    if (errno == EINTR)
+		continue;
+	    return -errno;
+	}
+	if (status == 0)
+	    return -ETIMEDOUT;
+	if (pfd.revents & (POLLERR | POLLHUP | POLLNVAL)) {
+	    // disconnect:  maybe something's left to reap
+	    if (ioctl (fd, USBDEVFS_REAPURBNDELAY, &urb) == 0)
+		return (jint)(intptr_t) urb->usercontext;
+	    return (pfd.revents & POLLNVAL) ? -EBADF : -ENODEV;
+	}
+    }
+}
+
+/*
+ * Reaps every completed URB without blocking (up to "max"), storing
+ * (id, status, actual_length) for each in the direct buffer; so a
+ * burst of completions costs one JNI call, not several apiece.
+ * Returns how many were stored; else negative errno, if none were.
+ * EAGAIN isn't an error, it just means nothing (more) is done.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_reapBatch (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jobject	records,
+    jint	max
+) {
+    jint		*rec = (*env)->GetDirectBufferAddress (env, records);
+    struct usbdevfs_urb	*urb;
+    int			count = 0;
+
+    if (rec == NULL || max < 0 || 3 * sizeof (jint) * (jlong) max
+	    > (*env)->GetDirectBufferCapacity (env, records))
+	return -EINVAL;
+
+    while (count < max) {
+	if (ioctl (fd, USBDEVFS_REAPURBNDELAY, &urb) < 0) {
+	    if (count == 0 && errno != EAGAIN)
+		return -errno;
+	    break;
+	}
+	rec [0] = (jint)(intptr_t) urb->usercontext;
+	rec [1] = urb->status;
+	rec [2] = urb->actual_length;
+	rec += 3;
+	count++;
+    }
+    return count;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getStatus (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle
+) {
+    return URB_HANDLE (handle)->urb.status;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getActualLength (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle
+) {
+    return URB_HANDLE (handle)->urb.actual_length;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getStartFrame (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle
+) {
+    return URB_HANDLE (handle)->urb.start_frame;
+}
+
+/*
+ * Copies per-packet iso results into the arrays, returning the
+ * count of packets with errors.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getIsoResults (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jintArray	actual,
+    jintArray	status
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+    int			i, n = u->urb.number_of_packets;
+    jint		*a, *s;
+
+    if (n > (*env)->GetArrayLength (env, actual))
+	n = (*env)->GetArrayLength (env, actual);
+    if (n > (*env)->GetArrayLength (env, status))
+	n = (*env)->GetArrayLength (env, status);
+
+    a = (*env)->GetIntArrayElements (env, actual, NULL);
+    s = (*env)->GetIntArrayElements (env, status, NULL);
+    if (a != NULL && s != NULL) {
+	for (i = 0; i < n; i++) {
+	    a [i] = u->urb.iso_frame_desc [i].actual_length;
+	    s [i] = u->urb.iso_frame_desc [i].status;
+	}
+    }
+    if (a != NULL)
+	(*env)->ReleaseIntArrayElements (env, actual, a, 0);
+    if (s != NULL)
+	(*env)->ReleaseIntArrayElements (env, status, s, 0);
+    return u->urb.error_count;
+}
+
+JNIEXPORT void JNICALL
+Java_usb_linux_JNIKernel_copyIn (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jbyteArray	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (len > u->capacity - u->skip)
+	len = u->capacity - u->skip;
+    if (len > 0)
+	(*env)->SetByteArrayRegion (env, buf, off, len,
+		(jbyte *) (u->data + u->skip));
+}
+
+/*
+ * Gathering writes and scattering reads use the URB's own buffer as
+ * the bounce buffer:  pieces of several Java buffers are copied in
+ * (or out) at the given offset, so the URB can span them without
+ * anything being assembled on the Java heap.
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_copyOut (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jint	at,
+    jbyteArray	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (at < 0 || len < 0 || at + len > u->capacity)
+	return -EINVAL;
+    (*env)->GetByteArrayRegion (env, buf, off, len,
+	    (jbyte *) (u->data + at));
+    if ((*env)->ExceptionCheck (env))
+	return -EINVAL;
+    return len;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_copyOutDirect (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jint	at,
+    jobject	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+    unsigned char	*data;
+
+    data = (*env)->GetDirectBufferAddress (env, buf);
+    if (data == NULL || at < 0 || len < 0 || at + len > u->capacity
+	    || off < 0
+	    || off + len > (*env)->GetDirectBufferCapacity (env, buf))
+	return -EINVAL;
+    memcpy (u->data + at, data + off, len);
+    return len;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_copyInAt (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jint	at,
+    jbyteArray	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (at < 0 || len < 0 || at + len > u->capacity)
+	return -EINVAL;
+    (*env)->SetByteArrayRegion (env, buf, off, len,
+	    (jbyte *) (u->data + at));
+    if ((*env)->ExceptionCheck (env))
+	return -EINVAL;
+    return len;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_copyInDirect (
+    JNIEnv	*env,
+    jobject	ignored,
+    jlong	handle,
+    jint	at,
+    jobject	buf,
+    jint	off,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+    unsigned char	*data;
+
+    data = (*env)->GetDirectBufferAddress (env, buf);
+    if (data == NULL || at < 0 || len < 0 || at + len > u->capacity
+	    || off < 0
+	    || off + len > (*env)->GetDirectBufferCapacity (env, buf))
+	return -EINVAL;
+    memcpy (data + off, u->data + at, len);
+    return len;
+}
+
+/*
+ * Submits whatever copyOut put in the URB's buffer (for IN, the
+ * data lands there, for copyInAt to collect).
+ */
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_submitBuffer (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jlong	handle,
+    jint	id,
+    jint	type,
+    jint	ep,
+    jint	flags,
+    jint	len
+) {
+    struct jusb_urb	*u = URB_HANDLE (handle);
+
+    if (len < 0 || len > u->capacity)
+	return -EINVAL;
+    u->skip = 0;
+    return submit_urb (fd, u, id, type, ep, flags, u->data, len);
+}
+
+/*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
+
+// usb.linux.JNIKernel native methods:  the reaper's epoll set
+
+/*
+ * usbfs reports POLLOUT when a device file has completed URBs to
+ * reap, and POLLERR|POLLHUP once it's disconnected.  One epoll set
+ * holds every open device file; the event data is a slot number
+ * that the Java code maps back to the device.
+ */
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_epollCreate (
+    JNIEnv	*env,
+    jobject	ignored
+) {
+    int		epfd;
+
+    if ((epfd = epoll_create (16)) < 0)
+	return -errno;
+    fcntl (epfd, F_SETFD, FD_CLOEXEC);
+    return epfd;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_epollAdd (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	epfd,
+    jint	fd,
+    jint	slot
+) {
+    struct epoll_event	event;
+
+    memset (&event, 0, sizeof event);
+    event.events = EPOLLOUT;
+    event.data.u32 = slot;
+    if (epoll_ctl (epfd, EPOLL_CTL_ADD, fd, &event) < 0)
+	return -errno;
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_epollRemove (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	epfd,
+    jint	fd
+) {
+    struct epoll_event	event;
+
+    // pre-2.6.9 kernels want an event, though it's ignored
+    memset (&event, 0, sizeof event);
+    if (epoll_ctl (epfd, EPOLL_CTL_DEL, fd, &event) < 0)
+	return -errno;
+    return 0;
+}
+
+#define	REAPER_BATCH	64
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_epollWait (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	epfd,
+    jintArray	slots,
+    jintArray	events,
+    jint	timeout
+) {
+    struct epoll_event	ready [REAPER_BATCH];
+    jint		value [REAPER_BATCH];
+    int			i, count, max = REAPER_BATCH;
+
+    if (max > (*env)->GetArrayLength (env, slots))
+	max = (*env)->GetArrayLength (env, slots);
+    if (max > (*env)->GetArrayLength (env, events))
+	max = (*env)->GetArrayLength (env, events);
+
+    count = epoll_wait (epfd, ready, max, timeout);
+    if (count < 0)
+	return (errno == EINTR) ? 0 : -errno;
+
+    for (i = 0; i < count; i++)
+	value [i] = ready [i].data.u32;
+    (*env)->SetIntArrayRegion (env, slots, 0, count, value);
+    for (i = 0; i < count; i++)
+	value [i] = ready [i].events;
+    (*env)->SetIntArrayRegion (env, events, 0, count, value);
+    return count;
+}
+
+/*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
+
+// usb.linux.JNIKernel native methods:  hotplug event sources
+
+/*
+ * The kernel broadcasts a hotplug event ("uevent") for every device
+ * change; USB devices report their bus as BUSNUM.  Those events go
+ * out before udev creates the /dev node, so the Java side rescans
+ * again shortly after.  inotify is the fallback.
+ */
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_openNetlink (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	groups
+) {
+#ifdef	NETLINK_KOBJECT_UEVENT
+    struct sockaddr_nl	addr;
+    int			fd;
+
+    fd = socket (PF_NETLINK, SOCK_DGRAM, NETLINK_KOBJECT_UEVENT);
+    if (fd < 0)
+	return -errno;
+    fcntl (fd, F_SETFD, FD_CLOEXEC);
+
+    memset (&addr, 0, sizeof addr);
+    addr.nl_family = AF_NETLINK;
+    addr.nl_pid = 0;			// kernel assigns one
+    addr.nl_groups = groups;
+    if (bind (fd, (struct sockaddr *) &addr, sizeof addr) < 0) {
+	int	status = -errno;
+
+	close (fd);
+	return status;
+    }
+    return fd;
+#else
+    return -ENOSYS;
+#endif
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_openInotify (
+    JNIEnv	*env,
+    jobject	ignored
+) {
+    int		fd;
+
+    if ((fd = inotify_init ()) < 0)
+	return -errno;
+    fcntl (fd, F_SETFD, FD_CLOEXEC);
+    return fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_addWatch (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jstring	path,
+    jint	mask
+) {
+    const char	*name;
+    int		wd;
+
+    if ((name = (*env)->GetStringUTFChars (env, path, 0)) == 0)
+	return -ENOMEM;
+    wd = inotify_add_watch (fd, name, mask | IN_ONLYDIR);
+    if (wd < 0)
+	wd = -errno;
+    (*env)->ReleaseStringUTFChars (env, path, name);
+    return wd;
+}
+
+/*
+ * Returns the bus number for a USB device add/remove uevent, zero
+ * when that's somehow missing, or -1 for other events.  The message
+ * is "action@devpath" then NUL-terminated KEY=value strings.
+ */
+static int
+uevent_bus (char *buf, int len)
+{
+    char	*cp, *end = buf + len;
+    int		usb = 0, device = 0, action = 0;
+    int		busnum = 0;
+
+    for (cp = buf; cp < end; cp += strlen (cp) + 1) {
+	if (!strcmp (cp, "SUBSYSTEM=usb"))
+	    usb = 1;
+	else if (!strcmp (cp, "DEVTYPE=usb_device"))
+	    device = 1;
+	else if (!strcmp (cp, "ACTION=add") || !strcmp (cp, "ACTION=remove"))
+	    action = 1;
+	else if (!strncmp (cp, "BUSNUM=", 7))
+	    busnum = atoi (cp + 7);
+    }
+    if (!usb || !device || !action)
+	return -1;
+    return busnum;
+}
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_readEvents (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd,
+    jboolean	netlink,
+    jintArray	busses,
+    jint	timeout
+) {
+    // uevents are under 2KB; inotify events are small
+    char		buf [4096]
+			__attribute__ ((aligned (__alignof__ (struct inotify_event))));
+    struct pollfd	pfd;
+    jint		value [64];
+    int			max, count = 0;
+    int			status;
+
+    max = (*env)->GetArrayLength (env, busses);
+    if (max > 64)
+	max = 64;
+    if (max <= 0)
+	return -EINVAL;
+
+    pfd.fd = fd;
+    pfd.events = POLLIN;
+    pfd.revents = 0;
+    status = poll (&pfd, 1, timeout);
+    if (status < 0)
+	return (errno == EINTR) ? 0 : -errno;
+    if (status == 0)
+	return 0;
+
+    while (count < max) {
+	if (netlink) {
+	    status = recv (fd, buf, sizeof buf - 1, MSG_DONTWAIT);
+	    if (status < 0) {
+		// overrun:  some events were dropped
+		if (errno == ENOBUFS) {
+		    value [count++] = 0;
+		    continue;
+		}
+		break;
+	    }
+	    buf [status] = 0;
+	    if ((status = uevent_bus (buf, status)) >= 0)
+		value [count++] = status;
+
+	} else {
+	    char	*cp;
+
+	    // inotify reads are all-or-nothing per event, so one
+	    // poll() and one read suffice
+	    if (count > 0)
+		break;
+	    status = read (fd, buf, sizeof buf);
+	    if (status < 0)
+		return (errno == EINTR || errno == EAGAIN) ? 0 : -errno;
+	    for (cp = buf; cp < buf + status && count < max; ) {
+		struct inotify_event	*event;
+
+		event = (struct inotify_event *) cp;
+		cp += sizeof *event + event->len;
+		if (event->mask & IN_Q_OVERFLOW)
+		    value [count++] = -1;
+		else if (event->mask & (IN_CREATE|IN_DELETE|IN_ATTRIB))
+		    value [count++] = event->wd;
+	    }
+	    break;
+	}
+    }
+
+    (*env)->SetIntArrayRegion (env, busses, 0, count, value);
+    return count;
+}
+
+/*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
+
+// usb.linux.JNIKernel native methods:  usbfs capabilities
+
+JNIEXPORT jint JNICALL
+Java_usb_linux_JNIKernel_getCapabilities (
+    JNIEnv	*env,
+    jobject	ignored,
+    jint	fd
+) {
+#ifdef	USBDEVFS_GET_CAPABILITIES
+    __u32	caps = 0;
+
+    if (ioctl (fd, USBDEVFS_GET_CAPABILITIES, &caps) < 0)
+	return -errno;
+    return caps & 0x7fffffff;
+#else
+    return -ENOTTY;
+#endif
+}
+
+/*++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++*/
+
+// usb.linux.JNIKernel native methods:  error messages
 
 JNIEXPORT jstring JNICALL
-Java_usb_linux_USBException_strError (
+Java_usb_linux_JNIKernel_strError (
     JNIEnv	*env,
     jobject	ignored,
     jint	errcode
@@ -0,0 +1,165 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they can move data directly to and from caller-owned buffers.
+ * With direct buffers that means no per-transfer allocation, and
+ * no copying between the Java heap and native code.
+ *
+ * <p> This isn't part of DeviceSPI because buffers can't be sent
+ * through RMI; {@link Endpoint} and {@link Device} fall back to
+ * the array-based calls when a device doesn't support this.
+ *
+ * <p> Each call transfers data between the device and the buffer's
+ * remaining bytes (from its position to its limit), then advances
+ * the position past the bytes actually transferred.
+ */
+public interface BufferSPI
+{
+    /**
+     * Reads from a BULK IN endpoint into the buffer.
+     * This may be fewer bytes than were requested; the caller must
+     * decide whether that's an error in this particular case.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param buf Receives the data.
+     * @return How many bytes were read.
+     * @see DeviceSPI#readBulk
+     */
+    public int readBulk (int ep, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Writes the buffer's data to a BULK OUT endpoint.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param buf Holds the data to write.
+     * @return How many bytes were written.
+     * @see DeviceSPI#writeBulk
+     */
+    public int writeBulk (int ep, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Reads from a BULK IN endpoint into a sequence of buffers, as
+     * one transfer; each buffer is filled before the next is used.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param bufs Receive the data.
+     * @param offset The first buffer to use.
+     * @param length How many buffers to use.
+     * @return How many bytes were read.
+     */
+    public long readBulk (int ep, ByteBuffer bufs [], int offset, int length)
+    throws IOException;
+
+    /**
+     * Writes data from a sequence of buffers to a BULK OUT endpoint,
+     * as one transfer; packets only end short at the very end.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param bufs Hold the data to write.
+     * @param offset The first buffer to use.
+     * @param length How many buffers to use.
+     * @return How many bytes were written.
+     */
+    public long writeBulk (int ep, ByteBuffer bufs [], int offset, int length)
+    throws IOException;
+
+    /**
+     * Allocates a direct buffer which this device's transfers can
+     * use most efficiently; for example, memory the host controller
+     * can use for DMA.
+     *
+     * @param size How many bytes the buffer holds.
+     * @see Device#allocateBuffer
+     */
+    public ByteBuffer allocate (int size)
+    throws IOException;
+
+    /**
+     * Releases a buffer from {@link #allocate}; it must not be used
+     * again.  Implementations should leave the buffer itself with
+     * nothing remaining (a zero limit), so misuse throws exceptions;
+     * but views made from it (slices, duplicates) may then refer to
+     * memory that no longer exists.  Other buffers are ignored.
+     *
+     * @see Device#freeBuffer
+     */
+    public void free (ByteBuffer buf);
+
+    /**
+     * Reads from an INTERRUPT IN endpoint into the buffer.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param buf Receives the data.
+     * @return How many bytes were read.
+     * @see DeviceSPI#readIntr
+     */
+    public int readIntr (int ep, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Writes the buffer's data to an INTERRUPT OUT endpoint.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param buf Holds the data to write.
+     * @return How many bytes were written.
+     * @see DeviceSPI#writeIntr
+     */
+    public int writeIntr (int ep, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Issues a control IN request, reading the data stage into the
+     * buffer.  The SETUP packet's length is the buffer's remaining
+     * byte count, which may be zero.
+     *
+     * @return How many bytes were read.
+     * @see DeviceSPI#readControl
+     */
+    public int readControl (byte type, byte request,
+	    short value, short index, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Issues a control OUT request, writing the buffer's remaining
+     * bytes (perhaps none) as the data stage.
+     *
+     * @return How many bytes were written.
+     * @see DeviceSPI#writeControl
+     */
+    public int writeControl (byte type, byte request,
+	    short value, short index, ByteBuffer buf)
+    throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package usb.core;
+
+import java.io.IOException;
+import java.nio.channels.ScatteringByteChannel;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they can keep bulk transfers queued for an application that's
+ * streaming data.  Like {@link IsochronousSPI}, it's not available
+ * through RMI.
+ *
+ * @see Endpoint#getInputChannel
+ */
+public interface ChannelSPI
+{
+    /**
+     * Opens a channel reading from a BULK IN endpoint, which keeps
+     * the specified number of reads queued at all times.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param size bytes per read, a multiple of the endpoint's
+     *	maximum packet size
+     * @param count how many reads to keep queued (at least two)
+     */
+    public ScatteringByteChannel openBulkInput (int ep, int size, int count)
+    throws IOException;
+}
@@ -0,0 +1,42 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.util.EventListener;
+
+
+/**
+ * Is told when a queued request is done.  Register one with
+ * {@link PendingIO#setListener}.
+ *
+ * <p> These calls are made by threads belonging to the USB
+ * implementation, which may be handling many devices; so
+ * don't block, and don't take long.
+ *
+ * @version $Id$
+ */
+public interface CompletionListener extends EventListener
+{
+    /**
+     * Called once the request has completed or failed; {@link
+     * PendingIO#getFailure} says which.
+     */
+    public void completed (PendingIO request);
+}
@@ -50,23 +50,62 @@ final public class Configuration extends Descriptor
     // interface and endpoint descriptors get recreated on the client
     // they share data from this config's buffer
 
-    	// FIXME: this needs an SPI hook to update current alt settings
+    /*
+     * Offset table for the descriptors in "data", built by index() in
+     * one pass, so lookups never walk the descriptors.  Each interface
+     * descriptor gets a slot:  interface N has slots altBase [N] up to
+     * altBase [N + 1], one per altsetting, holding offsets (or -1 for
+     * altsettings that aren't there).  A slot's endpoint descriptors
+     * are epOffset [epFirst [slot]] up to epOffset [epLimit [slot]];
+     * epIndex [32 * slot + key (address)] is one more than the index
+     * of the slot's endpoint with that address, else zero.
+     * The buffer and these tables are shared with identical
+     * configurations; the rest of this state is per-device.
+     */
+    private transient DescriptorData	shared;
+    private transient int	altBase [];
+    private transient int	ifOffset [];
+    private transient int	epFirst [];
+    private transient int	epLimit [];
+    private transient int	epOffset [];
+    private transient byte	epIndex [];
+
+    // by endpoint key (see key()):  interface number + 1, else zero;
+    // and the lowest of its altsettings with that endpoint, plus one
+    private transient int	epOwner [];
+    private transient int	epLowest [];
 
     // current alternate for each of the selected interfaces
+    private transient int	selected [];
+
+    // Interface objects, by slot
     private transient Interface	interfaces [];
 
     public Configuration clone (Device d)
     {
+	synchronized (this) {
+	    if (shared != null)
+		return new Configuration (d, shared);
+	}
 	return new Configuration (d, data);
     }
 
+    /**
+     * Wraps a configuration descriptor, followed by its interface,
+     * endpoint, and other descriptors.  Configurations with identical
+     * descriptors share one (interned) copy of them, so the buffer
+     * is copied if it's the first of its kind; callers may reuse it.
+     */
     public Configuration (Device device, byte descriptor [])
+	{ this (device, DescriptorData.intern (descriptor)); }
+
+    private Configuration (Device device, DescriptorData shared)
     {
-	super (descriptor);
+	super (shared.data);
 	if (getDescriptorType () != TYPE_CONFIGURATION)
 	    throw new IllegalArgumentException ();
 	dev = device;
-	interfaces = new Interface [getU8 (4)];
+	this.shared = shared;
     }
 
     /**
@@ -143,14 +182,194 @@ final public class Configuration extends Descriptor
 	return dev;
     }
 
-    // package private implemented by Wayne Westerman
-    boolean isMatchingInterface (int descriptor_offset, int desired_index, int desired_alt)
+    // maps endpoint addresses (with direction) to 0..31
+    private static int key (int address)
+	{ return (0x0f & address) | ((0x80 & address) >> 3); }
+
+    // call with lock held; gets the offset table
+    private void index ()
     {
-        if (descriptorType (descriptor_offset) == TYPE_INTERFACE
-            && (0xff & data[descriptor_offset + 2]) == desired_index
-            && (0xff & data[descriptor_offset + 3]) == desired_alt)
-            return true;
-        else return false;
+	if (ifOffset != null)
+	    return;
+
+	// after deserialization
+	if (shared == null) {
+	    shared = DescriptorData.intern (data);
+	    data = shared.data;
+	}
+
+	// maybe an identical configuration already parsed it
+	synchronized (shared) {
+	    if (shared.ifOffset == null) {
+		parse ();
+		shared.altBase = altBase;
+		shared.epFirst = epFirst;
+		shared.epLimit = epLimit;
+		shared.epOffset = epOffset;
+		shared.epIndex = epIndex;
+		shared.epOwner = epOwner;
+		shared.epLowest = epLowest;
+		shared.ifOffset = ifOffset;
+	    } else {
+		altBase = shared.altBase;
+		epFirst = shared.epFirst;
+		epLimit = shared.epLimit;
+		epOffset = shared.epOffset;
+		epIndex = shared.epIndex;
+		epOwner = shared.epOwner;
+		epLowest = shared.epLowest;
+		ifOffset = shared.ifOffset;
+	    }
+	}
+
+	selected = new int [altBase.length - 1];
+	interfaces = new Interface [ifOffset.length];
+    }
+
+    // builds the offset table in one pass
+    private void parse ()
+    {
+	int	found [] = new int [8];		// interface offsets
+	int	starts [] = new int [8];	// ... their first endpoints
+	int	count = 0;
+	int	eps [] = new int [8];
+	int	epCount = 0;
+	int	slots;
+
+	altBase = new int [1];
+	epOwner = new int [32];
+	epLowest = new int [32];
+
+	// the one pass over the descriptors
+	for (int offset = nextDescriptorOffset (getOffset ()), next;
+		offset > 0;
+		offset = next) {
+	    switch (descriptorType (offset)) {
+		case TYPE_INTERFACE:
+		    if (offset + 4 > data.length)
+			break;
+		    if (count == found.length) {
+			found = grow (found);
+			starts = grow (starts);
+		    }
+		    found [count] = offset;
+		    starts [count++] = epCount;
+		    break;
+		case TYPE_ENDPOINT:
+		    if (count == 0)
+			break;
+		    if (epCount == eps.length)
+			eps = grow (eps);
+		    eps [epCount++] = offset;
+		    break;
+	    }
+	    if ((next = nextDescriptorOffset (offset)) <= offset)
+		break;
+	}
+
+	// altBase [N + 1] first counts interface N's altsettings ...
+	for (int i = 0; i < count; i++) {
+	    int	number = 0xff & data [found [i] + 2];
+	    int	alt = 0xff & data [found [i] + 3];
+
+	    if (number + 2 > altBase.length) {
+		int	temp [] = new int [number + 2];
+
+		System.arraycopy (altBase, 0, temp, 0, altBase.length);
+		altBase = temp;
+	    }
+	    if (alt >= altBase [number + 1])
+		altBase [number + 1] = alt + 1;
+	}
+	// ... then where its slots end
+	for (int n = 1; n < altBase.length; n++)
+	    altBase [n] += altBase [n - 1];
+
+	slots = altBase [altBase.length - 1];
+	ifOffset = new int [slots];
+	epFirst = new int [slots];
+	epLimit = new int [slots];
+	epOffset = new int [epCount];
+	epIndex = new byte [32 * slots];
+	System.arraycopy (eps, 0, epOffset, 0, epCount);
+	for (int i = 0; i < slots; i++)
+	    ifOffset [i] = -1;
+
+	for (int i = 0; i < count; i++) {
+	    int	number = 0xff & data [found [i] + 2];
+	    int	alt = 0xff & data [found [i] + 3];
+	    int	slot = altBase [number] + alt;
+
+	    // first one wins, as with a walk
+	    if (ifOffset [slot] >= 0)
+		continue;
+	    ifOffset [slot] = found [i];
+	    epFirst [slot] = starts [i];
+	    epLimit [slot] = (i + 1 < count) ? starts [i + 1] : epCount;
+	    for (int j = epFirst [slot]; j < epLimit [slot]; j++) {
+		int	address = 0xff & data [epOffset [j] + 2];
+		int	k = key (address);
+
+		// indexes past 126 don't fit a byte; USB allows 30
+		if ((address & ~0x8f) != 0 || j - epFirst [slot] > 126)
+		    continue;
+		if (epIndex [32 * slot + k] == 0)
+		    epIndex [32 * slot + k] = (byte) (j - epFirst [slot] + 1);
+		if (epOwner [k] == 0)
+		    epOwner [k] = number + 1;
+		if (epOwner [k] == number + 1
+			&& (epLowest [k] == 0 || alt < epLowest [k] - 1))
+		    epLowest [k] = alt + 1;
+	    }
+	}
+    }
+
+    private static int [] grow (int array [])
+    {
+	int	temp [] = new int [2 * array.length];
+
+	System.arraycopy (array, 0, temp, 0, array.length);
+	return temp;
+    }
+
+    // call with lock held; returns the slot, else -1
+    private int slot (int number, int alt)
+    {
+	int	slot;
+
+	index ();
+	if (number < 0 || number + 1 >= altBase.length || alt < 0)
+	    return -1;
+	slot = altBase [number] + alt;
+	if (slot >= altBase [number + 1] || ifOffset [slot] < 0)
+	    return -1;
+	return slot;
+    }
+
+    // package private:  offset of an interface's endpoint, else -1
+    synchronized int endpointOffset (int slot, int index)
+    {
+	index ();
+	if (index < 0 || epFirst [slot] + index >= epLimit [slot])
+	    return -1;
+	return epOffset [epFirst [slot] + index];
+    }
+
+    // package private:  index of an interface's endpoint, else -1
+    synchronized int endpointIndex (int slot, int address)
+    {
+	index ();
+	if ((address & ~0x8f) != 0)
+	    return -1;
+	return epIndex [32 * slot + key (address)] - 1;
+    }
+
+    // package private:  records an interface's alternate setting
+    synchronized void setSelected (int number, int alt)
+    {
+	index ();
+	if (number >= 0 && number < selected.length)
+	    selected [number] = alt;
     }
 
     /**
@@ -164,62 +383,49 @@ final public class Configuration extends Descriptor
     throws IOException
     {
 	synchronized (this) {
-	    if (interfaces == null)
-		interfaces = new Interface [getNumInterfaces ()];
-
-	    // maybe we cached the one we're after
-	    for (int i = 0; i < interfaces.length; i++) {
-		if (interfaces [i] == null
-			    || interfaces [i].getNumber() != index)
-			continue;
-		if (interfaces [i].getAlternateSetting() == alt)
-		    return interfaces [i];
-		break;
-	    }
-
+	    int		slot = slot (index, alt);
 
-	    int		offset = getOffset ();
-	    Interface	temp = null;
-
-	    do {
-
-		// Look at each interface descriptor
-		offset = nextDescriptorOffset (offset);
-		if (offset < 0)
-		    break;
-
-        //Wayne checks interface type, compares index, and alt before allocating new Interface!
-        if (!isMatchingInterface(offset,index,alt))
-            continue;
-        temp = new Interface (this, offset);
-/*		brownell's commented out implementation below is buggy...don't want to make new Interface if not matching!
+	    if (slot < 0)
+		return null;
+	    if (interfaces [slot] == null)
+		interfaces [slot] = new Interface (this, ifOffset [slot], slot);
+	    return interfaces [slot];
+	}
+    }
 
-        if (descriptorType (offset) != TYPE_INTERFACE)
-		    continue;
-		if (temp == null)
-		    temp = new Interface (this, offset);
-		else
-		    temp.offset = offset;
-
-		// see if it's what we're after
-		if (temp.getNumber () != index
-			|| temp.getAlternateSetting () != alt)
-		    continue;*/
-
-		// maybe cache it
-		for (int i = 0; i < interfaces.length; i++) {
-		    if (interfaces [i] == null) {
-			interfaces [i] = temp;
-			break;
-		    }
-		}
+    /**
+     * Returns the endpoint with the specified address, or null if
+     * this configuration doesn't have one.  Endpoints come from the
+     * interface's current alternate setting, as last {@link
+     * Interface#claim claimed}; if that setting doesn't include the
+     * endpoint (as with the zero bandwidth settings of audio and
+     * video streaming interfaces), the lowest one that does.
+     *
+     * @param address the endpoint address, including the direction
+     *	bit (0x80 for input endpoints); see {@link Endpoint#getEndpoint}
+     */
+    public Endpoint findEndpoint (int address)
+    throws IOException
+    {
+	Interface	intf = null;
 
-		return temp;
+	synchronized (this) {
+	    int		number;
+	    int		slot;
 
-	    } while (offset > 0);
+	    index ();
+	    if ((address & ~0x8f) != 0
+		    || (number = epOwner [key (address)] - 1) < 0)
+		return null;
 
-	    // what interface?
-	    return null;
+	    // the selected altsetting first, else the lowest with it
+	    slot = slot (number, selected [number]);
+	    if (slot >= 0 && endpointIndex (slot, address) >= 0)
+		intf = getInterface (number, selected [number]);
+	    else
+		intf = getInterface (number,
+			epLowest [key (address)] - 1);
 	}
+	return (intf == null) ? null : intf.findEndpoint (address);
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they can queue control requests without waiting for each one to
+ * complete.  Without it, {@link Device#submitControl} issues each
+ * request synchronously.  Like {@link IsochronousSPI}, it's not
+ * available through RMI.
+ */
+public interface ControlSPI
+{
+    /**
+     * Queues a control request, returning without waiting for it.
+     * When it's done, the request is {@link PendingControl#complete(int)
+     * completed} or {@link PendingControl#fail failed}, maybe from
+     * some other thread.
+     *
+     * @exception IOException if the request couldn't be queued
+     */
+    public void submitControl (PendingControl request)
+    throws IOException;
+}
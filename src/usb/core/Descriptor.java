@@ -93,6 +93,8 @@ abstract public class Descriptor implements java.io.Serializable
     public static final byte TYPE_PHYSICAL = 0x23;
     /** Indicates a hub class descriptor */
     public static final byte TYPE_HUB = 0x29;
+    /** Indicates a USB 3.0 "SuperSpeed endpoint companion" */
+    public static final byte TYPE_SS_ENDPOINT_COMPANION = 0x30;
 
     
     /** Returns a name for the type of descriptor (such as "device") */
@@ -112,6 +114,7 @@ abstract public class Descriptor implements java.io.Serializable
 	    case TYPE_REPORT:		return "report";
 	    case TYPE_PHYSICAL:		return "physical";
 	    case TYPE_HUB:		return "hub";
+	    case TYPE_SS_ENDPOINT_COMPANION:	return "ss-companion";
 	}
 	return "noncore-" + getDescriptorType ();
     }
@@ -178,23 +181,14 @@ abstract public class Descriptor implements java.io.Serializable
      * in the descriptor at the specified byte offset.
      */
     public final int getU8 (int index)
-    {
-	return 0xff & data [offset + index];
-    }
+	{ return getU8 (data, offset + index); }
 
     /**
      * Returns a sixteen bit unsigned integer value, as encoded
      * in the descriptor at the specified byte offset.
      */
     public final int getU16 (int index)
-    {
-	int	retval;
-
-	index += offset;
-	retval = 0xff & data [index++];
-	retval |= 0xff00 & (data [index] << 8);
-	return retval;
-    }
+	{ return getU16 (data, offset + index); }
 
     /**
      * Returns a thirty-two bit integer value, as encoded
@@ -202,14 +196,29 @@ abstract public class Descriptor implements java.io.Serializable
      * Be careful with sign interpretation.
      */
     public final int getU32 (int index)
+	{ return getU32 (data, offset + index); }
+
+    // package private; also used by DescriptorCursor
+    static int getU8 (byte buf [], int index)
+	{ return 0xff & buf [index]; }
+
+    static int getU16 (byte buf [], int index)
     {
 	int	retval;
 
-	index += offset;
-	retval  =  0xff & data [index++];
-	retval |= (0xff & data [index++]) << 8;
-	retval |= (0xff & data [index++]) << 8;
-	retval |= (0xff & data [index  ]) << 8;
+	retval = 0xff & buf [index++];
+	retval |= 0xff00 & (buf [index] << 8);
+	return retval;
+    }
+
+    static int getU32 (byte buf [], int index)
+    {
+	int	retval;
+
+	retval  =  0xff & buf [index++];
+	retval |= (0xff & buf [index++]) << 8;
+	retval |= (0xff & buf [index++]) << 16;
+	retval |= (0xff & buf [index  ]) << 24;
 	return retval;
     }
 
@@ -244,6 +253,9 @@ abstract public class Descriptor implements java.io.Serializable
      * know that you have some other kind of descriptor, such as a
      * device-specific one.
      *
+     * <p> Each call allocates a descriptor object; walks over many
+     * descriptors should use a {@link DescriptorCursor} instead.
+     *
      * @return null when no more descriptors are available
      */
     public final Descriptor nextDescriptor ()
@@ -254,10 +266,13 @@ abstract public class Descriptor implements java.io.Serializable
 	    return null;
 	// NOTE:  intentionally not constructing any non-generic
 	// subtype here.  Not enough context information.
-	return new GenericDescriptor (this, next,
-	    getDevice ());
+	return generic (next);
     }
 
+    // package private:  a generic descriptor at an offset in this block
+    Descriptor generic (int off)
+	{ return new GenericDescriptor (this, off, getDevice ()); }
+
 
     private static final class GenericDescriptor extends Descriptor
     {
@@ -0,0 +1,213 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * Walks the descriptors in a block, such as a complete configuration
+ * descriptor, without creating an object for each one.  Position the
+ * cursor with {@link #reset}, then each call to {@link #next} moves to
+ * the following descriptor; its type, length, and fields are read in
+ * place.  {@link Interface} and {@link Endpoint} objects are only made
+ * when they're asked for, and are the configuration's own.
+ *
+ * <p> This is the allocation-free alternative to
+ * {@link Descriptor#nextDescriptor}.  One cursor may be reused for any
+ * number of walks, but only by one thread at a time.
+ *
+ * <pre>
+ *	DescriptorCursor	c = new DescriptorCursor ();
+ *
+ *	for (c.reset (intf); c.next (); ) {
+ *	    if (c.getDescriptorType () == Descriptor.TYPE_INTERFACE)
+ *		break;
+ *	    ... class-specific descriptor, maybe c.getU8 (2) ...
+ *	}
+ * </pre>
+ *
+ * @version $Id$
+ */
+final public class DescriptorCursor
+{
+    private Descriptor		block;
+    private Configuration	config;
+    private byte		data [];
+    private int			offset;
+
+    // the interface descriptor the cursor most recently passed
+    private int			number;
+    private int			alt;
+
+
+    /** Creates a cursor; {@link #reset} it before use. */
+    public DescriptorCursor () { }
+
+    /** Creates a cursor positioned at the specified descriptor. */
+    public DescriptorCursor (Descriptor d)
+	{ reset (d); }
+
+    /**
+     * Positions the cursor at the specified descriptor, so that
+     * {@link #next} moves to the one after it.  Returns the cursor.
+     */
+    public DescriptorCursor reset (Descriptor d)
+    {
+	block = d;
+	data = d.data;
+	offset = d.offset;
+	number = alt = -1;
+
+	if (d instanceof Configuration)
+	    config = (Configuration) d;
+	else if (d instanceof Interface)
+	    config = ((Interface) d).getConfiguration ();
+	else if (d instanceof Endpoint)
+	    config = ((Endpoint) d).getInterface ().getConfiguration ();
+	else
+	    config = null;
+
+	if (d instanceof Interface)
+	    track ();
+	else if (d instanceof Endpoint) {
+	    Interface	intf = ((Endpoint) d).getInterface ();
+
+	    number = intf.getNumber ();
+	    alt = intf.getAlternateSetting ();
+	}
+	return this;
+    }
+
+    private void track ()
+    {
+	if (offset + 4 <= data.length) {
+	    number = 0xff & data [offset + 2];
+	    alt = 0xff & data [offset + 3];
+	}
+    }
+
+    /**
+     * Moves to the next descriptor in the block; returns false (and
+     * stays put) at the end of the block, or if the next descriptor
+     * doesn't fit in it.
+     */
+    public boolean next ()
+    {
+	int	next;
+
+	if (data == null)
+	    throw new IllegalStateException ();
+	if (offset >= data.length || data [offset] == 0)
+	    return false;
+	next = offset + (0xff & data [offset]);
+	if (next + 2 > data.length
+		|| (0xff & data [next]) < 2
+		|| next + (0xff & data [next]) > data.length)
+	    return false;
+	offset = next;
+	if (data [offset + 1] == Descriptor.TYPE_INTERFACE)
+	    track ();
+	return true;
+    }
+
+    /** Returns the length of the current descriptor. */
+    public int getLength ()
+	{ return 0xff & data [offset]; }
+
+    /** Returns the type of the current descriptor. */
+    public int getDescriptorType ()
+	{ return 0xff & data [offset + 1]; }
+
+    /**
+     * Returns an eight bit unsigned integer value, as encoded in the
+     * current descriptor at the specified byte offset.
+     */
+    public int getU8 (int index)
+	{ return Descriptor.getU8 (data, offset + index); }
+
+    /**
+     * Returns a sixteen bit unsigned integer value, as encoded in the
+     * current descriptor at the specified byte offset.
+     */
+    public int getU16 (int index)
+	{ return Descriptor.getU16 (data, offset + index); }
+
+    /**
+     * Returns a thirty-two bit integer value, as encoded in the
+     * current descriptor at the specified byte offset.
+     * Be careful with sign interpretation.
+     */
+    public int getU32 (int index)
+	{ return Descriptor.getU32 (data, offset + index); }
+
+    /**
+     * If the cursor is at an interface descriptor in a configuration,
+     * returns that interface; else null.
+     */
+    public Interface getInterface ()
+    throws IOException
+    {
+	if (config == null || getDescriptorType () != Descriptor.TYPE_INTERFACE)
+	    return null;
+	return config.getInterface (number, alt);
+    }
+
+    /**
+     * If the cursor is at an endpoint descriptor following an interface
+     * descriptor in a configuration, returns that endpoint; else null.
+     */
+    public Endpoint getEndpoint ()
+    throws IOException
+    {
+	Interface	intf;
+
+	if (config == null || number < 0
+		|| getDescriptorType () != Descriptor.TYPE_ENDPOINT)
+	    return null;
+	if ((intf = config.getInterface (number, alt)) == null)
+	    return null;
+	return intf.findEndpoint (getU8 (2));
+    }
+
+    /**
+     * Returns a descriptor object for the current position.  Interfaces
+     * and endpoints are returned as with {@link #getInterface} and
+     * {@link #getEndpoint}; other descriptors get a new generic object,
+     * as from {@link Descriptor#nextDescriptor}.
+     */
+    public Descriptor getDescriptor ()
+    throws IOException
+    {
+	Descriptor	retval = null;
+
+	switch (getDescriptorType ()) {
+	    case Descriptor.TYPE_INTERFACE:
+		retval = getInterface ();
+		break;
+	    case Descriptor.TYPE_ENDPOINT:
+		retval = getEndpoint ();
+		break;
+	}
+	if (retval == null)
+	    retval = block.generic (offset);
+	return retval;
+    }
+}
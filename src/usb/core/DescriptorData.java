@@ -0,0 +1,127 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * Descriptor buffers, interned by content.  Identical devices (such as
+ * a rack of the same product) report byte-identical descriptors; their
+ * {@link DeviceDescriptor}s and {@link Configuration}s share one copy,
+ * and configurations share the offset tables parsed from it.  Nothing
+ * here is specific to one device:  claims, selected altsettings, and
+ * the {@link Interface} and {@link Endpoint} objects stay with each
+ * device's own descriptor objects.
+ *
+ * <p> Shared buffers are never modified.  Entries are only weakly held,
+ * so they're dropped once no descriptor uses them.
+ *
+ * @version $Id$
+ */
+final class DescriptorData
+{
+    /** The interned copy; don't modify it! */
+    final byte		data [];
+    private final int	hash;
+
+    // configuration offset tables, set once by Configuration
+    int			altBase [];
+    int			ifOffset [];
+    int			epFirst [];
+    int			epLimit [];
+    int			epOffset [];
+    byte		epIndex [];
+    int			epOwner [];
+    int			epLowest [];
+
+    // Integer hash --> Vector of Ref
+    private static final Hashtable	pool = new Hashtable (31);
+    private static final ReferenceQueue	stale = new ReferenceQueue ();
+
+    private static final class Ref extends WeakReference
+    {
+	final Integer	key;
+
+	Ref (DescriptorData d)
+	{
+	    super (d, stale);
+	    key = new Integer (d.hash);
+	}
+    }
+
+
+    private DescriptorData (byte buf [], int h)
+    {
+	data = buf;
+	hash = h;
+    }
+
+    /**
+     * Returns the shared entry with the same contents as this buffer,
+     * adding a copy of the buffer if there's none yet.
+     */
+    static DescriptorData intern (byte buf [])
+    {
+	int		h = Arrays.hashCode (buf);
+	Integer		key = new Integer (h);
+	DescriptorData	retval;
+
+	synchronized (pool) {
+	    Vector	bucket;
+
+	    purge ();
+	    if ((bucket = (Vector) pool.get (key)) == null) {
+		bucket = new Vector (1);
+		pool.put (key, bucket);
+	    }
+	    for (int i = 0; i < bucket.size (); i++) {
+		retval = (DescriptorData) ((Ref) bucket.elementAt (i)).get ();
+		if (retval != null && Arrays.equals (retval.data, buf))
+		    return retval;
+	    }
+
+	    // copy, since the caller may reuse its buffer
+	    retval = new DescriptorData ((byte []) buf.clone (), h);
+	    bucket.addElement (new Ref (retval));
+	    return retval;
+	}
+    }
+
+    // call with pool locked:  forgets entries nobody uses
+    private static void purge ()
+    {
+	Ref	ref;
+
+	while ((ref = (Ref) stale.poll ()) != null) {
+	    Vector	bucket = (Vector) pool.get (ref.key);
+
+	    if (bucket == null)
+		continue;
+	    bucket.removeElement (ref);
+	    if (bucket.isEmpty ())
+		pool.remove (ref.key);
+	}
+    }
+}
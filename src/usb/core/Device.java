@@ -21,6 +21,7 @@ package usb.core;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -142,7 +143,9 @@ abstract public class Device implements java.io.Serializable
 
     /**
      * Returns the speed of the connection the device is using. 
-     * The return value is either "high", "full", or  "low"; or else null.
+     * The return value is either "super-plus", "super", "high",
+     * "full", or "low"; or else null.  These are string constants,
+     * which may be compared with "==".
      * Null is used for root hubs, or indicates some error prevented
      * determining the speed being used for the device's hub port.
      */
@@ -221,4 +224,120 @@ abstract public class Device implements java.io.Serializable
 	    spi.writeControl (msg.getRequestType (), msg.getRequest (),
 		    msg.getValue (), msg.getIndex (), msg.getBuffer ());
     }
+
+    /**
+     * Queues a control message to the device without waiting for it
+     * to complete.  Requests queued this way are issued in order, so
+     * a sequence of them (such as a firmware download) needn't wait
+     * for each round trip before starting the next.  When the device
+     * implementation doesn't support {@link ControlSPI}, the request
+     * is sent before this returns.
+     *
+     * @return the queued request, a future for the message; use
+     *	{@link PendingControl#await} to collect its result, or chain
+     *	work onto it
+     * @exception USBException if the request couldn't be queued
+     */
+    public PendingControl submitControl (ControlMessage msg)
+    throws IOException
+    {
+	PendingControl	req = new PendingControl (msg);
+
+	if (spi instanceof ControlSPI)
+	    ((ControlSPI) spi).submitControl (req);
+	else {
+	    byte	data [] = req.getData ();
+	    int		length = data.length;
+
+	    try {
+		control (msg);
+		if (req.isInput ()) {
+		    length = Math.min (length, msg.getBuffer ().length);
+		    System.arraycopy (msg.getBuffer (), 0, data, 0, length);
+		}
+		req.complete (length);
+	    } catch (IOException e) {
+		req.fail (e);
+	    }
+	}
+	return req;
+    }
+
+    /**
+     * Returns a direct buffer suited to this device's transfers.
+     * Implementations supporting {@link BufferSPI} may return memory
+     * the device's host controller can use for DMA, so that data
+     * isn't even copied inside the operating system; others return
+     * an ordinary direct buffer.  Use {@link #freeBuffer} when it's
+     * no longer needed.
+     *
+     * @param size how many bytes the buffer holds
+     */
+    public ByteBuffer allocateBuffer (int size)
+    throws IOException
+    {
+	if (size < 0)
+	    throw new IllegalArgumentException ();
+	if (spi instanceof BufferSPI)
+	    return ((BufferSPI) spi).allocate (size);
+	return ByteBuffer.allocateDirect (size);
+    }
+
+    /**
+     * Releases a buffer returned by {@link #allocateBuffer}.  The
+     * buffer (and any views of it) must not be used afterwards.
+     * The buffer itself is left empty, with a zero limit, so that
+     * using it throws an exception; but with some implementations,
+     * using a view of it could crash the JVM.
+     */
+    public void freeBuffer (ByteBuffer buf)
+    {
+	if (spi instanceof BufferSPI)
+	    ((BufferSPI) spi).free (buf);
+    }
+
+    /**
+     * Sends a control message to the device, with any data stage
+     * using the buffer's remaining bytes rather than the message's
+     * own buffer and length.  The buffer's position is advanced past
+     * the data that was read or written.  Implementations supporting
+     * {@link BufferSPI} use the buffer in place, avoiding copies.
+     *
+     * @return the length of the data stage
+     * @exception USBException if exchanging a control message
+     *	with an interface or endpoint some other driver has claimed
+     */
+    public int control (ControlMessage msg, ByteBuffer buf)
+    throws IOException
+    {
+	boolean	in;
+
+	in = (msg.getRequestType () & msg.DIR_TO_HOST) == msg.DIR_TO_HOST;
+	if (spi instanceof BufferSPI) {
+	    BufferSPI	bspi = (BufferSPI) spi;
+
+	    if (in)
+		return bspi.readControl (msg.getRequestType (),
+			msg.getRequest (), msg.getValue (), msg.getIndex (),
+			buf);
+	    return bspi.writeControl (msg.getRequestType (),
+		    msg.getRequest (), msg.getValue (), msg.getIndex (),
+		    buf);
+	}
+
+	byte	data [];
+
+	if (in) {
+	    data = spi.readControl (msg.getRequestType (),
+		    msg.getRequest (), msg.getValue (), msg.getIndex (),
+		    (short) buf.remaining ());
+	    buf.put (data);
+	} else {
+	    data = new byte [buf.remaining ()];
+	    buf.get (data);
+	    spi.writeControl (msg.getRequestType (), msg.getRequest (),
+		    msg.getValue (), msg.getIndex (), data);
+	}
+	return data.length;
+    }
 }
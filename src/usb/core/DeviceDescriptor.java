@@ -39,18 +39,29 @@ final public class DeviceDescriptor extends Descriptor
     /** Device with which this descriptor is associated */
     private Device	dev;
 
+    // keeps the interned buffer shared
+    private transient DescriptorData	shared;
+
 
     public DeviceDescriptor clone (Device d)
     {
 	return new DeviceDescriptor (d, data);
     }
 
+    /**
+     * Wraps a device descriptor.  Identical descriptors share one
+     * (interned) copy, so callers may reuse the buffer.
+     */
     public DeviceDescriptor (Device d, byte buf [])
+	{ this (d, DescriptorData.intern (buf)); }
+
+    private DeviceDescriptor (Device d, DescriptorData shared)
     {
-	super (buf);
+	super (shared.data);
 	if (getDescriptorType () != TYPE_DEVICE)
 	    throw new IllegalArgumentException ();
 	dev = d;
+	this.shared = shared;
     }
 
 
@@ -22,17 +22,34 @@ package usb.core;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.Hashtable;
 
 
 /**
  * Provides access to a USB endpoint descriptor, structuring device
  * data input or output in a given device configuration.
- * Only one thread at a time may use an endpoint for I/O.
  *
- * <p> Bulk endpoints look like standard byte I/O streams.
- * Interrupt endpoints send and receive short buffers directly; at this
- * writing there is no asynchronous notification framework.
- * ISO endpoints are not currently supported here.
+ * <p> Transfers on different endpoints of a device may run at the
+ * same time, from different threads.  Device implementations may
+ * let several threads share one endpoint, running their transfers
+ * one after another in the order they were made (the Linux one
+ * does); otherwise only one thread at a time may use an endpoint
+ * for I/O.  Streams, channels, and subscriptions each own their
+ * endpoint while they're open.
+ *
+ * <p> Bulk endpoints look like standard byte I/O streams; they can
+ * also be used through channels, and transfers can gather from (or
+ * scatter to) several buffers.  Input channels keep reads queued,
+ * for {@link #getInputChannel streaming}.
+ * Interrupt endpoints send and receive short buffers directly, or
+ * input endpoints may be {@link #subscribe subscribed} so that
+ * reports are collected without tying up a thread.
+ * ISO endpoints use {@link IsoStream}s, where the device
+ * implementation supports them.
  * ({@link ControlMessage}s are effectively device methods.)
  *
  * <p> Most fields of this descriptor are specified in section 9.6.4 of
@@ -47,6 +64,9 @@ final public class Endpoint extends Descriptor
 
     private transient DeviceSPI	spi;
 
+    // ReportBuffer --> Poller, for SPIs without InterruptSPI
+    private transient Hashtable	pollers;
+
     // package private
     Endpoint (Interface intf, byte buf [])
     {
@@ -118,15 +138,15 @@ final public class Endpoint extends Descriptor
 
 	// "high bandwidth" mode may use multiple packets per microframe
 	if (highspeed && (type == "iso" || type == "interrupt"))
-		size *= 1 + (field >> 11) & 0x03;
+		size *= 1 + ((field >> 11) & 0x03);
 	return size;
     }
     
     /**
      * Returns interrupt polling interval (in <em>micro</em>seconds).
      * Polling intervals are typically measurable in milliseconds,
-     * except that high speed periodic transactions may be polled
-     * in intervals smaller than a frame.
+     * except that high speed (and SuperSpeed) periodic transactions
+     * may be polled in intervals smaller than a frame.
      *
      * <p> For high speed bulk or contrul OUT endpoints, this value
      * exposes the maximum NAK rate of the endpoint.
@@ -135,7 +155,9 @@ final public class Endpoint extends Descriptor
     {
     	int	interval = getU8 (6);
 	String	type = getType ();
-	boolean	highspeed = iface.getDevice ().getSpeed () == "high";
+	String	speed = iface.getDevice ().getSpeed ();
+	boolean	highspeed = speed == "high"
+		    || speed == "super" || speed == "super-plus";
 
 	if (type == "iso" || highspeed) {
 		if ((type == "bulk" || type == "control") && interval == 0)
@@ -256,18 +278,401 @@ final public class Endpoint extends Descriptor
 	}
     }
 
+    /**
+     * Returns a channel that reads from this bulk input endpoint,
+     * for applications that stream data.  When the device
+     * implementation supports {@link ChannelSPI}, several reads stay
+     * queued all the time, each into its own buffer, so the device
+     * can keep sending while the application handles earlier data.
+     * Otherwise each channel read is one bulk read.
+     *
+     * @param size bytes per queued read; a multiple of the
+     *	{@link #getMaxPacketSize maximum packet size}
+     * @param count how many reads to keep queued (at least two)
+     */
+    public ScatteringByteChannel getInputChannel (int size, int count)
+    throws IOException
+    {
+	if ("bulk" != getType () || !isInput ())
+	    throw new IllegalArgumentException ();
+	if (size <= 0 || (size % getMaxPacketSize ()) != 0 || count < 2)
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof ChannelSPI)
+	    return ((ChannelSPI) spi).openBulkInput (getEndpoint (),
+		    size, count);
+	return new BulkChannel (this);
+    }
+
+    /**
+     * Returns a channel that writes to this bulk output endpoint.
+     * Each write is one transfer; a gathering write sends all its
+     * buffers' data as a single transfer.
+     */
+    public GatheringByteChannel getOutputChannel ()
+    {
+	if ("bulk" != getType () || isInput ())
+	    throw new IllegalArgumentException ();
+	return new BulkChannel (this);
+    }
+
+    // local-only: each call is one transfer
+    private static final class BulkChannel
+	implements ScatteringByteChannel, GatheringByteChannel
+    {
+	private Endpoint	ep;
+
+	BulkChannel (Endpoint e)
+	    { ep = e; }
+
+	private Endpoint check ()
+	throws IOException
+	{
+	    Endpoint	e = ep;
+
+	    if (e == null)
+		throw new ClosedChannelException ();
+	    return e;
+	}
+
+	public int read (ByteBuffer buf)
+	throws IOException
+	    { return check ().read (buf); }
+
+	public long read (ByteBuffer bufs [])
+	throws IOException
+	    { return check ().read (bufs, 0, bufs.length); }
+
+	public long read (ByteBuffer bufs [], int offset, int length)
+	throws IOException
+	    { return check ().read (bufs, offset, length); }
+
+	public int write (ByteBuffer buf)
+	throws IOException
+	    { return check ().write (buf); }
+
+	public long write (ByteBuffer bufs [])
+	throws IOException
+	    { return check ().write (bufs, 0, bufs.length); }
+
+	public long write (ByteBuffer bufs [], int offset, int length)
+	throws IOException
+	    { return check ().write (bufs, offset, length); }
+
+	public boolean isOpen ()
+	    { return ep != null; }
+
+	public void close ()
+	    { ep = null; }
+    }
+
+    /**
+     * Reads from this bulk or interrupt input endpoint into the
+     * buffer's remaining space, advancing its position past the data.
+     * When the device implementation supports {@link BufferSPI},
+     * data moves in place; direct buffers avoid all copying and
+     * per-transfer allocation, so they're preferred for streaming.
+     *
+     * @return the number of bytes actually read
+     */
+    public int read (ByteBuffer buf)
+    throws IOException
+    {
+	String	type = getType ();
+
+	if (("bulk" != type && "interrupt" != type) || !isInput ())
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof BufferSPI) {
+	    BufferSPI	bspi = (BufferSPI) spi;
+
+	    if ("bulk" == type)
+		return bspi.readBulk (getEndpoint (), buf);
+	    return bspi.readIntr (getEndpoint (), buf);
+	}
+
+	// extra copy forced by RMI
+	byte	temp [];
+
+	if ("bulk" == type)
+	    temp = spi.readBulk (getEndpoint (), buf.remaining ());
+	else
+	    temp = spi.readIntr (getEndpoint (), buf.remaining ());
+	buf.put (temp);
+	return temp.length;
+    }
+
+    /**
+     * Writes the buffer's remaining data to this bulk or interrupt
+     * output endpoint, advancing its position past that data.
+     * Direct buffers are preferred, as for {@link #read(ByteBuffer)}.
+     *
+     * @return the number of bytes actually written
+     */
+    public int write (ByteBuffer buf)
+    throws IOException
+    {
+	String	type = getType ();
+
+	if (("bulk" != type && "interrupt" != type) || isInput ())
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof BufferSPI) {
+	    BufferSPI	bspi = (BufferSPI) spi;
+
+	    if ("bulk" == type)
+		return bspi.writeBulk (getEndpoint (), buf);
+	    return bspi.writeIntr (getEndpoint (), buf);
+	}
+
+	// extra copy forced by RMI
+	byte	temp [] = new byte [buf.remaining ()];
+
+	buf.get (temp);
+	if ("bulk" == type)
+	    spi.writeBulk (getEndpoint (), temp);
+	else
+	    spi.writeIntr (getEndpoint (), temp);
+	return temp.length;
+    }
+
+    /**
+     * Queues a read from this bulk or interrupt input endpoint into
+     * the buffer's remaining space, returning without waiting for it.
+     * Reads queued to an endpoint are done in order.  When the device
+     * implementation supports {@link TransferSPI}, no thread waits
+     * while the read runs; otherwise, it's done before this returns.
+     *
+     * @return the queued read, a future for how many bytes it moved
+     */
+    public PendingTransfer submitRead (ByteBuffer buf)
+    throws IOException
+    {
+	if (!isInput ())
+	    throw new IllegalArgumentException ();
+	return submit (new PendingTransfer (buf));
+    }
+
+    /**
+     * Queues a write of the buffer's remaining data to this bulk or
+     * interrupt output endpoint, returning without waiting for it.
+     * Otherwise, it's like {@link #submitRead}.
+     *
+     * @return the queued write, a future for how many bytes it moved
+     */
+    public PendingTransfer submitWrite (ByteBuffer buf)
+    throws IOException
+    {
+	if (isInput ())
+	    throw new IllegalArgumentException ();
+	return submit (new PendingTransfer (buf));
+    }
+
+    private PendingTransfer submit (PendingTransfer req)
+    throws IOException
+    {
+	String	type = getType ();
+
+	if ("bulk" != type && "interrupt" != type)
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof TransferSPI) {
+	    TransferSPI	tspi = (TransferSPI) spi;
+
+	    if ("bulk" == type)
+		tspi.submitBulk (getEndpoint (), req);
+	    else
+		tspi.submitIntr (getEndpoint (), req);
+	    return req;
+	}
+
+	// done synchronously; the request advances the position
+	ByteBuffer	temp = req.getBuffer ().duplicate ();
+
+	try {
+	    if (isInput ())
+		req.complete (read (temp));
+	    else
+		req.complete (write (temp));
+	} catch (IOException e) {
+	    req.fail (e);
+	}
+	return req;
+    }
+
+    /**
+     * Reads from this bulk input endpoint into a sequence of buffers,
+     * filling each one in turn, as a single transfer.  Positions
+     * advance past the data read.  When the device implementation
+     * supports {@link BufferSPI}, nothing is assembled on the heap.
+     *
+     * @param bufs the buffers
+     * @param offset the first buffer to use
+     * @param length how many buffers to use
+     * @return the number of bytes actually read
+     */
+    public long read (ByteBuffer bufs [], int offset, int length)
+    throws IOException
+    {
+	if ("bulk" != getType () || !isInput ())
+	    throw new IllegalArgumentException ();
+	if (offset < 0 || length < 0 || offset + length > bufs.length)
+	    throw new IndexOutOfBoundsException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof BufferSPI)
+	    return ((BufferSPI) spi).readBulk (getEndpoint (),
+		    bufs, offset, length);
+
+	// extra copy forced by RMI
+	byte	temp [];
+	int	total = 0, off = 0;
+
+	for (int i = offset; i < offset + length; i++)
+	    total += bufs [i].remaining ();
+	temp = spi.readBulk (getEndpoint (), total);
+	for (int i = offset; i < offset + length && off < temp.length; i++) {
+	    int		n = Math.min (bufs [i].remaining (), temp.length - off);
+
+	    bufs [i].put (temp, off, n);
+	    off += n;
+	}
+	return temp.length;
+    }
+
+    /**
+     * Writes the data in a sequence of buffers to this bulk output
+     * endpoint as a single transfer, so (unlike separate writes)
+     * packets only end short at the end of the data.  Positions
+     * advance past the data written.  When the device implementation
+     * supports {@link BufferSPI}, nothing is assembled on the heap.
+     *
+     * @param bufs the buffers
+     * @param offset the first buffer to use
+     * @param length how many buffers to use
+     * @return the number of bytes actually written
+     */
+    public long write (ByteBuffer bufs [], int offset, int length)
+    throws IOException
+    {
+	if ("bulk" != getType () || isInput ())
+	    throw new IllegalArgumentException ();
+	if (offset < 0 || length < 0 || offset + length > bufs.length)
+	    throw new IndexOutOfBoundsException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof BufferSPI)
+	    return ((BufferSPI) spi).writeBulk (getEndpoint (),
+		    bufs, offset, length);
+
+	// extra copy forced by RMI
+	byte	temp [];
+	int	total = 0, off = 0;
+
+	for (int i = offset; i < offset + length; i++)
+	    total += bufs [i].remaining ();
+	temp = new byte [total];
+	for (int i = offset; i < offset + length; i++) {
+	    int		n = bufs [i].remaining ();
+
+	    bufs [i].get (temp, off, n);
+	    off += n;
+	}
+	spi.writeBulk (getEndpoint (), temp);
+	return total;
+    }
+
+    /**
+     * Returns how many streams this bulk endpoint supports, as its
+     * SuperSpeed endpoint companion descriptor says; else zero, as
+     * for endpoints without streams and all endpoints on slower
+     * devices.
+     *
+     * @see Interface#allocStreams
+     */
+    public int getMaxStreams ()
+    {
+	int	next, n;
+
+	if ("bulk" != getType ())
+	    return 0;
+	next = nextDescriptorOffset (offset);
+	if (next < 0 || next + 3 >= data.length
+		|| descriptorType (next) != TYPE_SS_ENDPOINT_COMPANION)
+	    return 0;
+	n = 0x1f & data [next + 3];
+	return (n == 0) ? 0 : (1 << n);
+    }
+
+    /**
+     * Reads from one stream of this bulk input endpoint into the
+     * buffer's remaining space, advancing its position past the data.
+     * Reads (and writes) on different streams may be in progress at
+     * the same time, from different threads.
+     *
+     * @param stream a stream ID, from one up to the count returned by
+     *	{@link Interface#allocStreams}
+     * @return the number of bytes actually read
+     * @exception UnsupportedOperationException if the device
+     *	implementation can't support streams
+     */
+    public int read (int stream, ByteBuffer buf)
+    throws IOException
+    {
+	if ("bulk" != getType () || !isInput () || stream < 1)
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+	if (!(spi instanceof StreamSPI))
+	    throw new UnsupportedOperationException ("no stream support");
+	return ((StreamSPI) spi).readStream (getEndpoint (), stream, buf);
+    }
+
+    /**
+     * Writes the buffer's remaining data to one stream of this bulk
+     * output endpoint, advancing its position past that data.
+     *
+     * @param stream a stream ID, from one up to the count returned by
+     *	{@link Interface#allocStreams}
+     * @return the number of bytes actually written
+     * @exception UnsupportedOperationException if the device
+     *	implementation can't support streams
+     */
+    public int write (int stream, ByteBuffer buf)
+    throws IOException
+    {
+	if ("bulk" != getType () || isInput () || stream < 1)
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+	if (!(spi instanceof StreamSPI))
+	    throw new UnsupportedOperationException ("no stream support");
+	return ((StreamSPI) spi).writeStream (getEndpoint (), stream, buf);
+    }
+
     /**
      * Blocks until an interrupt message is sent from device to host, and
-     * then returns that message.  You must allocate a thread to poll
-     * for such interrupts every {@link Endpoint#getInterval} milliseconds.
+     * then returns that message.  The host polls the device every
+     * {@link Endpoint#getInterval} microseconds while this waits.
      * Examples of such messages include mouse,
      * keyboard, and joystick events.  (Hub events too, but the kernel
      * driver will always claim those.)
      *
-     * <p> <em>Note:  not yet known to work on Linux; this starts with
-     * the implementation model that's supposed to work. </em>
+     * <p> To watch an endpoint continuously, {@link #subscribe} is
+     * preferable:  reports aren't missed between calls, and no
+     * thread needs to block here.
      *
-     * @return the number of bytes actually read, or negative errno
+     * @return the message
      */
     public byte [] recvInterrupt ()
     throws IOException
@@ -276,10 +681,119 @@ final public class Endpoint extends Descriptor
 	    throw new IllegalArgumentException ();
 	if (spi == null)
 	    spi = iface.getDevice ().getSPI ();
-	// FIXME getInterval() ms timeout (caller guarantees periodicity)
 	return spi.readIntr (getU8 (2), getMaxPacketSize ());
     }
 
+    /**
+     * Starts collecting reports from this interrupt input endpoint into
+     * the buffer.  Requests stay queued for this endpoint, so the host
+     * polls it every {@link #getInterval} microseconds; each report is
+     * copied into the buffer's next slot, and time stamped.
+     * Reports go to the buffer's listener, if it has one; else
+     * they wait there to be read.
+     *
+     * <p> This continues until {@link #unsubscribe} is called, or
+     * some error (such as device removal) closes the buffer.
+     * Buffers can't be reused after they're closed.
+     *
+     * @see ReportBuffer
+     */
+    public void subscribe (ReportBuffer buf)
+    throws IOException
+    {
+	if ("interrupt" != getType () || !isInput ())
+	    throw new IllegalArgumentException ();
+	if (buf.isClosed ())
+	    throw new IllegalStateException ("closed");
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+
+	if (spi instanceof InterruptSPI) {
+	    ((InterruptSPI) spi).subscribe (getEndpoint (), buf);
+	    return;
+	}
+
+	// otherwise, dedicate a thread to this endpoint
+	Poller	poller = new Poller (spi, getEndpoint (), buf);
+
+	synchronized (this) {
+	    if (pollers == null)
+		pollers = new Hashtable (5);
+	    if (pollers.get (buf) != null)
+		throw new IllegalStateException ("already subscribed");
+	    pollers.put (buf, poller);
+	}
+	poller.start ();
+    }
+
+    /**
+     * Stops collecting reports into the buffer, and closes it.
+     * Reports already collected can still be read.
+     */
+    public void unsubscribe (ReportBuffer buf)
+    throws IOException
+    {
+	Poller	poller = null;
+
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+	if (spi instanceof InterruptSPI) {
+	    ((InterruptSPI) spi).unsubscribe (getEndpoint (), buf);
+	    return;
+	}
+
+	synchronized (this) {
+	    if (pollers != null)
+		poller = (Poller) pollers.remove (buf);
+	}
+	if (poller != null)
+	    poller.stopPolling ();
+	buf.close (null);
+    }
+
+    // local-only: reads one report at a time, for SPIs that
+    // can't keep interrupt requests queued by themselves
+    private static final class Poller extends Thread
+    {
+	private final DeviceSPI		spi;
+	private final int		ep;
+	private final ReportBuffer	buf;
+	private volatile boolean	running = true;
+
+	Poller (DeviceSPI spi, int ep, ReportBuffer buf)
+	{
+	    super ("interrupt poller, ep 0x" + Integer.toHexString (ep));
+	    this.spi = spi;
+	    this.ep = ep;
+	    this.buf = buf;
+	    setDaemon (true);
+	}
+
+	void stopPolling ()
+	    { running = false; interrupt (); }
+
+	public void run ()
+	{
+	    try {
+		while (running) {
+		    byte	report [];
+		    int		off;
+
+		    report = spi.readIntr (ep, buf.getReportSize ());
+		    if (!running)
+			break;
+		    off = buf.reserve ();
+		    System.arraycopy (report, 0, buf.getData (), off,
+			    report.length);
+		    buf.commit (report.length, System.currentTimeMillis ());
+		}
+	    } catch (IOException e) {
+		if (running)
+		    buf.close (e);
+	    }
+	}
+    }
+
     /**
      * Sends interrupt message from host to device.  The data, with a
      * {@link Endpoint#getMaxPacketSize maximum size},
@@ -300,6 +814,67 @@ final public class Endpoint extends Descriptor
 	spi.writeIntr (getU8 (2), buf);
     }
 
+    /**
+     * Issues a SYNCH_FRAME request to this isochronous endpoint,
+     * returning the frame number where its repeating pattern of
+     * packet sizes starts.  Only endpoints using implicit pattern
+     * synchronization support this; others will stall.
+     */
+    public int synchFrame ()
+    throws IOException
+    {
+	ControlMessage	msg = new ControlMessage ();
+	byte		buf [];
+
+	if ("iso" != getType ())
+	    throw new IllegalArgumentException ();
+	msg.setRequestType ((byte)(ControlMessage.DIR_TO_HOST
+		| ControlMessage.TYPE_STANDARD
+		| ControlMessage.RECIPIENT_ENDPOINT));
+	msg.setRequest (ControlMessage.SYNCH_FRAME);
+	msg.setValue ((short) 0);
+	msg.setIndex ((short) getEndpoint ());
+	msg.setLength (2);
+	getDevice ().control (msg);
+	buf = msg.getBuffer ();
+	if (buf == null || buf.length != 2)
+	    throw new IOException ("short SYNCH_FRAME response");
+	return (0xff & buf [0]) | ((0xff & buf [1]) << 8);
+    }
+
+    /**
+     * Opens an isochronous stream using this endpoint, moving batches
+     * of full-sized packets.  Larger batches mean fewer completions to
+     * handle; more queued batches tolerate more scheduling latency.
+     *
+     * @param packets how many packets go in each batch (at least one;
+     *	with one packet per frame, 8 to 64 is typical)
+     * @param queued how many batches to keep queued (at least two)
+     * @param period zero to start as soon as possible; else how many
+     *	frames the endpoint's repeating pattern of packet sizes lasts
+     *	(its class defines that), and the stream starts at a frame
+     *	where that pattern begins, as found by {@link #synchFrame}
+     * @exception UnsupportedOperationException if the device
+     *	implementation can't support isochronous transfers
+     */
+    public IsoStream openIsochronous (int packets, int queued, int period)
+    throws IOException
+    {
+	int	startFrame = 0;
+
+	if ("iso" != getType () || packets < 1 || queued < 2 || period < 0)
+	    throw new IllegalArgumentException ();
+	if (spi == null)
+	    spi = getDevice ().getSPI ();
+	if (!(spi instanceof IsochronousSPI))
+	    throw new UnsupportedOperationException ("no iso support");
+
+	if (period > 0)
+	    startFrame = synchFrame ();
+	return ((IsochronousSPI) spi).openIsochronous (getEndpoint (),
+		getMaxPacketSize (), packets, queued, startFrame, period);
+    }
+
     /**
      * Clears a halt status (stall) on the bulk endpoint.
      */
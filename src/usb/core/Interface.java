@@ -50,11 +50,15 @@ final public class Interface extends Descriptor
     private Endpoint		endpoints [];
     private boolean		claimed;
 
+    /** @serial In the configuration's offset table; else -1 */
+    private int			slot = -1;
+
     // package private
-    Interface (Configuration conf, int offset)
+    Interface (Configuration conf, int offset, int slot)
     {
 	super (conf, offset);
 	config = conf;
+	this.slot = slot;
 	if (getDescriptorType () != TYPE_INTERFACE)
 	    throw new IllegalArgumentException ();
 	endpoints = new Endpoint [getU8 (4)];
@@ -150,7 +154,9 @@ final public class Interface extends Descriptor
 		int	offset = getOffset ();
 		int	count = index;
 
-		do {
+		if (slot >= 0)
+		    offset = config.endpointOffset (slot, index);
+		else do {
 		    offset = nextDescriptorOffset (offset);
 		    if (descriptorType (offset) == TYPE_ENDPOINT)
 			count--;
@@ -168,6 +174,30 @@ final public class Interface extends Descriptor
     }
 
 
+    /**
+     * Returns the descriptor for the endpoint in this interface with
+     * the specified address (including the direction bit), or null.
+     */
+    public Endpoint findEndpoint (int address)
+    throws IOException
+    {
+	if (slot >= 0) {
+	    int	index = config.endpointIndex (slot, address);
+
+	    if (index < 0 || index >= endpoints.length)
+		return null;
+	    return getEndpoint (index);
+	}
+	for (int i = 0; i < endpoints.length; i++) {
+	    Endpoint	ep = getEndpoint (i);
+
+	    if (ep.getEndpoint () == (0xff & address))
+		return ep;
+	}
+	return null;
+    }
+
+
     /**
      * Claims this interface if it is not claimed by some other module,
      * and assigns the appropriate alternate setting.
@@ -209,6 +239,62 @@ final public class Interface extends Descriptor
     }
 
 
+    /**
+     * Allocates USB 3 bulk streams on some of this interface's bulk
+     * endpoints, which then all use the same stream IDs.  Usually an
+     * IN and an OUT endpoint are given streams together.  Streams are
+     * freed when the interface is released, or by {@link #freeStreams}.
+     *
+     * @param count how many streams are wanted, at least two
+     * @param eps bulk endpoints of this interface, each supporting
+     *	streams (see {@link Endpoint#getMaxStreams})
+     * @return how many streams were allocated, maybe fewer than
+     *	requested; stream IDs go from one up to that number
+     * @exception UnsupportedOperationException if the device
+     *	implementation can't support streams
+     */
+    public int allocStreams (int count, Endpoint eps [])
+    throws IOException
+    {
+	DeviceSPI	spi = getDevice ().getSPI ();
+
+	if (count < 2)
+	    throw new IllegalArgumentException ();
+	if (!(spi instanceof StreamSPI))
+	    throw new UnsupportedOperationException ("no stream support");
+	return ((StreamSPI) spi).allocStreams (count, streamEndpoints (eps));
+    }
+
+    /**
+     * Frees the streams allocated on these endpoints; they must be
+     * the same ones passed to {@link #allocStreams}.
+     */
+    public void freeStreams (Endpoint eps [])
+    throws IOException
+    {
+	DeviceSPI	spi = getDevice ().getSPI ();
+
+	if (!(spi instanceof StreamSPI))
+	    throw new UnsupportedOperationException ("no stream support");
+	((StreamSPI) spi).freeStreams (streamEndpoints (eps));
+    }
+
+    private int [] streamEndpoints (Endpoint eps [])
+    {
+	int	retval [] = new int [eps.length];
+
+	if (eps.length == 0)
+	    throw new IllegalArgumentException ();
+	for (int i = 0; i < eps.length; i++) {
+	    if (eps [i].getInterface () != this
+		    || eps [i].getMaxStreams () == 0)
+		throw new IllegalArgumentException ();
+	    retval [i] = eps [i].getEndpoint ();
+	}
+	return retval;
+    }
+
+
     /**
      * Returns a string identifying the driver which has claimed this
      * interface, or null.  At this writing, this claim may be silently
@@ -249,5 +335,6 @@ final public class Interface extends Descriptor
     private void setAlternate () throws IOException
     {
 	getDevice().getSPI ().setInterface (getNumber (), getAlternateSetting ());
+	config.setSelected (getNumber (), getAlternateSetting ());
     }
 }
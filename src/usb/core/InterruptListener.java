@@ -0,0 +1,57 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+
+/**
+ * Receives reports from an interrupt endpoint, as they arrive.
+ * Register one with {@link ReportBuffer#setListener}.
+ *
+ * <p> These calls are made by threads belonging to the USB
+ * implementation, which may be handling many endpoints; so
+ * don't block, and don't take long.
+ *
+ * @version $Id$
+ */
+public interface InterruptListener extends EventListener
+{
+    /**
+     * Called with each report.  The data is only valid until this
+     * returns; copy any that needs to be saved.
+     *
+     * @param source where the report was buffered
+     * @param data holds the report
+     * @param off where the report starts in the data
+     * @param len how long the report is
+     * @param when completion time, as from System.currentTimeMillis()
+     */
+    public void report (ReportBuffer source, byte data [], int off, int len,
+	    long when);
+
+    /**
+     * Called when no more reports will arrive, for example because
+     * the device was unplugged or the endpoint halted.
+     * The reason is null after {@link Endpoint#unsubscribe}.
+     */
+    public void closed (ReportBuffer source, IOException reason);
+}
@@ -0,0 +1,53 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they can keep interrupt requests queued without tying up a thread
+ * for each endpoint.  Without it, {@link Endpoint#subscribe} uses
+ * a thread that calls {@link DeviceSPI#readIntr} repeatedly.
+ */
+public interface InterruptSPI
+{
+    /**
+     * Starts collecting reports from an INTERRUPT IN endpoint into
+     * the buffer, until it's unsubscribed or an error ends it.
+     * Reports are received into {@link ReportBuffer#reserve reserved}
+     * slots, then {@link ReportBuffer#commit committed}.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param buf Receives the reports.
+     */
+    public void subscribe (int ep, ReportBuffer buf)
+    throws IOException;
+
+    /**
+     * Stops collecting reports into the buffer, which is then
+     * {@link ReportBuffer#close closed}.
+     */
+    public void unsubscribe (int ep, ReportBuffer buf)
+    throws IOException;
+}
@@ -0,0 +1,143 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+
+/**
+ * Holds one batch of isochronous packets, as moved by an {@link
+ * IsoStream}.  Packets are laid out back to back in one data array:
+ * packet <em>i</em> starts at the sum of the lengths of the packets
+ * before it, whether or not they were full.  Each packet has its
+ * own completion status and actual length, since with isochronous
+ * transfers some packets may be lost while others get through.
+ *
+ * <p> Buffers are reused; allocate a few and pass them back and forth.
+ *
+ * @version $Id$
+ */
+public final class IsoBuffer
+{
+    private final byte	data [];
+    private final int	length [];
+    private final int	actual [];
+    private final int	status [];
+    private int		startFrame = -1;
+    private int		errorCount;
+
+    /**
+     * Creates a buffer for a batch of equally sized packets;
+     * the usual size is the endpoint's maximum packet size.
+     */
+    public IsoBuffer (int packets, int packetSize)
+    {
+	if (packets <= 0 || packetSize < 0)
+	    throw new IllegalArgumentException ();
+	data = new byte [packets * packetSize];
+	length = new int [packets];
+	actual = new int [packets];
+	status = new int [packets];
+	for (int i = 0; i < packets; i++)
+	    length [i] = packetSize;
+    }
+
+    /** Returns the number of packets in this batch. */
+    public int getPacketCount ()
+	{ return length.length; }
+
+    /** Returns the data for all the packets, back to back. */
+    public byte [] getData ()
+	{ return data; }
+
+    /** Returns where the specified packet starts in the data. */
+    public int getOffset (int packet)
+    {
+	int	offset = 0;
+
+	for (int i = 0; i < packet; i++)
+	    offset += length [i];
+	return offset;
+    }
+
+    /**
+     * Returns the requested length of the specified packet:
+     * how much to send, or room for what's received.
+     */
+    public int getPacketLength (int packet)
+	{ return length [packet]; }
+
+    /**
+     * Changes the requested length of a packet, for example so that
+     * an OUT stream can match a sample rate.  This moves the offsets
+     * of all later packets; the total can't exceed the data array.
+     */
+    public void setPacketLength (int packet, int len)
+    {
+	if (len < 0 || (getOffset (length.length) - length [packet] + len)
+		> data.length)
+	    throw new IllegalArgumentException ();
+	length [packet] = len;
+    }
+
+    /** Returns how many bytes the specified packet actually moved. */
+    public int getActualLength (int packet)
+	{ return actual [packet]; }
+
+    /**
+     * Returns the completion status of the specified packet:
+     * zero for success, else a negative (system-specific) error code.
+     */
+    public int getStatus (int packet)
+	{ return status [packet]; }
+
+    /**
+     * Returns the (micro)frame number when the first packet was
+     * transferred, or negative if that's not known.
+     */
+    public int getStartFrame ()
+	{ return startFrame; }
+
+    /** Returns how many packets had errors. */
+    public int getErrorCount ()
+	{ return errorCount; }
+
+
+    /*
+     * For IsoStream implementations only.  The arrays are live.
+     */
+
+    /** Returns the requested packet lengths. */
+    public int [] getPacketLengths ()
+	{ return length; }
+
+    /** Returns the array of actual lengths, for filling in. */
+    public int [] getActualLengths ()
+	{ return actual; }
+
+    /** Returns the array of packet status codes, for filling in. */
+    public int [] getStatusCodes ()
+	{ return status; }
+
+    /** Records the completion frame number and error count. */
+    public void setResults (int startFrame, int errorCount)
+    {
+	this.startFrame = startFrame;
+	this.errorCount = errorCount;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * Streams isochronous data to or from one endpoint, keeping several
+ * batches of packets queued so the periodic schedule never runs dry.
+ * Get one from {@link Endpoint#openIsochronous}.
+ * Only one thread at a time may use a stream.
+ *
+ * <p> IN streams start receiving as soon as they're opened; each
+ * {@link #read} returns the oldest completed batch, and queues
+ * another.  Read often enough to keep up with the device, or some
+ * batches will report errors (usually overruns).
+ *
+ * <p> OUT streams queue each batch as it's written; {@link #write}
+ * only blocks when every batch is in use.  Results (per-packet status
+ * and length) are filled into the written buffer once it's been sent:
+ * by a later write, or by {@link #flush}.  Don't modify a buffer
+ * until then.
+ *
+ * @version $Id$
+ */
+public interface IsoStream
+{
+    /**
+     * Returns the number of packets in each batch; buffers passed to
+     * this stream must have that many packets.
+     */
+    public int getPacketCount ();
+
+    /** Returns the size of each packet in IN batches. */
+    public int getPacketSize ();
+
+    /**
+     * Waits for the next batch of packets from an IN endpoint, then
+     * copies its data, packet lengths, and status into the buffer.
+     * Packets must all be {@link #getPacketSize} bytes long.
+     */
+    public void read (IsoBuffer buf)
+    throws IOException;
+
+    /**
+     * Queues a batch of packets to an OUT endpoint.  This blocks
+     * only while waiting for the oldest queued batch to finish.
+     */
+    public void write (IsoBuffer buf)
+    throws IOException;
+
+    /** Waits until every batch written has been sent. */
+    public void flush ()
+    throws IOException;
+
+    /**
+     * Cancels any queued packets and releases the resources used
+     * by this stream.
+     */
+    public void close ()
+    throws IOException;
+}
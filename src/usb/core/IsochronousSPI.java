@@ -0,0 +1,54 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they support isochronous transfers.  Like {@link BufferSPI}, it's
+ * not available through RMI; isochronous streams need the host
+ * side to keep requests queued, which can't be done remotely.
+ *
+ * @see Endpoint#openIsochronous
+ */
+public interface IsochronousSPI
+{
+    /**
+     * Opens a stream to or from an isochronous endpoint.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @param packetSize bytes per packet, at most the endpoint's
+     *	maximum packet size
+     * @param packets how many packets go in each batch
+     * @param queued how many batches to keep queued
+     * @param synchFrame the frame where the endpoint's pattern of
+     *	packet sizes started, as reported by SYNCH_FRAME
+     * @param period how many frames that pattern lasts; the first
+     *	batch starts at a later frame where it begins again.  Zero
+     *	ignores synchFrame, starting as soon as possible.
+     */
+    public IsoStream openIsochronous (int ep, int packetSize,
+	    int packets, int queued, int synchFrame, int period)
+    throws IOException;
+}
@@ -0,0 +1,128 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * A control request that's been queued to a device, but maybe not yet
+ * completed.  Get one from {@link Device#submitControl}; several may be
+ * queued to one device at once, and the device handles them in order.
+ * Queueing a sequence of requests (like a firmware download) this way
+ * overlaps their round trips, rather than paying for each in turn.
+ *
+ * <p> As a future, its value is the message; for IN requests, its
+ * buffer then holds the data read.  Device implementations fill the
+ * {@link #getData data} buffer for IN requests, then report
+ * completion through {@link #complete(int)} or {@link #fail}.
+ *
+ * @version $Id$
+ */
+public final class PendingControl extends PendingIO<ControlMessage>
+{
+    private final ControlMessage	msg;
+    private final byte			data [];
+    private int				actual;
+
+
+    /**
+     * Wraps a control message.  IN requests get a buffer sized by
+     * the message's length; OUT requests send the message's buffer.
+     */
+    public PendingControl (ControlMessage msg)
+    {
+	this.msg = msg;
+	if (isInput ())
+	    data = new byte [0xffff & msg.getLength ()];
+	else if (msg.getBuffer () == null)
+	    data = new byte [0];
+	else
+	    data = msg.getBuffer ();
+    }
+
+    /** Returns the message being sent. */
+    public ControlMessage getMessage ()
+	{ return msg; }
+
+    /** Returns true if the request reads data from the device. */
+    public boolean isInput ()
+    {
+	return (msg.getRequestType () & ControlMessage.DIR_TO_HOST)
+		== ControlMessage.DIR_TO_HOST;
+    }
+
+    /**
+     * Returns the data stage buffer.  For IN requests, the device
+     * implementation stores the data it reads here.
+     */
+    public byte [] getData ()
+	{ return data; }
+
+    /**
+     * Waits for the request to complete, then returns its message;
+     * for IN requests, the message's buffer then holds the data read.
+     *
+     * @exception IOException if the request failed
+     */
+    public ControlMessage await ()
+    throws IOException
+    {
+	awaitDone ();
+	return msg;
+    }
+
+    /**
+     * Records that the request completed, transferring "length"
+     * bytes in its data stage.
+     */
+    public void complete (int length)
+    {
+	lock.lock ();
+	try {
+	    if (!markDone ())
+		return;
+	    actual = length;
+	    if (isInput ()) {
+		byte	buf [] = data;
+
+		if (length < data.length) {
+		    buf = new byte [length];
+		    System.arraycopy (data, 0, buf, 0, length);
+		}
+		msg.setBuffer (buf);
+	    }
+	} finally {
+	    lock.unlock ();
+	}
+	settle (msg);
+    }
+
+    /** Returns the length of the data stage, once it's completed. */
+    public int getActualLength ()
+    {
+	lock.lock ();
+	try {
+	    return actual;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A request that's been queued to a device, but maybe not yet done.
+ * It's a {@link CompletableFuture}, so callers can block until it's
+ * done, chain further work onto it, or be told when it's done by a
+ * {@link CompletionListener}; no thread need wait for it.
+ *
+ * <p> Device implementations report results through the subclasses'
+ * methods, or {@link #fail}; that completes the future, usually on a
+ * thread the implementation uses to collect completions.  Stages
+ * chained to it without an executor run on that thread too, so they
+ * mustn't block or take long.  Waiting doesn't use the object's
+ * monitor, so virtual threads don't pin their carriers while they
+ * wait.
+ *
+ * @see PendingControl
+ * @see PendingTransfer
+ * @version $Id$
+ */
+public abstract class PendingIO<T> extends CompletableFuture<T>
+{
+    // package private:  guards the state here and in subclasses
+    final ReentrantLock		lock = new ReentrantLock ();
+
+    private boolean		done;
+    private boolean		notified;
+    private IOException		failure;
+    private CompletionListener	listener;
+
+    // package private
+    PendingIO () { }
+
+
+    /** Returns why the request failed, or null. */
+    public IOException getFailure ()
+    {
+	lock.lock ();
+	try {
+	    return failure;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /**
+     * Arranges for the listener to be told when this request is
+     * done; if it's done already, that happens right away.  The
+     * device implementation may call it from a thread it uses to
+     * collect completions, so it must not block.
+     */
+    public void setListener (CompletionListener l)
+    {
+	lock.lock ();
+	try {
+	    listener = l;
+	} finally {
+	    lock.unlock ();
+	}
+	tell ();
+    }
+
+    /** Records that the request failed. */
+    public void fail (IOException why)
+	{ completeExceptionally (why); }
+
+    /**
+     * Completes the request with a value, if it's not done yet.
+     * Subclasses record their results first; device implementations
+     * use their methods, not this one.
+     */
+    public boolean complete (T value)
+    {
+	lock.lock ();
+	try {
+	    if (!markDone ())
+		return false;
+	} finally {
+	    lock.unlock ();
+	}
+	settle (value);
+	return true;
+    }
+
+    /**
+     * Fails the request, if it's not done yet.  Failures that aren't
+     * IOExceptions are reported by {@link #getFailure} as the cause
+     * of one.
+     */
+    public boolean completeExceptionally (Throwable why)
+    {
+	lock.lock ();
+	try {
+	    if (!markDone ())
+		return false;
+	    if (why instanceof IOException)
+		failure = (IOException) why;
+	    else {
+		failure = new IOException (String.valueOf (why));
+		failure.initCause (why);
+	    }
+	} finally {
+	    lock.unlock ();
+	}
+	super.completeExceptionally (why);
+	tell ();
+	return true;
+    }
+
+    /**
+     * Stops waiting for the request:  it fails with a
+     * CancellationException.  The request itself isn't taken back
+     * from the device, which may still be using its buffer.
+     */
+    public boolean cancel (boolean mayInterruptIfRunning)
+	{ return completeExceptionally (new CancellationException ()); }
+
+    /**
+     * Call with the lock held, before recording results; returns false
+     * if the request was already done.
+     */
+    boolean markDone ()
+    {
+	if (done)
+	    return false;
+	done = true;
+	return true;
+    }
+
+    /**
+     * Call without the lock, after results are recorded:  completes
+     * the future, then tells the listener.
+     */
+    void settle (T value)
+    {
+	super.complete (value);
+	tell ();
+    }
+
+    // call without the lock
+    private void tell ()
+    {
+	CompletionListener	l;
+
+	lock.lock ();
+	try {
+	    if (!done || listener == null || notified)
+		return;
+	    notified = true;
+	    l = listener;
+	} finally {
+	    lock.unlock ();
+	}
+	l.completed (this);
+    }
+
+    /**
+     * Waits until the request is done; throws its failure, if any.
+     */
+    void awaitDone ()
+    throws IOException
+    {
+	try {
+	    get ();
+	} catch (InterruptedException e) {
+	    Thread.currentThread ().interrupt ();
+	    throw new InterruptedIOException ();
+	} catch (ExecutionException e) {
+	    throw getFailure ();
+	} catch (CancellationException e) {
+	    throw getFailure ();
+	}
+    }
+}
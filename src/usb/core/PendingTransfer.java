@@ -0,0 +1,107 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A bulk or interrupt transfer that's been queued to an endpoint, but
+ * maybe not yet completed.  Get one from {@link Endpoint#submitRead}
+ * or {@link Endpoint#submitWrite}.  Transfers queued to one endpoint
+ * are done in order; those on different endpoints are independent.
+ *
+ * <p> The buffer belongs to the device implementation until the
+ * transfer is done; then its position has been advanced past the
+ * data read or written.  As a future, its value is how many bytes
+ * moved.  Device implementations report completion through {@link
+ * #complete(int)} or {@link #fail}.
+ *
+ * @version $Id$
+ */
+public final class PendingTransfer extends PendingIO<Integer>
+{
+    private final ByteBuffer	buf;
+    private final int		position;
+    private int			actual;
+
+
+    /** Wraps the buffer, whose remaining bytes are to be transferred. */
+    public PendingTransfer (ByteBuffer buf)
+    {
+	this.buf = buf;
+	position = buf.position ();
+    }
+
+    /** Returns the buffer being used. */
+    public ByteBuffer getBuffer ()
+	{ return buf; }
+
+    /**
+     * Waits for the transfer to complete, then returns how many
+     * bytes it moved.
+     *
+     * @exception IOException if the transfer failed
+     */
+    public int await ()
+    throws IOException
+    {
+	awaitDone ();
+	return actual;
+    }
+
+    /**
+     * Records that the transfer completed, moving "length" bytes;
+     * the buffer's position advances past them.
+     */
+    public void complete (int length)
+	{ complete (new Integer (length)); }
+
+    /**
+     * Same as {@link #complete(int)}; the future's value is the
+     * number of bytes moved.
+     */
+    public boolean complete (Integer length)
+    {
+	lock.lock ();
+	try {
+	    if (!markDone ())
+		return false;
+	    actual = length.intValue ();
+	    buf.position (position + actual);
+	} finally {
+	    lock.unlock ();
+	}
+	settle (length);
+	return true;
+    }
+
+    /** Returns how many bytes moved, once the transfer completed. */
+    public int getActualLength ()
+    {
+	lock.lock ();
+	try {
+	    return actual;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+}
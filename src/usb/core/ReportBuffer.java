@@ -0,0 +1,247 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * A ring of fixed size slots, holding reports collected from an
+ * interrupt endpoint by {@link Endpoint#subscribe}.  All storage is
+ * allocated up front; reports are received straight into the ring,
+ * so nothing is allocated per report.
+ *
+ * <p> Reports may be collected two ways.  Either one thread polls,
+ * using {@link #read}; or a {@link InterruptListener} is called as
+ * each report arrives, and the ring only holds reports that are still
+ * arriving.  When nobody reads quickly enough the oldest reports are
+ * dropped, and counted as overruns.
+ *
+ * @version $Id$
+ */
+public final class ReportBuffer
+{
+    private final int		size;
+    private final byte		data [];
+    private final int		length [];
+    private final long		stamp [];
+
+    // slots [head, head+count) hold reports; the next "pending"
+    // slots are being received into
+    private int			head;
+    private int			count;
+    private int			pending;
+    private int			overruns;
+
+    private InterruptListener	listener;
+    private final Object	delivery = new Object ();
+
+    private boolean		closed;
+    private IOException		reason;
+
+
+    /**
+     * Creates a buffer for the specified number of reports.
+     *
+     * @param reports how many reports can be buffered, at least four
+     * @param reportSize slot size; normally the endpoint's maximum
+     *	packet size, since smaller slots can cause overflow errors
+     */
+    public ReportBuffer (int reports, int reportSize)
+    {
+	if (reports < 4 || reportSize <= 0)
+	    throw new IllegalArgumentException ();
+	size = reportSize;
+	data = new byte [reports * reportSize];
+	length = new int [reports];
+	stamp = new long [reports];
+    }
+
+    /** Returns the size of each report slot. */
+    public int getReportSize ()
+	{ return size; }
+
+    /**
+     * Arranges that reports go to the listener, instead of being held
+     * for {@link #read}.  Assign this before subscribing.
+     */
+    public synchronized void setListener (InterruptListener l)
+	{ listener = l; }
+
+    /** Returns how many reports are waiting to be read. */
+    public synchronized int available ()
+	{ return count; }
+
+    /** Returns how many reports have been dropped, unread. */
+    public synchronized int getOverruns ()
+	{ return overruns; }
+
+    /**
+     * Copies the oldest report into the caller's buffer, waiting for
+     * one to arrive if needed.
+     *
+     * @param buf receives the report; it needs room for
+     *	{@link #getReportSize} bytes
+     * @param off where to put the report
+     * @param when if not null, its first element gets the report's
+     *	completion time, as from System.currentTimeMillis()
+     * @param timeout how long to wait, in milliseconds; zero means
+     *	don't wait, and negative means wait forever
+     * @return the report's length, else -1 if none arrived in time
+     * @exception IOException when there are no more reports, because
+     *	the subscription ended
+     */
+    public synchronized int read (byte buf [], int off, long when [],
+	    long timeout)
+    throws IOException
+    {
+	long	deadline = System.currentTimeMillis () + timeout;
+	int	len;
+
+	while (count == 0) {
+	    long	now;
+
+	    if (closed) {
+		if (reason != null)
+		    throw reason;
+		throw new IOException ("unsubscribed");
+	    }
+	    now = System.currentTimeMillis ();
+	    if (timeout == 0 || (timeout > 0 && now >= deadline))
+		return -1;
+	    try {
+		wait (timeout < 0 ? 0 : deadline - now);
+	    } catch (InterruptedException e) {
+		Thread.currentThread ().interrupt ();
+		return -1;
+	    }
+	}
+
+	len = length [head];
+	System.arraycopy (data, head * size, buf, off, len);
+	if (when != null)
+	    when [0] = stamp [head];
+	head = (head + 1) % length.length;
+	count--;
+	return len;
+    }
+
+
+    /*
+     * For InterruptSPI implementations only.  Reports must be
+     * committed in the order their slots were reserved.
+     */
+
+    /** Returns the array holding every slot. */
+    public byte [] getData ()
+	{ return data; }
+
+    /**
+     * Reserves the next slot to receive a report, returning its offset
+     * in the data array.  If the ring is full, the oldest unread report
+     * is dropped.
+     */
+    public synchronized int reserve ()
+    {
+	int	slot;
+
+	if (count + pending >= length.length) {
+	    if (count == 0)
+		throw new IllegalStateException ("too many pending");
+	    head = (head + 1) % length.length;
+	    count--;
+	    overruns++;
+	}
+	slot = (head + count + pending) % length.length;
+	pending++;
+	return slot * size;
+    }
+
+    /**
+     * Records that the oldest reserved slot received a report; it's
+     * then passed to the listener, or held for {@link #read}.
+     */
+    public void commit (int len, long when)
+    {
+	InterruptListener	l;
+	int			slot;
+
+	synchronized (this) {
+	    if (pending == 0)
+		throw new IllegalStateException ();
+	    slot = (head + count) % length.length;
+	    length [slot] = len;
+	    stamp [slot] = when;
+	    pending--;
+	    count++;
+	    if ((l = listener) == null) {
+		notifyAll ();
+		return;
+	    }
+	}
+
+	// listeners see reports in order, straight from the ring
+	synchronized (delivery) {
+	    l.report (this, data, slot * size, len, when);
+	    synchronized (this) {
+		head = (head + 1) % length.length;
+		count--;
+	    }
+	}
+    }
+
+    /**
+     * Gives back the newest reserved slot, unused; for example
+     * after its request was cancelled.
+     */
+    public synchronized void release ()
+    {
+	if (pending > 0)
+	    pending--;
+    }
+
+    /**
+     * Records that no more reports will arrive.  Readers get the
+     * reason (or a generic exception) once they've read the rest.
+     */
+    public void close (IOException why)
+    {
+	InterruptListener	l;
+
+	synchronized (this) {
+	    if (closed)
+		return;
+	    closed = true;
+	    reason = why;
+	    pending = 0;
+	    notifyAll ();
+	    l = listener;
+	}
+	if (l != null) {
+	    synchronized (delivery) {
+		l.closed (this, why);
+	    }
+	}
+    }
+
+    /** Returns true once no more reports will arrive. */
+    public synchronized boolean isClosed ()
+	{ return closed; }
+}
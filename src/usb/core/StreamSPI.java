@@ -0,0 +1,76 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they support USB 3 bulk streams.  Streams let one bulk endpoint
+ * carry several independent transfers at once, each tagged with a
+ * stream ID; devices like UAS storage depend on them.  Like {@link
+ * IsochronousSPI}, it's not available through RMI.
+ *
+ * @see Interface#allocStreams
+ * @see Endpoint#read(int,ByteBuffer)
+ */
+public interface StreamSPI
+{
+    /**
+     * Allocates streams on a set of bulk endpoints, which all get
+     * the same stream IDs (from one up to the value returned).
+     *
+     * @param count how many streams are wanted, at least two
+     * @param eps Endpoint directions and addresses, as specified in
+     *	endpoint descriptors by {@link Endpoint#getEndpoint}.
+     * @return how many streams were allocated; maybe fewer than
+     *	requested, if the device or host controller supports fewer
+     */
+    public int allocStreams (int count, int eps [])
+    throws IOException;
+
+    /**
+     * Frees the streams on a set of bulk endpoints; they were all
+     * allocated at the same time.
+     */
+    public void freeStreams (int eps [])
+    throws IOException;
+
+    /**
+     * Reads from a bulk input stream into the buffer's remaining
+     * space, advancing its position past the data.
+     *
+     * @return the number of bytes actually read
+     */
+    public int readStream (int ep, int stream, ByteBuffer buf)
+    throws IOException;
+
+    /**
+     * Writes the buffer's remaining data to a bulk output stream,
+     * advancing its position past that data.
+     *
+     * @return the number of bytes actually written
+     */
+    public int writeStream (int ep, int stream, ByteBuffer buf)
+    throws IOException;
+}
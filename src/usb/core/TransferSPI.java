@@ -0,0 +1,51 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.core;
+
+import java.io.IOException;
+
+
+/**
+ * This is not an Application Programming Interface.
+ * {@link DeviceSPI} implementations may also implement this, when
+ * they can queue bulk and interrupt transfers without a thread
+ * waiting for each one.  Without it, {@link Endpoint#submitRead}
+ * and {@link Endpoint#submitWrite} transfer data synchronously.
+ * Like {@link IsochronousSPI}, it's not available through RMI.
+ */
+public interface TransferSPI
+{
+    /**
+     * Queues a transfer on a bulk endpoint, returning without waiting
+     * for it.  When it's done, the transfer is {@link
+     * PendingTransfer#complete(int) completed} or {@link PendingTransfer#fail
+     * failed}, maybe from some other thread.
+     *
+     * @param ep Endpoint direction and address, as specified in an
+     *	endpoint descriptor by {@link Endpoint#getEndpoint}.
+     * @exception IOException if the transfer couldn't be queued
+     */
+    public void submitBulk (int ep, PendingTransfer transfer)
+    throws IOException;
+
+    /** Like {@link #submitBulk}, but for an interrupt endpoint. */
+    public void submitIntr (int ep, PendingTransfer transfer)
+    throws IOException;
+}
@@ -0,0 +1,364 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import usb.core.PendingTransfer;
+
+
+/**
+ * One bulk or interrupt transfer, split into URBs.  Up to {@link
+ * URBEngine#getDepth} of them stay queued; as each completes, the
+ * {@link Reaper} queues the next one, so no thread needs to wait
+ * while the transfer runs.  IN transfers stop after a short read;
+ * the kernel cancels anything queued behind it.  A zero length
+ * transfer sends (or receives) one empty packet.
+ *
+ * <p> Blocking transfers are these, plus {@link #await}; queued ones
+ * report to a {@link PendingTransfer}.  Either way, the device is
+ * told when the transfer is done, so the next one on its endpoint
+ * can start.  State is guarded by a {@link ReentrantLock}, so that
+ * virtual threads waiting here don't pin their carriers.
+ *
+ * @version $Id$
+ */
+final class AsyncTransfer implements URB.Owner, Runnable
+{
+    private final DeviceImpl		dev;
+    private final URBEngine		engine;
+    private final int			key;
+
+    private final int			type;
+    private final int			ep;
+    private final int			stream;
+    private final boolean		in;
+    private final byte			array [];
+    private final ByteBuffer		direct;
+    private final int			end;
+
+    private final PendingTransfer	req;
+    private final String		what;
+
+    private final ReentrantLock		lock = new ReentrantLock ();
+    private final Condition		changed = lock.newCondition ();
+
+    // queue state
+    private int				limit;
+    private boolean			continuation;
+    private int				next;
+    private boolean			first = true;
+    private URB				head, tail;
+    private boolean			stop;
+    private boolean			discarded;
+
+    // results
+    private int				total;
+    private int				error;
+    private int				progress;
+    private boolean			finished;
+
+    // short reads report this when SHORT_NOT_OK is set
+    private static final int		EREMOTEIO = 121;
+
+
+    /**
+     * Data is in "array" (copied through the URBs' buffers) or
+     * "direct" (used in place).  If "req" isn't null, it's told the
+     * result, and "what" names the operation in its exception.
+     */
+    // package private
+    AsyncTransfer (DeviceImpl dev, URBEngine engine, int key,
+	    int type, int ep, int stream,
+	    byte array [], ByteBuffer direct, int off, int length,
+	    PendingTransfer req, String what)
+    {
+	this.dev = dev;
+	this.engine = engine;
+	this.key = key;
+	this.type = type;
+	this.ep = ep;
+	this.stream = stream;
+	this.array = array;
+	this.direct = direct;
+	this.req = req;
+	this.what = what;
+	next = off;
+	end = off + length;
+	in = (ep & 0x80) != 0;
+
+	limit = URBEngine.getDepth ();
+	continuation = Capabilities.has (Capabilities.CAP_BULK_CONTINUATION);
+
+	// without BULK_CONTINUATION, the kernel wouldn't stop the rest
+	// of the queue after a short read; so queue just one IN URB
+	if (in && !continuation)
+	    limit = 1;
+    }
+
+    /** Returns the lane key the transfer was started with. */
+    int getKey ()
+	{ return key; }
+
+    /** Returns the endpoint address. */
+    int getEndpoint ()
+	{ return ep; }
+
+    /** Starts the transfer, once it's this endpoint's turn. */
+    public void run ()
+    {
+	boolean	over;
+
+	lock.lock ();
+	try {
+	    fill ();
+	    over = (head == null);
+	} finally {
+	    lock.unlock ();
+	}
+	if (over)
+	    finish ();
+    }
+
+    // call with lock held:  keeps the queue full
+    private void fill ()
+    {
+	int	queued = 0;
+
+	for (URB urb = head; urb != null; urb = urb.next)
+	    queued++;
+	while (!stop && queued < limit && (next < end || first)) {
+	    int		n = Math.min (end - next, engine.getChunk ());
+	    int		flags = 0;
+	    URB		urb;
+	    int		status;
+
+	    urb = engine.get (0, (direct != null) ? 0 : n);
+	    urb.owner = this;
+	    if (stream != 0)
+		urb.setStream (stream);
+
+	    if (in)
+		flags |= URB.SHORT_NOT_OK;
+	    if (!first && type == URB.TYPE_BULK && continuation)
+		flags |= URB.BULK_CONTINUATION;
+
+	    status = engine.submit (urb, type, ep, flags,
+		    array, direct, next, n);
+	    if (status < 0) {
+		engine.put (urb);
+		if (error == 0)
+		    error = status;
+		stop = true;
+		break;
+	    }
+	    if (tail == null)
+		head = urb;
+	    else
+		tail.next = urb;
+	    tail = urb;
+	    queued++;
+	    next += n;
+	    first = false;
+	}
+    }
+
+    /** Called by the reaper as each URB completes, in order. */
+    public void completed (URB done)
+    {
+	boolean	over;
+
+	lock.lock ();
+	try {
+	    if (!unlink (done))
+		return;
+	    progress++;
+	    if (!stop) {
+		if (done.status < 0 && done.status != -EREMOTEIO) {
+		    error = done.status;
+		    stop = true;
+		} else {
+		    total += done.actual;
+		    if (in && done.actual < done.length)
+			stop = true;
+		}
+	    }
+	    engine.put (done);
+
+	    // done early?  give back whatever's still queued
+	    if (stop)
+		discardAll ();
+	    else
+		fill ();
+	    over = (head == null);
+	    changed.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+	if (over)
+	    finish ();
+    }
+
+    // call with lock held
+    private boolean unlink (URB urb)
+    {
+	URB	prev = null;
+
+	for (URB u = head; u != null; prev = u, u = u.next) {
+	    if (u != urb)
+		continue;
+	    if (prev == null)
+		head = u.next;
+	    else
+		prev.next = u.next;
+	    if (tail == u)
+		tail = prev;
+	    u.next = null;
+	    return true;
+	}
+	return false;
+    }
+
+    // call with lock held
+    private void discardAll ()
+    {
+	if (discarded)
+	    return;
+	discarded = true;
+	for (URB urb = head; urb != null; urb = urb.next)
+	    engine.discard (urb);
+    }
+
+    /** Called when the device is gone, or its file closed. */
+    public void failed (int status)
+    {
+	lock.lock ();
+	try {
+	    if (error == 0)
+		error = status;
+	    stop = true;
+
+	    // the engine has given up on these URBs
+	    head = tail = null;
+	} finally {
+	    lock.unlock ();
+	}
+	finish ();
+    }
+
+    /**
+     * Stops the transfer early; it then finishes as soon as the
+     * kernel gives back its URBs.
+     */
+    void cancel (int status)
+    {
+	lock.lock ();
+	try {
+	    if (finished || discarded)
+		return;
+	    if (error == 0)
+		error = status;
+	    stop = true;
+	    discardAll ();
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    private void finish ()
+    {
+	int	result;
+
+	lock.lock ();
+	try {
+	    if (finished)
+		return;
+	    finished = true;
+	    result = (error < 0) ? error : total;
+	    changed.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+	dev.transferDone (this);
+	if (req == null)
+	    return;
+	if (result < 0)
+	    req.fail (new USBException (what, -result));
+	else
+	    req.complete (result);
+    }
+
+    /**
+     * Waits for the transfer to finish, cancelling it if it doesn't
+     * make progress for {@link URBEngine#TIMEOUT} msec.  The reaper
+     * thread reaps this device itself while it waits.
+     *
+     * @return bytes transferred, else negative errno
+     */
+    int await ()
+    {
+	boolean	reaper = Reaper.isReaper ();
+	boolean	interrupted = false;
+	long	deadline = System.currentTimeMillis () + URBEngine.TIMEOUT;
+	int	mark = -1;
+
+	for (;;) {
+	    long	now = System.currentTimeMillis ();
+
+	    lock.lock ();
+	    try {
+		if (finished)
+		    break;
+		if (progress != mark) {
+		    mark = progress;
+		    deadline = now + URBEngine.TIMEOUT;
+		} else if (now >= deadline) {
+		    cancel (-USBException.ETIMEDOUT);
+		    deadline = now + URBEngine.TIMEOUT;
+		}
+		if (!reaper) {
+		    try {
+			changed.await (deadline - now, TimeUnit.MILLISECONDS);
+		    } catch (InterruptedException e) {
+			interrupted = true;
+			cancel (-USBException.EINTR);
+		    }
+		    continue;
+		}
+	    } finally {
+		lock.unlock ();
+	    }
+	    // the reaper can't wait for itself
+	    if (!engine.reapOne ((int) (deadline - now)))
+		failed (-USBException.ENODEV);
+	}
+	if (interrupted)
+	    Thread.currentThread ().interrupt ();
+	lock.lock ();
+	try {
+	    return (error < 0) ? error : total;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+}
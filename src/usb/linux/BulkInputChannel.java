@@ -0,0 +1,251 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package usb.linux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ScatteringByteChannel;
+
+
+/**
+ * Streams data from a bulk IN endpoint.  Like an {@link IsoStreamImpl},
+ * this keeps a ring of URBs queued, each reading into its own buffer;
+ * the application consumes them in order, and each one is queued again
+ * as soon as it's been emptied.  So the host controller always has
+ * somewhere to put data while the application is busy.
+ *
+ * <p> Short packets just end the data in one buffer; they don't stop
+ * the rest of the ring, and zero length packets aren't visible.
+ * The buffers are in usbfs DMA memory when the kernel allows, so the
+ * data is copied just once, straight into the caller's buffer.
+ * Only one thread may read, but any thread may close the channel.
+ *
+ * @version $Id$
+ */
+final class BulkInputChannel implements ScatteringByteChannel
+{
+    private final DeviceImpl	dev;
+    private final URBEngine	engine;
+    private final int		ep;
+    private final int		size;
+
+    // the ring, oldest first from "head"; only "busy" ones are queued
+    private final URB		ring [];
+    private final ByteBuffer	data [];
+    private final boolean	busy [];
+    private int			head;
+
+    // how much of the head buffer has been consumed
+    private int			offset;
+
+    private boolean		closed;
+
+
+    // package private
+    BulkInputChannel (DeviceImpl dev, URBEngine engine,
+	    int ep, int size, int count)
+    throws IOException
+    {
+	this.dev = dev;
+	this.engine = engine;
+	this.ep = ep;
+	this.size = size;
+
+	ring = new URB [count];
+	data = new ByteBuffer [count];
+	busy = new boolean [count];
+	try {
+	    for (int i = 0; i < count; i++) {
+		data [i] = dev.allocate (size);
+		ring [i] = engine.get (0, 0);
+	    }
+	} catch (IOException e) {
+	    close ();
+	    throw e;
+	}
+
+	for (int i = 0; i < count; i++) {
+	    int		status = submit (i);
+
+	    if (status < 0) {
+		close ();
+		throw new USBException ("bulk submit", -status);
+	    }
+	}
+    }
+
+    // call with lock held
+    private int submit (int i)
+    {
+	int	status;
+
+	status = engine.submit (ring [i], URB.TYPE_BULK, ep,
+		data [i], 0, size);
+	busy [i] = (status >= 0);
+	return status;
+    }
+
+    /**
+     * Copies data from completed reads into the buffer.  This blocks
+     * until at least one byte can be copied, then copies whatever
+     * else has already arrived.
+     *
+     * @return how many bytes were copied
+     */
+    public int read (ByteBuffer buf)
+    throws IOException
+	{ return (int) read (null, buf, 0, 0); }
+
+    public long read (ByteBuffer bufs [])
+    throws IOException
+	{ return read (bufs, 0, bufs.length); }
+
+    /**
+     * Like {@link #read(ByteBuffer)}, but filling each buffer in turn.
+     */
+    public long read (ByteBuffer bufs [], int offset, int length)
+    throws IOException
+    {
+	if (offset < 0 || length < 0 || offset + length > bufs.length)
+	    throw new IndexOutOfBoundsException ();
+	if (length == 0)
+	    return 0;
+	return read (bufs, bufs [offset], offset, offset + length);
+    }
+
+    // reads into "buf", then any others up to bufs [last - 1]
+    private long read (ByteBuffer bufs [], ByteBuffer buf,
+	    int index, int last)
+    throws IOException
+    {
+	long	total = 0;
+
+	if (!isOpen ())
+	    throw new ClosedChannelException ();
+	for (;;) {
+	    URB		urb;
+	    int		n;
+
+	    // skip full buffers
+	    while (!buf.hasRemaining () && bufs != null && ++index < last)
+		buf = bufs [index];
+	    if (!buf.hasRemaining ())
+		break;
+
+	    synchronized (this) {
+		if (closed)
+		    break;
+
+		// requeue anything that failed before
+		if (!busy [head]) {
+		    int	status = submit (head);
+
+		    if (status < 0) {
+			if (total != 0)
+			    break;
+			throw new USBException ("bulk read", -status);
+		    }
+		}
+		urb = ring [head];
+	    }
+
+	    // block only until there's something to return
+	    if (total != 0) {
+		if (!engine.await (urb, 0))
+		    break;
+	    } else {
+		while (!engine.await (urb, URBEngine.TIMEOUT)) {
+		    if (!isOpen ())
+			break;
+		}
+	    }
+
+	    synchronized (this) {
+		if (closed)
+		    break;
+
+		// report errors after any data read before them
+		if (urb.status < 0) {
+		    if (total != 0)
+			break;
+		    busy [head] = false;
+		    offset = 0;
+		    head = (head + 1) % ring.length;
+		    throw new USBException ("bulk read", -urb.status);
+		}
+
+		ByteBuffer	src = data [head];
+
+		n = Math.min (urb.actual - offset, buf.remaining ());
+		src.clear ();
+		src.position (offset);
+		src.limit (offset + n);
+		buf.put (src);
+		offset += n;
+		total += n;
+
+		// emptied?  queue it again right away
+		if (offset == urb.actual) {
+		    offset = 0;
+		    submit (head);
+		    head = (head + 1) % ring.length;
+		}
+	    }
+	}
+	if (total == 0 && !isOpen ())
+	    throw new AsynchronousCloseException ();
+	return total;
+    }
+
+    int getEndpoint ()
+	{ return ep; }
+
+    public synchronized boolean isOpen ()
+	{ return !closed; }
+
+    /**
+     * Cancels the queued reads; data they collected is lost.
+     * A thread blocked in {@link #read} gets an exception.
+     */
+    public void close ()
+    {
+	boolean	queued [];
+
+	synchronized (this) {
+	    if (closed)
+		return;
+	    closed = true;
+	    queued = (boolean []) busy.clone ();
+	}
+	for (int i = 0; i < ring.length; i++) {
+	    if (ring [i] != null) {
+		if (queued [i])
+		    engine.cancel (ring [i]);
+		else
+		    engine.put (ring [i]);
+	    }
+	    if (data [i] != null)
+		dev.free (data [i]);
+	}
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.IOException;
+
+
+/**
+ * Records what the running kernel's usbfs can do, so that transfers
+ * can be sized as large as it allows.  Kernels since 3.6 report this
+ * through USBDEVFS_GET_CAPABILITIES; for older ones, we guess from
+ * the kernel version.  This is probed once, when the host starts,
+ * using any usbfs device file that can be opened (usually a root hub);
+ * if none can, it's probed using the first device file that's opened.
+ *
+ * @version $Id$
+ */
+final class Capabilities
+{
+    // from <linux/usbdevice_fs.h>
+    static final int	CAP_ZERO_PACKET = 0x01;
+    static final int	CAP_BULK_CONTINUATION = 0x02;
+    static final int	CAP_NO_PACKET_SIZE_LIM = 0x04;
+    static final int	CAP_BULK_SCATTER_GATHER = 0x08;
+    static final int	CAP_REAP_AFTER_DISCONNECT = 0x10;
+    static final int	CAP_MMAP = 0x20;
+    static final int	CAP_DROP_PRIVILEGES = 0x40;
+    static final int	CAP_CONNINFO_EX = 0x80;
+    static final int	CAP_SUSPEND = 0x100;
+
+    /** 2.4 usbdevfs rejected control transfers over a page. */
+    static final int	SYNC_CONTROL_LIMIT = 4096;
+
+    /** usbfs won't take more packets than this in one iso URB */
+    static final int	ISO_PACKETS = 128;
+
+    // we won't queue bigger URBs than this, even if usbfs would
+    private static final int	MAX_URB = 1024 * 1024;
+
+    private static boolean	probed;
+
+    // Threads using other devices read these without locking, so
+    // they're volatile; probe() computes them all before storing any.
+
+    /** USBDEVFS_CAP_* flags */
+    static volatile int		caps;
+
+    /** usbfs_memory_mb, in bytes; or zero if there's no limit */
+    static volatile int		memoryLimit;
+
+    /** largest bulk or interrupt URB we'll submit */
+    static volatile int		bulkLimit = 4096;
+
+    /** largest iso URB (all its packets) we'll submit */
+    static volatile int		isoLimit = 32768;
+
+    /** longest control data stage we'll issue */
+    static volatile int		controlLimit = SYNC_CONTROL_LIMIT - 1;
+
+
+    private Capabilities () { }
+
+    /** Fills in the limits, unless that's been done already. */
+    static synchronized void probe (int fd)
+    {
+	int	version [];
+	int	flags, memory, bulk, iso, control;
+
+	if (probed)
+	    return;
+	probed = true;
+
+	version = getKernelVersion ();
+	if ((flags = Kernel.sys.getCapabilities (fd)) < 0) {
+	    // older than 3.6, which added GET_CAPABILITIES
+	    flags = 0;
+	    if (atLeast (version, 2, 6, 32))
+		flags |= CAP_ZERO_PACKET | CAP_BULK_CONTINUATION;
+	}
+
+	memory = getMemoryLimit (version);
+	iso = isoLimit;
+
+	if ((flags & CAP_NO_PACKET_SIZE_LIM) != 0) {
+	    // only the usbfs memory limit applies; leave room
+	    // for other transfers (and other processes) too
+	    bulk = MAX_URB;
+	    if (memory != 0)
+		bulk = Math.min (bulk, memory / 16);
+	    iso = bulk;
+	    control = 0xffff;
+	} else if (atLeast (version, 2, 6, 0)) {
+	    // MAX_USBFS_BUFFER_SIZE
+	    bulk = 16384;
+	    control = 16384 - 8 - 1;
+	} else {
+	    // 2.4 usbdevfs:  single pages
+	    bulk = 4096;
+	    control = SYNC_CONTROL_LIMIT - 1;
+	}
+
+	memoryLimit = memory;
+	bulkLimit = bulk;
+	isoLimit = iso;
+	controlLimit = control;
+	caps = flags;
+
+	if (Linux.trace || Linux.debug)
+	    System.err.println ("usbfs: " + describe ());
+    }
+
+    /** Probes using some device file in the usbfs directory. */
+    static void probe (String usbfs)
+    {
+	String	busses [] = Kernel.sys.list (usbfs);
+
+	if (busses == null)
+	    return;
+	java.util.Arrays.sort (busses);
+	for (int i = 0; i < busses.length && !isProbed (); i++) {
+	    String	dir = usbfs + "/" + busses [i];
+	    String	devices [];
+
+	    if (!Kernel.sys.isDirectory (dir)
+		    || (devices = Kernel.sys.list (dir)) == null)
+		continue;
+	    java.util.Arrays.sort (devices);
+	    for (int j = 0; j < devices.length; j++) {
+		int	fd = Kernel.sys.open (dir + "/" + devices [j]);
+
+		if (fd < 0)
+		    continue;
+		probe (fd);
+		Kernel.sys.close (fd);
+		break;
+	    }
+	}
+    }
+
+    /** Returns true once the limits reflect the running kernel. */
+    static synchronized boolean isProbed ()
+	{ return probed; }
+
+    static boolean has (int flag)
+	{ return (caps & flag) != 0; }
+
+    /** Returns a one-line summary, for diagnostics. */
+    static String describe ()
+    {
+	StringBuffer	buf = new StringBuffer ();
+
+	buf.append ("caps=0x");
+	buf.append (Integer.toHexString (caps));
+	buf.append (" bulk=");
+	buf.append (bulkLimit);
+	buf.append (" iso=");
+	buf.append (isoLimit);
+	buf.append (" control=");
+	buf.append (controlLimit);
+	buf.append (" memory=");
+	if (memoryLimit == 0)
+	    buf.append ("unlimited");
+	else
+	    buf.append (memoryLimit);
+	return buf.toString ();
+    }
+
+
+    // usbfs_memory_mb appeared in 3.3, defaulting to 16 MB;
+    // zero means no limit, as with older kernels
+    private static int getMemoryLimit (int version [])
+    {
+	try {
+	    byte	value [];
+	    long	mb;
+
+	    value = Kernel.sys.read (
+		"/sys/module/usbcore/parameters/usbfs_memory_mb");
+	    mb = Long.parseLong (new String (value, "ISO-8859-1").trim ());
+	    if (mb <= 0 || mb >= 2048)
+		return 0;
+	    return (int) (mb * 1024 * 1024);
+
+	} catch (IOException e) {
+	} catch (NumberFormatException e) {
+	} catch (SecurityException e) {
+	}
+	return atLeast (version, 3, 3, 0) ? 16 * 1024 * 1024 : 0;
+    }
+
+    // "2.6.32-5-amd64" --> { 2, 6, 32 }
+    private static int [] getKernelVersion ()
+    {
+	int	retval [] = new int [3];
+	String	version = Kernel.sys.getRelease ();
+	int	n = 0;
+
+	if (version == null)
+	    return retval;
+	for (int j = 0; j < version.length () && n < 3; j++) {
+	    char	c = version.charAt (j);
+
+	    if (c >= '0' && c <= '9')
+		retval [n] = (retval [n] * 10) + (c - '0');
+	    else if (c == '.')
+		n++;
+	    else
+		break;
+	}
+	return retval;
+    }
+
+    /** Returns true if the running kernel is at least version a.b.c */
+    static boolean kernelAtLeast (int a, int b, int c)
+	{ return atLeast (getKernelVersion (), a, b, c); }
+
+    private static boolean atLeast (int version [], int a, int b, int c)
+    {
+	if (version [0] != a)
+	    return version [0] > a;
+	if (version [1] != b)
+	    return version [1] > b;
+	return version [2] >= c;
+    }
+}
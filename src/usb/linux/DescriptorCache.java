@@ -0,0 +1,563 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * An optional file that remembers descriptors between runs, so that
+ * restarting (or re-enumerating after a reset) needn't fetch them
+ * again.  Entries are keyed by where the device is connected, its
+ * vendor and product IDs, its bcdDevice, and its serial number.
+ * An entry is used only when the device descriptor it recorded is
+ * the same, byte for byte, as the device's own; and the device
+ * descriptor is always read from sysfs or the device.
+ *
+ * <p> Fleets of identical devices may also {@link #setSharing share}
+ * entries:  when there's no entry for a device, one for a device with
+ * the same device descriptor supplies its configuration descriptors,
+ * language table, and strings other than the serial number.  That's
+ * off by default, since devices can report the same bcdDevice with
+ * different configurations; and a shared configuration is only used
+ * once the device's own configuration descriptor (nine bytes, with
+ * wTotalLength) matches it.  Serial numbers come only from the
+ * device's own entry.  (Without sysfs, the serial number isn't known
+ * when the key is chosen; then it isn't cached.)
+ *
+ * <p> The file is a compact binary format, read once and rewritten
+ * (atomically, by renaming) when entries have been added.  It holds
+ * at most {@link #setLimit} entries; past that, the least recently
+ * used ones are dropped.
+ *
+ * @version $Id$
+ */
+final class DescriptorCache
+{
+    private static final int		MAGIC = 0x6a555342;	// "jUSB"
+    private static final int		VERSION = 2;
+
+    private static File			file;
+    private static boolean		assigned;
+    private static boolean		loaded;
+    private static boolean		dirty;
+    private static Thread		hook;
+    private static boolean		sharing;
+    private static int			limit = 1024;
+
+    // key --> Entry
+    private static final Hashtable	entries = new Hashtable ();
+
+    private DescriptorCache () { }
+
+
+    /**
+     * Assigns the cache file; null disables caching.  Initially, the
+     * "usb.linux.descriptorCache" system property names the file.
+     */
+    static synchronized void setFile (File f)
+    {
+	assigned = true;
+	if (f == null ? file == null : f.equals (file))
+	    return;
+	if (dirty)
+	    save ();
+	file = f;
+	entries.clear ();
+	loaded = false;
+	dirty = false;
+    }
+
+    /** Controls whether identical devices share entries. */
+    static synchronized void setSharing (boolean flag)
+	{ sharing = flag; }
+
+    static synchronized boolean getSharing ()
+	{ return sharing; }
+
+    /** Limits how many devices the file remembers. */
+    static synchronized void setLimit (int n)
+    {
+	if (n < 1)
+	    throw new IllegalArgumentException ();
+	limit = n;
+	if (loaded && trim ())
+	    changed ();
+    }
+
+    static synchronized int getLimit ()
+	{ return limit; }
+
+    static synchronized File getFile ()
+    {
+	if (!assigned) {
+	    assigned = true;
+	    try {
+		String	name = System.getProperty (
+				    "usb.linux.descriptorCache");
+
+		if (name != null)
+		    file = new File (name);
+	    } catch (SecurityException e) {
+	    }
+	}
+	return file;
+    }
+
+    /**
+     * Returns the entry for a device, creating one if needed;
+     * returns null if there's no cache.
+     *
+     * @param device the device descriptor, as just read
+     * @param location where the device is connected (like "1-4.2"),
+     *	or null if that's not known
+     * @param serial the serial number string, or null if that's not
+     *	known; the key is only trusted with serial numbers when this
+     *	was known
+     */
+    static synchronized Entry lookup (byte device [],
+	    String location, String serial)
+    {
+	Entry	entry;
+	String	key;
+	long	now;
+
+	if (getFile () == null)
+	    return null;
+	load ();
+
+	key = makeKey (device, location, serial);
+	entry = (Entry) entries.get (key);
+	if (entry != null && !entry.matches (device)) {
+	    // same key, different device (firmware update, ...)
+	    entries.remove (key);
+	    dirty = true;
+	    entry = null;
+	}
+	if (entry == null) {
+	    entry = new Entry (key, device, serial != null);
+	    if (sharing)
+		entry.copyShared (findTwin (device));
+	    entries.put (key, entry);
+	    trim ();
+	    dirty = true;
+	}
+	now = System.currentTimeMillis ();
+	if (now - entry.used > 24 * 60 * 60 * 1000L) {
+	    // record use for eviction, but not every run's
+	    entry.used = now;
+	    changed ();
+	}
+	return entry;
+    }
+
+    // drops the least recently used entries past the limit
+    private static boolean trim ()
+    {
+	boolean	trimmed = false;
+
+	while (entries.size () > limit) {
+	    Entry	oldest = null;
+
+	    for (Enumeration e = entries.elements (); e.hasMoreElements (); ) {
+		Entry	entry = (Entry) e.nextElement ();
+
+		if (oldest == null || entry.used < oldest.used)
+		    oldest = entry;
+	    }
+	    entries.remove (oldest.key);
+	    trimmed = true;
+	}
+	return trimmed;
+    }
+
+    // VID:PID:bcdDevice@location/serial
+    private static String makeKey (byte device [], String location,
+	    String serial)
+    {
+	StringBuffer	buf = new StringBuffer ();
+
+	buf.append (Integer.toHexString (word (device, 8)));
+	buf.append (':');
+	buf.append (Integer.toHexString (word (device, 10)));
+	buf.append (':');
+	buf.append (Integer.toHexString (word (device, 12)));
+	buf.append ('@');
+	if (location != null)
+	    buf.append (location);
+	buf.append ('/');
+	if (serial != null)
+	    buf.append (serial);
+	return buf.toString ();
+    }
+
+    private static int word (byte buf [], int off)
+	{ return (0xff & buf [off]) | ((0xff & buf [off + 1]) << 8); }
+
+    // another entry with identical device descriptor
+    private static Entry findTwin (byte device [])
+    {
+	for (Enumeration e = entries.elements (); e.hasMoreElements (); ) {
+	    Entry	entry = (Entry) e.nextElement ();
+
+	    if (entry.matches (device))
+		return entry;
+	}
+	return null;
+    }
+
+    static synchronized void changed ()
+    {
+	dirty = true;
+
+	// save on the way out, unless told to save sooner
+	if (hook == null) {
+	    hook = new Thread () {
+		public void run () { flush (); }
+		};
+	    try {
+		Runtime.getRuntime ().addShutdownHook (hook);
+	    } catch (IllegalStateException e) {
+		// already exiting
+	    } catch (SecurityException e) {
+	    }
+	}
+    }
+
+    /** Writes the file, if it's changed. */
+    static synchronized void flush ()
+    {
+	if (dirty)
+	    save ();
+    }
+
+
+    private static void load ()
+    {
+	DataInputStream	in = null;
+
+	if (loaded)
+	    return;
+	loaded = true;
+	if (!file.exists ())
+	    return;
+
+	try {
+	    int		count;
+
+	    in = new DataInputStream (new BufferedInputStream (
+		    new FileInputStream (file)));
+	    if (in.readInt () != MAGIC || in.readInt () != VERSION)
+		throw new IOException ("not a descriptor cache");
+	    count = in.readInt ();
+	    for (int i = 0; i < count; i++) {
+		Entry	entry = Entry.read (in);
+
+		entries.put (entry.key, entry);
+	    }
+	    if (trim ())
+		dirty = true;
+	} catch (IOException e) {
+	    // start over; it'll be rewritten
+	    if (Linux.debug)
+		System.err.println ("descriptor cache " + file
+		    + ": " + e.getMessage ());
+	    entries.clear ();
+	} catch (SecurityException e) {
+	    entries.clear ();
+	} finally {
+	    if (in != null)
+		try { in.close (); } catch (IOException e) { }
+	}
+    }
+
+    private static void save ()
+    {
+	File			temp;
+	DataOutputStream	out = null;
+
+	dirty = false;
+	if (file == null)
+	    return;
+	temp = new File (file.getPath () + ".new");
+	try {
+	    File	dir = file.getAbsoluteFile ().getParentFile ();
+
+	    if (dir != null && !dir.exists ())
+		dir.mkdirs ();
+	    out = new DataOutputStream (new BufferedOutputStream (
+		    new FileOutputStream (temp)));
+	    out.writeInt (MAGIC);
+	    out.writeInt (VERSION);
+	    out.writeInt (entries.size ());
+	    for (Enumeration e = entries.elements (); e.hasMoreElements (); )
+		((Entry) e.nextElement ()).write (out);
+	    out.close ();
+	    out = null;
+	    if (!temp.renameTo (file))
+		throw new IOException ("can't rename " + temp);
+	} catch (IOException e) {
+	    if (Linux.debug)
+		System.err.println ("descriptor cache " + file
+		    + ": " + e.getMessage ());
+	    temp.delete ();
+	} catch (SecurityException e) {
+	} finally {
+	    if (out != null)
+		try { out.close (); } catch (IOException e) { }
+	}
+    }
+
+
+    /**
+     * What's cached for one device.  All methods are synchronized
+     * on the cache.
+     */
+    static final class Entry
+    {
+	final String		key;
+	private final byte	device [];
+	private final boolean	haveSerial;
+
+	// index --> byte []; and those an identical device supplied,
+	// which aren't trusted until this device confirms them
+	private final Vector	configs = new Vector (1);
+	private final Vector	borrowed = new Vector (1);
+	private int		languages [];
+
+	// when a device last used this, for eviction
+	private long		used;
+
+	// "language:id" --> String
+	private final Hashtable	strings = new Hashtable (7);
+
+
+	private Entry (String k, byte dev [], boolean serial)
+	{
+	    key = k;
+	    device = dev;
+	    haveSerial = serial;
+	}
+
+	private boolean matches (byte dev [])
+	{
+	    if (dev.length != device.length)
+		return false;
+	    for (int i = 0; i < dev.length; i++) {
+		if (dev [i] != device [i])
+		    return false;
+	    }
+	    return true;
+	}
+
+	// the string index of the serial number
+	private int serialId ()
+	    { return 0xff & device [16]; }
+
+	// use what an identical device had, except its serial number
+	private void copyShared (Entry twin)
+	{
+	    int		serial = serialId ();
+
+	    if (twin == null)
+		return;
+	    for (int i = 0; i < twin.configs.size (); i++) {
+		configs.addElement (twin.configs.elementAt (i));
+		borrowed.addElement (Boolean.TRUE);
+	    }
+	    languages = twin.languages;
+	    for (Enumeration e = twin.strings.keys (); e.hasMoreElements (); ) {
+		String	k = (String) e.nextElement ();
+
+		if (serial != 0 && k.endsWith (":" + serial))
+		    continue;
+		strings.put (k, twin.strings.get (k));
+	    }
+	}
+
+	/**
+	 * Returns configuration "index" (all its descriptors), or null.
+	 * If "shared" is false, one supplied by an identical device
+	 * isn't returned; else the caller must check it, then {@link
+	 * #putConfig} it if it's right.
+	 */
+	byte [] getConfig (int index, boolean shared)
+	{
+	    synchronized (DescriptorCache.class) {
+		if (index >= configs.size ())
+		    return null;
+		byte	buf [] = (byte []) configs.elementAt (index);
+
+		if (buf == null || (!shared && isBorrowed (index)))
+		    return null;
+		return (byte []) buf.clone ();
+	    }
+	}
+
+	/** Returns true if an identical device supplied that config. */
+	boolean isBorrowed (int index)
+	{
+	    synchronized (DescriptorCache.class) {
+		return index < borrowed.size ()
+			&& borrowed.elementAt (index) != null;
+	    }
+	}
+
+	void putConfig (int index, byte buf [])
+	{
+	    synchronized (DescriptorCache.class) {
+		if (index >= configs.size ())
+		    configs.setSize (index + 1);
+		configs.setElementAt (buf, index);
+		if (index < borrowed.size ())
+		    borrowed.setElementAt (null, index);
+		changed ();
+	    }
+	}
+
+	/** Returns the language table, or null */
+	int [] getLanguages ()
+	{
+	    synchronized (DescriptorCache.class) {
+		return languages;
+	    }
+	}
+
+	void putLanguages (int langs [])
+	{
+	    synchronized (DescriptorCache.class) {
+		languages = langs;
+		changed ();
+	    }
+	}
+
+	/** Returns the string, or null */
+	String getString (int id, int language)
+	{
+	    synchronized (DescriptorCache.class) {
+		return (String) strings.get (language + ":" + id);
+	    }
+	}
+
+	void putString (int id, int language, String value)
+	{
+	    // the serial number is cached only if it's in the key
+	    if (id == serialId () && !haveSerial)
+		return;
+	    synchronized (DescriptorCache.class) {
+		strings.put (language + ":" + id, value);
+		changed ();
+	    }
+	}
+
+	private void write (DataOutputStream out)
+	throws IOException
+	{
+	    out.writeUTF (key);
+	    out.writeLong (used);
+	    out.writeBoolean (haveSerial);
+	    out.writeShort (device.length);
+	    out.write (device);
+
+	    out.writeShort (configs.size ());
+	    for (int i = 0; i < configs.size (); i++) {
+		byte	buf [] = (byte []) configs.elementAt (i);
+
+		// what's unconfirmed isn't saved
+		if (buf == null || isBorrowed (i))
+		    out.writeInt (-1);
+		else {
+		    out.writeInt (buf.length);
+		    out.write (buf);
+		}
+	    }
+
+	    if (languages == null)
+		out.writeShort (-1);
+	    else {
+		out.writeShort (languages.length);
+		for (int i = 0; i < languages.length; i++)
+		    out.writeShort (languages [i]);
+	    }
+
+	    out.writeShort (strings.size ());
+	    for (Enumeration e = strings.keys (); e.hasMoreElements (); ) {
+		String	k = (String) e.nextElement ();
+
+		out.writeUTF (k);
+		out.writeUTF ((String) strings.get (k));
+	    }
+	}
+
+	private static Entry read (DataInputStream in)
+	throws IOException
+	{
+	    String	key = in.readUTF ();
+	    long	used = in.readLong ();
+	    boolean	serial = in.readBoolean ();
+	    byte	dev [] = new byte [in.readShort ()];
+	    Entry	entry;
+	    int		count;
+
+	    in.readFully (dev);
+	    if (dev.length != 18)
+		throw new IOException ("bad device descriptor");
+	    entry = new Entry (key, dev, serial);
+	    entry.used = used;
+
+	    count = in.readShort ();
+	    for (int i = 0; i < count; i++) {
+		int	len = in.readInt ();
+		byte	buf [] = null;
+
+		if (len >= 0) {
+		    buf = new byte [len];
+		    in.readFully (buf);
+		}
+		entry.configs.addElement (buf);
+	    }
+
+	    count = in.readShort ();
+	    if (count >= 0) {
+		entry.languages = new int [count];
+		for (int i = 0; i < count; i++)
+		    entry.languages [i] = 0xffff & in.readShort ();
+	    }
+
+	    count = in.readShort ();
+	    for (int i = 0; i < count; i++) {
+		String	k = in.readUTF ();
+
+		entry.strings.put (k, in.readUTF ());
+	    }
+	    return entry;
+	}
+    }
+}
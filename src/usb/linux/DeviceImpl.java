@@ -21,8 +21,13 @@ package usb.linux;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
 
 import usb.core.*;
 import usb.util.LangCode;
@@ -38,10 +43,11 @@ import usb.util.LangCode;
  * @author David Brownell
  * @version $Id: DeviceImpl.java,v 1.9 2005/01/17 07:19:42 westerma Exp $
  */
-final class DeviceImpl extends Device implements DeviceSPI
+final class DeviceImpl extends Device
+    implements DeviceSPI, BufferSPI, IsochronousSPI, InterruptSPI,
+	ChannelSPI, ControlSPI, StreamSPI, TransferSPI
 {
     // DEFERRED FUNCTIONALITY:
-    // - Anything for iso support, including synchFrame control msg
     // - Configuration changing (broken support exists)
     // - Alternate settings (incomplete support exists)
 
@@ -52,9 +58,22 @@ final class DeviceImpl extends Device implements DeviceSPI
     private String		path;
 
     // Used for internal synchronization; it should only be known
-    // within this class.  Protects string cache and configuration.
+    // within this class.  Protects configuration and hub children.
     private final Object	lock = new Object ();
 
+    // Protects the string cache and language table, so reading
+    // strings doesn't wait for configuration changes (or I/O).  It's
+    // held while reading the language table, so it isn't a monitor:
+    // virtual threads waiting for that I/O don't pin their carriers.
+    private final ReentrantLock	stringLock = new ReentrantLock ();
+
+    // Orders transfers per endpoint; holds them for changes
+    private final TransferGate	gate = new TransferGate ();
+
+    // AsyncTransfers started and not yet done, so changes can
+    // cancel them
+    private final Vector	transfers = new Vector (4);
+
     // XXX Our record of the configuration could be out of date
     // since the kernel doesn't yet protect anyone from changes to
     // it, even driver software claiming interfaces exposed by
@@ -79,6 +98,15 @@ final class DeviceImpl extends Device implements DeviceSPI
     private String		speed;
     private int			hubPortNum;
 
+    /** where it's connected, named as in sysfs ("1-4.2"); else null */
+    private String		location;
+
+    /** what sysfs said when we found the device; else null */
+    private final Sysfs		sysfs;
+
+    /** descriptors remembered from earlier runs; else null */
+    private DescriptorCache.Entry	cached;
+
 
     // XXX Need kernel support for some device lock to safeguard
     // devices against unexpected concurrent operations.  Control
@@ -93,52 +121,246 @@ final class DeviceImpl extends Device implements DeviceSPI
 
     // package private
     DeviceImpl (USB bus, File f, int a)
+    throws IOException, SecurityException
+	{ this (bus, f, a, null); }
+
+    /**
+     * When sysfs describes the device, nothing is read from it yet;
+     * its device file is opened only for real I/O.
+     */
+    // package private
+    DeviceImpl (USB bus, File f, int a, Sysfs info)
     throws IOException, SecurityException
     {
 	super (null, bus, a);
 
 	usb = bus;
 	path = f.getPath ();
+	sysfs = info;
+
+	if (sysfs != null) {
+	    byte	buf [] = sysfs.getDeviceDescriptor ();
+
+	    descriptor = new DeviceDescriptor (this, buf);
+	    cached = DescriptorCache.lookup (buf, sysfs.name, sysfs.serial);
+	    if (!sysfs.isRootHub ())
+		speed = sysfs.speed;
+	    selectedConfig = sysfs.getConfigIndex ();
+
+	} else {
+	    // should only fail if the device unplugged before
+	    // we opened it, or permissions were bogus, or ...
+	    open ();
+
+	    // the kernel knows its speed; don't ask its hub
+	    getConnInfo ();
+
+	    // fd's open; NOW we can get the device descriptor
+	    try {
+		byte buf [];
+
+		buf = ControlMessage.getStandardDescriptor (this,
+			Descriptor.TYPE_DEVICE, (byte) 0, 0, 18);
+		descriptor = new DeviceDescriptor (this, buf);
+		cached = DescriptorCache.lookup (buf, location, null);
+	    } catch (IOException e) {
+		if (Linux.debug)
+		    System.err.println ("get dev descr fail:  "
+			+ path
+			+ ", "
+			+ e.getMessage ());
+		throw e;
+	    }
+	}
+
+	// ... and configuration descriptor
+	getConfiguration ();
+
+	if (Linux.trace)
+	    System.err.println ("new: " + path);
+    }
+
+    // from USBDEVFS_CONNINFO_EX or USBDEVFS_GET_SPEED, when available
+    private void getConnInfo ()
+    {
+	int	info [] = new int [9];
+	int	count = Kernel.sys.getConnInfo (fd, info);
+	boolean	root;
+
+	if (count < 1)
+	    return;
+
+	// root hubs have no ports above them; without the port list,
+	// address one (which Linux always gives root hubs) must do
+	if (count >= 2) {
+	    StringBuffer	buf;
+
+	    root = (info [1] == 0);
+	    buf = new StringBuffer (root ? "usb" : "");
+	    buf.append (usb.getBusNum ());
+	    for (int i = 0; i < info [1] && 2 + i < count; i++) {
+		buf.append ((i == 0) ? '-' : '.');
+		buf.append (info [2 + i]);
+	    }
+	    location = buf.toString ();
+	} else
+	    root = (getAddress () == 1);
+
+	if (!root)
+	    speed = speedName (info [0]);
+	if (Linux.trace)
+	    System.err.println ("conninfo: " + path
+		+ " " + location + " " + speed);
+    }
+
+    // USB_SPEED_* from <linux/usb/ch9.h>
+    private static String speedName (int code)
+    {
+	switch (code) {
+	    case 1:	return "low";
+	    case 2:	return "full";
+	    case 3:	return "high";
+	    case 4:	return "high";		// wireless
+	    case 5:	return "super";
+	    case 6:	return "super-plus";
+	    default:	return null;
+	}
+    }
+
+    // opens the device file, and gets ready for I/O
+    private void open ()
+    throws USBException, SecurityException
+    {
+	int	status;
 
-	// should only fail if the device unplugged before
-	// we opened it, or permissions were bogus, or ...
-	if ((fd = openNative (path)) < 0) {
+	if ((status = Kernel.sys.open (path)) < 0) {
 	    String	message;
 
 	    message = "can't open device file r/w, " + path;
-	    if (fd == -USBException.EPERM)
+	    if (status == -USBException.EPERM)
 		throw new SecurityException (message);
 	    else
-		throw new USBException (message, -fd);
+		throw new USBException (message, -status);
 	}
-
-	// fd's open; NOW we can get the device descriptor
+	Capabilities.probe (status);
 	try {
-	    byte buf [];
-
-	    buf = ControlMessage.getStandardDescriptor (this,
-		    Descriptor.TYPE_DEVICE, (byte) 0, 0, 18);
-	    descriptor = new DeviceDescriptor (this, buf);
-	} catch (IOException e) {
-	    if (Linux.debug)
-		System.err.println ("get dev descr fail:  "
-		    + path
-		    + ", "
-		    + e.getMessage ());
+	    engine = new URBEngine (status, Capabilities.bulkLimit);
+	} catch (USBException e) {
+	    Kernel.sys.close (status);
 	    throw e;
 	}
+	fd = status;
 
-	// ... and configuration descriptor
-	getConfiguration ();
+	if (Linux.trace)
+	    System.err.println ("open: " + path);
+    }
+
+    /*
+     * Device files are opened on demand.  I/O is bracketed by
+     * acquire() and release(), so the file stays open while it's
+     * in use; otherwise the FilePool may close it.
+     */
+
+    // returns the engine for the device file, opening it if needed
+    private URBEngine acquire ()
+    throws USBException
+    {
+	boolean		opened = false;
+	URBEngine	retval;
+
+	synchronized (fileLock) {
+	    if (closed)
+		throw new USBException ("device closed: " + path,
+			USBException.ENODEV);
+	    if (fd < 0) {
+		open ();
+		opened = true;
+	    }
+	    users++;
+	    lastUse = System.currentTimeMillis ();
+	    retval = engine;
+	}
+
+	// devices found without sysfs keep their files open,
+	// which keeps their addresses from being reused
+	if (sysfs != null) {
+	    if (opened)
+		FilePool.opened (this);
+	    else
+		FilePool.used (this);
+	}
+	return retval;
+    }
+
+    /*
+     * Size checks need the kernel's limits.  The host probes them when
+     * it starts, but if it couldn't open any device file then, opening
+     * this one does.
+     */
+    private void probe ()
+    throws USBException
+    {
+	if (!Capabilities.isProbed ()) {
+	    acquire ();
+	    release ();
+	}
+    }
+
+    private void release ()
+    {
+	synchronized (fileLock) {
+	    users--;
+	    lastUse = System.currentTimeMillis ();
+	}
+    }
 
+    // package private (for FilePool)
+    long getLastUse ()
+    {
+	synchronized (fileLock) {
+	    return lastUse;
+	}
+    }
+
+    /**
+     * Closes the device file if it's not in use; it's reopened
+     * as needed.  Returns true if the file is closed.
+     */
+    // package private (for FilePool)
+    boolean park ()
+    {
+	synchronized (fileLock) {
+	    if (closed || fd < 0)
+		return true;
+	    // closing the file would drop the kernel's claims, and
+	    // something else could claim those interfaces before a reopen
+	    if (users != 0 || !subscriptions.isEmpty () || !engine.isIdle ()
+		    || !mapped.isEmpty () || !streams.isEmpty ()
+		    || !claimed.isEmpty ())
+		return false;
+
+	    engine.detach ();
+	    Kernel.sys.close (fd);
+	    engine.close ();
+	    engine = null;
+	    fd = -1;
+	}
+	FilePool.closed (this);
 	if (Linux.trace)
-	    System.err.println ("new: " + path);
+	    System.err.println ("park: " + path);
+	return true;
     }
 
     public String toString ()
     {
 	StringBuffer	buf = new StringBuffer ("{Linux Device: ");
-	String		prod = descriptor.getProduct (0);
+	String		prod;
+
+	// sysfs has the product string; don't open the device for it
+	if (sysfs != null)
+	    prod = sysfs.product;
+	else
+	    prod = descriptor.getProduct (0);
 
 	buf.append (path);
 	if (prod != null) {
@@ -162,21 +384,46 @@ final class DeviceImpl extends Device implements DeviceSPI
     void close ()
     throws USBException
     {
-	if (fd < 0)
-	    return;
+	int		f;
+	URBEngine	e;
+
+	synchronized (fileLock) {
+	    if (closed)
+		return;
+	    closed = true;
+	    f = fd;
+	    e = engine;
+	    fd = -1;
+	}
+
 
 	try {
 	    // make sure this isn't usable any more
-	    int status = closeNative (fd);
-	    if (status < 0)
-		throw new USBException (
-			"error closing device",
-			-status);
+	    if (f >= 0) {
+		e.detach ();
+		int status = Kernel.sys.close (f);
+		if (status < 0)
+		    throw new USBException (
+			    "error closing device",
+			    -status);
+	    }
 	} finally {
 	    // make sure nobody else sees the device
+	    FilePool.closed (this);
 	    usb.removeDev (this);
 	    hub = null;
-	    fd = -1;
+	    if (e != null)
+		e.close ();
+
+	    // closing killed any URBs using DMA memory; it stays
+	    // charged to usbfs until it's unmapped
+	    synchronized (fileLock) {
+		for (int i = 0; i < mapped.size (); i++)
+		    unmap ((ByteBuffer) mapped.elementAt (i),
+			    (ByteBuffer) views.elementAt (i));
+		mapped.removeAllElements ();
+		views.removeAllElements ();
+	    }
 	}
     }
 
@@ -239,6 +486,9 @@ final class DeviceImpl extends Device implements DeviceSPI
      */
     public String getPath () { return path; }
 
+    // package private
+    Sysfs getSysfs () { return sysfs; }
+
 	// uses the system locale ...
 	// perfect for server/implementation, maybe not for clients.
 	// Locale is also not available on all systems; may need
@@ -316,11 +566,14 @@ final class DeviceImpl extends Device implements DeviceSPI
 	String	retval = null;
 
 	if (stringCache == null) {
-	    synchronized (lock) {
+	    stringLock.lock ();
+	    try {
 		if (stringCache == null) {
 		    cachedLanguage = language;
 		    stringCache = new Hashtable (7);
 		}
+	    } finally {
+		stringLock.unlock ();
 	    }
 /**/
 	} else if (stringCache.containsKey (key)) {
@@ -333,22 +586,41 @@ final class DeviceImpl extends Device implements DeviceSPI
 /**/
 	}
 
+	// maybe an earlier run read it
+	if (cached != null)
+	    retval = cached.getString (id, language);
+	if (retval != null) {
+	    stringCache.put (key, retval);
+	    return retval;
+	}
+
 	retval = ControlMessage.getString (this, (byte) id, language);
 
 	if (retval == null)	// negative caching
 	    stringCache.put (key, Boolean.FALSE);
-	else			// positive caching
+	else {			// positive caching
 	    stringCache.put (key, retval);
+	    if (cached != null)
+		cached.putString (id, language, retval);
+	}
 	return retval;
     }
 
     public int [] getLanguages ()
     throws IOException
     {
-	synchronized (lock) {
-	    if (!checkedStrings)
+	stringLock.lock ();
+	try {
+	    if (!checkedStrings && cached != null)
+		languages = cached.getLanguages ();
+	    if (!checkedStrings && languages == null) {
 		languages = ControlMessage.getLanguages (this);
+		if (languages != null && cached != null)
+		    cached.putLanguages (languages);
+	    }
         checkedStrings = true;    //if don't set this can get repetitive lookup failures?  -- Wayne Westerman
+	} finally {
+	    stringLock.unlock ();
 	}
 
 	if (languages == null)
@@ -407,7 +679,21 @@ final class DeviceImpl extends Device implements DeviceSPI
 	    throw new IllegalArgumentException ();
 
 	synchronized (lock) {
-	    if ((status = setConfiguration (fd, index)) < 0)
+	    URBEngine	e;
+
+	    checkRings (-1);
+	    e = acquire ();
+	    try {
+		quiesce (e, null);
+		try {
+		    status = Kernel.sys.setConfiguration (e.getFd (), index);
+		} finally {
+		    gate.resume ();
+		}
+	    } finally {
+		release ();
+	    }
+	    if (status < 0)
 		throw new USBException ("can't set configuration", -status);
 	    if (selectedConfig != index) {
 		selectedConfig = index;
@@ -417,9 +703,28 @@ final class DeviceImpl extends Device implements DeviceSPI
     }
 
 
-    // usbdevfs-imposed limitation; USB limit is 64KB
+    // usbfs limits control transfers to Capabilities.controlLimit;
+    // the USB limit is 64KB.  Every control transfer is a control URB
+    // whose future is waited for, so none blocks in USBDEVFS_CONTROL
+    // (which also only handles one page).
 
-    private static final int MAX_CONTROL_LENGTH = 4096;
+    private int control (byte type, byte request,
+	    short value, short index, byte buf [], int off, int length)
+    {
+	URBEngine	e;
+
+	try {
+	    e = acquire ();
+	} catch (USBException x) {
+	    return -x.getErrno ();
+	}
+	try {
+	    return e.control (type, request, value, index,
+		    buf, off, length);
+	} finally {
+	    release ();
+	}
+    }
 
 
     public byte [] readControl (byte type, byte request,
@@ -429,7 +734,8 @@ final class DeviceImpl extends Device implements DeviceSPI
 	byte	data [] = new byte [length & 0xffff];
 	int	status;
 
-	if (length >= MAX_CONTROL_LENGTH
+	probe ();
+	if ((length & 0xffff) > Capabilities.controlLimit
 		|| (type & ControlMessage.DIR_TO_HOST) == 0)
 	    throw new IllegalArgumentException ();
 
@@ -442,8 +748,8 @@ final class DeviceImpl extends Device implements DeviceSPI
 		+ ", len " + Integer.toString (0xffff & length)
 		);
 
-	status = controlMsg (fd, type, request, value, index,
-		data, 0, (short) data.length);
+	status = control (type, request, value, index,
+		data, 0, data.length);
 	if (status >= 0) {
 	    if (status != data.length) {
 		byte temp [] = new byte [status];
@@ -463,7 +769,8 @@ final class DeviceImpl extends Device implements DeviceSPI
             //assume we're doing a No-Data-Control, and somebody has to make a 0-length buf
             buf = new byte[0];
         }
-	if (buf.length >= MAX_CONTROL_LENGTH
+	probe ();
+	if (buf.length > Capabilities.controlLimit
 		|| (type & ControlMessage.DIR_TO_HOST) != 0)
 	    throw new IllegalArgumentException ();
 
@@ -476,23 +783,154 @@ final class DeviceImpl extends Device implements DeviceSPI
 		+ ", len " + Integer.toString (buf.length)
 		);
 
-	int status = controlMsg (fd, type, request, value, index,
-		buf, 0, (short) buf.length);
+	int status = control (type, request, value, index,
+		buf, 0, buf.length);
+	if (status < 0)
+	    throw new USBException ("control write error", -status);
+    }
+
+    public int readControl (byte type, byte request,
+	    short value, short index, ByteBuffer buf)
+    throws IOException
+    {
+	int	pos = buf.position ();
+	int	length = buf.remaining ();
+	int	status;
+
+	probe ();
+	if (length > Capabilities.controlLimit
+		|| (type & ControlMessage.DIR_TO_HOST) == 0)
+	    throw new IllegalArgumentException ();
+	if (buf.isReadOnly ())
+	    throw new ReadOnlyBufferException ();
+
+	if (Linux.trace)
+	    System.out.println (
+		  "Dev.readControl, rqt 0x" + Integer.toHexString (0xff & type)
+		+ ", req 0x" + Integer.toHexString (0xff & request)
+		+ ", value 0x" + Integer.toHexString (0xffff & value)
+		+ ", index 0x" + Integer.toHexString (0xffff & index)
+		+ ", len " + Integer.toString (length)
+		);
+
+	if (!buf.isDirect ())
+	    status = control (type, request, value, index,
+		    buf.array (), buf.arrayOffset () + pos, length);
+	else {
+	    // control URBs need the SETUP packet ahead of the data
+	    byte	temp [] = new byte [length];
+
+	    status = control (type, request, value, index,
+		    temp, 0, length);
+	    if (status > 0)
+		buf.duplicate ().put (temp, 0, status);
+	}
+	if (status < 0)
+	    throw new USBException ("control read error", -status);
+	buf.position (pos + status);
+	return status;
+    }
+
+    public int writeControl (byte type, byte request,
+	    short value, short index, ByteBuffer buf)
+    throws IOException
+    {
+	int	pos = buf.position ();
+	int	length = buf.remaining ();
+	int	status;
+
+	probe ();
+	if (length > Capabilities.controlLimit
+		|| (type & ControlMessage.DIR_TO_HOST) != 0)
+	    throw new IllegalArgumentException ();
+
+	if (Linux.trace)
+	    System.out.println (
+		  "Dev.writeControl, rqt 0x" + Integer.toHexString (0xff & type)
+		+ ", req 0x" + Integer.toHexString (0xff & request)
+		+ ", value 0x" + Integer.toHexString (0xffff & value)
+		+ ", index 0x" + Integer.toHexString (0xffff & index)
+		+ ", len " + Integer.toString (length)
+		);
+
+	if (buf.hasArray ())
+	    status = control (type, request, value, index,
+		    buf.array (), buf.arrayOffset () + pos, length);
+	else {
+	    // direct or read-only buffer
+	    byte	temp [] = new byte [length];
+
+	    buf.duplicate ().get (temp);
+	    status = control (type, request, value, index,
+		    temp, 0, length);
+	}
 	if (status < 0)
 	    throw new USBException ("control write error", -status);
+	buf.position (pos + status);
+	return status;
+    }
+
+    /**
+     * Queues a control URB; any number may be queued, and usbfs
+     * issues them in order.  Their completions are reaped like any
+     * other URB's, so nothing waits for them here.
+     */
+    public void submitControl (PendingControl req)
+    throws IOException
+    {
+	URBEngine	e;
+	int		status;
+
+	probe ();
+	if (req.getData ().length > Capabilities.controlLimit)
+	    throw new IllegalArgumentException ();
+
+	e = acquire ();
+	try {
+	    status = e.submitControl (req);
+	} finally {
+	    release ();
+	}
+	if (status < 0)
+	    throw new USBException ("submitControl", -status);
     }
 
     public byte [] getConfigBuf (int n)
     throws IOException
     {
 	byte		buf [];
+	byte		shared [] = null;
 	Configuration	config;
 	int		total;
 
+	// sysfs has them all, read when the device was enumerated
+	if (sysfs != null && (buf = sysfs.getConfigBuf (n)) != null)
+	    return buf;
+
+	// ... else maybe an earlier run read them
+	if (cached != null && (buf = cached.getConfig (n, true)) != null) {
+	    if (!cached.isBorrowed (n))
+		return buf;
+	    shared = buf;
+	}
+
 	// start by reading just the configuration descriptor
 	buf = ControlMessage.getStandardDescriptor (this,
 			Descriptor.TYPE_CONFIGURATION,
 			(byte) n, 0, 9);
+
+	// an identical device's configuration is used if this one
+	// starts the same way, including wTotalLength
+	if (shared != null && buf.length == 9 && shared.length >= 9) {
+	    int	i;
+
+	    for (i = 0; i < 9 && buf [i] == shared [i]; i++)
+		continue;
+	    if (i == 9) {
+		cached.putConfig (n, shared);
+		return shared;
+	    }
+	}
 	config = new Configuration (this, buf);
 
 	// return ALL descriptors (interface, endpoint, ...)
@@ -502,50 +940,60 @@ final class DeviceImpl extends Device implements DeviceSPI
 			Descriptor.TYPE_CONFIGURATION,
 			(byte) n, 0, total);
 	}
+	if (cached != null)
+	    cached.putConfig (n, buf);
 	return buf;
     }
 
     /*-------------------------------------------------------------------*/
 
     /*
-     * Native code support.
-     * All these methods return negative errno on error.
-     *
-     * Since most of them use ioctl(), which "green" threads doesn't wrap,
-     * you should use "-native" threading when you start your JVM.
-     * EINTR seems to mean "use native threads!".
+     * Kernel access; see {@link Kernel}.
+     * Its methods return negative errno on error.
      */
 
-    /** Connects to preliminary usbdevfs device state */
-    private int		fd;
+    /** Connects to preliminary usbdevfs device state; opened on demand */
+    private int		fd = -1;
+    private boolean	closed;
+
+    /** Protects the file and what's needed to reopen it */
+    private final Object	fileLock = new Object ();
 
+    /** I/O calls in progress, keeping the file open */
+    private int		users;
+    private long	lastUse;
 
+    /** Interfaces claimed (Integer); their files stay open */
+    private final Vector	claimed = new Vector (2);
 
-    /** Opens the usb devfs file.  */
-    private static native int openNative (String filename);
+    /** Queues asynchronous requests on that fd */
+    private URBEngine	engine;
 
-    /** Closes the native file descriptor.  */
-    private static native int closeNative (int fd);
+    /** Interrupt endpoints being watched */
+    private final Vector	subscriptions = new Vector (2);
 
+    /**
+     * usbfs DMA buffers, only usable while the file stays open; and
+     * the views of them that callers were given.  We unmap using the
+     * buffers in "mapped", which callers never see.
+     */
+    private final Vector	mapped = new Vector (2);
+    private final Vector	views = new Vector (2);
 
-    private static native int controlMsg (int fd,
-			    byte requestType, byte request,
-			    short value, short index,
-			    byte buf [], int off, short length);
+    /** Open iso streams and bulk input channels; see checkRings() */
+    private final Vector	rings = new Vector (2);
+
+    /** Endpoints (Integer) with streams, which closing would free */
+    private final Vector	streams = new Vector (2);
 
 
-    /** Assigns the specified configuration as current. */
-    private static native int setConfiguration (int fd, int config);
 
 	// XXX some of these I/O methods should pass timeouts
 	// to support some sort of clean activity shutdown
-	// (policy in the Java layer, not inside this JNI glue)
+	// (policy in the Java layer, not inside the kernel glue)
 	// (glue policy is a 10 second timeout at this writing)
 
 
-    private static native int readBulk (int fd, int ep,
-	    byte buf [], int off, int length);
-
     // this is the API imposed by RMI.
     // forces an extra rx copy, also heap access
     public byte [] readBulk (int ep, int length)
@@ -568,34 +1016,15 @@ final class DeviceImpl extends Device implements DeviceSPI
     // minimum # copies, heap is left alone
     public int readBulk (int ep, byte buf [], int off, int length)
     {
-	// devfs currently maxes out at 4KB bulk transfers
-	// FIXME no more; up to 128KB should work, though
-	// not on older kernels.  big buffers make a HUGE
-	// performance difference.
-	int result = 0;
-
-	while (length > 0) {
-	    int this_transfer = Math.min (length, 4096);
-	    int temp = readBulk (fd, ep, buf, off, this_transfer);
+	// URBs are as big as this kernel's usbfs allows, since
+	// big buffers make a HUGE performance difference.
 
-	    // error ... discarding how much we've read
-	    if (temp < 0)
-		return temp;
-	    off += temp;
-	    length -= temp;
-	    result += temp;
-
-	    // short reads should return
-	    if (temp < this_transfer)
-		break;
-	}
-	return result;
+	// several URBs stay queued; short reads end the transfer,
+	// and errors discard how much we've read
+	return transfer (URB.TYPE_BULK, ep, 0, buf, off, length);
     }
 
 
-    private static native int writeBulk (int fd, int ep,
-	    byte buf [], int off, int length);
-
     // this is the API imposed by RMI.
     // usually forces an extra tx copy, and heap access
     public void
@@ -609,30 +1038,392 @@ final class DeviceImpl extends Device implements DeviceSPI
     writeBulk (int ep, byte buf [], int off, int length)
     throws USBException
     {
-	// devfs currently maxes out at 4KB bulk transfers
-	int result = 0;
+	// usbfs limits URB sizes (see Capabilities);
+	// several URBs stay queued, so the bus doesn't idle
+	int result = transfer (URB.TYPE_BULK, ep, 0, buf, off, length);
+
+	if (result < 0)
+	    throw new USBException ("writeBulk", -result);
+    }
+
 
-	while (length > 0) {
-	    int this_transfer = Math.min (length, 4096);
-	    result = writeBulk (fd, ep, buf, off, this_transfer);
-	    if (result < 0)
-		throw new USBException ("writeBulk", -result);
-	    off += this_transfer;
-	    length -= this_transfer;
+
+    // BufferSPI:  data moves in place, using direct buffers
+    // where possible; heap buffers use their backing arrays.
+
+    public int readBulk (int ep, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_BULK, ep, 0, buf, "readBulk"); }
+
+    public int writeBulk (int ep, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_BULK, ep, 0, buf, "writeBulk"); }
+
+    public int readIntr (int ep, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_INTERRUPT, ep, 0, buf, "readIntr"); }
+
+    public int writeIntr (int ep, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_INTERRUPT, ep, 0, buf, "writeIntr"); }
+
+    /**
+     * Returns a buffer in usbfs DMA memory when the kernel supports
+     * that (since 4.6); URBs using it skip the kernel's copy.  The
+     * device file stays open until all such buffers are freed, or
+     * the device is closed; either way the memory is then unmapped,
+     * and the buffer is left with a zero limit.  Views made from it
+     * must not be used after that; they'd crash the JVM.
+     */
+    public ByteBuffer allocate (int size)
+    throws IOException
+    {
+	URBEngine	e;
+	ByteBuffer	retval = null;
+
+	if (size < 0)
+	    throw new IllegalArgumentException ();
+	e = acquire ();
+	try {
+	    ByteBuffer	map = null;
+
+	    if (size > 0 && Capabilities.has (Capabilities.CAP_MMAP))
+		map = Kernel.sys.mapBuffer (e.getFd (), size);
+	    if (map != null) {
+		retval = map.duplicate ();
+		synchronized (fileLock) {
+		    mapped.addElement (map);
+		    views.addElement (retval);
+		}
+	    }
+	} finally {
+	    release ();
+	}
+	if (retval == null) {
+	    if (Linux.debug && Capabilities.has (Capabilities.CAP_MMAP))
+		System.err.println ("mmap failed: " + path + ", " + size);
+	    retval = ByteBuffer.allocateDirect (size);
 	}
+	return retval;
     }
 
+    public void free (ByteBuffer buf)
+    {
+	ByteBuffer	map = null;
+
+	// by identity; equals() compares contents
+	synchronized (fileLock) {
+	    for (int i = 0; i < views.size (); i++) {
+		if (views.elementAt (i) == buf) {
+		    map = (ByteBuffer) mapped.elementAt (i);
+		    mapped.removeElementAt (i);
+		    views.removeElementAt (i);
+		    break;
+		}
+	    }
+	}
+	if (map != null)
+	    unmap (map, buf);
+    }
 
+    // the caller's view gets nothing to read or write, so using it
+    // throws exceptions rather than touching unmapped memory
+    private static void unmap (ByteBuffer map, ByteBuffer view)
+    {
+	view.clear ();
+	view.limit (0);
+	Kernel.sys.unmapBuffer (map);
+    }
+
+    // gathering and scattering:  each URB's buffer spans the
+    // caller's buffers, so packets only end short at the end.
+    // These block; a completion listener (on the reaper) gets EBUSY
+    // instead if other transfers are ahead of it on the endpoint.
 
-    private static native int readIntr (int fd, int ep,
-	    byte buf [], int off, int length);
+    public long readBulk (int ep, ByteBuffer bufs [], int offset, int length)
+    throws IOException
+    {
+	for (int i = offset; i < offset + length; i++) {
+	    if (bufs [i].isReadOnly ())
+		throw new ReadOnlyBufferException ();
+	}
+	return transfer (ep, bufs, offset, length, "readBulk");
+    }
 
+    public long writeBulk (int ep, ByteBuffer bufs [], int offset, int length)
+    throws IOException
+	{ return transfer (ep, bufs, offset, length, "writeBulk"); }
+
+    private long transfer (int ep, ByteBuffer bufs [], int offset,
+	    int length, String what)
+    throws USBException
+    {
+	URBEngine	e;
+	long		status;
+
+	if (offset < 0 || length < 0 || offset + length > bufs.length)
+	    throw new IndexOutOfBoundsException ();
+	e = acquire ();
+	try {
+	    int		key = TransferGate.key (ep, 0);
+
+	    gate.enter (key);
+	    try {
+		status = e.transfer (URB.TYPE_BULK, ep, bufs, offset, length);
+	    } finally {
+		gate.leave (key);
+	    }
+	} finally {
+	    release ();
+	}
+	if (status < 0)
+	    throw new USBException (what, (int) -status);
+	return status;
+    }
+
+    private int transfer (int type, int ep, int stream, ByteBuffer buf,
+	    String what)
+    throws USBException
+    {
+	int	pos = buf.position ();
+	int	status;
+
+	if ((ep & 0x80) != 0 && buf.isReadOnly ())
+	    throw new ReadOnlyBufferException ();
+
+	if (buf.isDirect ())
+	    status = transfer (type, ep, stream, buf, pos, buf.remaining ());
+	else if (buf.hasArray ())
+	    status = transfer (type, ep, stream, buf.array (),
+		    buf.arrayOffset () + pos, buf.remaining ());
+	else {
+	    // read-only heap buffer
+	    byte	temp [] = new byte [buf.remaining ()];
+
+	    buf.duplicate ().get (temp);
+	    status = transfer (type, ep, stream, temp, 0, temp.length);
+	}
+	if (status < 0)
+	    throw new USBException (what, -status);
+	buf.position (pos + status);
+	return status;
+    }
+
+    // returns bytes transferred, else negative errno
+    private int transfer (int type, int ep, int stream,
+	    byte buf [], int off, int len)
+    {
+	AsyncTransfer	t;
+
+	try {
+	    t = start (type, ep, stream, buf, null, off, len, null, null);
+	} catch (USBException x) {
+	    return -x.getErrno ();
+	}
+	return t.await ();
+    }
+
+    private int transfer (int type, int ep, int stream,
+	    ByteBuffer buf, int off, int len)
+    {
+	AsyncTransfer	t;
+
+	try {
+	    t = start (type, ep, stream, null, buf, off, len, null, null);
+	} catch (USBException x) {
+	    return -x.getErrno ();
+	}
+	return t.await ();
+    }
+
+    // blocking transfers are queued ones that get waited for; the
+    // file stays open until transferDone()
+    private AsyncTransfer start (int type, int ep, int stream,
+	    byte array [], ByteBuffer direct, int off, int len,
+	    PendingTransfer req, String what)
+    throws USBException
+    {
+	int		key = TransferGate.key (ep, stream);
+	AsyncTransfer	t;
+
+	t = new AsyncTransfer (this, acquire (), key, type, ep, stream,
+		array, direct, off, len, req, what);
+	transfers.addElement (t);
+	gate.enter (key, t);
+	return t;
+    }
+
+    // package private:  each started transfer ends with this
+    void transferDone (AsyncTransfer t)
+    {
+	transfers.removeElement (t);
+	gate.leave (t.getKey ());
+	release ();
+    }
+
+
+    // TransferSPI:  queued transfers complete on the reaper thread
+
+    public void submitBulk (int ep, PendingTransfer req)
+    throws IOException
+	{ submit (URB.TYPE_BULK, ep, req, "submitBulk"); }
+
+    public void submitIntr (int ep, PendingTransfer req)
+    throws IOException
+	{ submit (URB.TYPE_INTERRUPT, ep, req, "submitIntr"); }
+
+    private void submit (int type, int ep, PendingTransfer req, String what)
+    throws USBException
+    {
+	ByteBuffer	buf = req.getBuffer ();
+	int		pos = buf.position ();
+
+	if ((ep & 0x80) != 0 && buf.isReadOnly ())
+	    throw new ReadOnlyBufferException ();
+
+	if (buf.isDirect ())
+	    start (type, ep, 0, null, buf, pos, buf.remaining (), req, what);
+	else if (buf.hasArray ())
+	    start (type, ep, 0, buf.array (), null,
+		    buf.arrayOffset () + pos, buf.remaining (), req, what);
+	else {
+	    // read-only heap buffer
+	    byte	temp [] = new byte [buf.remaining ()];
+
+	    buf.duplicate ().get (temp);
+	    start (type, ep, 0, temp, null, 0, temp.length, req, what);
+	}
+    }
+
+
+    // StreamSPI:  USB 3 bulk streams; each URB is tagged with its
+    // stream ID, so transfers on different streams run concurrently
+
+    public int allocStreams (int count, int eps [])
+    throws IOException
+    {
+	byte		addrs [] = new byte [eps.length];
+	URBEngine	e;
+	int		status;
+
+	for (int i = 0; i < eps.length; i++)
+	    addrs [i] = (byte) eps [i];
+	e = acquire ();
+	try {
+	    status = Kernel.sys.allocStreams (e.getFd (), count, addrs);
+	    if (status > 0) {
+		synchronized (fileLock) {
+		    for (int i = 0; i < eps.length; i++) {
+			Integer	key = new Integer (eps [i]);
+
+			if (!streams.contains (key))
+			    streams.addElement (key);
+		    }
+		}
+	    }
+	} finally {
+	    release ();
+	}
+	if (status < 0)
+	    throw new USBException ("allocStreams", -status);
+	return status;
+    }
+
+    public void freeStreams (int eps [])
+    throws IOException
+    {
+	byte		addrs [] = new byte [eps.length];
+	URBEngine	e;
+	int		status;
+
+	for (int i = 0; i < eps.length; i++)
+	    addrs [i] = (byte) eps [i];
+	e = acquire ();
+	try {
+	    status = Kernel.sys.freeStreams (e.getFd (), addrs);
+	    synchronized (fileLock) {
+		for (int i = 0; i < eps.length; i++)
+		    streams.removeElement (new Integer (eps [i]));
+	    }
+	} finally {
+	    release ();
+	}
+	if (status < 0)
+	    throw new USBException ("freeStreams", -status);
+    }
+
+    public int readStream (int ep, int stream, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_BULK, ep, stream, buf, "readStream"); }
+
+    public int writeStream (int ep, int stream, ByteBuffer buf)
+    throws IOException
+	{ return transfer (URB.TYPE_BULK, ep, stream, buf, "writeStream"); }
+
+
+    // IsochronousSPI:  a ring of multi-packet URBs stays queued
+
+    public IsoStream openIsochronous (int ep, int packetSize,
+	    int packets, int queued, int synchFrame, int period)
+    throws IOException
+    {
+	probe ();
+	if (packetSize <= 0 || queued <= 0 || period < 0
+		|| packets <= 0 || packets > Capabilities.ISO_PACKETS
+		|| packets * packetSize > Capabilities.isoLimit)
+	    throw new IllegalArgumentException ();
+	// the stream's URBs keep the file open
+	URBEngine	e = acquire ();
+
+	try {
+	    IsoStreamImpl	retval;
+
+	    retval = new IsoStreamImpl (e, ep, packetSize,
+		    packets, queued, synchFrame, period);
+	    synchronized (rings) {
+		rings.addElement (retval);
+	    }
+	    return retval;
+	} finally {
+	    release ();
+	}
+    }
+
+    public ScatteringByteChannel openBulkInput (int ep, int size, int count)
+    throws IOException
+    {
+	// each read is one URB
+	probe ();
+	if (size <= 0 || size > Capabilities.bulkLimit || count < 2
+		|| (ep & 0x80) == 0)
+	    throw new IllegalArgumentException ();
+	// the channel's URBs keep the file open
+	URBEngine	e = acquire ();
+
+	try {
+	    BulkInputChannel	retval;
+
+	    retval = new BulkInputChannel (this, e, ep, size, count);
+	    synchronized (rings) {
+		rings.addElement (retval);
+	    }
+	    return retval;
+	} finally {
+	    release ();
+	}
+    }
+
+
+    // interrupt URBs, unlike bulk ones, make the host controller
+    // poll at the endpoint's interval
     public byte [] readIntr (int ep, int length)
+    throws IOException
     {
 	byte retval [] = new byte [length];
-	int len = readBulk (fd, ep, retval, 0, length);
-	// int len = readIntr (fd, ep, retval, 0, length);
+	int len = transfer (URB.TYPE_INTERRUPT, ep, 0, retval, 0, length);
 
+	if (len < 0)
+	    throw new USBException ("readIntr", -len);
 	if (len != length) {
 	    byte temp [] = new byte [len];
 	    System.arraycopy (retval, 0, temp, 0, len);
@@ -642,28 +1433,91 @@ final class DeviceImpl extends Device implements DeviceSPI
     }
 
 
-    private static native int writeIntr (int fd, int ep,
-	    byte buf [], int off, int length);
-
     public void
     writeIntr (int ep, byte buf [])
     throws USBException
     {
-	// int retval = writeIntr (fd, ep, buf, 0, buf.length);
-	int retval = writeBulk (fd, ep, buf, 0, buf.length);
+	int retval = transfer (URB.TYPE_INTERRUPT, ep, 0, buf, 0, buf.length);
 	if (retval < 0)
 	    throw new USBException ("writeIntr", -retval);
     }
 
 
-    private static native int clearHalt (int fd, byte ep);
+    // InterruptSPI:  an interrupt URB stays queued for each
+    // subscription, and one thread reaps them for all devices
+
+    public void subscribe (int ep, ReportBuffer buf)
+    throws IOException
+    {
+	Subscription	sub;
+
+	if ((ep & 0x80) == 0)
+	    throw new IllegalArgumentException ();
+
+	// once it's started, the subscription keeps the file open
+	URBEngine	e = acquire ();
+
+	try {
+	    synchronized (subscriptions) {
+		if (find (ep, buf) != null)
+		    throw new IllegalStateException ("already subscribed");
+		sub = new Subscription (e, ep, buf);
+		subscriptions.addElement (sub);
+	    }
+	    try {
+		sub.start ();
+	    } catch (USBException x) {
+		subscriptions.removeElement (sub);
+		throw x;
+	    }
+	} finally {
+	    release ();
+	}
+    }
+
+    public void unsubscribe (int ep, ReportBuffer buf)
+    throws IOException
+    {
+	Subscription	sub;
+
+	synchronized (subscriptions) {
+	    if ((sub = find (ep, buf)) == null)
+		return;
+	    subscriptions.removeElement (sub);
+	}
+	sub.stop ();
+    }
+
+    private Subscription find (int ep, ReportBuffer buf)
+    {
+	for (int i = 0; i < subscriptions.size (); i++) {
+	    Subscription sub = (Subscription) subscriptions.elementAt (i);
+
+	    if (sub.getEndpoint () == ep && sub.getBuffer () == buf)
+		return sub;
+	}
+	return null;
+    }
+
 
     // package private
     public
-    int clearHalt (byte ep) { return clearHalt (fd, ep); }
+    int clearHalt (byte ep)
+    {
+	URBEngine	e;
 
+	try {
+	    e = acquire ();
+	} catch (USBException x) {
+	    return -x.getErrno ();
+	}
+	try {
+	    return Kernel.sys.clearHalt (e.getFd (), ep);
+	} finally {
+	    release ();
+	}
+    }
 
-    private static native int claimInterface (int fd, int ifno);
 
     /**
      * Claims this interface, so that no other driver can.
@@ -671,30 +1525,57 @@ final class DeviceImpl extends Device implements DeviceSPI
     public void claimInterface (int ifno)
     throws IOException
     {
-	int val = claimInterface (fd, ifno);
+	URBEngine	e = acquire ();
+	int		val;
+
+	try {
+	    val = Kernel.sys.claimInterface (e.getFd (), ifno);
+
+	    // if the file is closed and reopened, claim it again
+	    if (val >= 0) {
+		synchronized (fileLock) {
+		    Integer	key = new Integer (ifno);
+
+		    if (!claimed.contains (key))
+			claimed.addElement (key);
+		}
+	    }
+	} finally {
+	    release ();
+	}
 	if (val < 0)
 	    throw new USBException ("claimInterface", -val);
     }
 
 
-
-    // usbdevfs is done using this interface
-    private static native int releaseInterface (int fd, int ifno);
-
     /**
      * Releases an interface claim.
      */
     public void releaseInterface (int ifno)
     throws IOException
     {
-	int val = releaseInterface (fd, ifno);
+	URBEngine	e = acquire ();
+	int		val;
+
+	try {
+	    synchronized (fileLock) {
+		Integer	key = new Integer (ifno);
+
+		claimed.removeElement (key);
+
+		// the kernel frees streams with their interface
+		if (claimed.isEmpty ())
+		    streams.removeAllElements ();
+	    }
+	    val = Kernel.sys.releaseInterface (e.getFd (), ifno);
+	} finally {
+	    release ();
+	}
 	if (val < 0)
 	    throw new USBException ("releaseInterface", -val);
     }
 
 
-    private static native int setInterface (int fd, int ifno, int alt);
-
     /**
      * Assigns an interface to an alternate setting.
      * <em>Note:</em>  alternate settings probably
@@ -703,13 +1584,175 @@ final class DeviceImpl extends Device implements DeviceSPI
     public void setInterface (int ifno, int alt)
     throws IOException
     {
-	int val = setInterface (fd, ifno, alt);
+	URBEngine	e;
+	int		val;
+
+	checkRings (ifno);
+	e = acquire ();
+	try {
+	    quiesce (e, endpoints (ifno));
+	    try {
+		val = Kernel.sys.setInterface (e.getFd (), ifno, alt);
+	    } finally {
+		gate.resume ();
+	    }
+	} finally {
+	    release ();
+	}
 	if (val < 0)
 	    throw new USBException ("setInterface", -val);
     }
 
 
-    private static native int getHubPorts (int fd, byte data []);
+    /*
+     * Changing an altsetting makes usbfs kill the URBs on that
+     * interface's endpoints; changing the configuration, all of them.
+     * Transfers there are cancelled first (see quiesce), but
+     * interrupt subscriptions, iso streams, and bulk input channels
+     * keep URBs queued until they're closed.  Their owners would just
+     * see errors, so refuse the change until they're closed.
+     *
+     * "ifno" is the interface changing, or -1 for all of them.
+     */
+    private void checkRings (int ifno)
+    throws USBException
+    {
+	Vector	eps = new Vector ();
+
+	synchronized (subscriptions) {
+	    for (int i = 0; i < subscriptions.size (); i++)
+		eps.addElement (new Integer (((Subscription)
+			subscriptions.elementAt (i)).getEndpoint ()));
+	}
+	synchronized (rings) {
+	    for (int i = rings.size () - 1; i >= 0; i--) {
+		Object	ring = rings.elementAt (i);
+
+		if (ring instanceof IsoStreamImpl) {
+		    IsoStreamImpl	iso = (IsoStreamImpl) ring;
+
+		    if (iso.isOpen ())
+			eps.addElement (new Integer (iso.getEndpoint ()));
+		    else
+			rings.removeElementAt (i);
+		} else {
+		    BulkInputChannel	in = (BulkInputChannel) ring;
+
+		    if (in.isOpen ())
+			eps.addElement (new Integer (in.getEndpoint ()));
+		    else
+			rings.removeElementAt (i);
+		}
+	    }
+	}
+
+	for (int i = 0; i < eps.size (); i++) {
+	    int		ep = ((Integer) eps.elementAt (i)).intValue ();
+	    Endpoint	endpoint = null;
+
+	    if (ifno >= 0) {
+		try {
+		    endpoint = getConfiguration ().findEndpoint (ep);
+		} catch (IOException x) {
+		    // can't tell; assume it's affected
+		}
+		if (endpoint != null
+			&& endpoint.getInterface ().getNumber () != ifno)
+		    continue;
+	    }
+	    throw new USBException ("endpoint 0x" + Integer.toHexString (ep)
+		    + " has I/O queued; close it first", USBException.EBUSY);
+	}
+    }
+
+
+    /*
+     * Before a change, holds the endpoints it affects ("eps", or all
+     * of them if that's null) and cancels the transfers there, much
+     * as usbfs would; they fail with ENOENT.  The change then waits
+     * for the kernel to give back their URBs.  A completion listener
+     * may make the change on the reaper thread, which reaps them
+     * itself.  If they're not back in time, fails with EBUSY;
+     * otherwise the caller must gate.resume() after the change.
+     */
+    private void quiesce (URBEngine e, int eps [])
+    throws USBException
+    {
+	Object		list [];
+	long		deadline;
+	boolean		busy;
+
+	gate.hold (eps);
+
+	list = transfers.toArray ();
+	for (int i = 0; i < list.length; i++) {
+	    AsyncTransfer	t = (AsyncTransfer) list [i];
+
+	    if (affects (eps, t.getEndpoint ()))
+		t.cancel (-USBException.ENOENT);
+	}
+
+	deadline = System.currentTimeMillis () + URBEngine.TIMEOUT;
+	if (Reaper.isReaper ()) {
+	    busy = gate.isBusy ();
+	    while (busy) {
+		long	now = System.currentTimeMillis ();
+
+		if (now >= deadline || !e.reapOne ((int) (deadline - now)))
+		    break;
+		busy = gate.isBusy ();
+	    }
+	} else
+	    busy = !gate.drain (URBEngine.TIMEOUT);
+
+	if (busy) {
+	    gate.resume ();
+	    throw new USBException ("transfers still running",
+		    USBException.EBUSY);
+	}
+    }
+
+    private static boolean affects (int eps [], int ep)
+    {
+	if (eps == null)
+	    return true;
+	for (int i = 0; i < eps.length; i++)
+	    if ((0xff & eps [i]) == (0xff & ep))
+		return true;
+	return false;
+    }
+
+    // the endpoints of an interface, in any altsetting; null if
+    // that's not known
+    private int [] endpoints (int ifno)
+    {
+	Vector		found = new Vector ();
+	Configuration	config;
+	int		retval [];
+
+	try {
+	    config = getConfiguration ();
+	    if (config == null)
+		return null;
+	    for (int ep = 1; ep <= 0x8f; ep++) {
+		Endpoint	endpoint;
+
+		if (ep == 0x10)
+		    ep = 0x81;
+		endpoint = config.findEndpoint (ep);
+		if (endpoint != null
+			&& endpoint.getInterface ().getNumber () == ifno)
+		    found.addElement (new Integer (ep));
+	    }
+	} catch (IOException x) {
+	    return null;
+	}
+	retval = new int [found.size ()];
+	for (int i = 0; i < retval.length; i++)
+	    retval [i] = ((Integer) found.elementAt (i)).intValue ();
+	return retval;
+    }
+
 
     // package private (for hubs)
     void updateChildren ()
@@ -718,7 +1761,28 @@ final class DeviceImpl extends Device implements DeviceSPI
 	byte	data [] = new byte [128];
 
 	synchronized (lock) {
-	    int	status = getHubPorts (fd, data);
+	    int	status;
+
+	    // sysfs names devices by where they're connected
+	    if (sysfs != null) {
+		data [0] = (byte) Math.min (sysfs.maxchild, 127);
+		for (int i = 0; i < data [0]; i++)
+		    data [1 + i] = (byte) usb.getAddress (
+			    sysfs.childName (i + 1));
+		status = 0;
+	    } else {
+		try {
+		    URBEngine	e = acquire ();
+
+		    try {
+			status = Kernel.sys.getHubPorts (e.getFd (), data);
+		    } finally {
+			release ();
+		    }
+		} catch (USBException e) {
+		    status = -e.getErrno ();
+		}
+	    }
 
 	    if (status < 0) {
 		children = null;
@@ -743,22 +1807,32 @@ final class DeviceImpl extends Device implements DeviceSPI
 			children [i].hub = this;
 			children [i].hubPortNum = i + 1;
 
-			try {
-			    // get port status, to see speed it's using
-			    buf = ControlMessage.getStatus (this,
-				    ControlMessage.TYPE_CLASS
-					| ControlMessage.RECIPIENT_OTHER,
-				    0, i + 1, 4);
-			    if (ControlMessage.getBit (Hub.PORT_HIGH_SPEED,
-				    buf, 0))
-				children [i].speed = "high";
-			    else if (ControlMessage.getBit (Hub.PORT_LOW_SPEED,
-				    buf, 0))
-				children [i].speed = "low";
-			    else
-				children [i].speed = "full";
-			} catch (IOException e) {
-			    // default:  children [i].speed = null;
+			// SuperSpeed hubs only have SuperSpeed children
+			if (children [i].speed == null && speed != null
+				&& speed.startsWith ("super"))
+			    children [i].speed = "super";
+
+			// sysfs or the kernel usually said what speed it
+			// uses; else ask the hub (costing a control request)
+			if (children [i].sysfs == null
+				&& children [i].speed == null) {
+			    try {
+				// get port status, to see speed it's using
+				buf = ControlMessage.getStatus (this,
+					ControlMessage.TYPE_CLASS
+					    | ControlMessage.RECIPIENT_OTHER,
+					0, i + 1, 4);
+				if (ControlMessage.getBit (Hub.PORT_HIGH_SPEED,
+					buf, 0))
+				    children [i].speed = "high";
+				else if (ControlMessage.getBit (Hub.PORT_LOW_SPEED,
+					buf, 0))
+				    children [i].speed = "low";
+				else
+				    children [i].speed = "full";
+			    } catch (IOException e) {
+				// default:  children [i].speed = null;
+			    }
 			}
 
 			if (Linux.trace)
@@ -780,14 +1854,26 @@ final class DeviceImpl extends Device implements DeviceSPI
     }
 
 
-    private static native String getClaimer (int fd, int ifno);
-
     /**
      * Returns a system-specific string providing information
      * about the driver claiming this interface, or null.
      */
     public String getClaimer (int ifno)
     {
-    	return getClaimer (fd, ifno);
+	// sysfs knows; no need to open the device
+	if (sysfs != null && sysfs.configValue >= 0)
+	    return sysfs.getDriver (ifno);
+	URBEngine	e;
+
+	try {
+	    e = acquire ();
+	} catch (USBException x) {
+	    return null;
+	}
+	try {
+	    return Kernel.sys.getClaimer (e.getFd (), ifno);
+	} finally {
+	    release ();
+	}
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.util.Vector;
+
+
+/**
+ * A few threads that create device objects in parallel, so that
+ * enumerating one slow device doesn't hold up all the others.  Each
+ * bus queues work for all its new devices before waiting for any of
+ * them; busses found at the same time all queue their work first.
+ * Threads go away after they've been idle for a while.
+ *
+ * @version $Id$
+ */
+final class Enumerator implements Runnable
+{
+    // most devices respond in a few msec; a few need more
+    private static final int	MAX_THREADS = 4;
+
+    // idle threads exit after this long
+    private static final int	IDLE_TIME = 10 * 1000;
+
+    private static final Vector	queue = new Vector ();
+    private static int		threads;
+    private static int		idle;
+
+    private Enumerator () { }
+
+
+    /** Queues work to be done by some enumeration thread. */
+    static void execute (Runnable work)
+    {
+	synchronized (queue) {
+	    queue.addElement (work);
+	    if (idle > 0)
+		queue.notify ();
+	    else if (threads < MAX_THREADS) {
+		Thread	t;
+
+		t = new Thread (new Enumerator (), "USB enumerator");
+		t.setDaemon (true);
+		t.start ();
+		threads++;
+	    }
+	}
+    }
+
+    public void run ()
+    {
+	for (;;) {
+	    Runnable	work;
+
+	    synchronized (queue) {
+		if (queue.isEmpty ()) {
+		    idle++;
+		    try {
+			queue.wait (IDLE_TIME);
+		    } catch (InterruptedException e) {
+			// ignore
+		    }
+		    idle--;
+		}
+		if (queue.isEmpty ()) {
+		    threads--;
+		    return;
+		}
+		work = (Runnable) queue.elementAt (0);
+		queue.removeElementAt (0);
+	    }
+	    try {
+		work.run ();
+	    } catch (RuntimeException e) {
+		if (Linux.debug)
+		    e.printStackTrace ();
+	    }
+	}
+    }
+}
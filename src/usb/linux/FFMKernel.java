@@ -0,0 +1,1314 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Makes the {@link Kernel} calls from Java, through the foreign function
+ * and memory API (Java 22 and newer), so there's no JNI library to build
+ * or install.  System calls are downcalls into the C library.  The usbfs
+ * structures are laid out in native memory just as <em>native/linux.c</em>
+ * lays them out, and a URB handle is the address of one; the JIT sees
+ * everything from a transfer down to the ioctl.
+ *
+ * <p> Layouts and ioctl numbers are those of 64-bit Linux.  JVMs warn
+ * about (or refuse) native access unless it's enabled, as with the
+ * "--enable-native-access=ALL-UNNAMED" option.
+ *
+ * @version $Id$
+ */
+final class FFMKernel extends Kernel
+{
+    private static final ValueLayout.OfByte	BYTE = ValueLayout.JAVA_BYTE;
+    private static final ValueLayout.OfShort	SHORT = ValueLayout.JAVA_SHORT;
+    private static final ValueLayout.OfInt	INT = ValueLayout.JAVA_INT;
+    private static final ValueLayout.OfLong	LONG = ValueLayout.JAVA_LONG;
+
+    // all of the address space; handles and buffers are addresses in it
+    private static final MemorySegment	MEMORY
+		= MemorySegment.NULL.reinterpret (Long.MAX_VALUE);
+
+
+    /*-------------------------------------------------------------------*/
+
+    // <linux/usbdevice_fs.h> structures (pointers are LONG)
+
+    private static final StructLayout	SETINTERFACE = struct (
+	INT.withName ("interface"),
+	INT.withName ("altsetting"));
+
+    private static final StructLayout	GETDRIVER = struct (
+	INT.withName ("interface"),
+	MemoryLayout.sequenceLayout (256, BYTE).withName ("driver"));
+
+    private static final StructLayout	IOCTL = struct (
+	INT.withName ("ifno"),
+	INT.withName ("ioctl_code"),
+	LONG.withName ("data"));
+
+    private static final StructLayout	HUB_PORTINFO = struct (
+	BYTE.withName ("nports"),
+	MemoryLayout.sequenceLayout (127, BYTE).withName ("port"));
+
+    private static final StructLayout	CONNINFO_EX = struct (
+	INT.withName ("size"),
+	INT.withName ("busnum"),
+	INT.withName ("devnum"),
+	INT.withName ("speed"),
+	BYTE.withName ("num_ports"),
+	MemoryLayout.sequenceLayout (7, BYTE).withName ("ports"));
+
+    // followed by num_eps endpoint addresses
+    private static final StructLayout	STREAMS = struct (
+	INT.withName ("num_streams"),
+	INT.withName ("num_eps"));
+
+    private static final StructLayout	ISO_PACKET_DESC = struct (
+	INT.withName ("length"),
+	INT.withName ("actual_length"),
+	INT.withName ("status"));
+
+    // followed by number_of_packets iso packet descriptors
+    private static final StructLayout	URB_LAYOUT = struct (
+	BYTE.withName ("type"),
+	BYTE.withName ("endpoint"),
+	MemoryLayout.paddingLayout (2),
+	INT.withName ("status"),
+	INT.withName ("flags"),
+	MemoryLayout.paddingLayout (4),
+	LONG.withName ("buffer"),
+	INT.withName ("buffer_length"),
+	INT.withName ("actual_length"),
+	INT.withName ("start_frame"),
+	INT.withName ("number_of_packets"),	// or stream_id
+	INT.withName ("error_count"),
+	INT.withName ("signr"),
+	LONG.withName ("usercontext"));
+
+    // "struct jusb_urb" in linux.c; the URB MUST be last
+    private static final StructLayout	JUSB_URB = struct (
+	INT.withName ("capacity"),
+	INT.withName ("packets"),
+	INT.withName ("skip"),		// control:  SETUP before data
+	INT.withName ("stream"),	// bulk:  USB 3 stream ID
+	LONG.withName ("mapped"),	// nonzero:  data is usbfs mmap
+	LONG.withName ("data"),
+	URB_LAYOUT.withName ("urb"));
+
+    private static final long
+	SETIF_INTERFACE = offset (SETINTERFACE, "interface"),
+	SETIF_ALTSETTING = offset (SETINTERFACE, "altsetting"),
+
+	DRIVER_INTERFACE = offset (GETDRIVER, "interface"),
+	DRIVER_NAME = offset (GETDRIVER, "driver"),
+
+	IOCTL_IFNO = offset (IOCTL, "ifno"),
+	IOCTL_CODE = offset (IOCTL, "ioctl_code"),
+	IOCTL_DATA = offset (IOCTL, "data"),
+
+	CONN_SPEED = offset (CONNINFO_EX, "speed"),
+	CONN_NUM_PORTS = offset (CONNINFO_EX, "num_ports"),
+	CONN_PORTS = offset (CONNINFO_EX, "ports"),
+
+	STREAMS_NUM_STREAMS = offset (STREAMS, "num_streams"),
+	STREAMS_NUM_EPS = offset (STREAMS, "num_eps"),
+
+	ISO_LENGTH = offset (ISO_PACKET_DESC, "length"),
+	ISO_ACTUAL_LENGTH = offset (ISO_PACKET_DESC, "actual_length"),
+	ISO_STATUS = offset (ISO_PACKET_DESC, "status"),
+
+	URB_TYPE = offset (URB_LAYOUT, "type"),
+	URB_ENDPOINT = offset (URB_LAYOUT, "endpoint"),
+	URB_STATUS = offset (URB_LAYOUT, "status"),
+	URB_FLAGS = offset (URB_LAYOUT, "flags"),
+	URB_BUFFER = offset (URB_LAYOUT, "buffer"),
+	URB_BUFFER_LENGTH = offset (URB_LAYOUT, "buffer_length"),
+	URB_ACTUAL_LENGTH = offset (URB_LAYOUT, "actual_length"),
+	URB_START_FRAME = offset (URB_LAYOUT, "start_frame"),
+	URB_NUMBER_OF_PACKETS = offset (URB_LAYOUT, "number_of_packets"),
+	URB_ERROR_COUNT = offset (URB_LAYOUT, "error_count"),
+	URB_USERCONTEXT = offset (URB_LAYOUT, "usercontext"),
+
+	J_CAPACITY = offset (JUSB_URB, "capacity"),
+	J_PACKETS = offset (JUSB_URB, "packets"),
+	J_SKIP = offset (JUSB_URB, "skip"),
+	J_STREAM = offset (JUSB_URB, "stream"),
+	J_MAPPED = offset (JUSB_URB, "mapped"),
+	J_DATA = offset (JUSB_URB, "data"),
+	J_URB = offset (JUSB_URB, "urb");
+
+    // usbfs ioctls, as <asm-generic/ioctl.h> encodes them
+    private static final long
+	USBDEVFS_SETINTERFACE = ioc (2, 4, SETINTERFACE),
+	USBDEVFS_SETCONFIGURATION = ioc (2, 5, INT),
+	USBDEVFS_GETDRIVER = ioc (1, 8, GETDRIVER),
+	USBDEVFS_SUBMITURB = ioc (2, 10, URB_LAYOUT),
+	USBDEVFS_DISCARDURB = ioc (0, 11, null),
+	USBDEVFS_REAPURBNDELAY = ioc (1, 13, LONG),
+	USBDEVFS_CLAIMINTERFACE = ioc (2, 15, INT),
+	USBDEVFS_RELEASEINTERFACE = ioc (2, 16, INT),
+	USBDEVFS_IOCTL = ioc (3, 18, IOCTL),
+	USBDEVFS_HUB_PORTINFO = ioc (2, 19, HUB_PORTINFO),
+	USBDEVFS_CLEAR_HALT = ioc (2, 21, INT),
+	USBDEVFS_DISCONNECT = ioc (0, 22, null),
+	USBDEVFS_GET_CAPABILITIES = ioc (2, 26, INT),
+	USBDEVFS_ALLOC_STREAMS = ioc (2, 28, STREAMS),
+	USBDEVFS_FREE_STREAMS = ioc (2, 29, STREAMS),
+	USBDEVFS_GET_SPEED = ioc (0, 31, null),
+	USBDEVFS_CONNINFO_EX = ioc (2, 32, CONNINFO_EX);
+
+    private static final int	URB_TYPE_ISO = 0;
+    private static final int	URB_TYPE_CONTROL = 2;
+    private static final int	URB_TYPE_BULK = 3;
+
+    private static StructLayout struct (MemoryLayout... members)
+	{ return MemoryLayout.structLayout (members); }
+
+    private static long offset (MemoryLayout layout, String name)
+    {
+	return layout.byteOffset (
+		MemoryLayout.PathElement.groupElement (name));
+    }
+
+    // _IOC (dir, 'U', nr, size); dir is 1 for write, 2 for read
+    private static long ioc (int dir, int nr, MemoryLayout arg)
+    {
+	long	size = (arg == null) ? 0 : arg.byteSize ();
+
+	return ((long) dir << 30) | (size << 16) | ('U' << 8) | nr;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // other <linux/...> structures and constants
+
+    private static final StructLayout	POLLFD = struct (
+	INT.withName ("fd"),
+	SHORT.withName ("events"),
+	SHORT.withName ("revents"));
+
+    // x86_64 packs this, to match its 32 bit ABI
+    private static final boolean	PACKED_EPOLL
+		= "amd64".equals (System.getProperty ("os.arch"))
+		    || "x86_64".equals (System.getProperty ("os.arch"));
+
+    private static final StructLayout	EPOLL_EVENT = PACKED_EPOLL
+	? struct (
+	    INT.withName ("events"),
+	    ValueLayout.JAVA_LONG_UNALIGNED.withName ("data"))
+	: struct (
+	    INT.withName ("events"),
+	    MemoryLayout.paddingLayout (4),
+	    LONG.withName ("data"));
+
+    private static final StructLayout	SOCKADDR_NL = struct (
+	SHORT.withName ("nl_family"),
+	SHORT.withName ("nl_pad"),
+	INT.withName ("nl_pid"),
+	INT.withName ("nl_groups"));
+
+    // followed by "len" bytes of name
+    private static final StructLayout	INOTIFY_EVENT = struct (
+	INT.withName ("wd"),
+	INT.withName ("mask"),
+	INT.withName ("cookie"),
+	INT.withName ("len"));
+
+    private static final long
+	POLL_FD = offset (POLLFD, "fd"),
+	POLL_EVENTS = offset (POLLFD, "events"),
+	POLL_REVENTS = offset (POLLFD, "revents"),
+
+	EPOLL_EVENTS = offset (EPOLL_EVENT, "events"),
+	EPOLL_DATA = offset (EPOLL_EVENT, "data"),	// u32 is first
+
+	NL_FAMILY = offset (SOCKADDR_NL, "nl_family"),
+	NL_GROUPS = offset (SOCKADDR_NL, "nl_groups"),
+
+	IN_WD = offset (INOTIFY_EVENT, "wd"),
+	IN_MASK = offset (INOTIFY_EVENT, "mask"),
+	IN_LEN = offset (INOTIFY_EVENT, "len");
+
+    private static final int	O_RDWR = 02;
+    private static final int	O_CLOEXEC = 02000000;
+
+    private static final int	PROT_READ = 0x1;
+    private static final int	PROT_WRITE = 0x2;
+    private static final int	MAP_SHARED = 0x01;
+    private static final long	MAP_FAILED = -1;
+
+    private static final short	POLLIN = 0x0001;
+    private static final short	POLLOUT = 0x0004;
+    private static final short	POLLERR = 0x0008;
+    private static final short	POLLHUP = 0x0010;
+    private static final short	POLLNVAL = 0x0020;
+
+    private static final int	EPOLLOUT = 0x004;
+    private static final int	EPOLL_CTL_ADD = 1;
+    private static final int	EPOLL_CTL_DEL = 2;
+
+    private static final int	AF_NETLINK = 16;
+    private static final int	SOCK_DGRAM = 2;
+    private static final int	NETLINK_KOBJECT_UEVENT = 15;
+    private static final int	MSG_DONTWAIT = 0x40;
+
+    private static final int	IN_ATTRIB = 0x00000004;
+    private static final int	IN_CREATE = 0x00000100;
+    private static final int	IN_DELETE = 0x00000200;
+    private static final int	IN_Q_OVERFLOW = 0x00004000;
+    private static final int	IN_ONLYDIR = 0x01000000;
+
+    private static final int	EAGAIN = 11;
+    private static final int	ENOMEM = 12;
+    private static final int	ENOBUFS = 105;
+
+
+    /*-------------------------------------------------------------------*/
+
+    // C library calls; those that can fail also capture errno
+
+    private static final Linker		linker = Linker.nativeLinker ();
+
+    private static final Linker.Option	ERRNO
+		= Linker.Option.captureCallState ("errno");
+    private static final long		ERRNO_OFFSET
+		= offset (Linker.Option.captureStateLayout (), "errno");
+
+    private static final MethodHandle
+	OPEN = call ("open", FunctionDescriptor.of (INT,
+		    ValueLayout.ADDRESS, INT, INT),
+		ERRNO, Linker.Option.firstVariadicArg (2)),
+	CLOSE = call ("close", FunctionDescriptor.of (INT, INT), ERRNO),
+	IOCTL_CALL = call ("ioctl", FunctionDescriptor.of (INT,
+		    INT, LONG, ValueLayout.ADDRESS),
+		ERRNO, Linker.Option.firstVariadicArg (2)),
+	POLL = call ("poll", FunctionDescriptor.of (INT,
+		    ValueLayout.ADDRESS, LONG, INT), ERRNO),
+	MMAP = call ("mmap", FunctionDescriptor.of (LONG,
+		    LONG, LONG, INT, INT, INT, LONG), ERRNO),
+	MUNMAP = call ("munmap", FunctionDescriptor.of (INT,
+		    LONG, LONG), ERRNO),
+	EPOLL_CREATE1 = call ("epoll_create1",
+		FunctionDescriptor.of (INT, INT), ERRNO),
+	EPOLL_CTL = call ("epoll_ctl", FunctionDescriptor.of (INT,
+		    INT, INT, INT, ValueLayout.ADDRESS), ERRNO),
+	EPOLL_WAIT = call ("epoll_wait", FunctionDescriptor.of (INT,
+		    INT, ValueLayout.ADDRESS, INT, INT), ERRNO),
+	SOCKET = call ("socket", FunctionDescriptor.of (INT,
+		    INT, INT, INT), ERRNO),
+	BIND = call ("bind", FunctionDescriptor.of (INT,
+		    INT, ValueLayout.ADDRESS, INT), ERRNO),
+	RECV = call ("recv", FunctionDescriptor.of (LONG,
+		    INT, ValueLayout.ADDRESS, LONG, INT), ERRNO),
+	READ = call ("read", FunctionDescriptor.of (LONG,
+		    INT, ValueLayout.ADDRESS, LONG), ERRNO),
+	INOTIFY_INIT1 = call ("inotify_init1",
+		FunctionDescriptor.of (INT, INT), ERRNO),
+	INOTIFY_ADD_WATCH = call ("inotify_add_watch",
+		FunctionDescriptor.of (INT,
+		    INT, ValueLayout.ADDRESS, INT), ERRNO),
+	MALLOC = call ("malloc", FunctionDescriptor.of (LONG, LONG)),
+	FREE = call ("free", FunctionDescriptor.ofVoid (LONG)),
+	STRERROR = call ("strerror", FunctionDescriptor.of (LONG, INT));
+
+    private static MethodHandle call (String name,
+	    FunctionDescriptor fd, Linker.Option... options)
+    {
+	MemorySegment	fn = (MemorySegment) linker.defaultLookup ()
+				.find (name).orElseThrow ();
+
+	return linker.downcallHandle (fn, fd, options);
+    }
+
+    // downcalls don't throw checked exceptions
+    private static RuntimeException failure (Throwable t)
+    {
+	if (t instanceof RuntimeException)
+	    return (RuntimeException) t;
+	if (t instanceof Error)
+	    throw (Error) t;
+	return new IllegalStateException (t.toString ());
+    }
+
+
+    /*
+     * Each thread gets some native memory for errno and for arguments,
+     * so most calls allocate nothing.  It's freed when the thread goes.
+     * Arguments start at ARGS; larger data uses a temporary arena.
+     */
+    private static final int		SCRATCH = 8 * 1024;
+    private static final int		ARGS = 64;
+    private static final ThreadLocal	scratch = new ThreadLocal ();
+
+    private static MemorySegment scratch ()
+    {
+	MemorySegment	s = (MemorySegment) scratch.get ();
+
+	if (s == null) {
+	    s = Arena.ofAuto ().allocate (SCRATCH, 16);
+	    scratch.set (s);
+	}
+	return s;
+    }
+
+    // returns result, else negative errno
+    private static int check (MemorySegment s, int result)
+    {
+	if (result < 0)
+	    return -s.get (INT, ERRNO_OFFSET);
+	return result;
+    }
+
+    private static int ioctl (MemorySegment s, int fd, long request,
+	    MemorySegment arg)
+    {
+	try {
+	    return check (s, (int) IOCTL_CALL.invokeExact (s,
+		    fd, request, arg));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    private static int poll (MemorySegment s, MemorySegment fds,
+	    int timeout)
+    {
+	try {
+	    return check (s, (int) POLL.invokeExact (s, fds, 1L, timeout));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    // returns the address, or MAP_FAILED
+    private static long mmap (MemorySegment s, int fd, long size)
+    {
+	try {
+	    return (long) MMAP.invokeExact (s, 0L, size,
+		    PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0L);
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    private static int munmap (MemorySegment s, long addr, long size)
+    {
+	try {
+	    return check (s, (int) MUNMAP.invokeExact (s, addr, size));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    private static long malloc (long size)
+    {
+	try {
+	    return (long) MALLOC.invokeExact (size);
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    private static void free (long addr)
+    {
+	try {
+	    FREE.invokeExact (addr);
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    // a NUL-terminated copy of the string, in scratch memory
+    private static MemorySegment cString (MemorySegment s, String str)
+    {
+	byte		bytes [];
+
+	try {
+	    bytes = str.getBytes ("UTF-8");
+	} catch (java.io.UnsupportedEncodingException e) {
+	    throw new InternalError (e.toString ());
+	}
+	if (ARGS + bytes.length + 1 > SCRATCH)
+	    return null;
+	MemorySegment.copy (bytes, 0, s, BYTE, ARGS, bytes.length);
+	s.set (BYTE, ARGS + bytes.length, (byte) 0);
+	return s.asSlice (ARGS, bytes.length + 1);
+    }
+
+    // reads a NUL-terminated string, up to "max" bytes
+    private static String string (long addr, int max)
+    {
+	int		len = 0;
+	byte		bytes [];
+
+	while (len < max && MEMORY.get (BYTE, addr + len) != 0)
+	    len++;
+	bytes = new byte [len];
+	MemorySegment.copy (MEMORY, BYTE, addr, bytes, 0, len);
+	try {
+	    return new String (bytes, "UTF-8");
+	} catch (java.io.UnsupportedEncodingException e) {
+	    throw new InternalError (e.toString ());
+	}
+    }
+
+    // where a direct buffer's data starts, or zero
+    private static long address (ByteBuffer buf)
+    {
+	if (buf == null || !buf.isDirect ())
+	    return 0;
+	return MemorySegment.ofBuffer (buf).address () - buf.position ();
+    }
+
+    private static boolean inArray (byte buf [], int off, int len)
+    {
+	return buf != null && off >= 0 && len >= 0
+	    && off + len <= buf.length;
+    }
+
+
+    /** Used by {@link Kernel#select}. */
+    public FFMKernel () { }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // device files, and ioctls
+
+    int open (String path)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	name = cString (s, path);
+
+	if (name == null)
+	    return -USBException.EINVAL;
+	// insist on r/w access, nothing else lets you do anything
+	try {
+	    return check (s, (int) OPEN.invokeExact (s, name,
+		    O_RDWR | O_CLOEXEC, 0));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    int close (int fd)
+    {
+	MemorySegment	s = scratch ();
+
+	if (fd < 0)
+	    return 0;
+	try {
+	    return check (s, (int) CLOSE.invokeExact (s, fd));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    ByteBuffer mapBuffer (int fd, int size)
+    {
+	long		mem;
+
+	if (size <= 0)
+	    return null;
+	mem = mmap (scratch (), fd, size);
+	if (mem == MAP_FAILED)
+	    return null;
+	return MEMORY.asSlice (mem, size).asByteBuffer ();
+    }
+
+    int unmapBuffer (ByteBuffer buf)
+    {
+	long		mem = address (buf);
+
+	if (mem == 0 || buf.capacity () <= 0)
+	    return -USBException.EINVAL;
+	return munmap (scratch (), mem, buf.capacity ());
+    }
+
+    int getCapabilities (int fd)
+    {
+	MemorySegment	s = scratch ();
+	int		status;
+
+	s.set (INT, ARGS, 0);
+	status = ioctl (s, fd, USBDEVFS_GET_CAPABILITIES, s.asSlice (ARGS));
+	if (status < 0)
+	    return status;
+	return s.get (INT, ARGS) & 0x7fffffff;
+    }
+
+    // for ioctls that take a pointer to an int
+    private static int intIoctl (int fd, long request, int value)
+    {
+	MemorySegment	s = scratch ();
+	int		status;
+
+	s.set (INT, ARGS, value);
+	status = ioctl (s, fd, request, s.asSlice (ARGS, 4));
+	return (status < 0) ? status : 0;
+    }
+
+    int setConfiguration (int fd, int config)
+	{ return intIoctl (fd, USBDEVFS_SETCONFIGURATION, config); }
+
+    int clearHalt (int fd, byte ep)
+	{ return intIoctl (fd, USBDEVFS_CLEAR_HALT, ep & 0xff); }
+
+    int releaseInterface (int fd, int ifno)
+	{ return intIoctl (fd, USBDEVFS_RELEASEINTERFACE, ifno); }
+
+    int claimInterface (int fd, int ifno)
+    {
+	MemorySegment	s;
+	MemorySegment	command;
+	int		status;
+
+	status = intIoctl (fd, USBDEVFS_CLAIMINTERFACE, ifno);
+	if (status != -USBException.EBUSY)
+	    return status;
+
+	// maybe we need to boot a kernel driver off first; see linux.c
+	s = scratch ();
+	command = s.asSlice (ARGS, IOCTL.byteSize ());
+	command.set (INT, IOCTL_IFNO, ifno);
+	command.set (INT, IOCTL_CODE, (int) USBDEVFS_DISCONNECT);
+	command.set (LONG, IOCTL_DATA, 0L);
+	if (ioctl (s, fd, USBDEVFS_IOCTL, command) < 0)
+	    return status;
+	return intIoctl (fd, USBDEVFS_CLAIMINTERFACE, ifno);
+    }
+
+    int setInterface (int fd, int ifno, int alt)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	param = s.asSlice (ARGS, SETINTERFACE.byteSize ());
+	int		status;
+
+	param.set (INT, SETIF_INTERFACE, ifno);
+	param.set (INT, SETIF_ALTSETTING, alt);
+	status = ioctl (s, fd, USBDEVFS_SETINTERFACE, param);
+	return (status < 0) ? status : 0;
+    }
+
+    private static int streams (int fd, long request, int count,
+	    byte eps [])
+    {
+	MemorySegment	s = scratch ();
+	long		size = STREAMS.byteSize () + eps.length;
+	MemorySegment	param;
+
+	if (ARGS + size > SCRATCH)
+	    return -USBException.EINVAL;
+	param = s.asSlice (ARGS, size);
+	param.set (INT, STREAMS_NUM_STREAMS, count);
+	param.set (INT, STREAMS_NUM_EPS, eps.length);
+	MemorySegment.copy (eps, 0, param, BYTE, STREAMS.byteSize (),
+		eps.length);
+	return ioctl (s, fd, request, param);
+    }
+
+    int allocStreams (int fd, int count, byte eps [])
+	{ return streams (fd, USBDEVFS_ALLOC_STREAMS, count, eps); }
+
+    int freeStreams (int fd, byte eps [])
+	{ return streams (fd, USBDEVFS_FREE_STREAMS, 0, eps); }
+
+    int getHubPorts (int fd, byte data [])
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	command = s.asSlice (ARGS, IOCTL.byteSize ());
+	long		at = ARGS + IOCTL.byteSize ();
+	int		size = (int) HUB_PORTINFO.byteSize ();
+	int		status;
+
+	if (data.length < size)
+	    return -USBException.EINVAL;
+	s.asSlice (at, size).fill ((byte) 0);
+	command.set (INT, IOCTL_IFNO, 0);
+	command.set (INT, IOCTL_CODE, (int) USBDEVFS_HUB_PORTINFO);
+	command.set (LONG, IOCTL_DATA, s.address () + at);
+	status = ioctl (s, fd, USBDEVFS_IOCTL, command);
+	MemorySegment.copy (s, BYTE, at, data, 0, size);
+	return status;
+    }
+
+    int getConnInfo (int fd, int info [])
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	ci = s.asSlice (ARGS, CONNINFO_EX.byteSize ());
+	int		values [] = new int [2 + 7];
+	int		count = 0;
+	int		status;
+
+	ci.fill ((byte) 0);
+	status = ioctl (s, fd, USBDEVFS_CONNINFO_EX, ci);
+	if (status == 0) {
+	    int		n = 0xff & ci.get (BYTE, CONN_NUM_PORTS);
+	    int		i;
+
+	    values [0] = ci.get (INT, CONN_SPEED);
+	    for (i = 0; i < n && i < 7; i++)
+		values [2 + i] = 0xff & ci.get (BYTE, CONN_PORTS + i);
+	    values [1] = i;
+	    count = 2 + i;
+	} else {
+	    int		speed;
+
+	    speed = ioctl (s, fd, USBDEVFS_GET_SPEED, MemorySegment.NULL);
+	    if (speed >= 0) {
+		values [0] = speed;
+		count = 1;
+	    } else
+		status = speed;
+	}
+	if (count == 0)
+	    return status;
+	if (count > info.length)
+	    count = info.length;
+	System.arraycopy (values, 0, info, 0, count);
+	return count;
+    }
+
+    String getClaimer (int fd, int ifno)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	info = s.asSlice (ARGS, GETDRIVER.byteSize ());
+
+	info.set (INT, DRIVER_INTERFACE, ifno);
+	if (ioctl (s, fd, USBDEVFS_GETDRIVER, info) < 0)
+	    return "";
+	return string (info.address () + DRIVER_NAME, 256);
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // asynchronous requests (URBs); see linux.c for how handles work
+
+    long allocURB (int fd, int packets, int capacity)
+    {
+	long		size, u;
+	long		mem = MAP_FAILED;
+
+	if (packets < 0 || capacity < 0)
+	    return 0;
+	size = JUSB_URB.byteSize ()
+	    + packets * ISO_PACKET_DESC.byteSize ();
+
+	// data in usbfs DMA memory, if we can; else right after the URB
+	if (fd >= 0 && capacity > 0)
+	    mem = mmap (scratch (), fd, capacity);
+	if (mem != MAP_FAILED) {
+	    if ((u = malloc (size)) == 0) {
+		munmap (scratch (), mem, capacity);
+		return 0;
+	    }
+	} else if ((u = malloc (size + capacity)) == 0)
+	    return 0;
+	MEMORY.asSlice (u, size).fill ((byte) 0);
+	MEMORY.set (INT, u + J_CAPACITY, capacity);
+	MEMORY.set (INT, u + J_PACKETS, packets);
+	if (mem != MAP_FAILED) {
+	    MEMORY.set (LONG, u + J_MAPPED, (long) capacity);
+	    MEMORY.set (LONG, u + J_DATA, mem);
+	} else
+	    MEMORY.set (LONG, u + J_DATA, u + size);
+	return u;
+    }
+
+    void freeURB (long handle)
+    {
+	long		mapped = MEMORY.get (LONG, handle + J_MAPPED);
+
+	if (mapped != 0)
+	    munmap (scratch (), MEMORY.get (LONG, handle + J_DATA), mapped);
+	free (handle);
+    }
+
+    private static int capacity (long handle)
+	{ return MEMORY.get (INT, handle + J_CAPACITY); }
+
+    private static long data (long handle)
+	{ return MEMORY.get (LONG, handle + J_DATA); }
+
+    private static int submitURB (int fd, long handle, int id,
+	    int type, int ep, int flags, long data, int len)
+    {
+	MemorySegment	s = scratch ();
+	long		urb = handle + J_URB;
+
+	MEMORY.asSlice (urb, URB_LAYOUT.byteSize ()).fill ((byte) 0);
+	MEMORY.set (BYTE, urb + URB_TYPE, (byte) type);
+	MEMORY.set (BYTE, urb + URB_ENDPOINT, (byte) ep);
+	MEMORY.set (INT, urb + URB_FLAGS, flags);
+	MEMORY.set (LONG, urb + URB_BUFFER, data);
+	MEMORY.set (INT, urb + URB_BUFFER_LENGTH, len);
+	MEMORY.set (LONG, urb + URB_USERCONTEXT, (long) id);
+
+	// stream_id shares number_of_packets' slot
+	if (type == URB_TYPE_BULK)
+	    MEMORY.set (INT, urb + URB_NUMBER_OF_PACKETS,
+		    MEMORY.get (INT, handle + J_STREAM));
+
+	len = ioctl (s, fd, USBDEVFS_SUBMITURB, MemorySegment.ofAddress (urb));
+	return (len < 0) ? len : 0;
+    }
+
+    int submit (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    byte buf [], int off, int len)
+    {
+	if (len < 0 || len > capacity (handle))
+	    return -USBException.EINVAL;
+
+	// OUT data is copied now; IN data is copied after the reap
+	MEMORY.set (INT, handle + J_SKIP, 0);
+	if ((ep & 0x80) == 0 && len != 0) {
+	    if (!inArray (buf, off, len))
+		return -USBException.EINVAL;
+	    MemorySegment.copy (buf, off, MEMORY, BYTE, data (handle), len);
+	}
+	return submitURB (fd, handle, id, type, ep, flags,
+		data (handle), len);
+    }
+
+    int submitControl (int fd, long handle, int id,
+	    byte requestType, byte request, short value, short index,
+	    byte buf [], int off, int len)
+    {
+	long		setup = data (handle);
+
+	if (len < 0 || len > 0xffff || len + 8 > capacity (handle))
+	    return -USBException.EINVAL;
+
+	MEMORY.set (BYTE, setup, requestType);
+	MEMORY.set (BYTE, setup + 1, request);
+	MEMORY.set (BYTE, setup + 2, (byte) value);
+	MEMORY.set (BYTE, setup + 3, (byte) (value >> 8));
+	MEMORY.set (BYTE, setup + 4, (byte) index);
+	MEMORY.set (BYTE, setup + 5, (byte) (index >> 8));
+	MEMORY.set (BYTE, setup + 6, (byte) len);
+	MEMORY.set (BYTE, setup + 7, (byte) (len >> 8));
+	MEMORY.set (INT, handle + J_SKIP, 8);
+
+	if ((requestType & 0x80) == 0 && len != 0) {
+	    if (!inArray (buf, off, len))
+		return -USBException.EINVAL;
+	    MemorySegment.copy (buf, off, MEMORY, BYTE, setup + 8, len);
+	}
+	return submitURB (fd, handle, id, URB_TYPE_CONTROL,
+		requestType & 0x80, 0, setup, len + 8);
+    }
+
+    int submitDirect (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    ByteBuffer buf, int off, int len)
+    {
+	long		data = address (buf);
+
+	if (data == 0 || off < 0 || len < 0
+		|| off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	MEMORY.set (INT, handle + J_SKIP, 0);
+	return submitURB (fd, handle, id, type, ep, flags, data + off, len);
+    }
+
+    int submitIso (int fd, long handle, int id,
+	    int ep, int flags, int frame, int lengths [], int packets,
+	    byte buf [], int off)
+    {
+	long		urb = handle + J_URB;
+	long		desc = handle + JUSB_URB.byteSize ();
+	int		total = 0;
+
+	if (packets <= 0 || packets > MEMORY.get (INT, handle + J_PACKETS)
+		|| packets > lengths.length)
+	    return -USBException.EINVAL;
+	for (int i = 0; i < packets; i++) {
+	    if (lengths [i] < 0)
+		return -USBException.EINVAL;
+	    MEMORY.set (INT, desc + ISO_LENGTH, lengths [i]);
+	    MEMORY.set (INT, desc + ISO_ACTUAL_LENGTH, 0);
+	    MEMORY.set (INT, desc + ISO_STATUS, 0);
+	    desc += ISO_PACKET_DESC.byteSize ();
+	    total += lengths [i];
+	}
+	if (total > capacity (handle))
+	    return -USBException.EINVAL;
+
+	MEMORY.set (INT, handle + J_SKIP, 0);
+	if ((ep & 0x80) == 0 && total != 0) {
+	    if (!inArray (buf, off, total))
+		return -USBException.EINVAL;
+	    MemorySegment.copy (buf, off, MEMORY, BYTE, data (handle), total);
+	}
+
+	MEMORY.asSlice (urb, URB_LAYOUT.byteSize ()).fill ((byte) 0);
+	MEMORY.set (BYTE, urb + URB_TYPE, (byte) URB_TYPE_ISO);
+	MEMORY.set (BYTE, urb + URB_ENDPOINT, (byte) ep);
+	MEMORY.set (INT, urb + URB_FLAGS, flags);
+	MEMORY.set (LONG, urb + URB_BUFFER, data (handle));
+	MEMORY.set (INT, urb + URB_BUFFER_LENGTH, total);
+	MEMORY.set (INT, urb + URB_START_FRAME, frame);
+	MEMORY.set (INT, urb + URB_NUMBER_OF_PACKETS, packets);
+	MEMORY.set (LONG, urb + URB_USERCONTEXT, (long) id);
+
+	total = ioctl (scratch (), fd, USBDEVFS_SUBMITURB,
+		MemorySegment.ofAddress (urb));
+	return (total < 0) ? total : 0;
+    }
+
+    int submitBuffer (int fd, long handle, int id,
+	    int type, int ep, int flags, int len)
+    {
+	if (len < 0 || len > capacity (handle))
+	    return -USBException.EINVAL;
+	MEMORY.set (INT, handle + J_SKIP, 0);
+	return submitURB (fd, handle, id, type, ep, flags,
+		data (handle), len);
+    }
+
+    int discard (int fd, long handle)
+    {
+	int		status;
+
+	status = ioctl (scratch (), fd, USBDEVFS_DISCARDURB,
+		MemorySegment.ofAddress (handle + J_URB));
+	return (status < 0) ? status : 0;
+    }
+
+    void setStream (long handle, int stream)
+	{ MEMORY.set (INT, handle + J_STREAM, stream); }
+
+    // the reaped URB's id; REAPURBNDELAY stored its address
+    private static int reaped (MemorySegment s)
+    {
+	long		urb = s.get (LONG, ARGS);
+
+	return (int) MEMORY.get (LONG, urb + URB_USERCONTEXT);
+    }
+
+    int reap (int fd, int timeout)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	urbp = s.asSlice (ARGS, 8);
+	MemorySegment	pfd = s.asSlice (ARGS + 8, POLLFD.byteSize ());
+	int		status;
+
+	// poll() rather than a blocking REAPURB, so waiters time out
+	for (;;) {
+	    status = ioctl (s, fd, USBDEVFS_REAPURBNDELAY, urbp);
+	    if (status == 0)
+		return reaped (s);
+	    if (status != -EAGAIN)
+		return status;
+
+	    pfd.set (INT, POLL_FD, fd);
+	    pfd.set (SHORT, POLL_EVENTS, POLLOUT);
+	    pfd.set (SHORT, POLL_REVENTS, (short) 0);
+	    status = poll (s, pfd, timeout);
+	    if (status < 0) {
+		if (status == -USBException.EINTR)
+		    continue;
+		return status;
+	    }
+	    if (status == 0)
+		return -USBException.ETIMEDOUT;
+
+	    status = pfd.get (SHORT, POLL_REVENTS);
+	    if ((status & (POLLERR | POLLHUP | POLLNVAL)) != 0) {
+		// disconnect:  maybe something's left to reap
+		if (ioctl (s, fd, USBDEVFS_REAPURBNDELAY, urbp) == 0)
+		    return reaped (s);
+		return ((status & POLLNVAL) != 0)
+		    ? -USBException.EBADF
+		    : -USBException.ENODEV;
+	    }
+	}
+    }
+
+    int reapBatch (int fd, ByteBuffer records, int max)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	urbp = s.asSlice (ARGS, 8);
+	long		rec = address (records);
+	int		count = 0;
+
+	if (rec == 0 || max < 0 || 12L * max > records.capacity ())
+	    return -USBException.EINVAL;
+
+	while (count < max) {
+	    int		status;
+	    long	urb;
+
+	    status = ioctl (s, fd, USBDEVFS_REAPURBNDELAY, urbp);
+	    if (status < 0) {
+		if (count == 0 && status != -EAGAIN)
+		    return status;
+		break;
+	    }
+	    urb = s.get (LONG, ARGS);
+	    MEMORY.set (INT, rec, (int) MEMORY.get (LONG,
+		    urb + URB_USERCONTEXT));
+	    MEMORY.set (INT, rec + 4, MEMORY.get (INT, urb + URB_STATUS));
+	    MEMORY.set (INT, rec + 8, MEMORY.get (INT,
+		    urb + URB_ACTUAL_LENGTH));
+	    rec += 12;
+	    count++;
+	}
+	return count;
+    }
+
+    int getStatus (long handle)
+	{ return MEMORY.get (INT, handle + J_URB + URB_STATUS); }
+
+    int getActualLength (long handle)
+	{ return MEMORY.get (INT, handle + J_URB + URB_ACTUAL_LENGTH); }
+
+    int getStartFrame (long handle)
+	{ return MEMORY.get (INT, handle + J_URB + URB_START_FRAME); }
+
+    int getIsoResults (long handle, int actual [], int status [])
+    {
+	long		urb = handle + J_URB;
+	long		desc = handle + JUSB_URB.byteSize ();
+	int		n = MEMORY.get (INT, urb + URB_NUMBER_OF_PACKETS);
+
+	n = Math.min (n, Math.min (actual.length, status.length));
+	for (int i = 0; i < n; i++) {
+	    actual [i] = MEMORY.get (INT, desc + ISO_ACTUAL_LENGTH);
+	    status [i] = MEMORY.get (INT, desc + ISO_STATUS);
+	    desc += ISO_PACKET_DESC.byteSize ();
+	}
+	return MEMORY.get (INT, urb + URB_ERROR_COUNT);
+    }
+
+    void copyIn (long handle, byte buf [], int off, int len)
+    {
+	int		skip = MEMORY.get (INT, handle + J_SKIP);
+
+	if (len > capacity (handle) - skip)
+	    len = capacity (handle) - skip;
+	if (len > 0)
+	    MemorySegment.copy (MEMORY, BYTE, data (handle) + skip,
+		    buf, off, len);
+    }
+
+    int copyOut (long handle, int at, byte buf [], int off, int len)
+    {
+	if (at < 0 || len < 0 || at + len > capacity (handle)
+		|| !inArray (buf, off, len))
+	    return -USBException.EINVAL;
+	MemorySegment.copy (buf, off, MEMORY, BYTE, data (handle) + at, len);
+	return len;
+    }
+
+    int copyOutDirect (long handle, int at, ByteBuffer buf, int off, int len)
+    {
+	long		mem = address (buf);
+
+	if (mem == 0 || at < 0 || len < 0 || at + len > capacity (handle)
+		|| off < 0 || off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	MemorySegment.copy (MEMORY, mem + off,
+		MEMORY, data (handle) + at, len);
+	return len;
+    }
+
+    int copyInAt (long handle, int at, byte buf [], int off, int len)
+    {
+	if (at < 0 || len < 0 || at + len > capacity (handle)
+		|| !inArray (buf, off, len))
+	    return -USBException.EINVAL;
+	MemorySegment.copy (MEMORY, BYTE, data (handle) + at, buf, off, len);
+	return len;
+    }
+
+    int copyInDirect (long handle, int at, ByteBuffer buf, int off, int len)
+    {
+	long		mem = address (buf);
+
+	if (mem == 0 || at < 0 || len < 0 || at + len > capacity (handle)
+		|| off < 0 || off + len > buf.capacity ())
+	    return -USBException.EINVAL;
+	MemorySegment.copy (MEMORY, data (handle) + at,
+		MEMORY, mem + off, len);
+	return len;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // the reaper's epoll set
+
+    private static final int	REAPER_BATCH = 64;
+
+    int epollCreate ()
+    {
+	MemorySegment	s = scratch ();
+
+	try {
+	    return check (s, (int) EPOLL_CREATE1.invokeExact (s, O_CLOEXEC));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    private static int epollCtl (int epfd, int op, int fd, int slot)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	event = s.asSlice (ARGS, EPOLL_EVENT.byteSize ());
+	int		status;
+
+	event.fill ((byte) 0);
+	if (op == EPOLL_CTL_ADD) {
+	    event.set (INT, EPOLL_EVENTS, EPOLLOUT);
+	    event.set (INT, EPOLL_DATA, slot);
+	}
+	try {
+	    status = check (s, (int) EPOLL_CTL.invokeExact (s,
+		    epfd, op, fd, event));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+	return (status < 0) ? status : 0;
+    }
+
+    int epollAdd (int epfd, int fd, int slot)
+	{ return epollCtl (epfd, EPOLL_CTL_ADD, fd, slot); }
+
+    int epollRemove (int epfd, int fd)
+	{ return epollCtl (epfd, EPOLL_CTL_DEL, fd, 0); }
+
+    int epollWait (int epfd, int slots [], int events [], int timeout)
+    {
+	MemorySegment	s = scratch ();
+	long		size = EPOLL_EVENT.byteSize ();
+	int		max = REAPER_BATCH;
+	MemorySegment	ready;
+	int		count;
+
+	max = Math.min (max, Math.min (slots.length, events.length));
+	ready = s.asSlice (ARGS, max * size);
+	try {
+	    count = check (s, (int) EPOLL_WAIT.invokeExact (s,
+		    epfd, ready, max, timeout));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+	if (count < 0)
+	    return (count == -USBException.EINTR) ? 0 : count;
+	for (int i = 0; i < count; i++) {
+	    slots [i] = ready.get (INT, i * size + EPOLL_DATA);
+	    events [i] = ready.get (INT, i * size + EPOLL_EVENTS);
+	}
+	return count;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // hotplug event sources
+
+    int openNetlink (int groups)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	addr = s.asSlice (ARGS, SOCKADDR_NL.byteSize ());
+	int		fd, status;
+
+	try {
+	    fd = check (s, (int) SOCKET.invokeExact (s, AF_NETLINK,
+		    SOCK_DGRAM | O_CLOEXEC, NETLINK_KOBJECT_UEVENT));
+	    if (fd < 0)
+		return fd;
+
+	    // nl_pid zero:  kernel assigns one
+	    addr.fill ((byte) 0);
+	    addr.set (SHORT, NL_FAMILY, (short) AF_NETLINK);
+	    addr.set (INT, NL_GROUPS, groups);
+	    status = check (s, (int) BIND.invokeExact (s, fd, addr,
+		    (int) SOCKADDR_NL.byteSize ()));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+	if (status < 0) {
+	    close (fd);
+	    return status;
+	}
+	return fd;
+    }
+
+    int openInotify ()
+    {
+	MemorySegment	s = scratch ();
+
+	try {
+	    return check (s, (int) INOTIFY_INIT1.invokeExact (s, O_CLOEXEC));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    int addWatch (int fd, String path, int mask)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	name = cString (s, path);
+
+	if (name == null)
+	    return -ENOMEM;
+	try {
+	    return check (s, (int) INOTIFY_ADD_WATCH.invokeExact (s,
+		    fd, name, mask | IN_ONLYDIR));
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+    }
+
+    /*
+     * Returns the bus number for a USB device add/remove uevent, zero
+     * when that's somehow missing, or -1 for other events.  The message
+     * is "action@devpath" then NUL-terminated KEY=value strings.
+     */
+    private static int ueventBus (MemorySegment buf, int len)
+    {
+	byte		msg [] = new byte [len];
+	boolean		usb = false, device = false, action = false;
+	int		busnum = 0;
+
+	MemorySegment.copy (buf, BYTE, 0, msg, 0, len);
+	for (int start = 0, end; start < len; start = end + 1) {
+	    String	s;
+
+	    for (end = start; end < len && msg [end] != 0; end++)
+		continue;
+	    s = new String (msg, 0, start, end - start);
+	    if (s.equals ("SUBSYSTEM=usb"))
+		usb = true;
+	    else if (s.equals ("DEVTYPE=usb_device"))
+		device = true;
+	    else if (s.equals ("ACTION=add") || s.equals ("ACTION=remove"))
+		action = true;
+	    else if (s.startsWith ("BUSNUM=")) {
+		try {
+		    busnum = Integer.parseInt (s.substring (7));
+		} catch (NumberFormatException e) {
+		    busnum = 0;
+		}
+	    }
+	}
+	if (!usb || !device || !action)
+	    return -1;
+	return busnum;
+    }
+
+    int readEvents (int fd, boolean netlink, int busses [], int timeout)
+    {
+	MemorySegment	s = scratch ();
+	MemorySegment	pfd = s.asSlice (ARGS, POLLFD.byteSize ());
+	// uevents are under 2KB; inotify events are small
+	MemorySegment	buf = s.asSlice (ARGS + 64, 4096);
+	int		max = Math.min (busses.length, 64);
+	int		count = 0;
+	int		status;
+
+	if (max <= 0)
+	    return -USBException.EINVAL;
+
+	pfd.set (INT, POLL_FD, fd);
+	pfd.set (SHORT, POLL_EVENTS, POLLIN);
+	pfd.set (SHORT, POLL_REVENTS, (short) 0);
+	status = poll (s, pfd, timeout);
+	if (status < 0)
+	    return (status == -USBException.EINTR) ? 0 : status;
+	if (status == 0)
+	    return 0;
+
+	try {
+	    while (count < max) {
+		if (netlink) {
+		    status = check (s, (int) (long) RECV.invokeExact (s,
+			    fd, buf, buf.byteSize (), MSG_DONTWAIT));
+		    if (status < 0) {
+			// overrun:  some events were dropped
+			if (status == -ENOBUFS) {
+			    busses [count++] = 0;
+			    continue;
+			}
+			break;
+		    }
+		    if ((status = ueventBus (buf, status)) >= 0)
+			busses [count++] = status;
+
+		} else {
+		    // inotify reads are all-or-nothing per event, so one
+		    // poll() and one read suffice
+		    status = check (s, (int) (long) READ.invokeExact (s,
+			    fd, buf, buf.byteSize ()));
+		    if (status < 0)
+			return (status == -USBException.EINTR
+				|| status == -EAGAIN) ? 0 : status;
+		    for (long at = 0; at < status && count < max; ) {
+			int	mask = buf.get (INT, at + IN_MASK);
+			int	wd = buf.get (INT, at + IN_WD);
+
+			at += INOTIFY_EVENT.byteSize ()
+			    + buf.get (INT, at + IN_LEN);
+			if ((mask & IN_Q_OVERFLOW) != 0)
+			    busses [count++] = -1;
+			else if ((mask & (IN_CREATE|IN_DELETE|IN_ATTRIB)) != 0)
+			    busses [count++] = wd;
+		    }
+		    break;
+		}
+	    }
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+	return count;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    String strError (int errno)
+    {
+	long		msg;
+
+	try {
+	    msg = (long) STRERROR.invokeExact (errno);
+	} catch (Throwable t) {
+	    throw failure (t);
+	}
+	if (msg == 0)
+	    return "errno " + errno;
+	return string (msg, 1024);
+    }
+}
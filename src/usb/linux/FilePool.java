@@ -0,0 +1,150 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.util.Vector;
+
+
+/**
+ * Bounds how many device files stay open.  Devices found through
+ * {@link Sysfs} open their files on first use; this closes the least
+ * recently used ones when too many are open, and (optionally) ones
+ * that have been idle too long.  A device whose file was closed this
+ * way reopens it when it's next used.
+ *
+ * <p> Devices with I/O in progress, claimed interfaces, interrupt
+ * subscriptions, or open isochronous streams are never closed.
+ *
+ * @version $Id$
+ */
+final class FilePool implements Runnable
+{
+    // open files, least recently used first
+    private static final Vector		open = new Vector ();
+
+    // zero means no limit, or no idle timeout
+    private static int			limit;
+    private static int			idleTimeout;
+
+    private static Thread		thread;
+
+    private FilePool () { }
+
+
+    static synchronized void setLimit (int n)
+    {
+	if (n < 0)
+	    throw new IllegalArgumentException ();
+	limit = n;
+    }
+
+    static synchronized int getLimit ()
+	{ return limit; }
+
+    static synchronized void setIdleTimeout (int msec)
+    {
+	if (msec < 0)
+	    throw new IllegalArgumentException ();
+	idleTimeout = msec;
+	if (msec != 0 && thread == null) {
+	    thread = new Thread (new FilePool (), "USB file closer");
+	    thread.setDaemon (true);
+	    thread.start ();
+	}
+	FilePool.class.notifyAll ();
+    }
+
+    static synchronized int getIdleTimeout ()
+	{ return idleTimeout; }
+
+    /** Returns how many pooled device files are open. */
+    static synchronized int getOpenCount ()
+	{ return open.size (); }
+
+
+    /**
+     * Records that a device opened its file; then closes others, if
+     * that's too many.  Don't call this holding any device's lock.
+     */
+    static void opened (DeviceImpl dev)
+    {
+	Vector	victims;
+
+	synchronized (FilePool.class) {
+	    open.removeElement (dev);
+	    open.addElement (dev);
+	    if (limit == 0 || open.size () <= limit)
+		return;
+	    victims = (Vector) open.clone ();
+	}
+
+	// busy devices are skipped; maybe we'll go over the limit
+	for (int i = 0; i < victims.size () && getOpenCount () > getLimit ();
+		i++)
+	    ((DeviceImpl) victims.elementAt (i)).park ();
+    }
+
+    /** Records that a device used its file. */
+    static synchronized void used (DeviceImpl dev)
+    {
+	int	i = open.indexOf (dev);
+
+	if (i >= 0 && i != open.size () - 1) {
+	    open.removeElementAt (i);
+	    open.addElement (dev);
+	}
+    }
+
+    /** Records that a device closed its file. */
+    static synchronized void closed (DeviceImpl dev)
+	{ open.removeElement (dev); }
+
+
+    // closes idle files
+    public void run ()
+    {
+	for (;;) {
+	    Vector	victims;
+	    long	cutoff;
+
+	    synchronized (FilePool.class) {
+		try {
+		    if (idleTimeout == 0)
+			FilePool.class.wait ();
+		    else
+			FilePool.class.wait (Math.max (idleTimeout / 4, 100));
+		} catch (InterruptedException e) {
+		    // ignore
+		}
+		if (idleTimeout == 0)
+		    continue;
+		cutoff = System.currentTimeMillis () - idleTimeout;
+		victims = (Vector) open.clone ();
+	    }
+
+	    for (int i = 0; i < victims.size (); i++) {
+		DeviceImpl	dev = (DeviceImpl) victims.elementAt (i);
+
+		if (dev.getLastUse () <= cutoff)
+		    dev.park ();
+	    }
+	}
+    }
+}
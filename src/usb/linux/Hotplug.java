@@ -0,0 +1,160 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.File;
+import java.util.Hashtable;
+
+
+/**
+ * Reports which busses may have changed, as soon as the kernel says
+ * so, so the watcher needn't poll.  The best source is the kernel's
+ * hotplug events (netlink uevents), which name the bus of each USB
+ * device added or removed.  Failing that (say, netlink is blocked),
+ * inotify watches on the usbfs directories say which bus directory
+ * changed.  When neither works, {@link #open} returns null and the
+ * watcher keeps polling.
+ *
+ * <p> Events can arrive before udev has created the device node or
+ * set its permissions; the watcher rescans again shortly after.
+ *
+ * @version $Id$
+ */
+final class Hotplug
+{
+    private int			fd;
+    private final boolean	netlink;
+
+    // inotify only:  watch descriptor to bus number (zero for the
+    // top level directory, where busses come and go)
+    private final Hashtable	watches;
+
+    // netlink group for kernel (not udev) events
+    private static final int	KERNEL_GROUP = 1;
+
+    // inotify event masks
+    private static final int	IN_ATTRIB = 0x0004;
+    private static final int	IN_CREATE = 0x0100;
+    private static final int	IN_DELETE = 0x0200;
+
+    // event reported when something was lost:  rescan everything
+    static final int		ALL = 0;
+
+
+    private Hotplug (int fd, boolean netlink)
+    {
+	this.fd = fd;
+	this.netlink = netlink;
+	watches = netlink ? null : new Hashtable (7);
+    }
+
+    /**
+     * Returns an event source for the usbfs directory, or null if
+     * the kernel can't provide events.
+     */
+    static Hotplug open (File dir)
+    {
+	Hotplug	retval;
+	int	status;
+
+	status = Kernel.sys.openNetlink (KERNEL_GROUP);
+	if (status >= 0)
+	    return new Hotplug (status, true);
+	if (Linux.debug)
+	    System.err.println ("hotplug: no netlink, errno " + (-status));
+
+	status = Kernel.sys.openInotify ();
+	if (status < 0) {
+	    if (Linux.debug)
+		System.err.println ("hotplug: no inotify, errno "
+		    + (-status));
+	    return null;
+	}
+	retval = new Hotplug (status, false);
+	if (retval.watch (dir, ALL, IN_CREATE | IN_DELETE))
+	    return retval;
+	retval.close ();
+	return null;
+    }
+
+    /**
+     * Called for each bus the watcher finds.  With inotify, each bus
+     * directory needs its own watch; the kernel drops it when the
+     * directory is removed.
+     */
+    void addBus (File busdir, int busnum)
+    {
+	if (!netlink)
+	    watch (busdir, busnum, IN_CREATE | IN_DELETE | IN_ATTRIB);
+    }
+
+    private boolean watch (File f, int busnum, int mask)
+    {
+	int	wd = Kernel.sys.addWatch (fd, f.getAbsolutePath (), mask);
+
+	if (wd < 0) {
+	    if (Linux.debug)
+		System.err.println ("hotplug: can't watch " + f
+		    + ", errno " + (-wd));
+	    return false;
+	}
+	watches.put (new Integer (wd), new Integer (busnum));
+	return true;
+    }
+
+    /**
+     * Waits up to timeout msec for events, returning how many were
+     * stored.  Each one is a bus number, or {@link #ALL} when the
+     * bus isn't known.  Returns zero on timeout, or negative errno
+     * if the event source failed.
+     */
+    int next (int busses [], int timeout)
+    {
+	int	count;
+
+	count = Kernel.sys.readEvents (fd, netlink, busses, timeout);
+
+	if (count <= 0 || netlink)
+	    return count;
+
+	// map watch descriptors to bus numbers
+	for (int i = 0; i < count; i++) {
+	    Integer	busnum;
+
+	    if (busses [i] < 0)
+		busnum = null;
+	    else
+		busnum = (Integer) watches.get (new Integer (busses [i]));
+	    busses [i] = (busnum == null) ? ALL : busnum.intValue ();
+	}
+	return count;
+    }
+
+    /** Returns a description of the event source, for diagnostics. */
+    public String toString ()
+	{ return netlink ? "netlink uevents" : "inotify"; }
+
+    void close ()
+    {
+	if (fd >= 0)
+	    Kernel.sys.close (fd);
+	fd = -1;
+    }
+}
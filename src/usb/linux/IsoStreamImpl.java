@@ -0,0 +1,323 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.IOException;
+
+import usb.core.IsoBuffer;
+import usb.core.IsoStream;
+
+
+/**
+ * Linux isochronous streams.  Each batch of packets is one URB, and
+ * a ring of them stays queued; the kernel keeps the endpoint's
+ * schedule going as long as the next URB is submitted before the
+ * previous one completes.
+ *
+ * @version $Id$
+ */
+final class IsoStreamImpl implements IsoStream
+{
+    private final URBEngine	engine;
+    private final int		ep;
+    private final boolean	in;
+    private final int		packetSize;
+    private final int		packets;
+
+    // the ring, oldest first from "head"; only "busy" ones are queued
+    private final URB		ring [];
+    private final boolean	busy [];
+    private final IsoBuffer	sent [];
+    private int			head;
+
+    // IN batches are all full sized packets
+    private final int		lengths [];
+
+    // where the endpoint's pattern started (SYNCH_FRAME), until the
+    // first URB is queued; and how many frames it lasts
+    private int			origin;
+    private final int		period;
+    private int			error;
+
+    // frames between the current one and a synchronized start, so
+    // the first URB is still in the future when it's submitted
+    private static final int	SYNCH_MARGIN = 16;
+
+    // any thread may check this
+    private volatile boolean	closed;
+
+
+    // package private
+    IsoStreamImpl (URBEngine engine, int ep, int packetSize,
+	    int packets, int queued, int synchFrame, int period)
+    throws IOException
+    {
+	this.engine = engine;
+	this.ep = ep;
+	this.packetSize = packetSize;
+	this.packets = packets;
+	this.origin = (period > 0) ? synchFrame : -1;
+	this.period = period;
+	in = (ep & 0x80) != 0;
+
+	ring = new URB [queued];
+	busy = new boolean [queued];
+	sent = in ? null : new IsoBuffer [queued];
+	lengths = new int [packets];
+	for (int i = 0; i < packets; i++)
+	    lengths [i] = packetSize;
+
+	for (int i = 0; i < queued; i++)
+	    ring [i] = engine.get (packets, packets * packetSize);
+
+	// IN streams start right away
+	if (in) {
+	    for (int i = 0; i < queued; i++) {
+		int	status = submit (ring [i], lengths, null);
+
+		if (status < 0) {
+		    close ();
+		    throw new USBException ("iso submit", -status);
+		}
+		busy [i] = true;
+	    }
+	}
+    }
+
+    int getEndpoint ()
+	{ return ep; }
+
+    boolean isOpen ()
+	{ return !closed; }
+
+    public int getPacketCount ()
+	{ return packets; }
+
+    public int getPacketSize ()
+	{ return packetSize; }
+
+    // the first URB may start where the endpoint's pattern does; the
+    // kernel then schedules the rest right after it
+    private int submit (URB urb, int lens [], IsoBuffer buf)
+    {
+	int	count = packets;
+	byte	data [] = null;
+
+	if (buf != null) {
+	    count = buf.getPacketCount ();
+	    data = buf.getData ();
+	}
+	if (origin >= 0)
+	    return submitSynch (urb, lens, count, data);
+	return engine.submitIso (urb, ep, URB.ISO_ASAP, 0,
+		lens, count, data, 0);
+    }
+
+    /*
+     * The frame SYNCH_FRAME reports has already passed, so the start
+     * is the next frame where the pattern begins again, a margin past
+     * the current one.  If the kernel says that's too late after all
+     * (EXDEV, EFBIG, or EINVAL), it's tried again a few times; then
+     * the error is reported, rather than starting out of synch.
+     */
+    private int submitSynch (URB urb, int lens [], int count, byte data [])
+    {
+	int	status = 0;
+
+	for (int tries = 0; tries < 3; tries++) {
+	    int	frame = nextStart (urb);
+
+	    if (frame < 0) {
+		status = frame;
+		break;
+	    }
+	    status = engine.submitIso (urb, ep, 0, frame,
+		    lens, count, data, 0);
+	    if (status != -USBException.EXDEV
+		    && status != -USBException.EINVAL
+		    && status != -USBException.EFBIG)
+		break;
+	}
+	origin = -1;
+	return status;
+    }
+
+    // returns the next pattern start that's safely in the future, else
+    // negative errno; usbfs can't say what frame it is now, so a
+    // one packet URB is queued as soon as possible to find out
+    private int nextStart (URB urb)
+    {
+	int	probe [] = { in ? packetSize : 0 };
+	int	status;
+	int	frame;
+	int	since;
+
+	status = engine.submitIso (urb, ep, URB.ISO_ASAP, 0,
+		probe, 1, null, 0);
+	if (status < 0)
+	    return status;
+	if (!engine.await (urb, URBEngine.TIMEOUT)) {
+	    engine.discard (urb);
+	    engine.await (urb, URBEngine.TIMEOUT);
+	    return -USBException.ETIMEDOUT;
+	}
+	if (urb.status < 0 && urb.status != -USBException.EXDEV)
+	    return urb.status;
+
+	// frame numbers are eleven bits on the bus
+	frame = urb.getStartFrame () + 1 + SYNCH_MARGIN;
+	since = (frame - origin) & 0x07ff;
+	return frame + (period - since % period) % period;
+    }
+
+
+    public void read (IsoBuffer buf)
+    throws IOException
+    {
+	URB	urb;
+	int	status;
+
+	if (!in)
+	    throw new IllegalArgumentException ("OUT stream");
+	if (buf.getPacketCount () != packets
+		|| buf.getData ().length < packets * packetSize)
+	    throw new IllegalArgumentException ("batch size");
+	for (int i = 0; i < packets; i++) {
+	    if (buf.getPacketLength (i) != packetSize)
+		throw new IllegalArgumentException ("packet size");
+	}
+	check ();
+
+	// resubmit anything that failed before
+	if (!busy [head]) {
+	    if ((status = submit (ring [head], lengths, null)) < 0)
+		throw new USBException ("iso read", -status);
+	    busy [head] = true;
+	}
+
+	urb = ring [head];
+	if (!engine.await (urb, URBEngine.TIMEOUT))
+	    throw new USBException ("iso read", USBException.ETIMEDOUT);
+	busy [head] = false;
+	if (urb.status < 0 && urb.status != -USBException.EXDEV) {
+	    error = urb.status;
+	    check ();
+	}
+
+	buf.setResults (urb.getStartFrame (),
+		urb.collectIso (buf.getData (), 0,
+		    buf.getActualLengths (), buf.getStatusCodes ()));
+
+	// queue it again right away; errors show up next time
+	if ((status = submit (urb, lengths, null)) < 0)
+	    error = status;
+	else
+	    busy [head] = true;
+	head = (head + 1) % ring.length;
+    }
+
+    public void write (IsoBuffer buf)
+    throws IOException
+    {
+	int	status;
+
+	if (in)
+	    throw new IllegalArgumentException ("IN stream");
+	if (buf.getPacketCount () > packets
+		|| buf.getOffset (buf.getPacketCount ())
+		    > packets * packetSize)
+	    throw new IllegalArgumentException ("batch size");
+	check ();
+
+	// the slot we'll reuse is the oldest
+	if (busy [head])
+	    collect (head);
+	check ();
+
+	status = submit (ring [head], buf.getPacketLengths (), buf);
+	if (status < 0)
+	    throw new USBException ("iso write", -status);
+	busy [head] = true;
+	sent [head] = buf;
+	head = (head + 1) % ring.length;
+    }
+
+    // waits for an OUT URB, and reports its results
+    private void collect (int i)
+    throws IOException
+    {
+	URB		urb = ring [i];
+	IsoBuffer	buf = sent [i];
+
+	if (!engine.await (urb, URBEngine.TIMEOUT))
+	    throw new USBException ("iso write", USBException.ETIMEDOUT);
+	busy [i] = false;
+	sent [i] = null;
+	if (urb.status < 0 && urb.status != -USBException.EXDEV)
+	    error = urb.status;
+	buf.setResults (urb.getStartFrame (),
+		urb.collectIso (null, 0,
+		    buf.getActualLengths (), buf.getStatusCodes ()));
+    }
+
+    public void flush ()
+    throws IOException
+    {
+	if (in)
+	    return;
+	for (int i = 0; i < ring.length; i++) {
+	    int	j = (head + i) % ring.length;
+
+	    if (busy [j])
+		collect (j);
+	}
+	check ();
+    }
+
+    private void check ()
+    throws IOException
+    {
+	int	status = error;
+
+	if (closed)
+	    throw new USBException ("stream closed", USBException.EBADF);
+	if (status < 0) {
+	    error = 0;
+	    throw new USBException ("iso stream", -status);
+	}
+    }
+
+    public void close ()
+    {
+	if (closed)
+	    return;
+	closed = true;
+	for (int i = 0; i < ring.length; i++) {
+	    if (ring [i] == null)
+		continue;
+	    if (busy [i])
+		engine.cancel (ring [i]);
+	    else
+		engine.put (ring [i]);
+	    ring [i] = null;
+	    busy [i] = false;
+	}
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Makes {@link Kernel} calls through the JNI glue in
+ * <em>libjusb.so</em> (see <em>native/linux.c</em>).
+ *
+ * <p> Since most of these use ioctl(), which "green" threads doesn't
+ * wrap, you should use "-native" threading when you start your JVM.
+ * EINTR seems to mean "use native threads!".
+ *
+ * @version $Id$
+ */
+final class JNIKernel extends Kernel
+{
+    // package private
+    JNIKernel () { }
+
+
+    native int open (String path);
+    native int close (int fd);
+    native ByteBuffer mapBuffer (int fd, int size);
+    native int unmapBuffer (ByteBuffer buf);
+    native int getCapabilities (int fd);
+
+    native int setConfiguration (int fd, int config);
+    native int claimInterface (int fd, int ifno);
+    native int releaseInterface (int fd, int ifno);
+    native int setInterface (int fd, int ifno, int alt);
+    native int clearHalt (int fd, byte ep);
+    native int allocStreams (int fd, int count, byte eps []);
+    native int freeStreams (int fd, byte eps []);
+    native int getHubPorts (int fd, byte data []);
+    native String getClaimer (int fd, int ifno);
+    native int getConnInfo (int fd, int info []);
+
+    native long allocURB (int fd, int packets, int capacity);
+    native void freeURB (long handle);
+    native int submit (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    byte buf [], int off, int length);
+    native int submitDirect (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    ByteBuffer buf, int off, int length);
+    native int submitControl (int fd, long handle, int id,
+	    byte requestType, byte request, short value, short index,
+	    byte buf [], int off, int length);
+    native int submitIso (int fd, long handle, int id,
+	    int ep, int flags, int frame, int lengths [], int count,
+	    byte buf [], int off);
+    native int submitBuffer (int fd, long handle, int id,
+	    int type, int ep, int flags, int length);
+    native int discard (int fd, long handle);
+    native void setStream (long handle, int stream);
+    native int reap (int fd, int timeout);
+    native int reapBatch (int fd, ByteBuffer records, int max);
+    native int getStatus (long handle);
+    native int getActualLength (long handle);
+    native void copyIn (long handle, byte buf [], int off, int length);
+    native int copyInAt (long handle, int at,
+	    byte buf [], int off, int length);
+    native int copyInDirect (long handle, int at,
+	    ByteBuffer buf, int off, int length);
+    native int copyOut (long handle, int at,
+	    byte buf [], int off, int length);
+    native int copyOutDirect (long handle, int at,
+	    ByteBuffer buf, int off, int length);
+    native int getStartFrame (long handle);
+    native int getIsoResults (long handle, int actual [], int status []);
+
+    native int epollCreate ();
+    native int epollAdd (int epfd, int fd, int slot);
+    native int epollRemove (int epfd, int fd);
+    native int epollWait (int epfd, int slots [], int events [],
+	    int timeout);
+
+    native int openNetlink (int groups);
+    native int openInotify ();
+    native int addWatch (int fd, String path, int mask);
+    native int readEvents (int fd, boolean netlink,
+	    int busses [], int timeout);
+
+    native String strError (int errno);
+}
@@ -0,0 +1,337 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000-2001 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Everything this package asks of the Linux kernel:  the usbfs and
+ * sysfs files, device file ioctls, asynchronous requests (URBs), the
+ * epoll set the {@link Reaper} watches, and hotplug event sources.
+ * There's one implementation per way of making system calls; {@link
+ * #sys} is the one in use, picked by {@link #select} when the host is
+ * created.
+ *
+ * <p> {@link JNIKernel} uses the <em>libjusb.so</em> glue.
+ * <em>FFMKernel</em> makes the same calls from Java through the
+ * foreign function API, on JVMs that have it (Java 22 and newer);
+ * nothing native needs to be built or installed for it.
+ * Both use java.io for files.  The bench jar's <em>ScriptedKernel</em>
+ * isn't a real kernel at all; it simulates devices, for benchmarks.
+ *
+ * <p> Not part of any API.  All the int-valued methods return negative
+ * errno on error.
+ *
+ * @version $Id$
+ */
+abstract class Kernel
+{
+    /** the implementation in use */
+    static Kernel		sys;
+
+
+    /**
+     * Returns the kernel interface to use.  The "usb.linux.kernel"
+     * system property may name one:  "jni" or "ffm".  Otherwise JNI is
+     * used if its library can be loaded, else the foreign function API
+     * if this JVM has it.
+     *
+     * @exception UnsatisfiedLinkError if neither is available
+     */
+    static Kernel select ()
+    {
+	String		name = System.getProperty ("usb.linux.kernel");
+
+	if ("ffm".equals (name))
+	    return ffm (null);
+	try {
+	    // With GCJ we expect to run native, not interpreted,
+	    // and use CNI glue instead of a separate JNI library.
+	    if (!"libgcj".equals (System.getProperty ("java.vm.name")))
+		System.loadLibrary ("jusb");
+	    return new JNIKernel ();
+	} catch (UnsatisfiedLinkError e) {
+	    if (name != null)
+		throw e;
+	    return ffm (e);
+	}
+    }
+
+    private static Kernel ffm (UnsatisfiedLinkError cause)
+    {
+	try {
+	    Class	c = Class.forName ("usb.linux.FFMKernel");
+
+	    return (Kernel) c.newInstance ();
+
+	// older JVMs can't load it; newer ones may refuse native access
+	} catch (Exception e) {
+	    if (cause == null)
+		cause = new UnsatisfiedLinkError ("FFMKernel: " + e);
+	} catch (LinkageError e) {
+	    if (cause == null)
+		cause = new UnsatisfiedLinkError ("FFMKernel: " + e);
+	}
+	throw cause;
+    }
+
+
+    /*-------------------------------------------------------------------*/
+
+    // usbfs and sysfs directories and attributes
+
+    /** Lists a directory, or returns null if it can't. */
+    String [] list (String dir)
+	{ return new File (dir).list (); }
+
+    boolean exists (String path)
+	{ return new File (path).exists (); }
+
+    boolean isDirectory (String path)
+	{ return new File (path).isDirectory (); }
+
+    /** Returns when a file was modified, or zero if that's unknown. */
+    long lastModified (String path)
+	{ return new File (path).lastModified (); }
+
+    /** Returns the name of the file a symbolic link leads to, or null. */
+    String linkName (String path)
+    {
+	File	f = new File (path);
+
+	try {
+	    if (f.exists ())
+		return f.getCanonicalFile ().getName ();
+	} catch (IOException e) {
+	}
+	return null;
+    }
+
+    /** Reads a whole file; with sysfs attributes, that's one read. */
+    byte [] read (String path)
+    throws IOException
+    {
+	FileInputStream	in = new FileInputStream (path);
+	byte		buf [] = new byte [4096];
+	int		len = 0;
+
+	try {
+	    for (;;) {
+		int	count;
+
+		if (len == buf.length) {
+		    byte	temp [] = new byte [2 * buf.length];
+
+		    System.arraycopy (buf, 0, temp, 0, len);
+		    buf = temp;
+		}
+		count = in.read (buf, len, buf.length - len);
+		if (count <= 0)
+		    break;
+		len += count;
+	    }
+	} finally {
+	    in.close ();
+	}
+
+	byte	retval [] = new byte [len];
+
+	System.arraycopy (buf, 0, retval, 0, len);
+	return retval;
+    }
+
+    /** Returns the kernel release, like "2.6.32-5-amd64". */
+    String getRelease ()
+	{ return System.getProperty ("os.version"); }
+
+
+    // device files
+
+    /** Opens a usbfs device file for reading and writing. */
+    abstract int open (String path);
+
+    abstract int close (int fd);
+
+    /** Maps usbfs DMA memory; returns null if that fails. */
+    abstract ByteBuffer mapBuffer (int fd, int size);
+
+    abstract int unmapBuffer (ByteBuffer buf);
+
+    /** Returns USBDEVFS_CAP_* flags. */
+    abstract int getCapabilities (int fd);
+
+
+    // synchronous usbfs requests; control transfers are all URBs
+
+    abstract int setConfiguration (int fd, int config);
+
+    abstract int claimInterface (int fd, int ifno);
+
+    abstract int releaseInterface (int fd, int ifno);
+
+    abstract int setInterface (int fd, int ifno, int alt);
+
+    abstract int clearHalt (int fd, byte ep);
+
+    /** Returns how many USB 3 bulk streams were allocated. */
+    abstract int allocStreams (int fd, int count, byte eps []);
+
+    abstract int freeStreams (int fd, byte eps []);
+
+    /** Fills in a usbdevfs_hub_portinfo (128 bytes). */
+    abstract int getHubPorts (int fd, byte data []);
+
+    /** Returns the name of the driver bound to an interface, or "". */
+    abstract String getClaimer (int fd, int ifno);
+
+    /**
+     * Stores speed (USB_SPEED_*), a port count, and the ports from
+     * the root hub down; returns how many were stored.
+     */
+    abstract int getConnInfo (int fd, int info []);
+
+
+    // asynchronous requests:  the handle names a native request
+    // buffer that's reused for many URBs; see {@link URB}
+
+    /**
+     * Returns a handle for a request with room for "capacity" bytes
+     * and "packets" iso packets, or zero.  When "fd" isn't negative,
+     * the data buffer comes from its usbfs DMA memory if possible.
+     */
+    abstract long allocURB (int fd, int packets, int capacity);
+
+    abstract void freeURB (long handle);
+
+    /** Queues a request; OUT data is copied now, IN data after reaping. */
+    abstract int submit (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    byte buf [], int off, int length);
+
+    /** Queues a request whose data stays in a direct buffer. */
+    abstract int submitDirect (int fd, long handle, int id,
+	    int type, int ep, int flags,
+	    ByteBuffer buf, int off, int length);
+
+    /** Queues a control request; SETUP goes in front of the data. */
+    abstract int submitControl (int fd, long handle, int id,
+	    byte requestType, byte request, short value, short index,
+	    byte buf [], int off, int length);
+
+    /** Queues "count" iso packets with the given lengths. */
+    abstract int submitIso (int fd, long handle, int id,
+	    int ep, int flags, int frame, int lengths [], int count,
+	    byte buf [], int off);
+
+    /** Queues whatever {@link #copyOut} put in the request's buffer. */
+    abstract int submitBuffer (int fd, long handle, int id,
+	    int type, int ep, int flags, int length);
+
+    abstract int discard (int fd, long handle);
+
+    /** Tags later bulk submissions with a USB 3 stream ID. */
+    abstract void setStream (long handle, int stream);
+
+    /**
+     * Returns the id of a completed URB for this fd, after waiting up
+     * to timeout msec for one; else negative errno (ETIMEDOUT).
+     */
+    abstract int reap (int fd, int timeout);
+
+    /**
+     * Reaps every URB that's completed on this fd (up to "max"),
+     * without waiting, storing an (id, status, actual length) triple
+     * of native ints for each in the direct buffer.  Returns how many
+     * were stored; zero if none were done, else negative errno.
+     */
+    abstract int reapBatch (int fd, ByteBuffer records, int max);
+
+    abstract int getStatus (long handle);
+
+    abstract int getActualLength (long handle);
+
+    /** Copies IN data (after any SETUP packet) to the array. */
+    abstract void copyIn (long handle, byte buf [], int off, int length);
+
+    abstract int copyInAt (long handle, int at,
+	    byte buf [], int off, int length);
+
+    abstract int copyInDirect (long handle, int at,
+	    ByteBuffer buf, int off, int length);
+
+    abstract int copyOut (long handle, int at,
+	    byte buf [], int off, int length);
+
+    abstract int copyOutDirect (long handle, int at,
+	    ByteBuffer buf, int off, int length);
+
+    abstract int getStartFrame (long handle);
+
+    /** Copies per-packet iso results; returns the error count. */
+    abstract int getIsoResults (long handle, int actual [], int status []);
+
+
+    // the reaper's epoll set
+
+    abstract int epollCreate ();
+
+    /** Watches a device file; its events report "slot". */
+    abstract int epollAdd (int epfd, int fd, int slot);
+
+    abstract int epollRemove (int epfd, int fd);
+
+    /**
+     * Waits up to timeout msec (negative means forever) for device
+     * files to become ready; returns how many, filling in their slots
+     * and epoll event masks.
+     */
+    abstract int epollWait (int epfd, int slots [], int events [],
+	    int timeout);
+
+
+    // hotplug event sources
+
+    /** Returns a socket for kernel uevents. */
+    abstract int openNetlink (int groups);
+
+    abstract int openInotify ();
+
+    /** Watches a directory; returns the watch descriptor. */
+    abstract int addWatch (int fd, String path, int mask);
+
+    /**
+     * Waits up to timeout msec for the file to become readable, then
+     * reads whatever events are queued (without blocking again).
+     * For netlink, USB device add/remove events report their bus
+     * number; zero for lost events, and other events are ignored.
+     * For inotify, watch descriptors are reported; -1 when events
+     * were lost.  Returns how many were stored.
+     */
+    abstract int readEvents (int fd, boolean netlink,
+	    int busses [], int timeout);
+
+
+    /** Wraps strerror(3). */
+    abstract String strError (int errno);
+}
@@ -84,19 +84,25 @@ public final class Linux extends HostFactory
 	synchronized (Host.class) {
 	    if (self == null) {
 
-		// no existing host; make our own.
+		// JNI glue, or maybe the foreign function API
+		if (Kernel.sys == null)
+		    Kernel.sys = Kernel.select ();
+
+		// no existing host; make our own.  Newer kernels
+		// don't mount usbfs; udev makes the same files.
 		File f = new File ("/proc/bus/usb");
-		if (!f.exists () || !f.isDirectory ()) {
+		if (!Kernel.sys.exists ("/proc/bus/usb/devices"))
+		    f = new File ("/dev/bus/usb");
+		if (!Kernel.sys.isDirectory (f.getPath ())) {
 		    System.err.println (
 			"Java USB for Linux needs usbdevfs to run."
 			);
 		    return null;
 		}
 
-		// With GCJ we expect to run native, not interpreted,
-		// and use CNI glue instead of a separate JNI library.
-		if (!"libgcj".equals (System.getProperty ("java.vm.name")))
-		    System.loadLibrary ("jusb");
+		// transfer size checks need the kernel's limits,
+		// even before any device file is opened
+		Capabilities.probe (f.getPath ());
 
 		self = new Linux.HostImpl (f,startup_listener);
 	    }
@@ -104,6 +110,150 @@ public final class Linux extends HostFactory
 	return self;
     }
 
+    /**
+     * Makes the host use some other kernel interface than the one
+     * {@link Kernel#select} would pick.  The bench jar's simulated
+     * kernel installs itself this way, before the host is created.
+     *
+     * @exception IllegalStateException if the host already exists
+     */
+    static void setKernel (Kernel k)
+    {
+	synchronized (Host.class) {
+	    if (self != null)
+		throw new IllegalStateException ("host exists");
+	    Kernel.sys = k;
+	}
+    }
+
+    /**
+     * Assigns how many asynchronous requests (URBs) each bulk transfer
+     * keeps queued.  Deeper queues keep the bus busy while the JVM is
+     * scheduling threads; the default is four.  This affects transfers
+     * started after the call.
+     *
+     * @param depth at least one; one means no overlap at all
+     */
+    public static void setQueueDepth (int depth)
+	{ URBEngine.setDepth (depth); }
+
+    /** Returns the number of URBs each bulk transfer keeps queued. */
+    public static int getQueueDepth ()
+	{ return URBEngine.getDepth (); }
+
+    /**
+     * Limits how many device files may be open at once.  When sysfs
+     * is used for enumeration, device files are opened when they're
+     * first used; past this limit, the least recently used idle ones
+     * are closed, and reopened when they're used again.  Devices
+     * with I/O in progress, claimed interfaces, interrupt
+     * subscriptions, or isochronous streams always stay open.
+     *
+     * @param max how many files may be open; zero (the default)
+     *	means there's no limit
+     */
+    public static void setMaxOpenDevices (int max)
+	{ FilePool.setLimit (max); }
+
+    /** Returns the limit on open device files; zero means none. */
+    public static int getMaxOpenDevices ()
+	{ return FilePool.getLimit (); }
+
+    /**
+     * Arranges that device files which haven't been used for a while
+     * are closed, as if {@link #setMaxOpenDevices} had been exceeded.
+     *
+     * @param msec how long files may be idle; zero (the default)
+     *	means they're never closed for being idle
+     */
+    public static void setIdleTimeout (int msec)
+	{ FilePool.setIdleTimeout (msec); }
+
+    /** Returns how long device files may stay idle; zero means forever. */
+    public static int getIdleTimeout ()
+	{ return FilePool.getIdleTimeout (); }
+
+    /**
+     * Names a file where descriptors are remembered between runs, so
+     * that restarting doesn't need to read configuration descriptors
+     * and strings from devices again.  Entries are only used when the
+     * device descriptor still matches.  Call this before
+     * {@link #getHost}; by default, the "usb.linux.descriptorCache"
+     * system property names the file, and if it's not set, nothing
+     * is cached.  The file is updated after the first enumeration,
+     * and when the JVM exits.
+     *
+     * @param f the cache file, or null to disable caching
+     */
+    public static void setDescriptorCache (File f)
+	{ DescriptorCache.setFile (f); }
+
+    /** Returns the descriptor cache file, or null if there's none. */
+    public static File getDescriptorCache ()
+	{ return DescriptorCache.getFile (); }
+
+    /**
+     * Controls whether a device with no descriptor cache entry of its
+     * own may use one recorded for a device with an identical device
+     * descriptor.  Its configurations are checked against the
+     * device's own configuration descriptors (just their first nine
+     * bytes) before they're used.  This is off by default.
+     */
+    public static void setDescriptorSharing (boolean flag)
+	{ DescriptorCache.setSharing (flag); }
+
+    /** Returns true if identical devices share cache entries. */
+    public static boolean getDescriptorSharing ()
+	{ return DescriptorCache.getSharing (); }
+
+    /**
+     * Limits how many devices the descriptor cache remembers; past
+     * that, the least recently used ones are forgotten.  The default
+     * is 1024.
+     */
+    public static void setDescriptorCacheLimit (int max)
+	{ DescriptorCache.setLimit (max); }
+
+    /** Returns how many devices the descriptor cache remembers. */
+    public static int getDescriptorCacheLimit ()
+	{ return DescriptorCache.getLimit (); }
+
+    /**
+     * Returns the usbfs capability flags (USBDEVFS_CAP_*) reported by
+     * the kernel, or guessed from its version.  These are probed when
+     * the first device is opened; until then, this returns zero.
+     */
+    public static int getCapabilities ()
+	{ return Capabilities.caps; }
+
+    /**
+     * Returns the size of the largest URB that bulk and interrupt
+     * transfers are split into.  Bigger transfers are still legal.
+     */
+    public static int getMaxBulkLength ()
+	{ return Capabilities.bulkLimit; }
+
+    /** Returns the longest control transfer data stage allowed. */
+    public static int getMaxControlLength ()
+	{ return Capabilities.controlLimit; }
+
+    /**
+     * Returns how long each bus took to enumerate the devices found
+     * with it, one line per bus; for diagnostics.  Devices are
+     * created in parallel, and any that take more than a few seconds
+     * are skipped until a later scan.
+     */
+    public static String getEnumerationTimes ()
+	{ return (watcher == null) ? "" : watcher.getEnumerationTimes (); }
+
+    /**
+     * Returns a summary of what the kernel's usbfs can do, and the
+     * transfer limits chosen accordingly; for diagnostics.
+     */
+    public static String getKernelLimits ()
+	{ return Capabilities.describe (); }
+
+
     /******************************************************************/
 
     // FIXME: provide some way to expose devfs info, so we have it
@@ -214,10 +364,19 @@ public final class Linux extends HostFactory
     // hubs usually get polled for interrupts every 255ms ...
     static final int POLL_PERIOD = 2;	// seconds
 
+    // with hotplug events, still rescan everything now and then
+    static final int RESYNC_PERIOD = 30;	// seconds
+
+    // udev may still be creating the device node just after the
+    // kernel's event, so rescan the bus once more after this
+    static final int SETTLE_TIME = 500;	// msec
+
 
     /**
      * Scan for bus additions/removals/changes, delegating
-     * most work to the
+     * most work to the busses.  When the kernel reports hotplug
+     * events, only the busses they name are rescanned, as soon
+     * as the events arrive; otherwise usbdevfs is polled.
      */
     private static final class Watcher implements Runnable
     {
@@ -227,6 +386,12 @@ public final class Linux extends HostFactory
 	private final Vector		listeners;
 	private long			lastTime;
 
+	private Hotplug			hotplug;
+
+	// busses to rescan once udev has settled, and when
+	private final Vector		settling = new Vector (3);
+	private long			settleTime;
+
 	// package private
 	Watcher (File d, Hashtable b, Vector l)
 	throws IOException, SecurityException
@@ -236,14 +401,21 @@ public final class Linux extends HostFactory
 	    devices = new File (dir, "devices");
 	    busses = b;
 	    listeners = l;
-	    if (!dir.exists () || !dir.isDirectory ())
+	    if (!Kernel.sys.isDirectory (dir.getPath ()))
 		throw new IOException (
 		      "is usbdevfs mounted?  "
 		    + d.getAbsolutePath ());
 
+	    // listen before the first scan, so nothing is missed
+	    hotplug = Hotplug.open (dir);
+	    if (trace)
+		System.err.println ("Watcher: events from "
+		    + (hotplug == null ? "polling" : hotplug.toString ()));
+
 	    // initial population of this bus
-	    while (scan ())
+	    while (scan (false))
 		continue;
+	    DescriptorCache.flush ();
 
 	    if (busses.isEmpty ())
 		throw new IOException (
@@ -252,21 +424,101 @@ public final class Linux extends HostFactory
 
 	public void run ()
 	{
+	    int		events [] = new int [16];
+	    long	resync = System.currentTimeMillis ()
+				+ RESYNC_PERIOD * 1000;
+
 	    while (dir != null) {
+		long	now, timeout;
+		int	count;
+
+		// No hotplug events?  Poll, as with 2.4 kernels.
+		if (hotplug == null) {
+
+		    // No matter how we learn that something may have
+		    // changed, we do the same thing to figure out
+		    // exactly what changed:  scan usbdevfs
+		    while (scan (false))
+			continue;
 
-		// No matter how we learn that something may have
-		// changed, we do the same thing to figure out
-		// exactly what changed:  scan usbdevfs
-		while (scan ())
+		    try { Thread.sleep (POLL_PERIOD * 1000); }
+		    catch (InterruptedException e) {
+			// set dir to null to cause a clean exit
+		    }
+		    continue;
+		}
+
+		now = System.currentTimeMillis ();
+		if (!settling.isEmpty () && settleTime <= now) {
+		    for (int i = 0; i < settling.size (); i++)
+			rescan (((Integer) settling.elementAt (i)).intValue ());
+		    settling.removeAllElements ();
+		}
+		if (resync <= now) {
+		    while (scan (true))
+			continue;
+		    resync = now + RESYNC_PERIOD * 1000;
+		}
+
+		now = System.currentTimeMillis ();
+		timeout = settling.isEmpty ()
+			? resync : Math.min (resync, settleTime);
+		count = hotplug.next (events,
+			(int) Math.max (0, timeout - now));
+
+		if (count < 0) {
+		    // "can't happen"; fall back to polling
+		    if (debug)
+			System.err.println ("Watcher: hotplug errno "
+			    + (-count));
+		    hotplug.close ();
+		    hotplug = null;
 		    continue;
+		}
+
+		for (int i = 0; i < count; i++) {
+		    Integer	busnum = new Integer (events [i]);
+		    boolean	seen = false;
+
+		    // several events often name the same bus
+		    for (int j = 0; j < i && !seen; j++)
+			seen = (events [j] == events [i]);
+		    if (seen)
+			continue;
+		    rescan (events [i]);
+		    if (!settling.contains (busnum))
+			settling.addElement (busnum);
+		}
+		if (count > 0)
+		    settleTime = System.currentTimeMillis () + SETTLE_TIME;
+	    }
+	    if (hotplug != null)
+		hotplug.close ();
+	}
 
-		// FIXME:  add native support to poll() on
-		// /proc/bus/usb/devices ...
+	// rescan just the one bus, unless it was added or removed
+	private void rescan (int busnum)
+	throws SecurityException
+	{
+	    if (trace)
+		System.err.println ("Watcher: hotplug, bus " + busnum);
 
-		try { Thread.sleep (POLL_PERIOD * 1000); }
-		catch (InterruptedException e) {
-		    // set dir to null to cause a clean exit
+	    synchronized (busses) {
+		String	name = "00" + busnum;
+		USB	bus;
+
+		name = name.substring (name.length () - 3);
+		bus = (USB) busses.get (name);
+		if (busnum == Hotplug.ALL
+			|| bus == null
+			|| !Kernel.sys.isDirectory (
+				new File (dir, name).getPath ())) {
+		    while (scan (true))
+			continue;
+		    return;
 		}
+		while (bus.scanBus ())
+		    continue;
 	    }
 	}
 
@@ -275,16 +527,18 @@ public final class Linux extends HostFactory
 	    dir = null;
 	}
 
-	private boolean scan ()
+	// with "force", don't trust the mtime of the devices file
+	private boolean scan (boolean force)
 	throws SecurityException
 	{
 	    boolean	changed = false;
 
 	    synchronized (busses) {
 		long	current = System.currentTimeMillis ();
-		long	mtime = devices.lastModified ();
+		long	mtime = Kernel.sys.lastModified (devices.getPath ());
 
-		if (lastTime > mtime) {
+		// (there's no such file without usbfs)
+		if (!force && lastTime > mtime && mtime != 0) {
 		    // works since 2.4.0-test8 or so
 		    if (trace)
 			System.err.println ("Host.scan: unmodified");
@@ -294,14 +548,34 @@ public final class Linux extends HostFactory
 		    System.err.println ("Host.scan: modified ...");
 
 		// what busses exist now?
-		String	kids [] = dir.list ();
+		String	kids [] = Kernel.sys.list (dir.getPath ());
 		Vector	seen;
 
-		if (kids.length < 2)
+		if (kids == null || kids.length == 0)
 		    throw new IllegalArgumentException (
 				dir.getAbsolutePath ());
 
-		seen = new Vector (kids.length - 2);
+		seen = new Vector (kids.length);
+
+		// enumerate all new busses' devices in parallel
+		Hashtable	fresh = new Hashtable (3);
+
+		for (int i = 0; i < kids.length; i++) {
+		    try {
+			if (busses.get (kids [i]) != null)
+			    continue;
+
+			USB	bus = new USB (dir, kids [i],
+				    Integer.parseInt (kids [i]),
+				    listeners, self);
+
+			bus.prefetch ();
+			fresh.put (kids [i], bus);
+		    } catch (Exception e) {
+			// reported below
+		    }
+		}
+
 		for (int i = 0; i < kids.length; i++) {
 		    int	busnum;
 		    try {
@@ -313,7 +587,8 @@ public final class Linux extends HostFactory
 
 			// new bus?
 			if (bus == null) {
-			    mkBus (kids [i], busnum);
+			    mkBus (kids [i], busnum,
+				    (USB) fresh.get (kids [i]));
 			    changed = true;
 
 			// new bus, but we missed a removal?
@@ -388,16 +663,17 @@ public final class Linux extends HostFactory
 	    bus.kill ();
 	}
 
-	private void mkBus (String busname, int busnum)
+	private void mkBus (String busname, int busnum, USB bus)
 	throws IOException, SecurityException
 	{
-	    USB	bus;
-
-	    bus = new USB (dir, busname, busnum, listeners, self);
+	    if (bus == null)
+		bus = new USB (dir, busname, busnum, listeners, self);
 	    if (trace)
 		System.err.println ("mkBus " + bus);
 
 	    busses.put (busname, bus);
+	    if (hotplug != null)
+		hotplug.addBus (new File (dir, busname), busnum);
 	    for (int i = 0; i < listeners.size (); i++) {
 		USBListener	listener;
 		listener = (USBListener) listeners.elementAt (i);
@@ -409,6 +685,25 @@ public final class Linux extends HostFactory
 
 	    while (bus.scanBus ())
 		continue;
+	    bus.enumerated ();
+	}
+
+	String getEnumerationTimes ()
+	{
+	    StringBuffer	buf = new StringBuffer ();
+
+	    synchronized (busses) {
+		for (Enumeration e = busses.keys (); e.hasMoreElements (); ) {
+		    USB	bus = (USB) busses.get (e.nextElement ());
+
+		    buf.append ("bus ");
+		    buf.append (bus.getBusNum ());
+		    buf.append (": ");
+		    buf.append (bus.getEnumerationTime ());
+		    buf.append (" msec\n");
+		}
+	    }
+	    return buf.toString ();
 	}
     }
 }
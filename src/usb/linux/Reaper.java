@@ -0,0 +1,189 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.util.Vector;
+
+
+/**
+ * One thread that reaps URB completions for every open device file.
+ * usbfs makes a device file writable (POLLOUT) when it has completed
+ * URBs to reap, so all the files go into one epoll set; this thread
+ * waits on that, reaps whatever completed, and wakes the threads
+ * waiting for those URBs.  No thread blocks inside an ioctl waiting
+ * for I/O, and the thread count doesn't grow with the device count.
+ *
+ * <p> Owners of URBs that nobody waits for (interrupt subscriptions)
+ * are called on this thread, so they must not block.
+ *
+ * <p> If epoll_wait fails for any reason but a signal, the epoll set
+ * is rebuilt once; if that fails too, every watched device's I/O is
+ * failed and the thread exits, to be restarted by the next device
+ * file that's opened.
+ *
+ * @version $Id$
+ */
+final class Reaper implements Runnable
+{
+    private static int		epfd = -1;
+    private static Thread	thread;
+
+    // indexed by the slot number epoll reports
+    private static URBEngine	engines [] = new URBEngine [16];
+
+    // how many events we take at once
+    private static final int	BATCH = 64;
+
+    private Reaper () { }
+
+
+    /** Starts watching an engine's device file. */
+    static synchronized void register (URBEngine engine)
+    throws USBException
+    {
+	int	slot;
+	int	status;
+
+	if (epfd < 0) {
+	    if ((epfd = Kernel.sys.epollCreate ()) < 0) {
+		status = epfd;
+		epfd = -1;
+		throw new USBException ("epoll_create", -status);
+	    }
+	    thread = new Thread (new Reaper (), "USB reaper");
+	    thread.setDaemon (true);
+	    thread.start ();
+	}
+
+	for (slot = 0; slot < engines.length; slot++) {
+	    if (engines [slot] == null)
+		break;
+	}
+	if (slot == engines.length) {
+	    URBEngine	temp [] = new URBEngine [2 * engines.length];
+
+	    System.arraycopy (engines, 0, temp, 0, engines.length);
+	    engines = temp;
+	}
+
+	status = Kernel.sys.epollAdd (epfd, engine.getFd (), slot);
+	if (status < 0)
+	    throw new USBException ("epoll_ctl", -status);
+	engines [slot] = engine;
+	engine.slot = slot;
+    }
+
+    /** Stops watching; call before the device file is closed. */
+    static synchronized void unregister (URBEngine engine)
+    {
+	int	slot = engine.slot;
+
+	if (slot < 0 || engines [slot] != engine)
+	    return;
+	Kernel.sys.epollRemove (epfd, engine.getFd ());
+	engines [slot] = null;
+	engine.slot = -1;
+    }
+
+    /** Returns true when called by the reaper thread. */
+    static boolean isReaper ()
+	{ return Thread.currentThread () == thread; }
+
+    private static synchronized URBEngine lookup (int slot)
+    {
+	if (slot < 0 || slot >= engines.length)
+	    return null;
+	return engines [slot];
+    }
+
+
+    /*
+     * Replaces a broken epoll set with a new one watching the same
+     * files.  Completions that arrived meanwhile aren't lost, since
+     * the new set reports files that are already writable.  Returns
+     * false, after failing everything that was watched, if that
+     * can't be done; the thread must then exit.
+     */
+    private static boolean rebuild (int why, boolean retry)
+    {
+	Vector		lost = new Vector ();
+	boolean		ok;
+
+	synchronized (Reaper.class) {
+	    Kernel.sys.close (epfd);
+	    epfd = retry ? Kernel.sys.epollCreate () : -1;
+	    ok = (epfd >= 0);
+	    for (int slot = 0; slot < engines.length; slot++) {
+		URBEngine	engine = engines [slot];
+
+		if (engine == null)
+		    continue;
+		if (ok && Kernel.sys.epollAdd (epfd, engine.getFd (), slot)
+			>= 0)
+		    continue;
+		engines [slot] = null;
+		engine.slot = -1;
+		lost.addElement (engine);
+	    }
+	    if (!ok) {
+		epfd = -1;
+		thread = null;
+	    }
+	}
+	if (Linux.debug)
+	    System.err.println ("reaper: epoll_wait, errno " + (-why)
+		    + (ok ? "; rebuilt epoll set" : "; stopping"));
+	for (int i = 0; i < lost.size (); i++)
+	    ((URBEngine) lost.elementAt (i)).abandon (why);
+	return ok;
+    }
+
+    public void run ()
+    {
+	int	slots [] = new int [BATCH];
+	int	events [] = new int [BATCH];
+	boolean	rebuilt = false;
+
+	for (;;) {
+	    int	count = Kernel.sys.epollWait (epfd, slots, events, -1);
+
+	    if (count == -USBException.EINTR)
+		continue;
+	    if (count < 0) {
+		// rebuild once; if that didn't help, give up
+		if (!rebuild (count, !rebuilt))
+		    return;
+		rebuilt = true;
+		continue;
+	    }
+	    rebuilt = false;
+
+	    for (int i = 0; i < count; i++) {
+		URBEngine	engine = lookup (slots [i]);
+
+		// maybe it unregistered since the event was queued
+		if (engine == null)
+		    continue;
+		if (!engine.reapAll ())
+		    unregister (engine);
+	    }
+	}
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import usb.core.ReportBuffer;
+
+
+/**
+ * Keeps an interrupt IN URB queued for one endpoint, receiving each
+ * report straight into the next slot of a {@link ReportBuffer}.  The
+ * host controller polls the endpoint at its descriptor's interval for
+ * as long as the URB is queued; it's resubmitted as soon as each
+ * report is committed, well within that interval.
+ *
+ * <p> Completions are reaped by the {@link Reaper}, which calls
+ * {@link #completed} from its thread.
+ *
+ * @version $Id$
+ */
+final class Subscription implements URB.Owner
+{
+    private final URBEngine	engine;
+    private final int		ep;
+    private final ReportBuffer	buf;
+    private final int		size;
+    private URB			urb;
+    private boolean		active;
+
+    // give up after this many consecutive transaction errors
+    private static final int	MAX_ERRORS = 8;
+    private int			errors;
+
+
+    // package private
+    Subscription (URBEngine engine, int ep, ReportBuffer buf)
+    {
+	this.engine = engine;
+	this.ep = ep;
+	this.buf = buf;
+	size = buf.getReportSize ();
+    }
+
+    int getEndpoint ()
+	{ return ep; }
+
+    ReportBuffer getBuffer ()
+	{ return buf; }
+
+    /** Queues the first request. */
+    void start ()
+    throws USBException
+    {
+	int	status;
+
+	synchronized (this) {
+	    active = true;
+	    urb = engine.get (0, size);
+	    urb.owner = this;
+	}
+
+	status = engine.submit (urb, URB.TYPE_INTERRUPT, ep,
+		buf.getData (), buf.reserve (), size);
+	if (status < 0) {
+	    buf.release ();
+	    synchronized (this) {
+		active = false;
+	    }
+	    engine.put (urb);
+	    throw new USBException ("subscribe", -status);
+	}
+    }
+
+    /** Called by the engine when the URB completes. */
+    public void completed (URB done)
+    {
+	int	status = done.status;
+
+	synchronized (this) {
+	    if (!active || done != urb)
+		return;
+	}
+
+	if (status >= 0) {
+	    errors = 0;
+	    buf.commit (done.actual, System.currentTimeMillis ());
+
+	    // a listener may have unsubscribed
+	    synchronized (this) {
+		if (!active)
+		    return;
+	    }
+	    status = engine.submit (done, URB.TYPE_INTERRUPT, ep,
+		    buf.getData (), buf.reserve (), size);
+
+	} else if (isTransient (status) && ++errors < MAX_ERRORS) {
+	    // retry with the same slot
+	    status = engine.submit (done, URB.TYPE_INTERRUPT, ep,
+		    buf.getData (), done.off, size);
+	}
+	if (status < 0)
+	    end (status, true);
+    }
+
+    // transaction errors, as opposed to stalls, disconnects, ...
+    private static boolean isTransient (int status)
+    {
+	switch (-status) {
+	    case 62:	// ETIME
+	    case 71:	// EPROTO
+	    case 84:	// EILSEQ
+	    case USBException.EOVERFLOW:
+		return true;
+	}
+	return false;
+    }
+
+    /** Called when the device is gone, or its file closed. */
+    public void failed (int status)
+	{ end (status, false); }
+
+    private void end (int status, boolean recycle)
+    {
+	synchronized (this) {
+	    if (!active)
+		return;
+	    active = false;
+	}
+	if (recycle)
+	    engine.put (urb);
+	buf.close (new USBException ("interrupt subscription", -status));
+    }
+
+    /** Cancels the request, and closes the buffer. */
+    void stop ()
+    {
+	synchronized (this) {
+	    if (!active)
+		return;
+	    active = false;
+	}
+	engine.cancel (urb);
+	buf.close (null);
+    }
+}
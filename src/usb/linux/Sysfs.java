@@ -0,0 +1,265 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * What sysfs says about one USB device.  The kernel caches every
+ * device's descriptors when it enumerates the device, and publishes
+ * them (with its speed, address, and position in the tree) under
+ * <em>/sys/bus/usb/devices</em>.  Reading those files costs no
+ * bus traffic, and doesn't need the device file to be opened; so
+ * the device tree can be built without any control transfers.
+ *
+ * <p> Kernels before 2.6.26 wrote the device descriptor in host byte
+ * order, so on those sysfs isn't used; nor when it's not mounted.
+ *
+ * @version $Id$
+ */
+final class Sysfs
+{
+    private static final File	root = new File ("/sys/bus/usb/devices");
+    private static int		usable = -1;
+
+    /** sysfs name:  "usb1" for a root hub, else like "1-4.2" */
+    final String		name;
+    final int			busnum;
+    final int			devnum;
+
+    /** "low", "full", "high", "super", "super-plus"; else null */
+    final String		speed;
+
+    /** ports on a hub; else zero */
+    final int			maxchild;
+
+    /** bConfigurationValue; else -1, as when unconfigured */
+    final int			configValue;
+
+    /** product and serial number strings, as the kernel read them */
+    final String		product;
+    final String		serial;
+
+    // device descriptor then each configuration, as from the device
+    private final byte		descriptors [];
+
+
+    private Sysfs (File dir)
+    throws IOException
+    {
+	String	value;
+
+	name = dir.getName ();
+	busnum = Integer.parseInt (readString (dir, "busnum"));
+	devnum = Integer.parseInt (readString (dir, "devnum"));
+
+	value = readString (dir, "speed");
+	if ("1.5".equals (value))
+	    speed = "low";
+	else if ("12".equals (value))
+	    speed = "full";
+	else if ("480".equals (value))
+	    speed = "high";
+	else if ("5000".equals (value))
+	    speed = "super";
+	else if (value != null && value.length () >= 5)
+	    speed = "super-plus";	// "10000", "20000"
+	else
+	    speed = null;
+
+	value = readString (dir, "maxchild");
+	maxchild = (value == null) ? 0 : Integer.parseInt (value);
+
+	value = readString (dir, "bConfigurationValue");
+	configValue = (value == null || value.length () == 0)
+		? -1 : Integer.parseInt (value);
+
+	product = readString (dir, "product");
+	serial = readString (dir, "serial");
+
+	descriptors = Kernel.sys.read (new File (dir, "descriptors").getPath ());
+	if (descriptors.length < 18)
+	    throw new IOException ("short descriptors: " + dir);
+    }
+
+    /** Returns true if sysfs can be used to enumerate devices. */
+    static synchronized boolean isAvailable ()
+    {
+	if (usable < 0) {
+	    usable = 0;
+	    try {
+		if (Kernel.sys.exists (root.getPath () + "/usb1/descriptors")
+			&& Capabilities.kernelAtLeast (2, 6, 26))
+		    usable = 1;
+	    } catch (SecurityException e) {
+	    }
+	    if (Linux.trace)
+		System.err.println ("sysfs enumeration: " + (usable == 1));
+	}
+	return usable == 1;
+    }
+
+    /**
+     * Returns records for every device now on the specified bus,
+     * indexed by address minus one.
+     */
+    static Sysfs [] scan (int busnum)
+    {
+	Sysfs	retval [] = new Sysfs [127];
+	String	names [] = Kernel.sys.list (root.getPath ());
+	String	prefix = Integer.toString (busnum) + "-";
+	String	hub = "usb" + busnum;
+
+	if (names == null)
+	    return retval;
+	for (int i = 0; i < names.length; i++) {
+	    Sysfs	dev;
+
+	    // skip interfaces ("1-4:1.0") and other busses
+	    if (names [i].indexOf (':') >= 0)
+		continue;
+	    if (!names [i].equals (hub) && !names [i].startsWith (prefix))
+		continue;
+	    try {
+		dev = new Sysfs (new File (root, names [i]));
+		if (dev.busnum == busnum && dev.devnum > 0 && dev.devnum <= 127)
+		    retval [dev.devnum - 1] = dev;
+
+	    } catch (IOException e) {
+		// probably just unplugged
+		if (Linux.debug)
+		    System.err.println ("sysfs: " + names [i]
+			+ ", " + e.getMessage ());
+	    } catch (NumberFormatException e) {
+		if (Linux.debug)
+		    System.err.println ("sysfs: " + names [i]
+			+ ", " + e.getMessage ());
+	    }
+	}
+	return retval;
+    }
+
+    /** Returns true for root hubs. */
+    boolean isRootHub ()
+	{ return name.startsWith ("usb"); }
+
+    /** Returns the sysfs name of whatever is on a hub's port. */
+    String childName (int port)
+    {
+	if (isRootHub ())
+	    return busnum + "-" + port;
+	return name + "." + port;
+    }
+
+    /** Returns the device descriptor. */
+    byte [] getDeviceDescriptor ()
+    {
+	byte	retval [] = new byte [18];
+
+	System.arraycopy (descriptors, 0, retval, 0, 18);
+	return retval;
+    }
+
+    /**
+     * Returns the index of the current configuration, or -1 if that's
+     * not known.
+     */
+    int getConfigIndex ()
+    {
+	int	n = 0;
+
+	if (configValue < 0)
+	    return -1;
+	for (int off = 18; off + 9 <= descriptors.length; n++) {
+	    int		len = totalLength (off);
+
+	    if (len < 9)
+		break;
+	    if ((0xff & descriptors [off + 5]) == configValue)
+		return n;
+	    off += len;
+	}
+	return -1;
+    }
+
+    /**
+     * Returns the specified configuration descriptor, followed by its
+     * interface, endpoint, and other descriptors; else null.
+     */
+    byte [] getConfigBuf (int index)
+    {
+	int	off = 18;
+
+	for (int n = 0; off + 9 <= descriptors.length; n++) {
+	    int		len = totalLength (off);
+	    byte	retval [];
+
+	    if (len < 9 || off + len > descriptors.length)
+		break;
+	    if (n == index) {
+		retval = new byte [len];
+		System.arraycopy (descriptors, off, retval, 0, len);
+		return retval;
+	    }
+	    off += len;
+	}
+	return null;
+    }
+
+    /**
+     * Returns the name of the driver bound to the specified interface
+     * of the current configuration, else the empty string.
+     */
+    String getDriver (int ifno)
+    {
+	String	driver = null;
+
+	try {
+	    driver = Kernel.sys.linkName (root.getPath () + "/" + name
+		    + ":" + configValue + "." + ifno + "/driver");
+	} catch (SecurityException e) {
+	}
+	return (driver == null) ? "" : driver;
+    }
+
+    // wTotalLength, little endian
+    private int totalLength (int off)
+    {
+	return (0xff & descriptors [off + 2])
+		| ((0xff & descriptors [off + 3]) << 8);
+    }
+
+    public String toString ()
+	{ return "{ sysfs " + name + " }"; }
+
+
+    // text attributes; null if there's no such attribute
+    private static String readString (File dir, String attr)
+    throws IOException
+    {
+	String	path = new File (dir, attr).getPath ();
+
+	if (!Kernel.sys.exists (path))
+	    return null;
+	return new String (Kernel.sys.read (path), "ISO-8859-1").trim ();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Orders one device's transfers.  Each endpoint (or USB 3 stream) is
+ * a lane:  transfers on a lane run one at a time, in the order they
+ * arrived, so their URBs never interleave.  Lanes are independent, so
+ * transfers on different endpoints run in parallel, and no lock is
+ * taken to enter or leave one; a lane is a count of its transfers
+ * and a queue of the ones waiting their turn.  Queued transfers don't
+ * wait for their turn; whichever thread ends the transfer ahead of
+ * one starts it.
+ *
+ * <p> Configuration and altsetting changes {@link #hold} the
+ * endpoints they affect:  new transfers there wait, and the change
+ * waits (for a while) for transfers already running there to finish.
+ * Only changes take the device-wide lock.  Blocked threads park
+ * rather than wait on a monitor, so virtual threads don't pin their
+ * carriers here.
+ *
+ * @version $Id$
+ */
+final class TransferGate
+{
+    // Integer key --> Lane, one for each endpoint or stream used
+    private final ConcurrentHashMap	lanes = new ConcurrentHashMap (7);
+
+    // only changes use these
+    private final ReentrantLock	lock = new ReentrantLock ();
+    private final Condition	changed = lock.newCondition ();
+
+    // endpoints a change holds; null if none, ALL for all of them
+    private volatile int	held [];
+    private static final int	ALL [] = new int [0];
+
+    private static final class Lane
+    {
+	final int		key;
+
+	// transfers that entered and haven't left; the first one
+	// holds the lane, the rest wait in "queue"
+	final AtomicInteger	count = new AtomicInteger ();
+	final ConcurrentLinkedQueue	queue = new ConcurrentLinkedQueue ();
+
+	// the one whose turn it is, while a change holds the lane
+	final AtomicReference	parked = new AtomicReference ();
+
+	// true while a transfer runs here
+	volatile boolean	running;
+
+	Lane (int key) { this.key = key; }
+    }
+
+    // a transfer waiting for its turn:  a blocked thread, or a
+    // queued transfer's "start"
+    private static final class Turn
+    {
+	final Thread		waiter;
+	final Runnable		start;
+	volatile boolean	go;
+
+	Turn (Thread waiter, Runnable start)
+	{
+	    this.waiter = waiter;
+	    this.start = start;
+	}
+    }
+
+
+    /** Returns the lane for an endpoint address, and maybe a stream. */
+    static int key (int ep, int stream)
+	{ return (0xff & ep) | (stream << 8); }
+
+    private Lane lane (int key)
+    {
+	Integer		k = new Integer (key);
+	Lane		lane = (Lane) lanes.get (k);
+
+	if (lane == null) {
+	    Lane	other;
+
+	    lane = new Lane (key);
+	    other = (Lane) lanes.putIfAbsent (k, lane);
+	    if (other != null)
+		lane = other;
+	}
+	return lane;
+    }
+
+    // true if a change holds this lane
+    private boolean isHeld (int key)
+    {
+	int	eps [] = held;
+
+	if (eps == null)
+	    return false;
+	if (eps == ALL)
+	    return true;
+	for (int i = 0; i < eps.length; i++)
+	    if ((0xff & eps [i]) == (0xff & key))
+		return true;
+	return false;
+    }
+
+    /*
+     * Called by whoever has the lane for "turn":  starts it, unless
+     * a change holds the lane.  Then it's parked until resume(); the
+     * check after parking catches a resume() that didn't see it.
+     */
+    private void grant (Lane lane, Turn turn)
+    {
+	for (;;) {
+	    lane.running = true;
+	    if (!isHeld (lane.key))
+		break;
+	    lane.running = false;
+	    signalChange ();
+	    lane.parked.set (turn);
+	    if (isHeld (lane.key) || !lane.parked.compareAndSet (turn, null))
+		return;
+	}
+	if (turn.start != null)
+	    turn.start.run ();
+	else {
+	    turn.go = true;
+	    LockSupport.unpark (turn.waiter);
+	}
+    }
+
+    // wakes a change waiting in drain(); cheap when there's none
+    private void signalChange ()
+    {
+	if (held == null)
+	    return;
+	lock.lock ();
+	try {
+	    changed.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /**
+     * Waits until a transfer on the lane may start:  earlier ones on
+     * that lane are done, and no configuration change holds it.
+     * Every call that returns must be matched by {@link #leave}.
+     * The {@link Reaper} thread mustn't wait for other transfers
+     * (they may be waiting for it), so it gets EBUSY unless the lane
+     * is free right now.
+     */
+    void enter (int key)
+    throws USBException
+    {
+	Lane		lane = lane (key);
+	Turn		turn;
+
+	if (Reaper.isReaper ()) {
+	    if (isHeld (key) || !lane.count.compareAndSet (0, 1))
+		throw new USBException ("endpoint busy",
+			USBException.EBUSY);
+	    lane.running = true;
+	    if (isHeld (key)) {
+		leave (key);
+		throw new USBException ("endpoint busy",
+			USBException.EBUSY);
+	    }
+	    return;
+	}
+
+	turn = new Turn (Thread.currentThread (), null);
+	if (lane.count.getAndIncrement () == 0)
+	    grant (lane, turn);
+	else
+	    lane.queue.add (turn);
+
+	// a turn can't be given back, so this can't be interrupted
+	while (!turn.go)
+	    LockSupport.park (this);
+    }
+
+    /**
+     * Like {@link #enter}, but doesn't wait:  "start" runs now if the
+     * transfer may start, else later (on the thread that lets it).
+     * Every call must be matched by {@link #leave}.
+     */
+    void enter (int key, Runnable start)
+    {
+	Lane		lane = lane (key);
+	Turn		turn = new Turn (null, start);
+
+	if (lane.count.getAndIncrement () == 0)
+	    grant (lane, turn);
+	else
+	    lane.queue.add (turn);
+    }
+
+    /** Ends a transfer, letting the next one on its lane start. */
+    void leave (int key)
+    {
+	Lane		lane = (Lane) lanes.get (new Integer (key));
+	Turn		next;
+
+	lane.running = false;
+	signalChange ();
+	if (lane.count.decrementAndGet () == 0)
+	    return;
+
+	// the next one counted itself, but may not be queued yet
+	while ((next = (Turn) lane.queue.poll ()) == null)
+	    Thread.yield ();
+	grant (lane, next);
+    }
+
+    /**
+     * Stops new transfers on the endpoints listed (null means all of
+     * them) from starting.  Only one change happens at a time, so
+     * this waits for any other one to {@link #resume}; the {@link
+     * Reaper} thread can't wait for that (the other change may be
+     * waiting for it), so it gets EBUSY instead.  Every call that
+     * returns must be matched by {@link #resume}.
+     */
+    void hold (int eps [])
+    throws USBException
+    {
+	lock.lock ();
+	try {
+	    while (held != null) {
+		if (Reaper.isReaper ())
+		    throw new USBException ("another change is under way",
+			    USBException.EBUSY);
+		changed.awaitUninterruptibly ();
+	    }
+	    held = (eps == null) ? ALL : eps;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /** Returns true while transfers on the held endpoints are running. */
+    boolean isBusy ()
+    {
+	for (Iterator i = lanes.values ().iterator (); i.hasNext (); ) {
+	    Lane	lane = (Lane) i.next ();
+
+	    if (lane.running && isHeld (lane.key))
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * After {@link #hold}, waits up to "timeout" msec for transfers on
+     * the held endpoints to finish.  Returns true if they did.
+     */
+    boolean drain (long timeout)
+    {
+	long		deadline = System.currentTimeMillis () + timeout;
+	boolean		interrupted = false;
+
+	lock.lock ();
+	try {
+	    while (isBusy ()) {
+		long	now = System.currentTimeMillis ();
+
+		if (now >= deadline)
+		    return false;
+		try {
+		    changed.await (deadline - now, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	    return true;
+	} finally {
+	    lock.unlock ();
+	    if (interrupted)
+		Thread.currentThread ().interrupt ();
+	}
+    }
+
+    /** Lets transfers start again after {@link #hold}. */
+    void resume ()
+    {
+	lock.lock ();
+	try {
+	    held = null;
+	    changed.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+
+	// start the transfers whose turn came while the lanes were held
+	for (Iterator i = lanes.values ().iterator (); i.hasNext (); ) {
+	    Lane	lane = (Lane) i.next ();
+	    Turn	turn = (Turn) lane.parked.getAndSet (null);
+
+	    if (turn != null)
+		grant (lane, turn);
+	}
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A USB Request Block, as used with the usbdevfs asynchronous I/O calls.
+ * Each one wraps a native request buffer, which is reused for many
+ * transfers; an {@link URBEngine} owns it and keeps it queued.
+ *
+ * <p> Not part of any API; only the engine should touch these.
+ *
+ * @version $Id$
+ */
+final class URB
+{
+    // from <linux/usbdevice_fs.h>
+    static final int	TYPE_ISO = 0;
+    static final int	TYPE_INTERRUPT = 1;
+    static final int	TYPE_CONTROL = 2;
+    static final int	TYPE_BULK = 3;
+
+    static final int	SHORT_NOT_OK = 0x01;
+    static final int	ISO_ASAP = 0x02;
+    static final int	BULK_CONTINUATION = 0x04;
+    static final int	ZERO_PACKET = 0x40;
+
+
+    /** slot number in the engine; reported when this is reaped */
+    final int		id;
+
+    /** how much data the native buffer holds */
+    final int		capacity;
+
+    /** how many iso packet descriptors it has room for */
+    final int		packets;
+
+    /** true if the buffer was asked for from usbfs DMA memory */
+    final boolean	mapped;
+
+    /** native struct; zero once freed */
+    private long	handle;
+
+    // bytes of DMA memory all URBs asked for; usbfs_memory_mb
+    // limits that, for every process
+    private static long	mappedBytes;
+
+    // current request; data is in buf, or else in direct
+    int			type;
+    int			ep;
+    byte		buf [];
+    ByteBuffer		direct;
+    int			off;
+    int			length;
+
+    /** USB 3 bulk stream ID, else zero */
+    int			stream;
+
+    /** next URB queued by the same transfer */
+    URB			next;
+
+    // completion status, valid once "done"
+    boolean		done;
+    int			status;
+    int			actual;
+
+    /** nobody's waiting; recycle this when it's reaped */
+    boolean		orphan;
+
+    /** if not null, is told when this completes (outside engine locks) */
+    Owner		owner;
+
+
+    /**
+     * Handles completions of URBs that nobody waits for, such as
+     * those of interrupt {@link Subscription}s.  The {@link Reaper}
+     * calls these from its thread; they must not block.
+     */
+    interface Owner
+    {
+	/** Called when an URB completes. */
+	public void completed (URB done);
+
+	/** Called when the device is gone, or its file closed. */
+	public void failed (int status);
+    }
+
+
+    /**
+     * When "fd" isn't negative, the native buffer comes from that
+     * device file's DMA memory (usbfs mmap) if possible, so the kernel
+     * needn't copy data to or from it.
+     */
+    // package private
+    URB (int id, int packets, int capacity, int fd)
+    {
+	this.id = id;
+	this.packets = packets;
+	this.capacity = capacity;
+	mapped = fd >= 0 && capacity != 0;
+	if ((handle = Kernel.sys.allocURB (fd, packets, capacity)) == 0)
+	    throw new OutOfMemoryError ("URB");
+	if (mapped)
+	    addMapped (capacity);
+    }
+
+    private static synchronized void addMapped (int n)
+	{ mappedBytes += n; }
+
+    /**
+     * Returns how much usbfs DMA memory this process's URBs hold.
+     * (The kernel may have given some of them ordinary memory.)
+     */
+    static synchronized long getMappedBytes ()
+	{ return mappedBytes; }
+
+    /**
+     * Queues this request to the device; returns zero, or negative errno.
+     * IN requests must have their data collected with {@link #complete}.
+     */
+    int submit (int fd, int type, int ep, int flags,
+	    byte buf [], int off, int length)
+    {
+	setup (type, ep, off, length);
+	this.buf = buf;
+	return Kernel.sys.submit (fd, handle, id,
+		type, ep, flags, buf, off, length);
+    }
+
+    /**
+     * Queues this request using a direct buffer, which the kernel
+     * reads or writes in place; returns zero, or negative errno.
+     */
+    int submit (int fd, int type, int ep, int flags,
+	    ByteBuffer buf, int off, int length)
+    {
+	setup (type, ep, off, length);
+	direct = buf;
+	return Kernel.sys.submitDirect (fd, handle, id,
+		type, ep, flags, buf, off, length);
+    }
+
+    /**
+     * Queues whatever {@link #gather} put in the native buffer (or, for
+     * IN, room for "length" bytes that {@link #scatter} collects);
+     * returns zero, or negative errno.
+     */
+    int submitBuffer (int fd, int type, int ep, int flags, int length)
+    {
+	setup (type, ep, 0, length);
+	return Kernel.sys.submitBuffer (fd, handle, id,
+		type, ep, flags, length);
+    }
+
+    /**
+     * Copies "len" bytes of the buffer, starting at "pos", into the
+     * native buffer at offset "at"; returns that count, or negative
+     * errno.  The buffer's position doesn't change.
+     */
+    int gather (int at, ByteBuffer buf, int pos, int len)
+    {
+	if (buf.isDirect ())
+	    return Kernel.sys.copyOutDirect (handle, at, buf, pos, len);
+	if (buf.hasArray ())
+	    return Kernel.sys.copyOut (handle, at, buf.array (),
+		    buf.arrayOffset () + pos, len);
+
+	// read-only heap buffer
+	byte	temp [] = new byte [len];
+	ByteBuffer	dup = buf.duplicate ();
+
+	dup.position (pos);
+	dup.get (temp);
+	return Kernel.sys.copyOut (handle, at, temp, 0, len);
+    }
+
+    /**
+     * Copies "len" bytes from the native buffer at offset "at" into
+     * the buffer, starting at "pos"; returns that count, or negative
+     * errno.  The buffer's position doesn't change, and it must not
+     * be read-only.
+     */
+    int scatter (int at, ByteBuffer buf, int pos, int len)
+    {
+	if (buf.isDirect ())
+	    return Kernel.sys.copyInDirect (handle, at, buf, pos, len);
+	return Kernel.sys.copyInAt (handle, at, buf.array (),
+		buf.arrayOffset () + pos, len);
+    }
+
+    /**
+     * Queues a control request; the SETUP packet goes in front of the
+     * data in the native buffer, which must have room for both.
+     */
+    int submitControl (int fd, byte requestType, byte request,
+	    short value, short index, byte buf [], int off, int length)
+    {
+	setup (TYPE_CONTROL, requestType & 0x80, off, length);
+	this.buf = buf;
+	return Kernel.sys.submitControl (fd, handle, id,
+		requestType, request, value, index, buf, off, length);
+    }
+
+    /**
+     * Queues a batch of iso packets, whose lengths are given.  OUT data
+     * is copied now; IN data waits in the native buffer until it's
+     * collected, and "length" is how much room that needs.
+     */
+    int submitIso (int fd, int ep, int flags, int frame,
+	    int lengths [], int count, byte buf [], int off)
+    {
+	int	total = 0;
+
+	for (int i = 0; i < count; i++)
+	    total += lengths [i];
+	setup (TYPE_ISO, ep, off, total);
+	return Kernel.sys.submitIso (fd, handle, id, ep, flags, frame,
+		lengths, count, buf, off);
+    }
+
+    /**
+     * After an iso URB completes, copies per-packet results (and IN
+     * data, if "buf" isn't null) to the caller; returns the number of
+     * packets with errors.
+     */
+    int collectIso (byte buf [], int off, int actual [], int status [])
+    {
+	if (buf != null && (ep & 0x80) != 0 && length > 0)
+	    Kernel.sys.copyIn (handle, buf, off, length);
+	return Kernel.sys.getIsoResults (handle, actual, status);
+    }
+
+    /** Returns the frame when an iso URB started. */
+    int getStartFrame ()
+	{ return Kernel.sys.getStartFrame (handle); }
+
+    private void setup (int type, int ep, int off, int length)
+    {
+	this.type = type;
+	this.ep = ep;
+	this.off = off;
+	this.length = length;
+	buf = null;
+	direct = null;
+	done = false;
+	status = 0;
+	actual = 0;
+    }
+
+    /**
+     * Tags later bulk submissions with a stream ID; zero for none.
+     * This sticks until it's changed.
+     */
+    void setStream (int id)
+    {
+	if (id != stream) {
+	    Kernel.sys.setStream (handle, id);
+	    stream = id;
+	}
+    }
+
+    /** Asks the kernel to give this request back soon. */
+    int discard (int fd)
+	{ return Kernel.sys.discard (fd, handle); }
+
+    /** Records completion status, and copies any IN data. */
+    void complete ()
+    {
+	complete (Kernel.sys.getStatus (handle),
+		Kernel.sys.getActualLength (handle));
+    }
+
+    /** Like {@link #complete()}, given what {@link Kernel#reapBatch} said. */
+    void complete (int status, int actual)
+    {
+	this.status = status;
+	this.actual = actual;
+	if ((ep & 0x80) != 0 && actual > 0 && buf != null)
+	    Kernel.sys.copyIn (handle, buf, off, Math.min (actual, length));
+	buf = null;
+	direct = null;
+	done = true;
+    }
+
+    /** Records a failure that the kernel didn't report through a reap. */
+    void fail (int errno)
+    {
+	status = errno;
+	actual = 0;
+	buf = null;
+	direct = null;
+	done = true;
+    }
+
+    /** Releases the native buffer; only legal when the kernel is done. */
+    void free ()
+    {
+	if (handle != 0) {
+	    Kernel.sys.freeURB (handle);
+	    handle = 0;
+	    if (mapped)
+		addMapped (-capacity);
+	}
+    }
+}
@@ -0,0 +1,946 @@
+/*
+ * Java USB Library
+ * Copyright (C) 2000 by David Brownell
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package usb.linux;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import usb.core.ControlMessage;
+import usb.core.PendingControl;
+import usb.core.PendingIO;
+
+
+/**
+ * Submits and reaps asynchronous usbdevfs requests for one device file.
+ * Transfers are split into URBs, and several of those are kept queued
+ * at once, so the host controller always has the next one in hand and
+ * the bus doesn't sit idle while we schedule the next ioctl.
+ *
+ * <p> URBs are sized by the device's {@link Capabilities}, and their
+ * native buffers are pooled and shared between endpoints.
+ *
+ * <p> Completions are reaped by the {@link Reaper}, one thread that
+ * watches every open device file; it wakes the threads waiting for
+ * them, or tells their owners (such as {@link AsyncTransfer}s,
+ * interrupt {@link Subscription}s, or queued control requests) that
+ * they've completed.  Waits use a {@link ReentrantLock} rather than
+ * the monitor, so virtual threads waiting for I/O don't pin their
+ * carriers.
+ *
+ * @version $Id$
+ */
+final class URBEngine
+{
+    /** same policy as the synchronous calls in the JNI glue */
+    static final int		TIMEOUT = 10 * 1000;
+
+    // how many URBs one transfer may keep queued
+    private static int		depth = 4;
+
+    private final int		fd;
+    private final int		chunk;
+
+    // guards the URBs and the state below; "reaped" is signaled
+    // whenever completions are recorded or the device goes away
+    private final ReentrantLock	lock = new ReentrantLock ();
+    private final Condition	reaped = lock.newCondition ();
+
+    // every URB we allocated, indexed by id; and those not in use
+    private URB			urbs [] = new URB [0];
+    private final Vector	idle = new Vector ();
+
+    // ids of URBs freed while idle, for reuse (Integer)
+    private final Vector	spare = new Vector ();
+
+    // usbfs DMA memory held by idle URBs
+    private int			idleMapped;
+
+    private boolean		closed;
+
+    // once the device is gone, why
+    private int			dead;
+
+    // the reaper's name for us
+    int				slot = -1;
+
+    // completions reaped at once; the buffer is only used by the
+    // reaper thread, so every engine shares it
+    private static final int	BATCH = 64;
+    private static final ByteBuffer	records = ByteBuffer
+		.allocateDirect (3 * 4 * BATCH)
+		.order (ByteOrder.nativeOrder ());
+    private static final IntBuffer	completions = records.asIntBuffer ();
+
+    // URBs whose owners must be told, from the current batch
+    private final URB		handoffs [] = new URB [BATCH];
+
+
+    // package private
+    URBEngine (int fd, int chunk)
+    throws USBException
+    {
+	this.fd = fd;
+	this.chunk = chunk;
+	Reaper.register (this);
+    }
+
+    static void setDepth (int n)
+    {
+	if (n < 1)
+	    throw new IllegalArgumentException ();
+	depth = n;
+    }
+
+    static int getDepth ()
+	{ return depth; }
+
+
+    /** Returns the largest URB a transfer should use. */
+    int getChunk ()
+	{ return chunk; }
+
+
+    /**
+     * Performs a bulk transfer spanning several buffers, as one queue
+     * of URBs.  OUT data is gathered into each URB's native buffer,
+     * and IN data is scattered from it; so URBs needn't end where
+     * the buffers do (which would mean short packets), and nothing
+     * is assembled on the Java heap.  IN buffers must be writable.
+     * The buffers' positions advance past the data transferred.
+     *
+     * @return bytes transferred, else negative errno
+     */
+    long transfer (int type, int ep, ByteBuffer bufs [], int offset,
+	    int count)
+    {
+	boolean	in = (ep & 0x80) != 0;
+	int	limit = depth;
+	boolean	continuation = Capabilities.has (
+			    Capabilities.CAP_BULK_CONTINUATION);
+	URB	head = null, tail = null;
+	int	queued = 0;
+	long	next = 0, end = 0;
+	boolean	first = true;
+	boolean	stop = false;
+	long	total = 0;
+	int	error = 0;
+
+	// OUT data is gathered from "fill", IN data scattered to "drain"
+	int	last = offset + count;
+	int	fill [] = { offset, 0 };
+	int	drain [] = { offset, 0 };
+
+	for (int i = offset; i < last; i++)
+	    end += bufs [i].remaining ();
+	if (count > 0)
+	    fill [1] = drain [1] = bufs [offset].position ();
+
+	if (in && !continuation)
+	    limit = 1;
+
+	for (;;) {
+	    // keep the queue full ...
+	    while (!stop && queued < limit && (next < end || first)) {
+		int	n = (int) Math.min (end - next, chunk);
+		int	flags = 0;
+		URB	urb;
+		int	status;
+
+		if (closed) {
+		    error = -USBException.ENODEV;
+		    stop = true;
+		    break;
+		}
+		urb = get (0, n);
+
+		if (in)
+		    flags |= URB.SHORT_NOT_OK;
+		if (!first && type == URB.TYPE_BULK && continuation)
+		    flags |= URB.BULK_CONTINUATION;
+
+		status = in ? 0 : copy (urb, true, n, bufs, last, fill);
+		if (status >= 0)
+		    status = urb.submitBuffer (fd, type, ep, flags, n);
+		if (status < 0) {
+		    put (urb);
+		    error = status;
+		    stop = true;
+		    break;
+		}
+		if (tail == null)
+		    head = urb;
+		else
+		    tail.next = urb;
+		tail = urb;
+		queued++;
+		next += n;
+		first = false;
+	    }
+	    if (head == null)
+		break;
+
+	    // ... while collecting completions in order
+	    URB	urb = head;
+
+	    head = urb.next;
+	    if (head == null)
+		tail = null;
+	    urb.next = null;
+	    queued--;
+
+	    if (!await (urb, TIMEOUT)) {
+		urb.discard (fd);
+		finish (urb);
+		if (error == 0)
+		    error = -USBException.ETIMEDOUT;
+		stop = true;
+	    } else {
+		if (urb.status < 0 && urb.status != -EREMOTEIO) {
+		    if (error == 0)
+			error = urb.status;
+		    stop = true;
+		} else {
+		    int	status = 0;
+
+		    if (in)
+			status = copy (urb, false, urb.actual, bufs, last, drain);
+		    if (status < 0) {
+			if (error == 0)
+			    error = status;
+			stop = true;
+		    } else
+			total += urb.actual;
+		    if (in && urb.actual < urb.length)
+			stop = true;
+		}
+		put (urb);
+	    }
+
+	    // done early?  give back whatever's still queued
+	    if (stop && head != null) {
+		for (urb = head; urb != null; urb = urb.next)
+		    urb.discard (fd);
+		while (head != null) {
+		    urb = head;
+		    head = urb.next;
+		    urb.next = null;
+		    finish (urb);
+		}
+		tail = null;
+		queued = 0;
+	    }
+	}
+	if (error < 0)
+	    return error;
+
+	// report what moved
+	next = total;
+	for (int i = offset; i < last && next > 0; i++) {
+	    int	n = (int) Math.min (bufs [i].remaining (), next);
+
+	    bufs [i].position (bufs [i].position () + n);
+	    next -= n;
+	}
+	return total;
+    }
+
+    /*
+     * Copies "n" bytes between an URB's native buffer and a run of
+     * buffers (up to "last"), starting with buffer cursor [0] at
+     * position cursor [1]; advances the cursor.  Returns zero, or
+     * negative errno.
+     */
+    private static int copy (URB urb, boolean gather, int n,
+	    ByteBuffer bufs [], int last, int cursor [])
+    {
+	for (int at = 0; n > 0 && cursor [0] < last; ) {
+	    ByteBuffer	buf = bufs [cursor [0]];
+	    int		k = Math.min (n, buf.limit () - cursor [1]);
+
+	    if (k > 0) {
+		int	status;
+
+		if (gather)
+		    status = urb.gather (at, buf, cursor [1], k);
+		else
+		    status = urb.scatter (at, buf, cursor [1], k);
+		if (status < 0)
+		    return status;
+		at += k;
+		n -= k;
+		cursor [1] += k;
+	    }
+	    if (cursor [1] >= buf.limit () && ++cursor [0] < last)
+		cursor [1] = bufs [cursor [0]].position ();
+	}
+	return 0;
+    }
+
+    /**
+     * Performs a control transfer:  the request is queued with {@link
+     * #submitControl}, and its future waited for.  Unlike
+     * USBDEVFS_CONTROL, that isn't limited to a single page of data,
+     * and no thread blocks in the kernel.
+     *
+     * @return bytes transferred in the data stage, else negative errno
+     */
+    int control (byte type, byte request, short value, short index,
+	    byte buf [], int off, int length)
+    {
+	ControlMessage	msg = new ControlMessage ();
+	boolean		in = (type & ControlMessage.DIR_TO_HOST) != 0;
+	PendingControl	req;
+	ControlOwner	owner;
+	int		status;
+
+	msg.setRequestType (type);
+	msg.setRequest (request);
+	msg.setValue (value);
+	msg.setIndex (index);
+	if (in)
+	    msg.setLength (length);
+	else {
+	    byte	data [] = new byte [length];
+
+	    System.arraycopy (buf, off, data, 0, length);
+	    msg.setBuffer (data);
+	}
+	req = new PendingControl (msg);
+	owner = new ControlOwner (this, req);
+
+	if ((status = submitControl (owner)) < 0)
+	    return status;
+	if (!await (req, TIMEOUT)) {
+	    lock.lock ();
+	    try {
+		// unless it completed (and was recycled) meanwhile
+		if (!closed && owner.urb.owner == owner)
+		    owner.urb.discard (fd);
+	    } finally {
+		lock.unlock ();
+	    }
+	    if (!await (req, TIMEOUT))
+		return -USBException.ETIMEDOUT;
+	}
+	if (req.getFailure () instanceof USBException)
+	    return -((USBException) req.getFailure ()).getErrno ();
+	if (req.getFailure () != null)
+	    return -USBException.ENODEV;
+
+	status = req.getActualLength ();
+	if (in)
+	    System.arraycopy (msg.getBuffer (), 0, buf, off, status);
+	return status;
+    }
+
+    /**
+     * Queues a control request without waiting for it; the reaper
+     * completes it.  Several may be queued at once, and the kernel
+     * issues them in order.  Returns zero, or negative errno.
+     */
+    int submitControl (PendingControl req)
+	{ return submitControl (new ControlOwner (this, req)); }
+
+    private int submitControl (ControlOwner owner)
+    {
+	PendingControl	req = owner.req;
+	ControlMessage	msg = req.getMessage ();
+	byte		data [] = req.getData ();
+	URB		urb;
+	int		status;
+
+	if (closed || dead != 0)
+	    return -USBException.ENODEV;
+	urb = get (0, data.length + 8);
+	urb.owner = owner;
+	owner.urb = urb;
+	status = urb.submitControl (fd, msg.getRequestType (),
+		msg.getRequest (), msg.getValue (), msg.getIndex (),
+		data, 0, data.length);
+	if (status < 0)
+	    put (urb);
+	return status;
+    }
+
+    // completes a request queued by submitControl()
+    private static final class ControlOwner implements URB.Owner
+    {
+	private final URBEngine		engine;
+	final PendingControl		req;
+
+	// the URB carrying it, once queued
+	URB				urb;
+
+	ControlOwner (URBEngine e, PendingControl r)
+	{
+	    engine = e;
+	    req = r;
+	}
+
+	public void completed (URB done)
+	{
+	    int		status = done.status;
+	    int		actual = done.actual;
+
+	    // IN data is already in the request's buffer
+	    engine.put (done);
+	    if (status < 0)
+		req.fail (new USBException ("control", -status));
+	    else
+		req.complete (actual);
+	}
+
+	public void failed (int status)
+	    { req.fail (new USBException ("control", -status)); }
+    }
+
+    /**
+     * Waits up to "timeout" msec for a queued request's future to
+     * complete; returns false on timeout.  The reaper thread can't
+     * wait for itself, so it reaps this device until then.
+     */
+    boolean await (PendingIO req, int timeout)
+    {
+	long	deadline = System.currentTimeMillis () + timeout;
+
+	if (Reaper.isReaper ()) {
+	    while (!req.isDone ()) {
+		long	now = System.currentTimeMillis ();
+
+		if (now >= deadline)
+		    return false;
+		if (!reapOne ((int) (deadline - now)))
+		    req.fail (new USBException ("device gone",
+			    (dead != 0) ? -dead : USBException.ENODEV));
+	    }
+	    return true;
+	}
+	try {
+	    req.get (timeout, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread ().interrupt ();
+	    return false;
+	} catch (TimeoutException e) {
+	    return false;
+	} catch (ExecutionException e) {
+	    // failed; the caller checks
+	}
+	return true;
+    }
+
+    // short reads report this when SHORT_NOT_OK is set
+    private static final int	EREMOTEIO = 121;
+
+
+    /**
+     * Waits for the {@link Reaper} to give a URB back; returns false
+     * on timeout.
+     */
+    boolean await (URB urb, int timeout)
+    {
+	long	deadline = System.currentTimeMillis () + timeout;
+
+	// the reaper can't wait for itself (a listener might cancel
+	// something), so it reaps this device directly
+	if (Reaper.isReaper ())
+	    return reapFor (urb, deadline);
+
+	lock.lock ();
+	try {
+	    for (;;) {
+		long	now;
+
+		if (urb.done)
+		    return true;
+		if (closed || dead != 0) {
+		    // never touch the fd after close; it may be reused
+		    urb.fail ((dead != 0) ? dead : -USBException.ENODEV);
+		    return true;
+		}
+		now = System.currentTimeMillis ();
+		if (now >= deadline)
+		    return false;
+		try {
+		    reaped.await (deadline - now, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		    Thread.currentThread ().interrupt ();
+		    return false;
+		}
+	    }
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    private boolean reapFor (URB urb, long deadline)
+    {
+	for (;;) {
+	    long	now = System.currentTimeMillis ();
+
+	    lock.lock ();
+	    try {
+		if (urb.done)
+		    return true;
+		if (closed || dead != 0) {
+		    urb.fail ((dead != 0) ? dead : -USBException.ENODEV);
+		    return true;
+		}
+		if (now >= deadline)
+		    return false;
+	    } finally {
+		lock.unlock ();
+	    }
+	    reapOne ((int) (deadline - now));
+	}
+    }
+
+    /**
+     * For the reaper thread, when it waits for this device's I/O:
+     * reaps and dispatches at most one completion, waiting up to
+     * timeout msec.  Returns false if the device is gone.
+     */
+    boolean reapOne (int timeout)
+    {
+	int	id;
+	URB	handoff = null;
+
+	lock.lock ();
+	try {
+	    if (closed || dead != 0)
+		return false;
+	} finally {
+	    lock.unlock ();
+	}
+	id = Kernel.sys.reap (fd, timeout);
+	lock.lock ();
+	try {
+	    if (id >= 0 && id < urbs.length)
+		handoff = dispatch (urbs [id]);
+	    reaped.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+	if (handoff != null)
+	    handoff.owner.completed (handoff);
+	return true;
+    }
+
+    // call with lock held; returns the URB if its owner must be told
+    private URB dispatch (URB done)
+    {
+	done.complete ();
+	return settle (done);
+    }
+
+    // call with lock held, after the URB's completion is recorded
+    private URB settle (URB done)
+    {
+	if (done.orphan) {
+	    done.orphan = false;
+	    put (done);
+	    return null;
+	}
+	return (done.owner != null) ? done : null;
+    }
+
+    /**
+     * Called by the {@link Reaper} when the device file is readable:
+     * reaps everything that's completed, wakes whoever is waiting,
+     * and tells owners about their URBs.  Completions are reaped in
+     * batches, one native call each, which matters when small
+     * transfers complete thousands of times a second.
+     *
+     * @return false if the device is gone, so the file shouldn't
+     *	be watched any more
+     */
+    boolean reapAll ()
+    {
+	for (;;) {
+	    int	count;
+	    int	owed = 0;
+
+	    lock.lock ();
+	    try {
+		if (closed)
+		    return false;
+	    } finally {
+		lock.unlock ();
+	    }
+	    count = Kernel.sys.reapBatch (fd, records, BATCH);
+
+	    if (count < 0) {
+		// disconnected:  nothing more will complete
+		abandon (count);
+		return false;
+	    }
+	    if (count == 0)
+		return true;
+
+	    lock.lock ();
+	    try {
+		for (int i = 0; i < count; i++) {
+		    int	id = completions.get (3 * i);
+		    URB	urb;
+
+		    if (id < 0 || id >= urbs.length)
+			continue;
+		    urb = urbs [id];
+		    urb.complete (completions.get (3 * i + 1),
+			    completions.get (3 * i + 2));
+		    if ((urb = settle (urb)) != null)
+			handoffs [owed++] = urb;
+		}
+		reaped.signalAll ();
+	    } finally {
+		lock.unlock ();
+	    }
+	    for (int i = 0; i < owed; i++) {
+		URB	urb = handoffs [i];
+
+		handoffs [i] = null;
+		urb.owner.completed (urb);
+	    }
+	    if (count < BATCH)
+		return true;
+	}
+    }
+
+    /**
+     * Records that nothing more will be reaped from this device file
+     * (it's gone, or the reaper can't watch it), failing whatever is
+     * queued or waiting with "status", a negative errno.
+     */
+    void abandon (int status)
+    {
+	lock.lock ();
+	try {
+	    if (dead == 0)
+		dead = status;
+	    reaped.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+	failOwners (status);
+    }
+
+    // tells every subscription on this device that it's done for
+    private void failOwners (int status)
+    {
+	Vector	owners = new Vector ();
+
+	lock.lock ();
+	try {
+	    for (int i = 0; i < urbs.length; i++) {
+		if (urbs [i].owner != null && !urbs [i].done
+			&& !owners.contains (urbs [i].owner))
+		    owners.addElement (urbs [i].owner);
+	    }
+	} finally {
+	    lock.unlock ();
+	}
+	for (int i = 0; i < owners.size (); i++)
+	    ((URB.Owner) owners.elementAt (i)).failed (status);
+    }
+
+    /** Returns the device file, for the reaper to watch. */
+    int getFd ()
+	{ return fd; }
+
+    /**
+     * Queues an URB from {@link #get} whose {@link URB#owner} handles
+     * its completion; returns zero, or negative errno.
+     */
+    int submit (URB urb, int type, int ep, byte buf [], int off, int length)
+    {
+	if (closed || dead != 0)
+	    return -USBException.ENODEV;
+	return urb.submit (fd, type, ep, 0, buf, off, length);
+    }
+
+    /**
+     * Like the array version, but using a direct buffer in place;
+     * the caller keeps that buffer until the URB completes.
+     */
+    int submit (URB urb, int type, int ep, ByteBuffer buf,
+	    int off, int length)
+    {
+	if (closed || dead != 0)
+	    return -USBException.ENODEV;
+	return urb.submit (fd, type, ep, 0, buf, off, length);
+    }
+
+    /**
+     * Queues an URB for an {@link AsyncTransfer}, with URB flags;
+     * data is in "array", else used in place from "direct".
+     */
+    int submit (URB urb, int type, int ep, int flags,
+	    byte array [], ByteBuffer direct, int off, int length)
+    {
+	if (closed || dead != 0)
+	    return -USBException.ENODEV;
+	if (direct != null)
+	    return urb.submit (fd, type, ep, flags, direct, off, length);
+	return urb.submit (fd, type, ep, flags, array, off, length);
+    }
+
+    /**
+     * Queues a batch of iso packets on an URB from {@link #get},
+     * returning zero or negative errno.
+     */
+    int submitIso (URB urb, int ep, int flags, int frame,
+	    int lengths [], int count, byte buf [], int off)
+    {
+	if (closed || dead != 0)
+	    return -USBException.ENODEV;
+	return urb.submitIso (fd, ep, flags, frame,
+		lengths, count, buf, off);
+    }
+
+    /**
+     * Cancels a queued URB, then recycles it (now, or once the
+     * kernel gives it back).
+     */
+    void cancel (URB urb)
+    {
+	lock.lock ();
+	try {
+	    if (!closed && !urb.done)
+		urb.discard (fd);
+	} finally {
+	    lock.unlock ();
+	}
+	finish (urb);
+    }
+
+    /**
+     * Asks the kernel to give back a queued URB soon, without waiting
+     * for that; its owner then sees it complete.
+     */
+    void discard (URB urb)
+    {
+	lock.lock ();
+	try {
+	    if (!closed && !urb.done)
+		urb.discard (fd);
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /** Collects a discarded URB, or leaves it to be recycled later. */
+    private void finish (URB urb)
+    {
+	if (await (urb, TIMEOUT)) {
+	    put (urb);
+	    return;
+	}
+	lock.lock ();
+	try {
+	    if (urb.done)
+		put (urb);
+	    else {
+		// don't scribble on the caller's array later; but
+		// a direct buffer must stay live until it's reaped
+		urb.buf = null;
+		urb.orphan = true;
+	    }
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /**
+     * Returns an idle URB whose native buffer holds at least "need"
+     * bytes, and which has room for that many iso packets; direct
+     * buffer transfers need no buffer.
+     */
+    URB get (int packets, int need)
+    {
+	lock.lock ();
+	try {
+	    return getLocked (packets, need);
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    private URB getLocked (int packets, int need)
+    {
+	URB	best = null;
+	int	where = -1;
+
+	for (int i = idle.size () - 1; i >= 0; i--) {
+	    URB	urb = (URB) idle.elementAt (i);
+
+	    if (urb.capacity >= need && urb.packets >= packets
+		    && (best == null || urb.capacity < best.capacity)) {
+		best = urb;
+		where = i;
+		if (urb.capacity == need && urb.packets == packets)
+		    break;
+	    }
+	}
+	if (best != null) {
+	    idle.removeElementAt (where);
+	    if (best.mapped)
+		idleMapped -= best.capacity;
+	    return best;
+	}
+
+	// round up so similar transfers can share
+	if (need != 0)
+	    need = (need + 4095) & ~4095;
+
+	int	dma = -1;
+	int	id;
+
+	// usbfs DMA buffers save the kernel a copy, but they're
+	// limited; past our share, use ordinary memory
+	if (need != 0 && Capabilities.has (Capabilities.CAP_MMAP)
+		&& URB.getMappedBytes () + need <= mappedLimit ())
+	    dma = fd;
+
+	if (!spare.isEmpty ()) {
+	    id = ((Integer) spare.lastElement ()).intValue ();
+	    spare.removeElementAt (spare.size () - 1);
+	} else {
+	    URB	temp [] = new URB [urbs.length + 1];
+
+	    System.arraycopy (urbs, 0, temp, 0, urbs.length);
+	    urbs = temp;
+	    id = urbs.length - 1;
+	}
+	urbs [id] = new URB (id, packets, need, dma);
+	return urbs [id];
+    }
+
+    /*
+     * usbfs_memory_mb limits the DMA memory of all processes together,
+     * and submissions fail with ENOMEM past it.  This process maps at
+     * most a quarter of it; each device keeps at most a sixteenth (or
+     * with no limit, one transfer's worth) mapped while it's idle.
+     */
+    private static long mappedLimit ()
+    {
+	int	limit = Capabilities.memoryLimit;
+
+	return (limit == 0) ? Long.MAX_VALUE : limit / 4;
+    }
+
+    private long idleMappedLimit ()
+    {
+	int	limit = Capabilities.memoryLimit;
+
+	return (limit == 0) ? (long) depth * chunk : limit / 16;
+    }
+
+    void put (URB urb)
+    {
+	lock.lock ();
+	try {
+	    putLocked (urb);
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    private void putLocked (URB urb)
+    {
+	urb.owner = null;
+	if (closed)
+	    urb.free ();
+	else if (urb.mapped
+		&& idleMapped + urb.capacity > idleMappedLimit ()) {
+	    // give the DMA memory back; the id can be reused
+	    urb.free ();
+	    spare.addElement (new Integer (urb.id));
+	} else {
+	    urb.setStream (0);
+	    idle.addElement (urb);
+	    if (urb.mapped)
+		idleMapped += urb.capacity;
+	}
+    }
+
+    /**
+     * Returns true if no URBs are in use, so closing the device file
+     * would lose nothing.
+     */
+    boolean isIdle ()
+    {
+	lock.lock ();
+	try {
+	    return idle.size () + spare.size () == urbs.length;
+	} finally {
+	    lock.unlock ();
+	}
+    }
+
+    /**
+     * Stops watching the device file; call this before it's closed,
+     * so the reaper never sees a reused file descriptor.
+     */
+    void detach ()
+	{ Reaper.unregister (this); }
+
+    /**
+     * Frees native resources once the device file is closed (which
+     * kills anything still queued).  Busy URBs are freed as their
+     * transfers finish.
+     */
+    void close ()
+    {
+	Vector	owners = new Vector ();
+
+	lock.lock ();
+	try {
+	    closed = true;
+	    for (int i = 0; i < idle.size (); i++)
+		((URB) idle.elementAt (i)).free ();
+	    idle.removeAllElements ();
+	    idleMapped = 0;
+	    for (int i = 0; i < urbs.length; i++) {
+		URB	urb = urbs [i];
+
+		if (urb.orphan)
+		    urb.free ();
+		else if (urb.owner != null) {
+		    // the kernel dropped it when the fd closed
+		    if (!owners.contains (urb.owner))
+			owners.addElement (urb.owner);
+		    urb.free ();
+		}
+	    }
+	    reaped.signalAll ();
+	} finally {
+	    lock.unlock ();
+	}
+	for (int i = 0; i < owners.size (); i++)
+	    ((URB.Owner) owners.elementAt (i)).failed (
+		    -USBException.ENODEV);
+    }
+}
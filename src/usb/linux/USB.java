@@ -65,6 +65,16 @@ final class USB implements Bus
     final transient private Vector	listeners;
     final transient private DeviceImpl	devices [] = new DeviceImpl [127];
 
+    // devices being created by enumeration threads
+    final transient private Creation	staged [] = new Creation [127];
+
+    // how long devices may take to enumerate before they're skipped
+    static final int			TIMEOUT = 5 * 1000;
+
+    // when we were created; then, how long initial enumeration took
+    final transient private long	created;
+    private transient long		enumerationTime = -1;
+
     // package private
     USB (File parent, String file, int num, Vector l, Host h)
     throws IOException
@@ -73,6 +83,7 @@ final class USB implements Bus
 	busnum = num;
 	listeners = l;
 	host = h;
+	created = System.currentTimeMillis ();
     }
 
     public String toString ()
@@ -103,11 +114,33 @@ final class USB implements Bus
 
     public String getBusId ()
     {
+	Sysfs	info;
+
 	if (root < 0)
 	    return null;
+	if ((info = devices [root].getSysfs ()) != null && info.serial != null)
+	    return info.serial;
 	return devices [root].getDeviceDescriptor ().getSerial (0);
     }
 
+    // package private (for hubs, using sysfs)
+    // returns the address of the named device, or zero
+    int getAddress (String sysfsName)
+    {
+	synchronized (devices) {
+	    for (int i = 0; i < devices.length; i++) {
+		Sysfs	info;
+
+		if (devices [i] == null)
+		    continue;
+		info = devices [i].getSysfs ();
+		if (info != null && sysfsName.equals (info.name))
+		    return i + 1;
+	    }
+	}
+	return 0;
+    }
+
     /**
      * Returns an object representing the device with the specified
      * address (1 through 127), or null if no such device exists.
@@ -118,7 +151,7 @@ final class USB implements Bus
     }
 
     // assemble new tree
-    private void newTree (String names [])
+    private void newTree (String names [], Sysfs found [])
     throws SecurityException
     {
 	DeviceImpl	hub = null;
@@ -129,8 +162,7 @@ final class USB implements Bus
 		if (names [i] == null)
 		    continue;
 		try {
-		    File f = new File (busfile, names [i]);
-		    devices [i] = new DeviceImpl (this, f, i + 1);
+		    devices [i] = create (i, names [i], found);
 		} catch (IOException e) {
 		    if (Linux.debug)
 			e.printStackTrace ();
@@ -224,6 +256,254 @@ final class USB implements Bus
 	return reported;
     }
 
+    /*
+     * Lists the device files on the bus, by address; returns what
+     * sysfs says about them, or null if sysfs isn't used.
+     */
+    private Sysfs [] list (String names [])
+    {
+	Sysfs	found [] = null;
+
+	// sysfs has everything needed, without opening devices
+	if (Sysfs.isAvailable ()) {
+	    found = Sysfs.scan (busnum);
+	    for (int i = 0; i < 127; i++) {
+		String	name;
+
+		if (found [i] == null)
+		    continue;
+		name = "00" + (i + 1);
+		names [i] = name.substring (name.length () - 3);
+	    }
+
+	} else {
+	    String	devs [] = Kernel.sys.list (busfile.getPath ());
+
+	    for (int i = 0; devs != null && i < devs.length; i++) {
+		try {
+		    int	index = Integer.parseInt (devs [i]) - 1;
+		    names [index] = devs [i];
+		} catch (Exception e) {
+		    if (Linux.debug)
+			System.err.println ("illegal name: "
+			    + busfile + "/" + devs [i]);
+		}
+	    }
+	}
+	return found;
+    }
+
+    /**
+     * Starts creating objects for any new devices on this bus, but
+     * doesn't wait for them.  Busses found together call this before
+     * any of them scans, so they're enumerated in parallel.
+     */
+    // package private
+    void prefetch ()
+    {
+	String	names [] = new String [127];
+
+	synchronized (devices) {
+	    prefetch (names, list (names));
+	}
+    }
+
+    // call synch'd on devices
+    private void prefetch (String names [], Sysfs found [])
+    {
+	for (int i = 0; i < 127; i++) {
+	    Creation	c;
+
+	    if (names [i] == null || devices [i] != null)
+		continue;
+	    c = new Creation (i, new File (busfile, names [i]),
+		    (found == null) ? null : found [i]);
+	    if (staged [i] != null) {
+		if (staged [i].matches (c))
+		    continue;
+		staged [i].discard ();
+	    }
+	    staged [i] = c;
+	    Enumerator.execute (c);
+	}
+    }
+
+    // call synch'd on devices
+    // returns the new device, probably created by prefetch()
+    private DeviceImpl create (int index, String name, Sysfs found [])
+    throws IOException, SecurityException
+    {
+	Creation	c;
+
+	c = new Creation (index, new File (busfile, name),
+		(found == null) ? null : found [index]);
+	if (staged [index] != null) {
+	    if (staged [index].matches (c)) {
+		c = staged [index];
+
+		// if it's stuck, maybe it'll be ready next scan
+		if (c.await ())
+		    staged [index] = null;
+		return c.get ();
+	    }
+	    staged [index].discard ();
+	    staged [index] = null;
+	}
+	c.run ();
+	return c.get ();
+    }
+
+    /**
+     * Creates a device object; the constructor can issue control
+     * requests, which can take a while.
+     */
+    private final class Creation implements Runnable
+    {
+	private final int	index;
+	private final File	file;
+	private final Sysfs	info;
+
+	private long		started;
+	private boolean		done;
+	private boolean		abandoned;
+	private DeviceImpl	dev;
+	private Exception	error;
+
+	Creation (int i, File f, Sysfs s)
+	{
+	    index = i;
+	    file = f;
+	    info = s;
+	}
+
+	// the same device file, and the same device?
+	boolean matches (Creation c)
+	{
+	    if (!file.equals (c.file))
+		return false;
+	    if (info == null || c.info == null)
+		return info == c.info;
+	    return info.name.equals (c.info.name);
+	}
+
+	public void run ()
+	{
+	    DeviceImpl	d = null;
+	    Exception	e = null;
+	    boolean	close;
+
+	    synchronized (this) {
+		started = System.currentTimeMillis ();
+	    }
+	    try {
+		d = new DeviceImpl (USB.this, file, index + 1, info);
+	    } catch (IOException x) {
+		e = x;
+	    } catch (RuntimeException x) {
+		e = x;
+	    }
+	    synchronized (this) {
+		dev = d;
+		error = e;
+		done = true;
+		close = abandoned;
+		notifyAll ();
+	    }
+	    if (close && d != null)
+		closeQuietly (d);
+	}
+
+	/**
+	 * Waits until the device is created, or it's taken too long;
+	 * returns true if it's done.
+	 */
+	synchronized boolean await ()
+	{
+	    long	start = System.currentTimeMillis ();
+
+	    while (!done) {
+		long	deadline;
+		long	now = System.currentTimeMillis ();
+
+		// time out after TIMEOUT in the constructor, or in
+		// the queue (stuck devices are using the threads)
+		deadline = ((started != 0) ? started : start) + TIMEOUT;
+		if (now >= deadline)
+		    return false;
+		try {
+		    wait (deadline - now);
+		} catch (InterruptedException e) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	synchronized DeviceImpl get ()
+	throws IOException, SecurityException
+	{
+	    if (!done)
+		throw new USBException ("device not responding: " + file,
+			USBException.ETIMEDOUT);
+	    if (error instanceof IOException)
+		throw (IOException) error;
+	    if (error != null)
+		throw (RuntimeException) error;
+	    return dev;
+	}
+
+	// nobody wants this device; close it, now or later
+	void discard ()
+	{
+	    DeviceImpl	d;
+
+	    synchronized (this) {
+		abandoned = true;
+		if (!done)
+		    return;
+		d = dev;
+		dev = null;
+	    }
+	    if (d != null)
+		closeQuietly (d);
+	}
+    }
+
+    private static void closeQuietly (DeviceImpl dev)
+    {
+	try { dev.close (); }
+	catch (IOException e) { /* ignore */ }
+    }
+
+    /**
+     * Records that initial enumeration is done, so the time it took
+     * can be reported.
+     */
+    // package private
+    void enumerated ()
+    {
+	int	count = 0;
+
+	enumerationTime = System.currentTimeMillis () - created;
+	synchronized (devices) {
+	    for (int i = 0; i < devices.length; i++) {
+		if (devices [i] != null)
+		    count++;
+	    }
+	}
+	if (Linux.trace)
+	    System.err.println ("bus " + busnum + ": " + count
+		+ " devices, enumerated in " + enumerationTime + " msec");
+    }
+
+    /**
+     * Returns how many milliseconds it took to enumerate the devices
+     * found with this bus, or -1 if that's not yet done.
+     */
+    // package private
+    long getEnumerationTime ()
+	{ return enumerationTime; }
+
     // returns true if changes were detected
     // package private
     boolean scanBus ()
@@ -235,29 +515,43 @@ final class USB implements Bus
 	// can optimize: compare mtime against lastTime, and maybe stop.
 
 	synchronized (devices) {
-	    String	devs [] = busfile.list ();
 	    String	names [] = new String [127];
 	    boolean	addAll = false;
+	    Sysfs	found [] = list (names);
 
-	    for (int i = 0; i < devs.length; i++) {
-		try {
-		    int	index = Integer.parseInt (devs [i]) - 1;
-		    names [index] = devs [i];
-		} catch (Exception e) {
-		    if (Linux.debug)
-			System.err.println ("illegal name: "
-			    + busfile + "/" + devs [i]);
-		}
-	    }
+	    // new devices are created in parallel
+	    prefetch (names, found);
 
 	    // init or reinit (e.g. PM-induced restart)
 	    if (root < 0 || names [root] == null) {
-		newTree (names);
+		newTree (names, found);
 		addAll = true;
 	    
 	    // flag any removals from existing tree
-	    } else
+	    } else {
+		// files that aren't open don't pin addresses; one may
+		// have been reused since the last scan
+		if (found != null) {
+		    for (int i = 0; i < 127; i++) {
+			Sysfs	info;
+
+			if (devices [i] == null || names [i] == null)
+			    continue;
+			info = devices [i].getSysfs ();
+			if (info != null && !info.name.equals (found [i].name))
+			    names [i] = null;
+		    }
+		}
 		retval = checkHub ("remove", devices [root], names);
+		if (found != null) {
+		    for (int i = 0; i < 127; i++) {
+			if (found [i] != null && names [i] == null) {
+			    String name = "00" + (i + 1);
+			    names [i] = name.substring (name.length () - 3);
+			}
+		    }
+		}
+	    }
 
 	    // catch any new devices
 	    for (int index = 0; index < 127; index++) {
@@ -267,8 +561,7 @@ final class USB implements Bus
 		    // new device ... report later
 		    if (names [index] != null) {
 			try {
-			    File f = new File (busfile, names [index]);
-			    dev = new DeviceImpl (this, f, index + 1);
+			    dev = create (index, names [index], found);
 			    devices [index] = dev;
 			    retval = true;
 			} catch (IOException e) {
@@ -286,8 +579,9 @@ final class USB implements Bus
 
 		} else {
 		    // usbdevfs keeps filenames pinned while we
-		    // have open file descriptors.  So we know
-		    // that if we have a dev, we reported it.
+		    // have open file descriptors, and sysfs names
+		    // were checked above.  So we know that if we
+		    // have a dev, we reported it.
 		    if (names [index] != null && !addAll)
 			names [index] = null;
 		}
@@ -55,9 +55,14 @@ class USBException extends usb.core.USBException
     public int getErrno () { return errno; }
 
     public static final int ENOENT = 2;
+    public static final int EINTR = 4;
+    public static final int EBADF = 9;
     public static final int EPERM = 13;
     public static final int EBUSY = 16;
+    public static final int EXDEV = 18;
     public static final int ENODEV = 19;
+    public static final int EINVAL = 22;
+    public static final int EFBIG = 27;
     public static final int EPIPE = 32;
     public static final int EOVERFLOW = 75;
     public static final int ETIMEDOUT = 110;
@@ -160,8 +165,11 @@ class USBException extends usb.core.USBException
 	    ;
     }
 
-    // FIXME ... indirect through something
-
-    // wrapper for strerror(3)
-    private native String strError (int errno);
+    // wrapper for strerror(3), in whatever kernel interface is used
+    private static String strError (int errno)
+    {
+	if (Kernel.sys == null)
+	    return "errno " + errno;
+	return Kernel.sys.strError (errno);
+    }
 }
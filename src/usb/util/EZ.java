@@ -196,12 +196,19 @@ public final class EZ
 	this.dev = dev;
     }
 
+    // how many firmware writes to keep queued during downloads
+    private static final int	WRITE_AHEAD = 16;
+
     private void writeMemory (short address, byte buf [])
     throws IOException
     {
 	if (buf.length == 0)
 	    return;
+	dev.control (memoryWrite (address, buf));
+    }
 
+    private static ControlMessage memoryWrite (short address, byte buf [])
+    {
 	ControlMessage	message = new ControlMessage ();
 	byte		type = ControlMessage.TYPE_VENDOR;
 
@@ -214,8 +221,7 @@ public final class EZ
 	message.setValue (address);
 	// message.setIndex (0);
 	message.setBuffer (buf);
-
-	dev.control (message);
+	return message;
     }
 
     private void setReset (boolean value)
@@ -253,9 +259,13 @@ public final class EZ
 	// the FX talks the same protocol; details are different.
 
 	// FIXME sort records and merge adjacent ones;
-	// 16 bytes/record and one I/O per ms (max) is
-	// really slow.  One I/O per segment should work,
-	// at least for segments up to 4 KB.
+	// 16 bytes/record is a lot of requests.  Queueing
+	// them means they don't each wait for a round trip,
+	// but one I/O per segment should work, at least for
+	// segments up to 4 KB.
+
+	PendingControl	queued [] = new PendingControl [WRITE_AHEAD];
+	int		count = 0;
 
 	setReset (true);
 	for (int i = 0; i < len; i++) {
@@ -263,7 +273,18 @@ public final class EZ
 
 	    if (fw.addr == 0xffff)
 		break;
-	    writeMemory (fw.addr, fw.data);
+	    if (fw.data.length == 0)
+		continue;
+	    if (queued [count % WRITE_AHEAD] != null)
+		queued [count % WRITE_AHEAD].await ();
+	    queued [count++ % WRITE_AHEAD] = dev.submitControl (
+		    memoryWrite (fw.addr, fw.data));
+	}
+
+	// the CPU stays in reset until every write has finished
+	for (int i = 0; i < WRITE_AHEAD; i++) {
+	    if (queued [i] != null)
+		queued [i].await ();
 	}
 	setReset (false);
 	// renumeration normally happens in a moment
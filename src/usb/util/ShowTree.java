@@ -51,6 +51,9 @@ final public class ShowTree
 {
     static int		defaultLanguage;
 
+    // reused for every walk over descriptors
+    private static final DescriptorCursor	cursor = new DescriptorCursor ();
+
     private ShowTree () {}
 
     public static void main (String argv [])
@@ -231,7 +234,7 @@ final public class ShowTree
 	    + "'>");
 	indent += 2;
 
-	maybePrintDescriptors (indent, c.nextDescriptor ());
+	maybePrintDescriptors (indent, cursor.reset (c));
 	
 	for (int i = 0; i < c.getNumInterfaces (); i++) {
 	    try {
@@ -287,7 +290,7 @@ final public class ShowTree
 	    + "'>");
 	indent += 2;
 
-	maybePrintDescriptors (indent, intf.nextDescriptor ());
+	maybePrintDescriptors (indent, cursor.reset (intf));
 	
 	for (int ep = 0; ep < intf.getNumEndpoints (); ep++)
 	    try {
@@ -325,26 +328,26 @@ final public class ShowTree
 	    + e.getInterval ()
 	    // XXX two "extra" bytes in audio endpoints ...
 	    + "'/>");
-	maybePrintDescriptors (indent, e.nextDescriptor ());
+	maybePrintDescriptors (indent, cursor.reset (e));
     }
 
     // call this to print anything between one descriptor and
     // the next interface or endpoint (or end of configuration)
-    private static void maybePrintDescriptors (int indent, Descriptor d)
+    private static void maybePrintDescriptors (int indent,
+	DescriptorCursor c)
     {
-	while (d != null) {
-	    switch (d.getDescriptorType ()) {
+	while (c.next ()) {
+	    switch (c.getDescriptorType ()) {
 		case Descriptor.TYPE_INTERFACE:
 		case Descriptor.TYPE_ENDPOINT:
 		    return;
 		default:
 		    indentLine (indent, "<descriptor type='"
-			    + d.getDescriptorType ()
+			    + c.getDescriptorType ()
 			    + "' length='"
-			    + d.getLength ()
+			    + c.getLength ()
 			    + "'/>");
 		    // dumping contents could be useful too
-		    d = d.nextDescriptor ();
 	    }
 	}
     }